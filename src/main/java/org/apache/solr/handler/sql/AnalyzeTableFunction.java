@@ -0,0 +1,270 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.calcite.adapter.enumerable.CallImplementor;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.linq4j.tree.Types;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.schema.FunctionParameter;
+import org.apache.calcite.schema.ImplementableFunction;
+import org.apache.calcite.schema.ScalarFunction;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.LukeRequest;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.response.LukeResponse;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.cloud.ZkStateReader;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The ANALYZE_TABLE('table') function, which computes the column statistics of a table and saves them in the
+ * {@link StatisticsStore} for the planner.
+ *
+ * <p>Every column is analyzed with a single rows=0 request: hll for the number of distinct values, a query facet for
+ * the null fraction, terms facets sorted by index order for the smallest and largest value and by count for the
+ * most common values, and for numeric and date columns the percentiles that bound an equi-depth histogram. Columns Solr
+ * can't facet on are skipped. The function returns a short summary of the analysis.</p>
+ *
+ * <p>The class is public because the generated code calls {@link #analyze} from outside of this package.</p>
+ */
+public class AnalyzeTableFunction implements ScalarFunction, ImplementableFunction {
+  private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  static final String NAME = "ANALYZE_TABLE";
+
+  private static final Method ANALYZE_METHOD =
+      Types.lookupMethod(AnalyzeTableFunction.class, "analyze", String.class, String.class, String.class);
+
+  private final String zkHost;
+  private final String directory;
+
+  AnalyzeTableFunction(Properties properties) {
+    this.zkHost = properties.getProperty("zk");
+    this.directory = StatisticsStore.getDirectory(properties);
+  }
+
+  public List<FunctionParameter> getParameters() {
+    return ImmutableList.of(new FunctionParameter() {
+      public int getOrdinal() {
+        return 0;
+      }
+
+      public String getName() {
+        return "table";
+      }
+
+      public RelDataType getType(RelDataTypeFactory typeFactory) {
+        return typeFactory.createJavaType(String.class);
+      }
+
+      public boolean isOptional() {
+        return false;
+      }
+    });
+  }
+
+  public RelDataType getReturnType(RelDataTypeFactory typeFactory) {
+    return typeFactory.createJavaType(String.class);
+  }
+
+  public CallImplementor getImplementor() {
+    return (translator, call, nullAs) -> Expressions.call(ANALYZE_METHOD, Expressions.constant(zkHost),
+        Expressions.constant(directory), translator.translateList(call.getOperands()).get(0));
+  }
+
+  /** Called via code-generation. */
+  @SuppressWarnings("WeakerAccess")
+  public static String analyze(String zkHost, String directory, String table) {
+    try {
+      CloudSolrClient cloudSolrClient = SolrSchema.CLIENT_CACHE.getCloudSolrClient(zkHost);
+      String collection = resolveCollection(cloudSolrClient.getZkStateReader(), table);
+
+      // Read the version first, statistics computed against a newer index are only tagged as older
+      Properties properties = new Properties();
+      properties.setProperty(IndexVersion.CHECK_INTERVAL_PROPERTY, "0");
+      IndexVersion version = IndexVersion.get(zkHost, collection, properties);
+
+      LukeRequest lukeRequest = new LukeRequest();
+      lukeRequest.setNumTerms(0);
+      Map<String, LukeResponse.FieldInfo> fieldInfo = lukeRequest.process(cloudSolrClient, collection).getFieldInfo();
+
+      // The field types are only listed with the schema
+      LukeRequest schemaRequest = new LukeRequest();
+      schemaRequest.setNumTerms(0);
+      schemaRequest.setShowSchema(true);
+      Map<String, LukeResponse.FieldTypeInfo> fieldTypeInfo =
+          schemaRequest.process(cloudSolrClient, collection).getFieldTypeInfo();
+
+      long numDocs = version.getNumDocs();
+      Map<String, TableStatistics.Column> columns = new LinkedHashMap<>();
+      for(Map.Entry<String, LukeResponse.FieldInfo> field : fieldInfo.entrySet()) {
+        LukeResponse.FieldTypeInfo typeInfo = fieldTypeInfo == null ? null :
+            fieldTypeInfo.get(field.getValue().getType());
+        TableStatistics.Column column = analyzeColumn(cloudSolrClient, collection, field.getKey(),
+            typeInfo != null && isNumeric(typeInfo.getClassName()));
+        if(column != null) {
+          columns.put(field.getKey(), column);
+        }
+      }
+
+      TableStatistics statistics = new TableStatistics(version.getShardVersions(), numDocs,
+          System.currentTimeMillis(), columns);
+      StatisticsStore.save(directory, zkHost, collection, statistics);
+
+      return String.format(Locale.ROOT, "Analyzed %s: %d documents, %d of %d columns", table, numDocs,
+          columns.size(), fieldInfo.size());
+    } catch (IOException | SolrServerException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String resolveCollection(ZkStateReader zkStateReader, String table) {
+    String collection = zkStateReader.getAliases().getCollectionAliasMap() == null ? null :
+        zkStateReader.getAliases().getCollectionAliasMap().get(table);
+    if(collection != null) {
+      return collection;
+    }
+    if(zkStateReader.getClusterState().getCollectionOrNull(table) == null) {
+      throw new RuntimeException("Table not found: " + table);
+    }
+    return table;
+  }
+
+  /** Whether the column gets a histogram, dates are analyzed as milliseconds since the epoch. */
+  private static boolean isNumeric(String fieldTypeClass) {
+    switch (fieldTypeClass.substring(fieldTypeClass.lastIndexOf('.') + 1)) {
+      case "IntPointField":
+      case "TrieIntField":
+      case "IntField":
+      case "LongPointField":
+      case "TrieLongField":
+      case "LongField":
+      case "FloatPointField":
+      case "TrieFloatField":
+      case "FloatField":
+      case "DoublePointField":
+      case "TrieDoubleField":
+      case "DoubleField":
+      case "DatePointField":
+      case "TrieDateField":
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static TableStatistics.Column analyzeColumn(CloudSolrClient cloudSolrClient, String collection,
+                                                      String field, boolean numeric) throws IOException {
+    StringBuilder json = new StringBuilder("{");
+    json.append("\"ndv\":\"hll(").append(field).append(")\",");
+    json.append("\"present\":{\"type\":\"query\",\"q\":\"").append(field).append(":[* TO *]\"},");
+    json.append("\"lowest\":{\"type\":\"terms\",\"field\":\"").append(field)
+        .append("\",\"limit\":1,\"sort\":\"index asc\"},");
+    json.append("\"highest\":{\"type\":\"terms\",\"field\":\"").append(field)
+        .append("\",\"limit\":1,\"sort\":\"index desc\"},");
+    json.append("\"common\":{\"type\":\"terms\",\"field\":\"").append(field)
+        .append("\",\"limit\":").append(TableStatistics.MOST_COMMON_VALUES).append(",\"sort\":\"count desc\"}");
+    if(numeric) {
+      json.append(",\"histogram\":\"percentile(").append(field);
+      for(int i = 0; i <= TableStatistics.HISTOGRAM_BUCKETS; i++) {
+        json.append(',').append(100 * i / TableStatistics.HISTOGRAM_BUCKETS);
+      }
+      json.append(")\"");
+    }
+    json.append('}');
+
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set(CommonParams.Q, "*:*");
+    params.set(CommonParams.ROWS, "0");
+    params.set("json.facet", json.toString());
+
+    QueryResponse response;
+    try {
+      response = new QueryRequest(params).process(cloudSolrClient, SolrSchema.requestCollection(params, collection));
+    } catch (SolrServerException | SolrException e) {
+      logger.debug("Skipping column {} of {}", field, collection, e);
+      return null;
+    }
+
+    long numDocs = response.getResults().getNumFound();
+    NamedList facets = (NamedList) response.getResponse().get("facets");
+    if(facets == null || numDocs == 0) {
+      return new TableStatistics.Column(numeric, 0, 1, null, null, Collections.emptyList(), Collections.emptyMap());
+    }
+
+    Number ndv = (Number) facets.get("ndv");
+    long present = ((Number) ((NamedList) facets.get("present")).get("count")).longValue();
+
+    Map<Object, Long> mostCommon = new LinkedHashMap<>();
+    for(NamedList bucket : getBuckets(facets, "common")) {
+      mostCommon.put(value(bucket.get("val"), numeric), ((Number) bucket.get("count")).longValue());
+    }
+
+    List<Double> histogram = new ArrayList<>();
+    Object percentiles = facets.get("histogram");
+    if(percentiles instanceof List) {
+      for(Object bound : (List) percentiles) {
+        histogram.add(((Number) bound).doubleValue());
+      }
+    }
+
+    List<NamedList> lowest = getBuckets(facets, "lowest");
+    List<NamedList> highest = getBuckets(facets, "highest");
+    return new TableStatistics.Column(numeric,
+        ndv == null ? 0 : ndv.doubleValue(),
+        1 - (double) present / numDocs,
+        lowest.isEmpty() ? null : value(lowest.get(0).get("val"), numeric),
+        highest.isEmpty() ? null : value(highest.get(0).get("val"), numeric),
+        histogram,
+        mostCommon);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<NamedList> getBuckets(NamedList facets, String name) {
+    NamedList facet = (NamedList) facets.get(name);
+    List<NamedList> buckets = facet == null ? null : (List<NamedList>) facet.get("buckets");
+    return buckets == null ? Collections.emptyList() : buckets;
+  }
+
+  private static Object value(Object val, boolean numeric) {
+    if(!numeric) {
+      return val.toString();
+    }
+    return val instanceof Date ? (double) ((Date) val).getTime() : ((Number) val).doubleValue();
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.calcite.adapter.enumerable.CallImplementor;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.linq4j.tree.Types;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.schema.FunctionParameter;
+import org.apache.calcite.schema.ImplementableFunction;
+import org.apache.calcite.schema.ScalarFunction;
+import org.apache.calcite.sql.SqlIdentifier;
+import org.apache.calcite.sql.SqlOperator;
+import org.apache.calcite.sql.parser.SqlParserPos;
+import org.apache.calcite.sql.type.InferTypes;
+import org.apache.calcite.sql.type.OperandTypes;
+import org.apache.calcite.sql.type.ReturnTypes;
+import org.apache.calcite.sql.type.SqlTypeFamily;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.apache.calcite.sql.validate.SqlUserDefinedFunction;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * The ARRAY_CONTAINS(array, value) function, whether an ARRAY column of a multi-valued field holds a value. A filter
+ * on the function is a term query on the field, Calcite only evaluates it if the filter isn't pushed down to Solr.
+ *
+ * <p>The class is public because the generated code calls {@link #contains} from outside of this package.</p>
+ */
+public class ArrayContainsFunction implements ScalarFunction, ImplementableFunction {
+  static final String NAME = "ARRAY_CONTAINS";
+
+  private static final Method CONTAINS_METHOD =
+      Types.lookupMethod(ArrayContainsFunction.class, "contains", List.class, Object.class);
+
+  /** Whether the expression is a call to the function. */
+  static boolean isArrayContains(RexNode node) {
+    return node instanceof RexCall && ((RexCall) node).getOperator().getName().equalsIgnoreCase(NAME)
+        && ((RexCall) node).getOperands().size() == 2;
+  }
+
+  /** The operator of the function, for planner rules that add calls to it. */
+  static SqlOperator operator(RelDataTypeFactory typeFactory) {
+    ArrayContainsFunction function = new ArrayContainsFunction();
+    RelDataType any = typeFactory.createSqlType(SqlTypeName.ANY);
+    return new SqlUserDefinedFunction(new SqlIdentifier(NAME, SqlParserPos.ZERO),
+        ReturnTypes.explicit(function.getReturnType(typeFactory)), InferTypes.explicit(ImmutableList.of(any, any)),
+        OperandTypes.family(SqlTypeFamily.ANY, SqlTypeFamily.ANY), ImmutableList.of(any, any), function);
+  }
+
+  public List<FunctionParameter> getParameters() {
+    return ImmutableList.of(parameter(0, "array"), parameter(1, "value"));
+  }
+
+  private static FunctionParameter parameter(int ordinal, String name) {
+    return new FunctionParameter() {
+      public int getOrdinal() {
+        return ordinal;
+      }
+
+      public String getName() {
+        return name;
+      }
+
+      public RelDataType getType(RelDataTypeFactory typeFactory) {
+        // Arrays of any element type, the validator only matches arrays of the parameter's element type otherwise
+        return typeFactory.createSqlType(SqlTypeName.ANY);
+      }
+
+      public boolean isOptional() {
+        return false;
+      }
+    };
+  }
+
+  public RelDataType getReturnType(RelDataTypeFactory typeFactory) {
+    return typeFactory.createJavaType(Boolean.class);
+  }
+
+  public CallImplementor getImplementor() {
+    return (translator, call, nullAs) -> {
+      List<Expression> operands = translator.translateList(call.getOperands());
+      return Expressions.call(CONTAINS_METHOD, Expressions.convert_(operands.get(0), List.class),
+          Expressions.box(operands.get(1)));
+    };
+  }
+
+  /** Called via code-generation. */
+  @SuppressWarnings("WeakerAccess")
+  public static Boolean contains(List array, Object value) {
+    if(array == null || value == null) {
+      return null;
+    }
+    for(Object element : array) {
+      if(element instanceof Number && value instanceof Number) {
+        if(((Number) element).doubleValue() == ((Number) value).doubleValue()) {
+          return true;
+        }
+      } else if(value.equals(element)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
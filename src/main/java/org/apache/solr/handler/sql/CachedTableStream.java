@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.calcite.util.Pair;
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.comp.StreamComparator;
+import org.apache.solr.client.solrj.io.stream.StreamContext;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
+import org.apache.solr.client.solrj.io.stream.expr.Explanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamExplanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the rows of a collection from its {@link TableCache} copy instead of exporting them from Solr. Rows are
+ * sorted in memory, nulls first when ascending like the export handler does. The export handler sorts on the doc
+ * values and ignores sortMissingLast, a string field without a value sorts first too.
+ */
+class CachedTableStream extends TupleStream {
+  private final String collection;
+  private final TableCache.Table table;
+  private final List<String> fields;
+  private final List<Pair<String, String>> orders;
+  private final StreamComparator sort;
+  private final List<String> requiredFields;
+  private final int limit;
+
+  private int[] rows;
+  private int position;
+
+  /**
+   * @param orders Fields and directions to sort the rows on, empty for the order of the copy
+   * @param sort The same sort as a comparator, reported to the streams reading this one
+   * @param requiredFields Fields that must have a value, rows without one are skipped
+   * @param limit Maximum number of rows, -1 for all of them
+   */
+  CachedTableStream(String collection, TableCache.Table table, List<String> fields, List<Pair<String, String>> orders,
+                    StreamComparator sort, List<String> requiredFields, int limit) {
+    this.collection = collection;
+    this.table = table;
+    this.fields = fields;
+    this.orders = orders;
+    this.sort = sort;
+    this.requiredFields = requiredFields;
+    this.limit = limit;
+  }
+
+  public void setStreamContext(StreamContext context) {
+  }
+
+  public List<TupleStream> children() {
+    return Collections.emptyList();
+  }
+
+  public void open() throws IOException {
+    List<Integer> matching = new ArrayList<>(table.getNumRows());
+    for(int row = 0; row < table.getNumRows(); row++) {
+      if(hasRequiredFields(row)) {
+        matching.add(row);
+      }
+    }
+
+    if(!orders.isEmpty()) {
+      Comparator<Integer> comparator = null;
+      for(Pair<String, String> order : orders) {
+        Comparator<Integer> fieldComparator =
+            comparator(table.getColumn(order.getKey()), "desc".equals(order.getValue()));
+        comparator = comparator == null ? fieldComparator : comparator.thenComparing(fieldComparator);
+      }
+      matching.sort(comparator);
+    }
+
+    rows = new int[matching.size()];
+    for(int i = 0; i < rows.length; i++) {
+      rows[i] = matching.get(i);
+    }
+    position = 0;
+  }
+
+  private static Comparator<Integer> comparator(TableCache.Column column, boolean descending) {
+    // Strings by code point like Solr, a join merges the rows with an input exported by Solr
+    Comparator<Integer> comparator = (row1, row2) -> {
+      Object value1 = column.get(row1);
+      Object value2 = column.get(row2);
+      if(value1 == null) {
+        return value2 == null ? 0 : -1;
+      }
+      return value2 == null ? 1 : JoinKey.compare(value1, value2);
+    };
+    return descending ? comparator.reversed() : comparator;
+  }
+
+  private boolean hasRequiredFields(int row) {
+    for(String field : requiredFields) {
+      if(table.getColumn(field).get(row) == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public void close() throws IOException {
+    rows = null;
+  }
+
+  public Tuple read() throws IOException {
+    if(position >= rows.length || (limit >= 0 && position >= limit)) {
+      Map<String, Object> fields = new HashMap<>();
+      fields.put("EOF", "true");
+      return new Tuple(fields);
+    }
+
+    int row = rows[position++];
+    Map<String, Object> values = new HashMap<>();
+    for(String field : fields) {
+      values.put(field, table.getColumn(field).get(row));
+    }
+    return new Tuple(values);
+  }
+
+  public StreamComparator getStreamSort() {
+    return sort;
+  }
+
+  @Override
+  public Explanation toExplanation(StreamFactory factory) throws IOException {
+    return new StreamExplanation(getStreamNodeId().toString())
+        .withFunctionName("SQL CACHED TABLE")
+        .withExpression("--non-expressible--")
+        .withImplementingClass(this.getClass().getName())
+        .withExpressionType(Explanation.ExpressionType.STREAM_SOURCE)
+        .withNote("collection " + collection);
+  }
+}
@@ -16,8 +16,14 @@
  */
 package org.apache.solr.handler.sql;
 
+import org.apache.calcite.avatica.AvaticaConnection;
+import org.apache.calcite.avatica.AvaticaStatement;
+import org.apache.calcite.avatica.Handler;
 import org.apache.calcite.jdbc.CalciteConnection;
+import org.apache.calcite.jdbc.CalcitePrepare;
+import org.apache.calcite.jdbc.CalciteSchema;
 import org.apache.calcite.jdbc.Driver;
+import org.apache.calcite.linq4j.function.Function0;
 import org.apache.calcite.schema.SchemaPlus;
 
 import java.sql.Connection;
@@ -40,6 +46,42 @@ public class CalciteSolrDriver extends Driver {
     new CalciteSolrDriver().register();
   }
 
+  @Override
+  protected Function0<CalcitePrepare> createPrepareFactory() {
+    return SolrPrepareImpl::new;
+  }
+
+  @Override
+  protected Handler createHandler() {
+    final Handler handler = super.createHandler();
+    return new Handler() {
+      public void onConnectionInit(AvaticaConnection connection) throws SQLException {
+        handler.onConnectionInit(connection);
+      }
+
+      public void onConnectionClose(AvaticaConnection connection) {
+        try {
+          final CalciteSchema rootSchema = CalciteSchema.from(((CalciteConnection) connection).getRootSchema());
+          for(CalciteSchema schema : rootSchema.getSubSchemaMap().values()) {
+            if(schema.schema instanceof SolrSchema) {
+              ((SolrSchema) schema.schema).close();
+            }
+          }
+        } finally {
+          handler.onConnectionClose(connection);
+        }
+      }
+
+      public void onStatementExecute(AvaticaStatement statement, ResultSink resultSink) {
+        handler.onStatementExecute(statement, resultSink);
+      }
+
+      public void onStatementClose(AvaticaStatement statement) {
+        handler.onStatementClose(statement);
+      }
+    };
+  }
+
   @Override
   protected String getConnectStringPrefix() {
     return CONNECT_STRING_PREFIX;
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.noggit.JSONUtil;
+import org.noggit.ObjectBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bucket of a GROUP BY on a {@code CASE} whose conditions are filters Solr can run and whose values are literals,
+ * faceted with a JSON query facet for each distinct value. A document has the value of the first condition it
+ * matches, or the ELSE value if it matches none. The query of a value matches the documents that have it.
+ *
+ * <p>The bucket is named {@code case} followed by the JSON list of the values and their queries, in the order of the
+ * branches. That is the name of the bucket values in the tuples, the facets are named by their level and position.</p>
+ */
+class CaseBucket {
+  private static final String PREFIX = "case";
+
+  private final String name;
+  private final List<Object> values;
+  private final List<String> queries;
+
+  private CaseBucket(String name, List<Object> values, List<String> queries) {
+    this.name = name;
+    this.values = values;
+    this.queries = queries;
+  }
+
+  /**
+   * Returns the name of the bucket of the branches.
+   *
+   * @param conditions Queries of the conditions of the branches
+   * @param values Values of the branches, followed by the ELSE value
+   */
+  static String toBucket(List<String> conditions, List<Object> values) {
+    Map<Object, List<String>> valueQueries = new LinkedHashMap<>();
+    List<String> previous = new ArrayList<>();
+    for(int i = 0; i < values.size(); i++) {
+      StringBuilder query = new StringBuilder(i < conditions.size() ? "(" + conditions.get(i) + ")" : "*:*");
+      for(String condition : previous) {
+        query.append(" AND NOT (").append(condition).append(')');
+      }
+      valueQueries.computeIfAbsent(values.get(i), value -> new ArrayList<>()).add("(" + query + ")");
+      if(i < conditions.size()) {
+        previous.add(conditions.get(i));
+      }
+    }
+
+    List<Object> branches = new ArrayList<>();
+    for(Map.Entry<Object, List<String>> entry : valueQueries.entrySet()) {
+      branches.add(Arrays.asList(entry.getKey(), String.join(" OR ", entry.getValue())));
+    }
+    return PREFIX + JSONUtil.toJSON(branches, -1);
+  }
+
+  /** Returns the case bucket of the name, null if the name is a field or another bucket. */
+  static CaseBucket parse(String name) {
+    if(!name.startsWith(PREFIX + "[")) {
+      return null;
+    }
+    List<Object> values = new ArrayList<>();
+    List<String> queries = new ArrayList<>();
+    List branches;
+    try {
+      branches = (List) ObjectBuilder.fromJSON(name.substring(PREFIX.length()));
+    } catch (IOException e) {
+      throw new IllegalArgumentException(name, e);
+    }
+    for(Object branch : branches) {
+      values.add(((List) branch).get(0));
+      queries.add((String) ((List) branch).get(1));
+    }
+    return new CaseBucket(name, values, queries);
+  }
+
+  String getName() {
+    return name;
+  }
+
+  /** The distinct values of the branches. */
+  List<Object> getValues() {
+    return values;
+  }
+
+  /** The query of each value. */
+  List<String> getQueries() {
+    return queries;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.calcite.avatica.util.TimeUnitRange;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Bucket of a GROUP BY on {@code FLOOR(field TO unit)} of a date field, faceted with a JSON range facet whose gap is
+ * one unit. The facet starts at the unit of the lower bound of the field in the WHERE clause and ends after the unit
+ * of its upper bound. A missing bound is looked up from the smallest or largest value of the field among the matching
+ * documents.
+ *
+ * <p>The bucket is named {@code floor(field,UNIT,start,end)}, with {@code *} for a bound that is looked up. That is the
+ * name of the facet and of the bucket values in the tuples. Units are in UTC.</p>
+ */
+class DateBucket {
+  /** Whether units without matching documents are returned with a count of 0, false by default. */
+  static final String FILL_PROPERTY = "fillDateBuckets";
+
+  private static final Map<TimeUnitRange, ChronoUnit> UNITS = new EnumMap<>(TimeUnitRange.class);
+  static {
+    UNITS.put(TimeUnitRange.YEAR, ChronoUnit.YEARS);
+    UNITS.put(TimeUnitRange.MONTH, ChronoUnit.MONTHS);
+    UNITS.put(TimeUnitRange.DAY, ChronoUnit.DAYS);
+    UNITS.put(TimeUnitRange.HOUR, ChronoUnit.HOURS);
+    UNITS.put(TimeUnitRange.MINUTE, ChronoUnit.MINUTES);
+    UNITS.put(TimeUnitRange.SECOND, ChronoUnit.SECONDS);
+  }
+
+  private static final Pattern PATTERN =
+      Pattern.compile("floor\\((.+),(YEAR|MONTH|DAY|HOUR|MINUTE|SECOND),([^,]+),([^,]+)\\)");
+
+  private final String name;
+  private final String field;
+  private final TimeUnitRange unit;
+  private final Instant start;
+  private final Instant end;
+
+  private DateBucket(String name, String field, TimeUnitRange unit, Instant start, Instant end) {
+    this.name = name;
+    this.field = field;
+    this.unit = unit;
+    this.start = start;
+    this.end = end;
+  }
+
+  /** Whether Solr date math can round to the unit. */
+  static boolean isSupported(TimeUnitRange unit) {
+    return UNITS.containsKey(unit);
+  }
+
+  /**
+   * Returns the name of the bucket of the field floored to the unit.
+   *
+   * @param range Range of the field in the WHERE clause, null if it isn't restricted
+   */
+  static String toBucket(String field, TimeUnitRange unit, TimeRange range) {
+    Instant start = null;
+    Instant end = null;
+    if(range != null && range.getLower() != null) {
+      start = floor(range.getLower(), unit);
+    }
+    if(range != null && range.getUpper() != null) {
+      Instant upper = floor(range.getUpper(), unit);
+      end = range.isUpperInclusive() || !upper.equals(range.getUpper()) ? next(upper, unit) : upper;
+    }
+    return toName(field, unit, start, end);
+  }
+
+  private static String toName(String field, TimeUnitRange unit, Instant start, Instant end) {
+    return "floor(" + field + "," + unit.name() + "," + (start == null ? "*" : start) + ","
+        + (end == null ? "*" : end) + ")";
+  }
+
+  /** Returns the date bucket of the name, null if the name is a field. */
+  static DateBucket parse(String name) {
+    Matcher matcher = PATTERN.matcher(name);
+    if(!matcher.matches()) {
+      return null;
+    }
+    return new DateBucket(name, matcher.group(1), TimeUnitRange.valueOf(matcher.group(2)),
+        "*".equals(matcher.group(3)) ? null : Instant.parse(matcher.group(3)),
+        "*".equals(matcher.group(4)) ? null : Instant.parse(matcher.group(4)));
+  }
+
+  String getName() {
+    return name;
+  }
+
+  String getField() {
+    return field;
+  }
+
+  /** First unit of the facet, null if it has to be looked up. */
+  Instant getStart() {
+    return start;
+  }
+
+  /** End of the last unit of the facet, null if it has to be looked up. */
+  Instant getEnd() {
+    return end;
+  }
+
+  /** The gap of the range facet, in Solr date math. */
+  String getGap() {
+    return "+1" + unit.name();
+  }
+
+  /**
+   * Returns the bucket with its missing bounds taken from the smallest and largest value of the field.
+   */
+  DateBucket withBounds(Instant min, Instant max) {
+    return new DateBucket(name, field, unit, start == null ? floor(min, unit) : start,
+        end == null ? next(floor(max, unit), unit) : end);
+  }
+
+  /** Number of units of the facet, once its bounds are known. */
+  long getBucketCount() {
+    return UNITS.get(unit).between(start.atZone(ZoneOffset.UTC), end.atZone(ZoneOffset.UTC));
+  }
+
+  /** Returns the value of the bucket of the range facet a value of the field is in, null if it is outside of it. */
+  Date getValue(Instant value) {
+    if(value.isBefore(start) || !value.isBefore(end)) {
+      return null;
+    }
+    return Date.from(floor(value, unit));
+  }
+
+  private static Instant floor(Instant instant, TimeUnitRange unit) {
+    ZonedDateTime dateTime = instant.atZone(ZoneOffset.UTC);
+    switch (unit) {
+      case YEAR:
+        return dateTime.truncatedTo(ChronoUnit.DAYS).withDayOfYear(1).toInstant();
+      case MONTH:
+        return dateTime.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1).toInstant();
+      default:
+        return dateTime.truncatedTo(UNITS.get(unit)).toInstant();
+    }
+  }
+
+  private static Instant next(Instant instant, TimeUnitRange unit) {
+    return instant.atZone(ZoneOffset.UTC).plus(1, UNITS.get(unit)).toInstant();
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
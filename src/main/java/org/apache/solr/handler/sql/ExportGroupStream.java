@@ -0,0 +1,298 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.comp.StreamComparator;
+import org.apache.solr.client.solrj.io.stream.CloudSolrStream;
+import org.apache.solr.client.solrj.io.stream.StreamContext;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
+import org.apache.solr.client.solrj.io.stream.expr.Explanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamExplanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamFactory;
+import org.apache.solr.client.solrj.io.stream.metrics.Bucket;
+import org.apache.solr.client.solrj.io.stream.metrics.Metric;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Groups the documents exported by Solr on the buckets of a {@link FacetPagingStream} in memory, for range facets with
+ * too many buckets for Solr to materialize. Only the groups with documents are kept. The tuples are the ones the facet
+ * would have returned, in the same order, ascending on the levels.
+ *
+ * <p>Like the facet, documents without a value for a level aren't in any group, and a multi-valued field puts a
+ * document in the group of each of its values. Counts are the number of documents of a group, the other metrics
+ * skip the documents without a value.</p>
+ *
+ * <p>The value of a {@link CaseBucket} level can't be computed from the exported fields, the documents are exported
+ * once for each combination of the branches of the case levels, filtered on their queries.</p>
+ */
+class ExportGroupStream extends TupleStream {
+  private final String zkHost;
+  private final String collection;
+  private final SolrParams params;
+  private final Bucket[] buckets;
+  private final DateBucket[] dateBuckets;
+  private final NumericBucket[] numericBuckets;
+  private final CaseBucket[] caseBuckets;
+  private final Metric[] metrics;
+
+  private transient StreamContext context;
+  private transient Iterator<Map.Entry<List<Object>, Group>> groups;
+
+  /**
+   * @param params Request parameters of the facet, typically just the query
+   * @param dateBuckets The date bucket of each level with its bounds, null for another level
+   * @param numericBuckets The numeric bucket of each level with its bounds, null for another level
+   * @param caseBuckets The case bucket of each level, null for another level
+   */
+  ExportGroupStream(String zkHost, String collection, SolrParams params, Bucket[] buckets, DateBucket[] dateBuckets,
+                    NumericBucket[] numericBuckets, CaseBucket[] caseBuckets, Metric[] metrics) {
+    this.zkHost = zkHost;
+    this.collection = collection;
+    this.params = params;
+    this.buckets = buckets;
+    this.dateBuckets = dateBuckets;
+    this.numericBuckets = numericBuckets;
+    this.caseBuckets = caseBuckets;
+    this.metrics = metrics;
+  }
+
+  public void setStreamContext(StreamContext context) {
+    this.context = context;
+  }
+
+  public List<TupleStream> children() {
+    return new ArrayList<>();
+  }
+
+  public void open() throws IOException {
+    Set<String> fields = new LinkedHashSet<>();
+    for(int i = 0; i < buckets.length; i++) {
+      if(caseBuckets[i] == null) {
+        fields.add(getField(i));
+      }
+    }
+    for(Metric metric : metrics) {
+      if(!isCount(metric)) {
+        fields.add(metric.getColumns()[0]);
+      }
+    }
+    // The export handler needs a field to sort on and return
+    String sortField = fields.isEmpty() ? "_version_" : fields.iterator().next();
+    fields.add(sortField);
+
+    Map<List<Object>, Group> groupMap = new TreeMap<>(this::compareKeys);
+    for(int[] branches : getBranchCombinations()) {
+      ModifiableSolrParams paramsLoc = new ModifiableSolrParams(params);
+      paramsLoc.set(CommonParams.FL, String.join(",", fields));
+      paramsLoc.set(CommonParams.SORT, sortField + " asc");
+      paramsLoc.set(CommonParams.QT, "/export");
+      for(int i = 0; i < buckets.length; i++) {
+        if(caseBuckets[i] != null) {
+          paramsLoc.add(CommonParams.FQ, caseBuckets[i].getQueries().get(branches[i]));
+        }
+      }
+
+      CloudSolrStream stream = new CloudSolrStream(zkHost, collection, paramsLoc);
+      if(context != null) {
+        stream.setStreamContext(context);
+      }
+      try {
+        stream.open();
+        for(Tuple tuple = stream.read(); !tuple.EOF; tuple = stream.read()) {
+          for(List<Object> key : getKeys(tuple, branches)) {
+            groupMap.computeIfAbsent(key, k -> new Group()).add(tuple);
+          }
+        }
+      } finally {
+        stream.close();
+      }
+    }
+    groups = groupMap.entrySet().iterator();
+  }
+
+  public void close() throws IOException {
+    groups = null;
+  }
+
+  public Tuple read() throws IOException {
+    Map<String, Object> values = new HashMap<>();
+    if(!groups.hasNext()) {
+      values.put("EOF", "true");
+      return new Tuple(values);
+    }
+
+    Map.Entry<List<Object>, Group> group = groups.next();
+    for(int i = 0; i < buckets.length; i++) {
+      values.put(buckets[i].toString(), group.getKey().get(i));
+    }
+    for(int i = 0; i < metrics.length; i++) {
+      values.put(metrics[i].getIdentifier(), group.getValue().getValue(i));
+    }
+    return new Tuple(values);
+  }
+
+  public StreamComparator getStreamSort() {
+    return null;
+  }
+
+  @Override
+  public Explanation toExplanation(StreamFactory factory) throws IOException {
+    return new StreamExplanation(getStreamNodeId().toString())
+        .withFunctionName("SQL EXPORT GROUP")
+        .withExpression("--non-expressible--")
+        .withImplementingClass(this.getClass().getName())
+        .withExpressionType(Explanation.ExpressionType.STREAM_SOURCE);
+  }
+
+  /** Returns the exported field of a level other than a case level. */
+  private String getField(int level) {
+    if(dateBuckets[level] != null) {
+      return dateBuckets[level].getField();
+    }
+    return numericBuckets[level] != null ? numericBuckets[level].getField() : buckets[level].toString();
+  }
+
+  /** Returns every combination of the branches of the case levels, indexed by level. */
+  private List<int[]> getBranchCombinations() {
+    List<int[]> combinations = Collections.singletonList(new int[buckets.length]);
+    for(int i = 0; i < buckets.length; i++) {
+      if(caseBuckets[i] != null) {
+        List<int[]> levelCombinations = new ArrayList<>();
+        for(int[] combination : combinations) {
+          for(int branch = 0; branch < caseBuckets[i].getValues().size(); branch++) {
+            int[] levelCombination = combination.clone();
+            levelCombination[i] = branch;
+            levelCombinations.add(levelCombination);
+          }
+        }
+        combinations = levelCombinations;
+      }
+    }
+    return combinations;
+  }
+
+  /**
+   * Returns the keys of the groups of the document, one value per level.
+   *
+   * @param branches The branches of the case levels the document was exported for
+   */
+  private List<List<Object>> getKeys(Tuple tuple, int[] branches) {
+    List<List<Object>> keys = Collections.singletonList(Collections.emptyList());
+    for(int i = 0; i < buckets.length && !keys.isEmpty(); i++) {
+      List<List<Object>> levelKeys = new ArrayList<>();
+      List<Object> values = caseBuckets[i] != null
+          ? Collections.singletonList(caseBuckets[i].getValues().get(branches[i])) : getValues(i, tuple);
+      for(Object value : values) {
+        for(List<Object> key : keys) {
+          List<Object> levelKey = new ArrayList<>(key);
+          levelKey.add(value);
+          levelKeys.add(levelKey);
+        }
+      }
+      keys = levelKeys;
+    }
+    return keys;
+  }
+
+  /** Returns the values of the buckets of the level the document is in. */
+  private List<Object> getValues(int level, Tuple tuple) {
+    Object value = tuple.get(getField(level));
+    List<?> fieldValues = value == null ? Collections.emptyList()
+        : value instanceof List ? (List<?>) value : Collections.singletonList(value);
+    List<Object> values = new ArrayList<>();
+    for(Object fieldValue : fieldValues) {
+      Object bucketValue = fieldValue;
+      if(dateBuckets[level] != null) {
+        bucketValue = dateBuckets[level].getValue(fieldValue instanceof Date ? ((Date) fieldValue).toInstant()
+            : Instant.parse(fieldValue.toString()));
+      } else if(numericBuckets[level] != null) {
+        Number number = (Number) fieldValue;
+        bucketValue = numericBuckets[level].contains(number) ? numericBuckets[level].getValue(number) : null;
+      }
+      if(bucketValue != null && !values.contains(bucketValue)) {
+        values.add(bucketValue);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Compares keys on their levels in order like the buckets of a facet, the values of a case level in the order of
+   * its branches and the values of other levels ascending.
+   */
+  private int compareKeys(List<Object> key1, List<Object> key2) {
+    for(int i = 0; i < key1.size(); i++) {
+      int c = caseBuckets[i] != null
+          ? caseBuckets[i].getValues().indexOf(key1.get(i)) - caseBuckets[i].getValues().indexOf(key2.get(i))
+          : JoinKey.compare(key1.get(i), key2.get(i));
+      if(c != 0) {
+        return c;
+      }
+    }
+    return 0;
+  }
+
+  private static boolean isCount(Metric metric) {
+    return metric.getIdentifier().startsWith("count(");
+  }
+
+  /** The count and metrics of the documents of a group. */
+  private class Group {
+    private final Metric[] values = new Metric[metrics.length];
+    private final boolean[] updated = new boolean[metrics.length];
+    private long count;
+
+    Group() {
+      for(int i = 0; i < metrics.length; i++) {
+        values[i] = metrics[i].newInstance();
+      }
+    }
+
+    void add(Tuple tuple) {
+      count++;
+      for(int i = 0; i < metrics.length; i++) {
+        if(!isCount(metrics[i]) && tuple.get(metrics[i].getColumns()[0]) != null) {
+          values[i].update(tuple);
+          updated[i] = true;
+        }
+      }
+    }
+
+    Object getValue(int metric) {
+      if(isCount(metrics[metric])) {
+        return count;
+      }
+      return updated[metric] ? values[metric].getValue() : null;
+    }
+  }
+}
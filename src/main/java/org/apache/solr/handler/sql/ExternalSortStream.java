@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.comp.StreamComparator;
+import org.apache.solr.client.solrj.io.stream.StreamContext;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
+import org.apache.solr.client.solrj.io.stream.expr.Explanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamExplanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Sorts the tuples of the underlying stream using a bounded amount of heap, see {@link ExternalSorter}.
+ *
+ * <p>Spilled tuples are written as the values of their fields, the field names are numbered once per sort rather than
+ * repeated in every tuple.</p>
+ */
+class ExternalSortStream extends TupleStream {
+  private final TupleStream stream;
+  private final StreamComparator comp;
+  private final TupleSorter sorter;
+
+  private Tuple eofTuple;
+
+  /** Creates an ExternalSortStream configured from the connection properties.
+   *
+   * @param stream Stream to sort
+   * @param comp Order of the resulting tuples
+   * @param properties Connection properties read by {@link ExternalSorter}
+   * @param metrics Counters to update with the spill statistics
+   */
+  ExternalSortStream(TupleStream stream, StreamComparator comp, Properties properties, SolrMetrics metrics) {
+    this.stream = stream;
+    this.comp = comp;
+    this.sorter = new TupleSorter(comp, properties, metrics);
+  }
+
+  /** Creates an ExternalSortStream configured from the connection properties. */
+  static ExternalSortStream create(TupleStream stream, StreamComparator comp, Properties properties,
+                                   SolrMetrics metrics) {
+    return new ExternalSortStream(stream, comp, properties, metrics);
+  }
+
+  public void open() throws IOException {
+    stream.open();
+
+    Tuple tuple;
+    while(!(tuple = stream.read()).EOF) {
+      sorter.add(tuple);
+    }
+    eofTuple = tuple;
+    sorter.sort();
+  }
+
+  public Tuple read() throws IOException {
+    if(sorter.hasNext()) {
+      return sorter.next();
+    }
+    return eofTuple;
+  }
+
+  public void close() throws IOException {
+    try {
+      stream.close();
+    } finally {
+      sorter.close();
+    }
+  }
+
+  public List<TupleStream> children() {
+    List<TupleStream> children = new ArrayList<>();
+    children.add(stream);
+    return children;
+  }
+
+  public StreamComparator getStreamSort() {
+    return comp;
+  }
+
+  public void setStreamContext(StreamContext context) {
+    stream.setStreamContext(context);
+  }
+
+  @Override
+  public Explanation toExplanation(StreamFactory factory) throws IOException {
+    return new StreamExplanation(getStreamNodeId().toString())
+        .withChildren(new Explanation[]{
+            stream.toExplanation(factory)
+        })
+        .withFunctionName("SQL EXTERNAL SORT")
+        .withExpression("--non-expressible--")
+        .withImplementingClass(this.getClass().getName())
+        .withExpressionType(Explanation.ExpressionType.STREAM_DECORATOR);
+  }
+
+  /** Spills tuples as the values of the fields numbered in the order they are first seen. */
+  private static class TupleSorter extends ExternalSorter<Tuple> {
+    private final Map<Object, Integer> positions = new HashMap<>();
+    private final List<Object> names = new ArrayList<>();
+
+    TupleSorter(StreamComparator comp, Properties properties, SolrMetrics metrics) {
+      super(comp::compare, properties, metrics);
+    }
+
+    protected Object[] toValues(Tuple tuple) {
+      for(Object name : tuple.fields.keySet()) {
+        if(!positions.containsKey(name)) {
+          positions.put(name, names.size());
+          names.add(name);
+        }
+      }
+      Object[] values = new Object[names.size()];
+      for(Object o : tuple.fields.entrySet()) {
+        Map.Entry entry = (Map.Entry) o;
+        values[positions.get(entry.getKey())] = entry.getValue();
+      }
+      return values;
+    }
+
+    protected Tuple toRow(Object[] values) {
+      Map<Object, Object> fields = new HashMap<>(values.length * 2);
+      for(int i = 0; i < values.length; i++) {
+        if(values[i] != null) {
+          fields.put(names.get(i), values[i]);
+        }
+      }
+      return new Tuple(fields);
+    }
+
+    protected long estimateSize(Tuple tuple) {
+      long size = 64;
+      for(Object o : tuple.fields.entrySet()) {
+        Map.Entry entry = (Map.Entry) o;
+        size += 48 + estimateValueSize(entry.getKey()) + estimateValueSize(entry.getValue());
+      }
+      return size;
+    }
+  }
+}
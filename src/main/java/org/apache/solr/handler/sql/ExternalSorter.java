@@ -0,0 +1,453 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Sorts rows using a bounded amount of heap.
+ *
+ * <p>Rows are buffered until the memory budget is reached, at which point the buffer is sorted and written to a
+ * local temp file as a run. Once all the rows are added the runs are k-way merged. If there are more runs than can be
+ * merged at once, intermediate merge passes are performed first.</p>
+ *
+ * <p>Spilled rows are written positionally: the number of values followed by each value with a one byte type tag.
+ * Subclasses convert their rows to and from the array of values, the values keep their Java type across the spill.</p>
+ *
+ * @param <T> Type of the sorted rows
+ */
+abstract class ExternalSorter<T> implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  static final String MEMORY_PROPERTY = "sortMemoryBytes";
+  static final String COMPRESSION_PROPERTY = "sortSpillCompression";
+  static final String DIRECTORY_PROPERTY = "sortSpillDirectory";
+
+  private static final long DEFAULT_MEMORY_BYTES = 64L * 1024 * 1024;
+  private static final int MAX_MERGE_FAN_IN = 64;
+
+  private static final byte TYPE_NULL = 0;
+  private static final byte TYPE_LONG = 1;
+  private static final byte TYPE_INT = 2;
+  private static final byte TYPE_DOUBLE = 3;
+  private static final byte TYPE_FLOAT = 4;
+  private static final byte TYPE_BOOLEAN = 5;
+  private static final byte TYPE_STRING = 6;
+  private static final byte TYPE_LIST = 7;
+  private static final byte TYPE_DATE = 8;
+  private static final byte TYPE_BIG_DECIMAL = 9;
+  private static final byte TYPE_SHORT = 10;
+  private static final byte TYPE_BYTE = 11;
+
+  private final Comparator<? super T> comp;
+  private final long memoryBudget;
+  private final boolean compress;
+  private final File spillDirectory;
+  private final SolrMetrics metrics;
+
+  private final List<T> buffer = new ArrayList<>();
+  private long bufferBytes;
+  private final List<File> runs = new ArrayList<>();
+  private final List<Run<T>> openRuns = new ArrayList<>();
+  private PriorityQueue<Run<T>> queue;
+
+  /** Creates an ExternalSorter configured from the connection properties.
+   *
+   * @param comp Order of the sorted rows
+   * @param properties Connection properties with the memory budget, compression and spill directory
+   * @param metrics Counters to update with the spill statistics
+   */
+  ExternalSorter(Comparator<? super T> comp, Properties properties, SolrMetrics metrics) {
+    this.comp = comp;
+    this.memoryBudget = Long.parseLong(properties.getProperty(MEMORY_PROPERTY, Long.toString(DEFAULT_MEMORY_BYTES)));
+    this.compress = Boolean.parseBoolean(properties.getProperty(COMPRESSION_PROPERTY, "false"));
+    this.spillDirectory = new File(properties.getProperty(DIRECTORY_PROPERTY, System.getProperty("java.io.tmpdir")));
+    this.metrics = metrics;
+  }
+
+  /** The values of a row, in the order {@link #toRow(Object[])} expects them back. */
+  protected abstract Object[] toValues(T row);
+
+  /** Rebuilds a row from the values read back from a run. */
+  protected abstract T toRow(Object[] values);
+
+  /** Rough heap footprint of a row, used to decide when to spill. */
+  protected abstract long estimateSize(T row);
+
+  /** Adds a row, spilling the buffered rows if the memory budget is reached. */
+  void add(T row) throws IOException {
+    buffer.add(row);
+    bufferBytes += estimateSize(row);
+    if(bufferBytes >= memoryBudget) {
+      runs.add(spill());
+      buffer.clear();
+      bufferBytes = 0;
+    }
+  }
+
+  /** Called once all the rows are added, before the sorted rows are read. */
+  void sort() throws IOException {
+    buffer.sort(comp);
+
+    // Intermediate passes until the remaining runs can be merged at once
+    int passes = runs.isEmpty() ? 0 : 1;
+    while(runs.size() > MAX_MERGE_FAN_IN) {
+      List<File> merged = new ArrayList<>();
+      for(int i = 0; i < runs.size(); i += MAX_MERGE_FAN_IN) {
+        merged.add(mergeToFile(new ArrayList<>(runs.subList(i, Math.min(i + MAX_MERGE_FAN_IN, runs.size())))));
+      }
+      runs.clear();
+      runs.addAll(merged);
+      passes++;
+    }
+    if(passes > 0) {
+      metrics.increment(SolrMetrics.SORT_MERGE_PASSES, passes);
+    }
+
+    // The last buffer never leaves the heap, it takes part in the final merge directly
+    for(File run : runs) {
+      openRuns.add(new FileRun(run));
+    }
+    openRuns.add(new BufferRun(buffer));
+    queue = merge(openRuns);
+
+    if(logger.isDebugEnabled() && passes > 0) {
+      logger.debug("Sorted with {} spilled runs in {} passes: {}", runs.size(), passes, metrics);
+    }
+  }
+
+  boolean hasNext() {
+    return !queue.isEmpty();
+  }
+
+  /** The next row in sorted order, only valid if {@link #hasNext()} returned true. */
+  T next() throws IOException {
+    return poll(queue);
+  }
+
+  public void close() throws IOException {
+    try {
+      for(Run<T> run : openRuns) {
+        run.close();
+      }
+    } finally {
+      openRuns.clear();
+      buffer.clear();
+      for(File run : runs) {
+        delete(run);
+      }
+      runs.clear();
+    }
+  }
+
+  private File spill() throws IOException {
+    buffer.sort(comp);
+    File run = File.createTempFile("solr-sql-sort", ".run", spillDirectory);
+    try(DataOutputStream out = new DataOutputStream(openRunOutput(run))) {
+      for(T row : buffer) {
+        writeRow(out, toValues(row));
+      }
+    } catch (IOException e) {
+      delete(run);
+      throw e;
+    }
+    metrics.increment(SolrMetrics.SORT_SPILL_RUNS, 1);
+    metrics.increment(SolrMetrics.SORT_SPILL_BYTES, run.length());
+    return run;
+  }
+
+  private File mergeToFile(List<File> group) throws IOException {
+    List<Run<T>> sources = new ArrayList<>();
+    File merged = File.createTempFile("solr-sql-sort", ".run", spillDirectory);
+    try {
+      for(File run : group) {
+        sources.add(new FileRun(run));
+      }
+      PriorityQueue<Run<T>> groupQueue = merge(sources);
+      try(DataOutputStream out = new DataOutputStream(openRunOutput(merged))) {
+        while(!groupQueue.isEmpty()) {
+          writeRow(out, toValues(poll(groupQueue)));
+        }
+      }
+    } catch (IOException e) {
+      delete(merged);
+      throw e;
+    } finally {
+      for(Run<T> source : sources) {
+        source.close();
+      }
+      for(File run : group) {
+        delete(run);
+      }
+    }
+    metrics.increment(SolrMetrics.SORT_SPILL_BYTES, merged.length());
+    return merged;
+  }
+
+  /** Queue of the non exhausted runs, ordered by their current row. */
+  private PriorityQueue<Run<T>> merge(List<Run<T>> sources) throws IOException {
+    PriorityQueue<Run<T>> runQueue = new PriorityQueue<>(Math.max(1, sources.size()),
+        (a, b) -> comp.compare(a.current, b.current));
+    for(Run<T> source : sources) {
+      if(source.advance()) {
+        runQueue.add(source);
+      }
+    }
+    return runQueue;
+  }
+
+  private T poll(PriorityQueue<Run<T>> runQueue) throws IOException {
+    Run<T> head = runQueue.poll();
+    T row = head.current;
+    if(head.advance()) {
+      runQueue.add(head);
+    }
+    return row;
+  }
+
+  private static void delete(File run) {
+    if(!run.delete()) {
+      run.deleteOnExit();
+    }
+  }
+
+  private OutputStream openRunOutput(File run) throws IOException {
+    OutputStream out = new FileOutputStream(run);
+    if(compress) {
+      out = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED), 64 * 1024);
+    }
+    return new BufferedOutputStream(out, 64 * 1024);
+  }
+
+  private InputStream openRunInput(File run) throws IOException {
+    InputStream in = new FileInputStream(run);
+    if(compress) {
+      in = new InflaterInputStream(in);
+    }
+    return new BufferedInputStream(in, 64 * 1024);
+  }
+
+  /** Rough heap footprint of a value. */
+  static long estimateValueSize(Object val) {
+    if(val instanceof String) {
+      return 40 + 2L * ((String) val).length();
+    } else if(val instanceof List) {
+      long size = 40;
+      for(Object o : (List) val) {
+        size += 8 + estimateValueSize(o);
+      }
+      return size;
+    }
+    return 16;
+  }
+
+  private static void writeRow(DataOutputStream out, Object[] values) throws IOException {
+    out.writeInt(values.length);
+    for(Object val : values) {
+      writeValue(out, val);
+    }
+  }
+
+  private static void writeValue(DataOutputStream out, Object val) throws IOException {
+    if(val == null) {
+      out.writeByte(TYPE_NULL);
+    } else if(val instanceof Long) {
+      out.writeByte(TYPE_LONG);
+      out.writeLong((Long) val);
+    } else if(val instanceof Integer) {
+      out.writeByte(TYPE_INT);
+      out.writeInt((Integer) val);
+    } else if(val instanceof Double) {
+      out.writeByte(TYPE_DOUBLE);
+      out.writeDouble((Double) val);
+    } else if(val instanceof Float) {
+      out.writeByte(TYPE_FLOAT);
+      out.writeFloat((Float) val);
+    } else if(val instanceof Boolean) {
+      out.writeByte(TYPE_BOOLEAN);
+      out.writeBoolean((Boolean) val);
+    } else if(val instanceof String) {
+      // writeUTF is limited to 64k, so strings are written as length prefixed UTF-8
+      out.writeByte(TYPE_STRING);
+      writeBytes(out, ((String) val).getBytes(StandardCharsets.UTF_8));
+    } else if(val instanceof Date) {
+      out.writeByte(TYPE_DATE);
+      out.writeLong(((Date) val).getTime());
+    } else if(val instanceof BigDecimal) {
+      out.writeByte(TYPE_BIG_DECIMAL);
+      out.writeInt(((BigDecimal) val).scale());
+      writeBytes(out, ((BigDecimal) val).unscaledValue().toByteArray());
+    } else if(val instanceof Short) {
+      out.writeByte(TYPE_SHORT);
+      out.writeShort((Short) val);
+    } else if(val instanceof Byte) {
+      out.writeByte(TYPE_BYTE);
+      out.writeByte((Byte) val);
+    } else if(val instanceof List) {
+      List list = (List) val;
+      out.writeByte(TYPE_LIST);
+      out.writeInt(list.size());
+      for(Object o : list) {
+        writeValue(out, o);
+      }
+    } else {
+      throw new IOException("Can't spill values of type " + val.getClass().getName() + " to a sort run");
+    }
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /** The values of the next row of the run, or null at the end of the run. */
+  private static Object[] readRow(DataInputStream in) throws IOException {
+    int size;
+    try {
+      size = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    Object[] values = new Object[size];
+    for(int i = 0; i < size; i++) {
+      values[i] = readValue(in);
+    }
+    return values;
+  }
+
+  private static Object readValue(DataInputStream in) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+      case TYPE_NULL:
+        return null;
+      case TYPE_LONG:
+        return in.readLong();
+      case TYPE_INT:
+        return in.readInt();
+      case TYPE_DOUBLE:
+        return in.readDouble();
+      case TYPE_FLOAT:
+        return in.readFloat();
+      case TYPE_BOOLEAN:
+        return in.readBoolean();
+      case TYPE_STRING:
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+      case TYPE_DATE:
+        return new Date(in.readLong());
+      case TYPE_BIG_DECIMAL:
+        int scale = in.readInt();
+        return new BigDecimal(new BigInteger(readBytes(in)), scale);
+      case TYPE_SHORT:
+        return in.readShort();
+      case TYPE_BYTE:
+        return in.readByte();
+      case TYPE_LIST:
+        int size = in.readInt();
+        List<Object> list = new ArrayList<>(size);
+        for(int i = 0; i < size; i++) {
+          list.add(readValue(in));
+        }
+        return list;
+      default:
+        throw new IOException("Corrupt sort run, unknown type " + type);
+    }
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  /** Cursor over sorted rows, queued for the merge by its current row. */
+  private static abstract class Run<T> {
+    T current;
+
+    /** Moves to the next row, returning false at the end of the run. */
+    abstract boolean advance() throws IOException;
+
+    void close() throws IOException {
+    }
+  }
+
+  /** Rows of the last buffer, which is merged without being spilled. */
+  private class BufferRun extends Run<T> {
+    private final List<T> rows;
+    private int next;
+
+    BufferRun(List<T> rows) {
+      this.rows = rows;
+    }
+
+    boolean advance() {
+      if(next == rows.size()) {
+        return false;
+      }
+      current = rows.get(next++);
+      return true;
+    }
+  }
+
+  /** Rows of a spilled run. */
+  private class FileRun extends Run<T> {
+    private final DataInputStream in;
+
+    FileRun(File run) throws IOException {
+      this.in = new DataInputStream(openRunInput(run));
+    }
+
+    boolean advance() throws IOException {
+      Object[] values = readRow(in);
+      if(values == null) {
+        return false;
+      }
+      current = toRow(values);
+      return true;
+    }
+
+    void close() throws IOException {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,571 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.io.SolrClientCache;
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.comp.ComparatorOrder;
+import org.apache.solr.client.solrj.io.comp.FieldComparator;
+import org.apache.solr.client.solrj.io.comp.MultipleFieldComparator;
+import org.apache.solr.client.solrj.io.comp.StreamComparator;
+import org.apache.solr.client.solrj.io.stream.StreamContext;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
+import org.apache.solr.client.solrj.io.stream.expr.Explanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamExplanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamFactory;
+import org.apache.solr.client.solrj.io.stream.metrics.Bucket;
+import org.apache.solr.client.solrj.io.stream.metrics.Metric;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.response.FieldStatsInfo;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.noggit.JSONUtil;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams the buckets of a nested JSON terms facet one page at a time.
+ *
+ * <p>Unlike {@link org.apache.solr.client.solrj.io.stream.FacetStream}, which asks for a fixed number of buckets in a
+ * single request, the top level facet is requested a page at a time. Tuples are emitted as each page arrives and the
+ * next page is only requested once the current one has been consumed.</p>
+ *
+ * <p>A top level sorted on its values is paged by key: the next page is the facet of the documents whose value comes
+ * after the last value of the page, so each shard materializes at most a page of buckets per request. A top level
+ * sorted on a metric can only be paged with an offset, each shard then computes the offset plus a page of buckets,
+ * which makes the total work quadratic in the number of pages. Facets are refined so that paging over metric sorts is
+ * consistent across shards.</p>
+ *
+ * <p>The buckets of the inner levels aren't paged, they are all requested with their parent bucket. Rather than have
+ * a shard materialize an unbounded number of them, a level with more than {@link #MAX_BUCKETS_PROPERTY} buckets in a
+ * parent bucket fails the query.</p>
+ *
+ * <p>A {@link DateBucket} level is a range facet with one bucket per unit, in ascending order, and so is a
+ * {@link NumericBucket} level with one bucket per width. A {@link CaseBucket} level is a query facet per value, in the
+ * order of the branches. These levels are requested at once at the top level, as range and query facets can't be
+ * paged.</p>
+ *
+ * <p>Solr materializes every bucket of a range facet, with or without documents, and every query facet in every parent
+ * bucket. If the range and query levels have more than {@link #MAX_RANGE_BUCKETS_PROPERTY} buckets altogether once
+ * their bounds are known, the documents are exported and grouped by an {@link ExportGroupStream} instead, like in
+ * map_reduce aggregationMode. Grouping sets and filled date buckets are always faceted.</p>
+ *
+ * <p>Grouping sets made of the leading levels are read from the same request: a tuple is emitted for each bucket of
+ * the last level of a grouping set, after the tuples of the levels it contains, with the metrics of the bucket as the
+ * subtotals. The grouping set without any level is the total of the root of the facet, it is emitted last. Each tuple
+ * has a boolean {@link #getIndicatorName indicator} per level that tells whether the level isn't in its grouping
+ * set.</p>
+ */
+class FacetPagingStream extends TupleStream {
+  static final String PAGE_SIZE_PROPERTY = "facetPageSize";
+  static final int DEFAULT_PAGE_SIZE = 1000;
+  static final String MAX_BUCKETS_PROPERTY = "facetMaxBuckets";
+  static final int DEFAULT_MAX_BUCKETS = 100000;
+  static final String MAX_RANGE_BUCKETS_PROPERTY = "facetMaxRangeBuckets";
+  static final int DEFAULT_MAX_RANGE_BUCKETS = 100000;
+
+  private final String zkHost;
+  private final String collection;
+  private final SolrParams params;
+  private final Bucket[] buckets;
+  private final DateBucket[] dateBuckets;
+  private final NumericBucket[] numericBuckets;
+  private final CaseBucket[] caseBuckets;
+  private final boolean fillDateBuckets;
+  private final Metric[] metrics;
+  private final FieldComparator[] bucketSorts;
+  private final boolean[] groupingLevels;
+  private final boolean indicators;
+  private final int pageSize;
+  private final int maxBuckets;
+  private final int maxRangeBuckets;
+
+  private transient SolrClientCache cache;
+  private transient StreamContext context;
+  private transient CloudSolrClient cloudSolrClient;
+
+  private final Deque<Tuple> page = new ArrayDeque<>();
+  private int offset;
+  private Object lastValue;
+  private boolean lastPage;
+  private TupleStream exportGroups;
+
+  /** Creates a FacetPagingStream.
+   *
+   * @param zkHost ZooKeeper connect string of the cluster
+   * @param collection Collection to facet
+   * @param params Request parameters, typically just the query
+   * @param buckets Facet fields from the outermost to the innermost level
+   * @param metrics Metrics computed for each bucket of a grouping set
+   * @param bucketSorts Either one sort per bucket or a single sort used for every level
+   * @param groupingSets Numbers of leading levels that make up each grouping set, null for a single grouping set of all
+   *                     the levels
+   * @param pageSize Number of top level buckets requested at a time
+   * @param maxBuckets Maximum number of buckets of an inner level in a parent bucket
+   * @param maxRangeBuckets Maximum number of buckets of the range levels altogether, more are grouped from the
+   *                        exported documents
+   * @param fillDateBuckets Whether the innermost date buckets without documents are emitted with a count of 0
+   */
+  FacetPagingStream(String zkHost, String collection, SolrParams params, Bucket[] buckets, Metric[] metrics,
+                    FieldComparator[] bucketSorts, List<Integer> groupingSets, int pageSize, int maxBuckets,
+                    int maxRangeBuckets, boolean fillDateBuckets) throws IOException {
+    this.zkHost = zkHost;
+    this.collection = collection;
+    this.params = params;
+    this.buckets = buckets;
+    this.dateBuckets = new DateBucket[buckets.length];
+    this.numericBuckets = new NumericBucket[buckets.length];
+    this.caseBuckets = new CaseBucket[buckets.length];
+    for(int i = 0; i < buckets.length; i++) {
+      dateBuckets[i] = DateBucket.parse(buckets[i].toString());
+      numericBuckets[i] = NumericBucket.parse(buckets[i].toString());
+      caseBuckets[i] = CaseBucket.parse(buckets[i].toString());
+    }
+    this.fillDateBuckets = fillDateBuckets;
+    this.metrics = metrics;
+    this.bucketSorts = adjustSorts(buckets, bucketSorts);
+    this.groupingLevels = new boolean[buckets.length + 1];
+    if(groupingSets == null) {
+      groupingLevels[buckets.length] = true;
+    } else {
+      for(int groupingSet : groupingSets) {
+        groupingLevels[groupingSet] = true;
+      }
+    }
+    this.indicators = groupingSets != null;
+    this.pageSize = pageSize;
+    this.maxBuckets = maxBuckets;
+    this.maxRangeBuckets = maxRangeBuckets;
+  }
+
+  public void setStreamContext(StreamContext context) {
+    this.cache = context.getSolrClientCache();
+    this.context = context;
+  }
+
+  public List<TupleStream> children() {
+    return new ArrayList<>();
+  }
+
+  public void open() throws IOException {
+    cloudSolrClient = cache != null ? cache.getCloudSolrClient(zkHost) :
+        SolrSchema.CLIENT_CACHE.getCloudSolrClient(zkHost);
+    offset = 0;
+    lastValue = null;
+    lastPage = false;
+    page.clear();
+    lookupBounds();
+    if(!lastPage && hasTooManyRangeBuckets()) {
+      exportGroups = new ExportGroupStream(zkHost, collection, params, buckets, dateBuckets, numericBuckets,
+          caseBuckets, metrics);
+      if(context != null) {
+        exportGroups.setStreamContext(context);
+      }
+      exportGroups.open();
+    }
+  }
+
+  public void close() throws IOException {
+    cloudSolrClient = null;
+    if(exportGroups != null) {
+      exportGroups.close();
+      exportGroups = null;
+    }
+  }
+
+  public Tuple read() throws IOException {
+    if(exportGroups != null) {
+      return exportGroups.read();
+    }
+
+    while(page.isEmpty() && !lastPage) {
+      fetchPage();
+    }
+
+    if(page.isEmpty()) {
+      Map<String, String> fields = new HashMap<>();
+      fields.put("EOF", "true");
+      return new Tuple(fields);
+    }
+
+    return page.poll();
+  }
+
+  public StreamComparator getStreamSort() {
+    if(bucketSorts.length > 1) {
+      return new MultipleFieldComparator(bucketSorts);
+    } else {
+      return bucketSorts[0];
+    }
+  }
+
+  @Override
+  public Explanation toExplanation(StreamFactory factory) throws IOException {
+    return new StreamExplanation(getStreamNodeId().toString())
+        .withFunctionName("SQL FACET PAGING")
+        .withExpression("--non-expressible--")
+        .withImplementingClass(this.getClass().getName())
+        .withExpressionType(Explanation.ExpressionType.STREAM_SOURCE);
+  }
+
+  private void fetchPage() throws IOException {
+    ModifiableSolrParams paramsLoc = new ModifiableSolrParams(params);
+    paramsLoc.set("json.facet", getJsonFacetString());
+    paramsLoc.set(CommonParams.ROWS, "0");
+    RoutedStream.addShards(paramsLoc, context, collection);
+
+    try {
+      NamedList response = cloudSolrClient.request(new QueryRequest(paramsLoc),
+          SolrSchema.requestCollection(paramsLoc, collection));
+      NamedList facets = (NamedList)response.get("facets");
+      int topLevelBuckets = facets == null ? 0 : fillTuples(0, new Tuple(new HashMap()), facets);
+      lastPage = !isTermsLevel(0) || topLevelBuckets < pageSize;
+      if(lastPage && groupingLevels[0] && facets != null) {
+        addTuple(0, new Tuple(new HashMap()), facets);
+      }
+      offset += pageSize;
+    } catch (SolrServerException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Adds the tuples of the buckets of the grouping sets at or below the level to the current page, returns the number
+   * of buckets at this level.
+   */
+  private int fillTuples(int level, Tuple currentTuple, NamedList facets) throws IOException {
+    if(caseBuckets[level] != null) {
+      List<Object> values = caseBuckets[level].getValues();
+      for(int i = 0; i < values.size(); i++) {
+        NamedList bucket = (NamedList)facets.get(getCaseFacetName(level, i));
+        if(bucket != null && ((Number)bucket.get("count")).longValue() > 0) {
+          fillBucket(level, currentTuple, bucket, values.get(i));
+        }
+      }
+      return values.size();
+    }
+
+    NamedList nl = (NamedList)facets.get(buckets[level].toString());
+    if(nl == null) {
+      return 0;
+    }
+
+    List allBuckets = (List)nl.get("buckets");
+    if(level > 0 && isTermsLevel(level) && allBuckets.size() > maxBuckets) {
+      throw new IOException("The GROUP BY on " + buckets[level] + " has more than " + maxBuckets + " buckets in a single "
+          + "bucket of the outer fields, the limit is set by " + MAX_BUCKETS_PROPERTY
+          + ". Group in map_reduce aggregationMode instead.");
+    }
+    for(Object b : allBuckets) {
+      NamedList bucket = (NamedList)b;
+      if(!isTermsLevel(level) && ((Number)bucket.get("count")).longValue() == 0
+          && (dateBuckets[level] == null || !fillDateBuckets || level + 1 < buckets.length)) {
+        continue;
+      }
+      Object value = bucket.get("val");
+      if(numericBuckets[level] != null) {
+        value = numericBuckets[level].getValue((Number)value);
+      }
+      fillBucket(level, currentTuple, bucket, value);
+      if(level == 0) {
+        lastValue = bucket.get("val");
+      }
+    }
+    return allBuckets.size();
+  }
+
+  private void fillBucket(int level, Tuple currentTuple, NamedList bucket, Object value) throws IOException {
+    Tuple tuple = currentTuple.clone();
+    tuple.put(buckets[level].toString(), value);
+    if(level + 1 < buckets.length) {
+      fillTuples(level + 1, tuple, bucket);
+    }
+    if(groupingLevels[level + 1]) {
+      addTuple(level + 1, tuple, bucket);
+    }
+  }
+
+  /** Adds the tuple of a bucket of the grouping set of the leading levels to the current page. */
+  private void addTuple(int levels, Tuple currentTuple, NamedList bucket) {
+    Tuple tuple = currentTuple.clone();
+    int m = 0;
+    for(Metric metric : metrics) {
+      String identifier = metric.getIdentifier();
+      if(identifier.startsWith("count(")) {
+        tuple.put(identifier, ((Number)bucket.get("count")).longValue());
+      } else {
+        tuple.put(identifier, bucket.get("facet_" + m));
+        ++m;
+      }
+    }
+    if(indicators) {
+      for(int i = 0; i < buckets.length; i++) {
+        tuple.put(getIndicatorName(buckets[i].toString()), i >= levels);
+      }
+    }
+    page.add(tuple);
+  }
+
+  /** Returns the name of the indicator of the bucket, which is true in the tuples of grouping sets without it. */
+  static String getIndicatorName(String bucket) {
+    return "grouping(" + bucket + ")";
+  }
+
+  /** Whether the top level is paged by key rather than with an offset, which it is if it is sorted on its values. */
+  private boolean isKeyPaged() {
+    return isTermsLevel(0) && "index".equals(getFacetSort(bucketSorts[0].getLeftFieldName()));
+  }
+
+  /** Returns the filter on the documents of the buckets after the bucket of the value in the order of the top level. */
+  private String getAfterFilter(Object value) {
+    String term = value instanceof Date ? ((Date) value).toInstant().toString() : value.toString();
+    String quoted = '"' + term.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    String field = buckets[0].toString();
+    return bucketSorts[0].getOrder() == ComparatorOrder.DESCENDING
+        ? field + ":[* TO " + quoted + "}" : field + ":{" + quoted + " TO *]";
+  }
+
+  /** Whether the level is a terms facet, which can be paged. */
+  private boolean isTermsLevel(int level) {
+    return dateBuckets[level] == null && numericBuckets[level] == null && caseBuckets[level] == null;
+  }
+
+  private static String getCaseFacetName(int level, int value) {
+    return "case_" + level + "_" + value;
+  }
+
+  private String getJsonFacetString() {
+    StringBuilder buf = new StringBuilder();
+    // The metrics of the root of the facet are the totals of the grouping set without any level
+    if(groupingLevels[0] && appendMetrics(buf) > 0) {
+      buf.append(',');
+    }
+    appendJson(buf, 0);
+    return "{" + buf.toString() + "}";
+  }
+
+  private void appendJson(StringBuilder buf, int level) {
+    Bucket bucket = buckets[level];
+    DateBucket dateBucket = dateBuckets[level];
+    NumericBucket numericBucket = numericBuckets[level];
+    if(caseBuckets[level] != null) {
+      List<String> queries = caseBuckets[level].getQueries();
+      for(int i = 0; i < queries.size(); i++) {
+        if(i > 0) {
+          buf.append(',');
+        }
+        buf.append('"').append(getCaseFacetName(level, i)).append("\":{\"type\":\"query\"");
+        buf.append(",\"q\":").append(JSONUtil.toJSON(queries.get(i)));
+        appendSubFacets(buf, level);
+        buf.append('}');
+      }
+      return;
+    }
+
+    buf.append('"').append(bucket.toString()).append('"').append(":{");
+    if(dateBucket != null) {
+      buf.append("\"type\":\"range\"");
+      buf.append(",\"field\":\"").append(dateBucket.getField()).append('"');
+      buf.append(",\"start\":\"").append(dateBucket.getStart()).append('"');
+      buf.append(",\"end\":\"").append(dateBucket.getEnd()).append('"');
+      buf.append(",\"gap\":\"").append(dateBucket.getGap()).append('"');
+    } else if(numericBucket != null) {
+      buf.append("\"type\":\"range\"");
+      buf.append(",\"field\":\"").append(numericBucket.getField()).append('"');
+      buf.append(",\"start\":").append(numericBucket.getStart());
+      buf.append(",\"end\":").append(numericBucket.getEnd());
+      buf.append(",\"gap\":").append(numericBucket.getWidth());
+    } else {
+      buf.append("\"type\":\"terms\"");
+      buf.append(",\"field\":\"").append(bucket.toString()).append('"');
+      if(level == 0) {
+        if(isKeyPaged()) {
+          if(lastValue != null) {
+            buf.append(",\"domain\":{\"filter\":").append(JSONUtil.toJSON(getAfterFilter(lastValue))).append('}');
+          }
+        } else {
+          buf.append(",\"offset\":").append(offset);
+        }
+        buf.append(",\"limit\":").append(pageSize);
+      } else {
+        // One more bucket than allowed tells whether there are too many
+        buf.append(",\"limit\":").append(maxBuckets + 1);
+      }
+      buf.append(",\"refine\":true");
+      buf.append(",\"sort\":{\"").append(getFacetSort(bucketSorts[level].getLeftFieldName())).append("\":\"")
+          .append(bucketSorts[level].getOrder()).append("\"}");
+    }
+    appendSubFacets(buf, level);
+    buf.append('}');
+  }
+
+  /** Appends the metrics and the facet of the next level of the buckets of the level. */
+  private void appendSubFacets(StringBuilder buf, int level) {
+    buf.append(",\"facet\":{");
+    int metricCount = appendMetrics(buf);
+
+    if(level + 1 < buckets.length) {
+      if(metricCount > 0) {
+        buf.append(',');
+      }
+      appendJson(buf, level + 1);
+    }
+    buf.append('}');
+  }
+
+  /** Appends the metrics other than counts, which every bucket has, returns the number of metrics appended. */
+  private int appendMetrics(StringBuilder buf) {
+    int metricCount = 0;
+    for(Metric metric : metrics) {
+      String identifier = metric.getIdentifier();
+      if(!identifier.startsWith("count(")) {
+        if(metricCount > 0) {
+          buf.append(',');
+        }
+        buf.append("\"facet_").append(metricCount).append("\":\"").append(identifier).append('"');
+        ++metricCount;
+      }
+    }
+    return metricCount;
+  }
+
+  /**
+   * Looks up the bounds of the numeric buckets, and the missing bounds of the date buckets, from the smallest and
+   * largest values of their fields among the matching documents. If no document matches there are no buckets at all.
+   */
+  private void lookupBounds() throws IOException {
+    ModifiableSolrParams paramsLoc = null;
+    for(int i = 0; i < buckets.length; i++) {
+      String field = getBoundsField(i);
+      if(field != null) {
+        if(paramsLoc == null) {
+          paramsLoc = new ModifiableSolrParams(params);
+          paramsLoc.set(CommonParams.ROWS, "0");
+          paramsLoc.set("stats", "true");
+        }
+        paramsLoc.add("stats.field", "{!min=true max=true}" + field);
+      }
+    }
+    if(paramsLoc == null) {
+      return;
+    }
+    RoutedStream.addShards(paramsLoc, context, collection);
+
+    try {
+      QueryResponse response = new QueryResponse(cloudSolrClient.request(new QueryRequest(paramsLoc),
+          SolrSchema.requestCollection(paramsLoc, collection)), cloudSolrClient);
+      for(int i = 0; i < buckets.length; i++) {
+        String field = getBoundsField(i);
+        if(field == null) {
+          continue;
+        }
+        FieldStatsInfo stats = response.getFieldStatsInfo().get(field);
+        if(stats == null || stats.getMin() == null) {
+          lastPage = true;
+          return;
+        }
+        if(dateBuckets[i] != null) {
+          dateBuckets[i] = dateBuckets[i].withBounds(((Date)stats.getMin()).toInstant(),
+              ((Date)stats.getMax()).toInstant());
+        } else {
+          numericBuckets[i] = numericBuckets[i].withBounds(((Number)stats.getMin()).doubleValue(),
+              ((Number)stats.getMax()).doubleValue());
+        }
+      }
+    } catch (SolrServerException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Whether the range and query levels have more buckets than Solr should materialize, counting the buckets of an
+   * inner level once per bucket of the outer levels. Their bounds must be known.
+   */
+  private boolean hasTooManyRangeBuckets() {
+    if(indicators || fillDateBuckets) {
+      return false;
+    }
+    double rangeBuckets = 1;
+    for(int i = 0; i < buckets.length; i++) {
+      if(dateBuckets[i] != null) {
+        rangeBuckets *= dateBuckets[i].getBucketCount();
+      } else if(numericBuckets[i] != null) {
+        rangeBuckets *= numericBuckets[i].getBucketCount();
+      } else if(caseBuckets[i] != null) {
+        rangeBuckets *= caseBuckets[i].getValues().size();
+      }
+    }
+    return rangeBuckets > maxRangeBuckets;
+  }
+
+  /** Returns the field whose bounds the facet of the level needs, null if it doesn't need any. */
+  private String getBoundsField(int level) {
+    if(dateBuckets[level] != null && (dateBuckets[level].getStart() == null || dateBuckets[level].getEnd() == null)) {
+      return dateBuckets[level].getField();
+    }
+    return numericBuckets[level] == null ? null : numericBuckets[level].getField();
+  }
+
+  private String getFacetSort(String id) {
+    int metricCount = 0;
+    for(Metric metric : metrics) {
+      String identifier = metric.getIdentifier();
+      if(identifier.startsWith("count(")) {
+        if(id.startsWith("count(")) {
+          return "count";
+        }
+      } else {
+        if(id.equals(identifier)) {
+          return "facet_" + metricCount;
+        }
+        ++metricCount;
+      }
+    }
+    return "index";
+  }
+
+  private static FieldComparator[] adjustSorts(Bucket[] buckets, FieldComparator[] sorts) throws IOException {
+    if(buckets.length == sorts.length) {
+      return sorts;
+    } else if(sorts.length == 1) {
+      FieldComparator[] adjustedSorts = new FieldComparator[buckets.length];
+      for(int i = 0; i < buckets.length; i++) {
+        if(sorts[0].getLeftFieldName().contains("(")) {
+          // Sort every level on the same metric
+          adjustedSorts[i] = sorts[0];
+        } else {
+          adjustedSorts[i] = new FieldComparator(buckets[i].toString(), sorts[0].getOrder());
+        }
+      }
+      return adjustedSorts;
+    } else {
+      throw new IOException("If multiple sorts are specified there must be a sort for each bucket.");
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Distance in kilometers of the values of a spatial field from a point, computed by Solr's select handler as the
+ * {@code geodist()} function query. A query returns and sorts on the distance from a single point.
+ *
+ * <p>The distance is named {@code geodist(field,lat,lon)}. That is the name of the distance in the tuples. Solr is
+ * asked for the function without arguments, with the field and the point as the {@code sfield} and {@code pt} params,
+ * because the CloudSolrStream splits the field list and the sort on commas.</p>
+ */
+class GeoDistance {
+  static final String FUNCTION = "geodist()";
+
+  private static final Pattern PATTERN = Pattern.compile("geodist\\(([^,]+),([^,]+),([^,]+)\\)");
+
+  private final String name;
+  private final String field;
+  private final String point;
+
+  private GeoDistance(String name, String field, String point) {
+    this.name = name;
+    this.field = field;
+    this.point = point;
+  }
+
+  /** Returns the name of the distance of the field from the point. */
+  static String toDistance(String field, String lat, String lon) {
+    return "geodist(" + field + "," + lat + "," + lon + ")";
+  }
+
+  /** Returns the distance of the name, null if the name is a field or another function. */
+  static GeoDistance parse(String name) {
+    Matcher matcher = PATTERN.matcher(name);
+    if(!matcher.matches()) {
+      return null;
+    }
+    return new GeoDistance(name, matcher.group(1), matcher.group(2) + "," + matcher.group(3));
+  }
+
+  String getName() {
+    return name;
+  }
+
+  /** The spatial field, the {@code sfield} param. */
+  String getField() {
+    return field;
+  }
+
+  /** The point as latitude and longitude separated by a comma, the {@code pt} param. */
+  String getPoint() {
+    return point;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
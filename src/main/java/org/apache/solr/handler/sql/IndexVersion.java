@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.cloud.ClusterState;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The Lucene index version of every shard of a collection, read from the shard leaders with the Luke handler.
+ *
+ * <p>Results computed against one IndexVersion can be reused for as long as a later IndexVersion of the same
+ * collection is equal to it. Versions are cached for {@code indexVersionCheckInterval} milliseconds so that frequent
+ * queries don't check every shard each time.</p>
+ */
+class IndexVersion {
+  static final String CHECK_INTERVAL_PROPERTY = "indexVersionCheckInterval";
+  private static final String DEFAULT_CHECK_INTERVAL = "1000";
+
+  private static final ConcurrentMap<String, IndexVersion> versions = new ConcurrentHashMap<>();
+
+  private final Map<String, Long> shardVersions;
+  private final long numDocs;
+  private final long fetchedAt;
+
+  private IndexVersion(Map<String, Long> shardVersions, long numDocs, long fetchedAt) {
+    this.shardVersions = Collections.unmodifiableMap(shardVersions);
+    this.numDocs = numDocs;
+    this.fetchedAt = fetchedAt;
+  }
+
+  /** Number of live documents across all shards when the versions were read. */
+  long getNumDocs() {
+    return numDocs;
+  }
+
+  /** Index version of every shard, keyed by collection and shard name. */
+  Map<String, Long> getShardVersions() {
+    return shardVersions;
+  }
+
+  /** Returns the current version of the collection, which may be a comma separated list of collections. */
+  static IndexVersion get(String zkHost, String collection, Properties properties) throws IOException {
+    long checkInterval = Long.parseLong(properties.getProperty(CHECK_INTERVAL_PROPERTY, DEFAULT_CHECK_INTERVAL));
+    String key = zkHost + "/" + collection;
+    long now = System.nanoTime();
+
+    IndexVersion version = versions.get(key);
+    if(version == null || now - version.fetchedAt > checkInterval * 1000000L) {
+      version = fetch(zkHost, collection, now);
+      versions.put(key, version);
+    }
+    return version;
+  }
+
+  private static IndexVersion fetch(String zkHost, String collection, long now) throws IOException {
+    CloudSolrClient cloudSolrClient = SolrSchema.CLIENT_CACHE.getCloudSolrClient(zkHost);
+    ClusterState clusterState = cloudSolrClient.getZkStateReader().getClusterState();
+
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set("show", "index");
+    params.set("numTerms", "0");
+    QueryRequest request = new QueryRequest(params);
+    request.setPath("/admin/luke");
+
+    Map<String, Long> shardVersions = new TreeMap<>();
+    long numDocs = 0;
+    for(String name : collection.split(",")) {
+      DocCollection docCollection = clusterState.getCollectionOrNull(name.trim());
+      if(docCollection == null) {
+        throw new IOException("Collection not found: " + name);
+      }
+
+      for(Slice slice : docCollection.getActiveSlices()) {
+        Replica leader = slice.getLeader();
+        if(leader == null) {
+          throw new IOException("No leader for shard " + slice.getName() + " of " + name);
+        }
+
+        HttpSolrClient httpSolrClient = SolrSchema.CLIENT_CACHE.getHttpSolrClient(leader.getCoreUrl());
+        try {
+          NamedList index = (NamedList) httpSolrClient.request(request).get("index");
+          shardVersions.put(name + "/" + slice.getName(), ((Number) index.get("version")).longValue());
+          numDocs += ((Number) index.get("numDocs")).longValue();
+        } catch (SolrServerException e) {
+          throw new IOException(e);
+        }
+      }
+    }
+
+    return new IndexVersion(shardVersions, numDocs, now);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof IndexVersion && shardVersions.equals(((IndexVersion) o).shardVersions);
+  }
+
+  @Override
+  public int hashCode() {
+    return shardVersions.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return shardVersions.toString();
+  }
+}
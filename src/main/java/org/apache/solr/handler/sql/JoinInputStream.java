@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.calcite.util.Pair;
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.comp.StreamComparator;
+import org.apache.solr.client.solrj.io.stream.StreamContext;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
+import org.apache.solr.client.solrj.io.stream.expr.Explanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamExplanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renames the fields of one input of a join so that fields of both inputs can't overwrite each other when the
+ * joined tuples are merged. The same field may be renamed to several names. Tuples with a null value for any of the
+ * required fields are skipped.
+ *
+ * <p>The keys are also copied as {@link JoinKey}s to key fields, which the join streams compare instead of the raw
+ * values so that both inputs are merged in the order Solr sorts them. Unlike SelectStream, the sort of the stream is
+ * reported with the key fields, which the join streams check against their equalitor.</p>
+ */
+class JoinInputStream extends TupleStream {
+  private final TupleStream stream;
+  private final List<Pair<String, String>> renames;
+  private final List<String> keys;
+  private final List<Class> keyClasses;
+  private final List<String> keyFields;
+  private final StreamComparator sort;
+  private final List<String> requiredFields;
+
+  /**
+   * @param renames Pairs of the field of the input and its name in the renamed tuples
+   * @param keys Renamed key fields
+   * @param keyClasses Classes of the key columns
+   * @param keyFields Fields the keys are copied to
+   * @param sort Sort of the input expressed with the key fields
+   * @param requiredFields Renamed fields that must have a value
+   */
+  JoinInputStream(TupleStream stream, List<Pair<String, String>> renames, List<String> keys, List<Class> keyClasses,
+                  List<String> keyFields, StreamComparator sort, List<String> requiredFields) {
+    this.stream = stream;
+    this.renames = renames;
+    this.keys = keys;
+    this.keyClasses = keyClasses;
+    this.keyFields = keyFields;
+    this.sort = sort;
+    this.requiredFields = requiredFields;
+  }
+
+  public void setStreamContext(StreamContext context) {
+    stream.setStreamContext(context);
+  }
+
+  public List<TupleStream> children() {
+    return Collections.singletonList(stream);
+  }
+
+  public void open() throws IOException {
+    stream.open();
+  }
+
+  public void close() throws IOException {
+    stream.close();
+  }
+
+  public Tuple read() throws IOException {
+    while(true) {
+      Tuple tuple = stream.read();
+      if(tuple.EOF) {
+        return tuple;
+      }
+
+      Map<String, Object> fields = new HashMap<>();
+      for(Pair<String, String> rename : renames) {
+        fields.put(rename.getValue(), tuple.get(rename.getKey()));
+      }
+      for(int i = 0; i < keys.size(); i++) {
+        fields.put(keyFields.get(i), JoinKey.of(fields.get(keys.get(i)), keyClasses.get(i)));
+      }
+      if(hasRequiredFields(fields)) {
+        return new Tuple(fields);
+      }
+    }
+  }
+
+  private boolean hasRequiredFields(Map<String, Object> fields) {
+    for(String field : requiredFields) {
+      if(fields.get(field) == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public StreamComparator getStreamSort() {
+    return sort;
+  }
+
+  @Override
+  public Explanation toExplanation(StreamFactory factory) throws IOException {
+    return new StreamExplanation(getStreamNodeId().toString())
+        .withChildren(new Explanation[]{stream.toExplanation(factory)})
+        .withFunctionName("SQL JOIN INPUT")
+        .withExpression("--non-expressible--")
+        .withImplementingClass(this.getClass().getName())
+        .withExpressionType(Explanation.ExpressionType.STREAM_DECORATOR);
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.calcite.linq4j.tree.Primitive;
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.comp.ComparatorOrder;
+import org.apache.solr.client.solrj.io.comp.FieldComparator;
+import org.apache.solr.client.solrj.io.comp.MultipleFieldComparator;
+import org.apache.solr.client.solrj.io.comp.StreamComparator;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Value of a join key, compared in the order Solr sorts the key field so that the merge of a {@link SolrJoin} sees
+ * both inputs in the same order: strings by code point like the UTF-8 terms of the index, numbers by value whatever
+ * their class, dates by time. Values read as strings for a numeric key are parsed first.
+ */
+final class JoinKey implements Comparable<JoinKey> {
+  private final Object value;
+
+  private JoinKey(Object value) {
+    this.value = value;
+  }
+
+  /**
+   * Returns the key of a value of a field of the given class, null for a null value.
+   *
+   * @param keyClass Class of the key column, timestamps are numeric
+   */
+  static JoinKey of(Object value, Class keyClass) {
+    if(value == null) {
+      return null;
+    }
+    if(value instanceof String && Number.class.isAssignableFrom(Primitive.box(keyClass))) {
+      return new JoinKey(parseNumber((String) value));
+    }
+    if(value instanceof Date) {
+      return new JoinKey(((Date) value).getTime());
+    }
+    return new JoinKey(value);
+  }
+
+  private static Object parseNumber(String value) {
+    try {
+      return Long.valueOf(value);
+    } catch(NumberFormatException e) {
+      // Dates are exported as ISO instants
+      if(value.indexOf('T') > 0) {
+        return Instant.parse(value).toEpochMilli();
+      }
+      return Double.valueOf(value);
+    }
+  }
+
+  /**
+   * Returns a comparator sorting tuples ascending on keys, nulls first like {@link FieldComparator}, for inputs that
+   * aren't sorted by Solr.
+   *
+   * @param keyClasses Classes of the key columns
+   */
+  static StreamComparator comparator(List<String> keys, List<Class> keyClasses) {
+    FieldComparator[] comps = new FieldComparator[keys.size()];
+    for(int i = 0; i < keys.size(); i++) {
+      comps[i] = new KeyComparator(keys.get(i), keyClasses.get(i));
+    }
+    return comps.length == 1 ? comps[0] : new MultipleFieldComparator(comps);
+  }
+
+  public int compareTo(JoinKey other) {
+    return compare(value, other.value);
+  }
+
+  /** Compares two non null values in the order Solr sorts them. */
+  @SuppressWarnings("unchecked")
+  static int compare(Object value1, Object value2) {
+    if(value1 instanceof Number && value2 instanceof Number) {
+      Number number1 = (Number) value1;
+      Number number2 = (Number) value2;
+      if(isIntegral(number1) && isIntegral(number2)) {
+        return Long.compare(number1.longValue(), number2.longValue());
+      }
+      return Double.compare(number1.doubleValue(), number2.doubleValue());
+    }
+    if(value1 instanceof String && value2 instanceof String) {
+      return compareCodePoints((String) value1, (String) value2);
+    }
+    return ((Comparable) value1).compareTo(value2);
+  }
+
+  private static boolean isIntegral(Number number) {
+    return number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte;
+  }
+
+  /** Compares like the UTF-8 bytes of the strings, String.compareTo sorts chars above the surrogates after them. */
+  private static int compareCodePoints(String value1, String value2) {
+    int length = Math.min(value1.length(), value2.length());
+    for(int i = 0; i < length; i++) {
+      char c1 = value1.charAt(i);
+      char c2 = value2.charAt(i);
+      if(c1 != c2) {
+        if(Character.isSurrogate(c1) != Character.isSurrogate(c2)) {
+          return Character.isSurrogate(c1) ? 1 : -1;
+        }
+        return c1 - c2;
+      }
+    }
+    return value1.length() - value2.length();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof JoinKey && compareTo((JoinKey) o) == 0;
+  }
+
+  @Override
+  public int hashCode() {
+    // Equal numbers of different classes have the same double value
+    return value instanceof Number ? Double.hashCode(((Number) value).doubleValue()) : value.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return value.toString();
+  }
+
+  private static class KeyComparator extends FieldComparator {
+    private final String key;
+    private final Class keyClass;
+
+    KeyComparator(String key, Class keyClass) {
+      super(key, ComparatorOrder.ASCENDING);
+      this.key = key;
+      this.keyClass = keyClass;
+    }
+
+    @Override
+    public int compare(Tuple tuple1, Tuple tuple2) {
+      JoinKey key1 = of(tuple1.get(key), keyClass);
+      JoinKey key2 = of(tuple2.get(key), keyClass);
+      if(key1 == null) {
+        return key2 == null ? 0 : -1;
+      }
+      return key2 == null ? 1 : key1.compareTo(key2);
+    }
+  }
+}
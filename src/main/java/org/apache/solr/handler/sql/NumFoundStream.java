@@ -0,0 +1,280 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.calcite.util.Pair;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.io.SolrClientCache;
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.comp.StreamComparator;
+import org.apache.solr.client.solrj.io.stream.StreamContext;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
+import org.apache.solr.client.solrj.io.stream.expr.Explanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamExplanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamFactory;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Answers COUNT(*), COUNT(field), MIN(field) and MAX(field) without a GROUP BY from cheap requests.
+ *
+ * <p>COUNT(*) is the numFound of a rows=0 request and COUNT(field) is computed by a JSON facet in the same request.
+ * MIN and MAX are looked up with a rows=1 request sorted on the field, so each shard only has to keep its top
+ * document instead of computing stats over every match. If the field can't be sorted on, for example because it is
+ * multivalued, the JSON facet is used instead. The resulting tuple is cached for as long as the {@link IndexVersion}
+ * of the collection doesn't change.</p>
+ */
+class NumFoundStream extends TupleStream {
+  private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private static final Object NOT_SORTABLE = new Object();
+  private static final String NOT_SORTABLE_MESSAGE = "can not sort on";
+  static final String CACHE_PROPERTY = "statsCache";
+
+  private static final Cache<String, Pair<IndexVersion, Tuple>> results = CacheBuilder.newBuilder()
+      .maximumSize(1000)
+      .build();
+
+  private final String zkHost;
+  private final String collection;
+  private final String query;
+  private final List<Pair<String, String>> metricPairs;
+  private final Properties properties;
+
+  private transient SolrClientCache cache;
+  private transient StreamContext context;
+  private Tuple tuple;
+  private boolean finished;
+
+  NumFoundStream(String zkHost, String collection, String query, List<Pair<String, String>> metricPairs,
+                 Properties properties) {
+    this.zkHost = zkHost;
+    this.collection = collection;
+    this.query = query;
+    this.metricPairs = metricPairs;
+    this.properties = properties;
+  }
+
+  /**
+   * Whether the metrics can be answered by this stream. Counts are always supported, MIN and MAX only for numeric
+   * fields since the JSON facet fallback can't compute them for strings.
+   */
+  static boolean supports(List<Pair<String, String>> metricPairs, List<Map.Entry<String, Class>> fields) {
+    for(Pair<String, String> metricPair : metricPairs) {
+      switch (metricPair.getKey()) {
+        case "COUNT":
+          break;
+        case "MIN":
+        case "MAX":
+          // The requested fields are the metric identifiers, use the type of the projected MIN or MAX
+          String identifier = metricPair.getKey().toLowerCase(Locale.ROOT) + "(" + metricPair.getValue() + ")";
+          for(Map.Entry<String, Class> field : fields) {
+            if(field.getKey().equals(identifier) && field.getValue().equals(String.class)) {
+              return false;
+            }
+          }
+          break;
+        default:
+          return false;
+      }
+    }
+    return true;
+  }
+
+  public void setStreamContext(StreamContext context) {
+    this.cache = context.getSolrClientCache();
+    this.context = context;
+  }
+
+  public List<TupleStream> children() {
+    return new ArrayList<>();
+  }
+
+  public void open() throws IOException {
+    finished = false;
+    if(!Boolean.parseBoolean(properties.getProperty(CACHE_PROPERTY, "true"))) {
+      tuple = fetch();
+      return;
+    }
+
+    String key = zkHost + "/" + collection + "/" + query + "/" + metricPairs;
+    IndexVersion version = IndexVersion.get(zkHost, collection, properties);
+
+    Pair<IndexVersion, Tuple> cached = results.getIfPresent(key);
+    if(cached != null && cached.getKey().equals(version)) {
+      tuple = cached.getValue().clone();
+    } else {
+      tuple = fetch();
+      results.put(key, new Pair<>(version, tuple.clone()));
+    }
+  }
+
+  private Tuple fetch() throws IOException {
+    CloudSolrClient cloudSolrClient = cache != null ? cache.getCloudSolrClient(zkHost) :
+        SolrSchema.CLIENT_CACHE.getCloudSolrClient(zkHost);
+
+    // MIN and MAX are answered by sorted lookups where possible
+    Map<String, Object> fields = new HashMap<>();
+    for(Pair<String, String> metricPair : metricPairs) {
+      String metric = metricPair.getKey();
+      if("MIN".equals(metric) || "MAX".equals(metric)) {
+        String identifier = metric.toLowerCase(Locale.ROOT) + "(" + metricPair.getValue() + ")";
+        Object bound = lookupBound(cloudSolrClient, metricPair.getValue(), "MIN".equals(metric));
+        if(bound != NOT_SORTABLE) {
+          fields.put(identifier, bound);
+        }
+      }
+    }
+
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set(CommonParams.Q, query);
+    params.set(CommonParams.ROWS, "0");
+
+    StringBuilder json = new StringBuilder();
+    for(int i = 0; i < metricPairs.size(); i++) {
+      Pair<String, String> metricPair = metricPairs.get(i);
+      String field = metricPair.getValue();
+      String identifier = metricPair.getKey().toLowerCase(Locale.ROOT) + "(" + field + ")";
+      if("*".equals(field) || fields.containsKey(identifier)) {
+        continue;
+      }
+      json.append(json.length() == 0 ? "{" : ",");
+      if("COUNT".equals(metricPair.getKey())) {
+        json.append("\"metric_").append(i).append("\":{\"type\":\"query\",\"q\":\"").append(field).append(":[* TO *]\"}");
+      } else {
+        json.append("\"metric_").append(i).append("\":\"").append(metricPair.getKey().toLowerCase(Locale.ROOT))
+            .append('(').append(field).append(")\"");
+      }
+    }
+    if(json.length() > 0) {
+      params.set("json.facet", json.append('}').toString());
+    }
+
+    RoutedStream.addShards(params, context, collection);
+    QueryResponse response;
+    try {
+      response = new QueryRequest(params).process(cloudSolrClient, SolrSchema.requestCollection(params, collection));
+    } catch (SolrServerException e) {
+      throw new IOException(e);
+    }
+
+    NamedList facets = (NamedList)response.getResponse().get("facets");
+    for(int i = 0; i < metricPairs.size(); i++) {
+      Pair<String, String> metricPair = metricPairs.get(i);
+      String identifier = metricPair.getKey().toLowerCase(Locale.ROOT) + "(" + metricPair.getValue() + ")";
+      if(fields.containsKey(identifier)) {
+        continue;
+      } else if("*".equals(metricPair.getValue())) {
+        fields.put(identifier, response.getResults().getNumFound());
+      } else if(facets == null) {
+        fields.put(identifier, "COUNT".equals(metricPair.getKey()) ? 0L : null);
+      } else {
+        Object val = facets.get("metric_" + i);
+        if(val instanceof NamedList) {
+          val = ((Number)((NamedList)val).get("count")).longValue();
+        }
+        fields.put(identifier, val);
+      }
+    }
+    return new Tuple(fields);
+  }
+
+  /**
+   * Returns the smallest or largest value of the field among the matching documents, null if no matching document
+   * has a value, or {@link #NOT_SORTABLE} if Solr can't sort on the field.
+   */
+  private Object lookupBound(CloudSolrClient cloudSolrClient, String field, boolean min) throws IOException {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set(CommonParams.Q, query);
+    params.set(CommonParams.FQ, field + ":[* TO *]");
+    params.set(CommonParams.FL, field);
+    params.set(CommonParams.SORT, field + (min ? " asc" : " desc"));
+    params.set(CommonParams.ROWS, "1");
+    RoutedStream.addShards(params, context, collection);
+
+    SolrDocumentList results;
+    try {
+      results = new QueryRequest(params).process(cloudSolrClient, SolrSchema.requestCollection(params, collection)).getResults();
+    } catch (SolrServerException e) {
+      throw new IOException(e);
+    } catch (SolrException e) {
+      // Solr refuses to sort on multivalued fields and fields without doc values, anything else fails the query
+      if(e.getMessage() == null || !e.getMessage().contains(NOT_SORTABLE_MESSAGE)) {
+        throw e;
+      }
+      logger.debug("Can't sort on {}, falling back to a facet", field, e);
+      return NOT_SORTABLE;
+    }
+
+    if(results.isEmpty()) {
+      return null;
+    }
+
+    // Match the types returned by the facet and stats requests
+    Object val = results.get(0).getFirstValue(field);
+    if(val instanceof Integer || val instanceof Long) {
+      return ((Number) val).longValue();
+    } else if(val instanceof Float || val instanceof Double) {
+      return ((Number) val).doubleValue();
+    }
+    return val;
+  }
+
+  public void close() throws IOException {
+  }
+
+  public Tuple read() throws IOException {
+    if(finished) {
+      Map<String, String> fields = new HashMap<>();
+      fields.put("EOF", "true");
+      return new Tuple(fields);
+    }
+    finished = true;
+    return tuple;
+  }
+
+  public StreamComparator getStreamSort() {
+    return null;
+  }
+
+  @Override
+  public Explanation toExplanation(StreamFactory factory) throws IOException {
+    return new StreamExplanation(getStreamNodeId().toString())
+        .withFunctionName("SQL NUMFOUND")
+        .withExpression("--non-expressible--")
+        .withImplementingClass(this.getClass().getName())
+        .withExpressionType(Explanation.ExpressionType.STREAM_SOURCE);
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Bucket of a GROUP BY on {@code FLOOR(field / width)} of a numeric field, faceted with a JSON range facet whose gap is
+ * the width. The facet starts at the multiple of the width at or below the smallest value of the field among the
+ * matching documents and ends after the largest value. The value of a bucket is its start divided by the width.
+ * Documents without a value aren't in any bucket, like they aren't in the buckets of a terms facet.
+ *
+ * <p>The bucket is named {@code floor(field/width)}. That is the name of the facet and of the bucket values in the
+ * tuples.</p>
+ */
+class NumericBucket {
+  private static final Pattern PATTERN = Pattern.compile("floor\\((.+)/(\\d+)\\)");
+
+  private final String name;
+  private final String field;
+  private final long width;
+  private final long start;
+  private final long end;
+
+  private NumericBucket(String name, String field, long width, long start, long end) {
+    this.name = name;
+    this.field = field;
+    this.width = width;
+    this.start = start;
+    this.end = end;
+  }
+
+  /** Returns the name of the bucket of the field divided by the width and floored. */
+  static String toBucket(String field, long width) {
+    return "floor(" + field + "/" + width + ")";
+  }
+
+  /** Returns the numeric bucket of the name, null if the name is a field or another bucket. */
+  static NumericBucket parse(String name) {
+    Matcher matcher = PATTERN.matcher(name);
+    if(!matcher.matches()) {
+      return null;
+    }
+    return new NumericBucket(name, matcher.group(1), Long.parseLong(matcher.group(2)), 0, 0);
+  }
+
+  String getName() {
+    return name;
+  }
+
+  String getField() {
+    return field;
+  }
+
+  /** The gap of the range facet. */
+  long getWidth() {
+    return width;
+  }
+
+  /** Start of the first bucket of the facet, only set by {@link #withBounds}. */
+  long getStart() {
+    return start;
+  }
+
+  /** End of the last bucket of the facet, only set by {@link #withBounds}. */
+  long getEnd() {
+    return end;
+  }
+
+  /** Returns the bucket with the bounds of the facet around the smallest and largest value of the field. */
+  NumericBucket withBounds(double min, double max) {
+    return new NumericBucket(name, field, width, (long) Math.floor(min / width) * width,
+        ((long) Math.floor(max / width) + 1) * width);
+  }
+
+  /** Number of buckets of the range facet, once its bounds are known. */
+  long getBucketCount() {
+    return (end - start) / width;
+  }
+
+  /** Whether a value of the field is in one of the buckets of the range facet. */
+  boolean contains(Number value) {
+    return value.doubleValue() >= start && value.doubleValue() < end;
+  }
+
+  /** Returns the value of the bucket of the range facet that starts at the value. */
+  Long getValue(Number bucketStart) {
+    return (long) Math.floor(bucketStart.doubleValue() / width);
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.comp.StreamComparator;
+import org.apache.solr.client.solrj.io.stream.StreamContext;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
+import org.apache.solr.client.solrj.io.stream.expr.Explanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamExplanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Scan of a {@link TimePartitions time partitioned} table sorted on its partition field. The partitions don't overlap,
+ * so they are read one after the other in the order of the sort. The stream of a partition is only created and opened
+ * once the partitions before it are read, a scan that stops early never queries the later partitions.
+ */
+class PartitionScanStream extends TupleStream {
+  private final List<String> collections;
+  private final Function<String, TupleStream> partitionStream;
+  private final StreamComparator sort;
+
+  private StreamContext context;
+  private int next;
+  private TupleStream stream;
+
+  /**
+   * @param collections The partitions in the order of the sort
+   * @param partitionStream Creates the sorted stream of a partition
+   */
+  PartitionScanStream(List<String> collections, Function<String, TupleStream> partitionStream,
+                      StreamComparator sort) {
+    this.collections = collections;
+    this.partitionStream = partitionStream;
+    this.sort = sort;
+  }
+
+  public void setStreamContext(StreamContext context) {
+    this.context = context;
+  }
+
+  public List<TupleStream> children() {
+    return new ArrayList<>();
+  }
+
+  public void open() throws IOException {
+    next = 0;
+  }
+
+  public void close() throws IOException {
+    if(stream != null) {
+      stream.close();
+      stream = null;
+    }
+  }
+
+  public Tuple read() throws IOException {
+    while(true) {
+      if(stream == null) {
+        if(next == collections.size()) {
+          Map<String, Object> fields = new HashMap<>();
+          fields.put("EOF", "true");
+          return new Tuple(fields);
+        }
+        TupleStream partition = partitionStream.apply(collections.get(next++));
+        partition.setStreamContext(context);
+        partition.open();
+        stream = partition;
+      }
+
+      Tuple tuple = stream.read();
+      if(!tuple.EOF) {
+        return tuple;
+      }
+      stream.close();
+      stream = null;
+    }
+  }
+
+  public StreamComparator getStreamSort() {
+    return sort;
+  }
+
+  @Override
+  public Explanation toExplanation(StreamFactory factory) throws IOException {
+    return new StreamExplanation(getStreamNodeId().toString())
+        .withFunctionName("SQL PARTITION SCAN")
+        .withExpression("--non-expressible--")
+        .withImplementingClass(this.getClass().getName())
+        .withExpressionType(Explanation.ExpressionType.STREAM_SOURCE)
+        .withNote("partitions " + collections);
+  }
+}
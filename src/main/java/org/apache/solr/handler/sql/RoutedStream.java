@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.comp.StreamComparator;
+import org.apache.solr.client.solrj.io.stream.StreamContext;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
+import org.apache.solr.client.solrj.io.stream.expr.Explanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamExplanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamFactory;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.cloud.ClusterState;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.cloud.ZkCoreNodeProps;
+import org.apache.solr.common.params.ModifiableSolrParams;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Restricts the streams of a query to the shards that can hold documents with the given values of the router field
+ * of the collection, see {@link SolrTable#getRouteField()}. It also lists the shards of a comma separated list of
+ * collections, which CloudSolrStream only resolves for aliases.
+ *
+ * <p>The shards are passed to the streams below in the {@code shards} entry of their StreamContext, which
+ * CloudSolrStream and StatsStream read instead of the cluster state. {@link NumFoundStream} and
+ * {@link FacetPagingStream} send them as the {@code shards} parameter of their requests.</p>
+ */
+class RoutedStream extends TupleStream {
+  private static final String SHARDS = "shards";
+
+  private final TupleStream stream;
+  private final Map<String, List<String>> shards;
+
+  RoutedStream(TupleStream stream, Map<String, List<String>> shards) {
+    this.stream = stream;
+    this.shards = shards;
+  }
+
+  /**
+   * Returns the core URLs of one replica of every shard of the collection that can hold documents with any of the
+   * route values, keyed by the collection. A list of collections also gets an entry for each of them, for the
+   * streams that query them one at a time. Returns null if the shards of a single collection can't be pruned, then
+   * every shard is queried.
+   *
+   * @param routeValues Values of the router field, null for every shard
+   */
+  static Map<String, List<String>> getShards(String zkHost, String collection, Collection<String> routeValues) {
+    ClusterState clusterState = SolrSchema.CLIENT_CACHE.getCloudSolrClient(zkHost).getZkStateReader()
+        .getClusterState();
+    Set<String> liveNodes = clusterState.getLiveNodes();
+
+    Map<String, List<String>> shards = new HashMap<>();
+    List<String> urls = new ArrayList<>();
+    boolean pruned = false;
+    for(String name : collection.split(",")) {
+      DocCollection docCollection = clusterState.getCollectionOrNull(name);
+      if(docCollection == null) {
+        return null;
+      }
+
+      Set<Slice> slices = new LinkedHashSet<>();
+      try {
+        if(routeValues == null) {
+          slices.addAll(docCollection.getActiveSlices());
+        } else {
+          for(String routeValue : routeValues) {
+            slices.addAll(docCollection.getRouter().getSearchSlicesSingle(routeValue, null, docCollection));
+          }
+        }
+      } catch (SolrException e) {
+        // Like a shard name the implicit router doesn't know
+        return null;
+      }
+      if(slices.isEmpty()) {
+        return null;
+      }
+      pruned |= slices.size() < docCollection.getActiveSlices().size();
+
+      List<String> collectionUrls = new ArrayList<>();
+      for(Slice slice : slices) {
+        String url = getReplicaUrl(slice, liveNodes);
+        if(url == null) {
+          return null;
+        }
+        collectionUrls.add(url);
+      }
+      shards.put(name, collectionUrls);
+      urls.addAll(collectionUrls);
+    }
+    shards.put(collection, urls);
+    return pruned || collection.contains(",") ? shards : null;
+  }
+
+  private static String getReplicaUrl(Slice slice, Set<String> liveNodes) {
+    List<Replica> replicas = new ArrayList<>();
+    for(Replica replica : slice.getReplicas()) {
+      if(replica.getState() == Replica.State.ACTIVE && liveNodes.contains(replica.getNodeName())) {
+        replicas.add(replica);
+      }
+    }
+    if(replicas.isEmpty()) {
+      return null;
+    }
+    Collections.shuffle(replicas);
+    return new ZkCoreNodeProps(replicas.get(0)).getCoreUrl();
+  }
+
+  /**
+   * Sets the {@code shards} parameter of a request on the collection if the context restricts its shards.
+   */
+  @SuppressWarnings("unchecked")
+  static void addShards(ModifiableSolrParams params, StreamContext context, String collection) {
+    Map<String, List<String>> shards = context == null ? null : (Map<String, List<String>>) context.get(SHARDS);
+    if(shards != null && shards.containsKey(collection)) {
+      params.set(SHARDS, String.join(",", shards.get(collection)));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public void setStreamContext(StreamContext context) {
+    // The context is shared with other inputs of a join or union, which may not be routed the same way
+    StreamContext routedContext = new StreamContext();
+    routedContext.setSolrClientCache(context.getSolrClientCache());
+    routedContext.setModelCache(context.getModelCache());
+    routedContext.setStreamFactory(context.getStreamFactory());
+    routedContext.workerID = context.workerID;
+    routedContext.numWorkers = context.numWorkers;
+    routedContext.getEntries().putAll(context.getEntries());
+
+    Map<String, List<String>> routedShards = new HashMap<>();
+    Map<String, List<String>> contextShards = (Map<String, List<String>>) context.get(SHARDS);
+    if(contextShards != null) {
+      routedShards.putAll(contextShards);
+    }
+    routedShards.putAll(shards);
+    routedContext.put(SHARDS, routedShards);
+    stream.setStreamContext(routedContext);
+  }
+
+  public List<TupleStream> children() {
+    return Collections.singletonList(stream);
+  }
+
+  public void open() throws IOException {
+    stream.open();
+  }
+
+  public void close() throws IOException {
+    stream.close();
+  }
+
+  public Tuple read() throws IOException {
+    return stream.read();
+  }
+
+  public StreamComparator getStreamSort() {
+    return stream.getStreamSort();
+  }
+
+  @Override
+  public Explanation toExplanation(StreamFactory factory) throws IOException {
+    return new StreamExplanation(getStreamNodeId().toString())
+        .withChildren(new Explanation[]{stream.toExplanation(factory)})
+        .withFunctionName("SQL SHARD ROUTING")
+        .withExpression("--non-expressible--")
+        .withImplementingClass(this.getClass().getName())
+        .withExpressionType(Explanation.ExpressionType.STREAM_DECORATOR)
+        .withNote("shards " + shards);
+  }
+}
@@ -0,0 +1,351 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.calcite.linq4j.tree.Primitive;
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.comp.StreamComparator;
+import org.apache.solr.client.solrj.io.stream.StreamContext;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
+import org.apache.solr.client.solrj.io.stream.expr.Explanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamExplanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamFactory;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Runtime filter of a {@link SolrJoin}. The small input of the join, the {@link Source}, is read into memory before
+ * the large input, the {@link Target}, is queried. The key values of the small input are then added to the query of
+ * the large input as a filter, so Solr only exports the documents that can have a match.
+ *
+ * <p>Up to {@code runtimeFilterMaxTerms} key values are sent as a {@code {!terms}} filter, more values as a range
+ * filter between the smallest and the largest value. If the small input turns out to have more than
+ * {@code runtimeFilterMaxRows} tuples, the large input is exported unfiltered.</p>
+ */
+class RuntimeFilter {
+  private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  static final String MAX_ROWS_PROPERTY = "runtimeFilterMaxRows";
+  static final String MAX_TERMS_PROPERTY = "runtimeFilterMaxTerms";
+  private static final String DEFAULT_MAX_ROWS = "100000";
+  private static final String DEFAULT_MAX_TERMS = "10000";
+
+  /** Matches no documents, Solr adds *:* to purely negative filters. */
+  private static final String NO_MATCH_QUERY = "-*:*";
+  private static final String[] SEPARATORS = {",", "|", ";", "\t"};
+
+  private RuntimeFilter() {
+  }
+
+  static int getMaxRows(Properties properties) {
+    return Integer.parseInt(properties.getProperty(MAX_ROWS_PROPERTY, DEFAULT_MAX_ROWS));
+  }
+
+  static int getMaxTerms(Properties properties) {
+    return Integer.parseInt(properties.getProperty(MAX_TERMS_PROPERTY, DEFAULT_MAX_TERMS));
+  }
+
+  /**
+   * Builds the filter query matching the values of the field, null if the values can't be filtered on. Values are
+   * formatted for the type of the key the way the filter translation formats literals: integers without a fraction,
+   * dates as ISO instants.
+   *
+   * @param keyClass Class of the key column
+   */
+  static String filterQuery(String field, Set<Object> values, int maxTerms, Class keyClass) {
+    Set<Comparable> terms = new LinkedHashSet<>();
+    for(Object value : values) {
+      if(!(value instanceof Number || value instanceof String || value instanceof Date)) {
+        return null;
+      }
+      Comparable term = toTerm(value, Primitive.box(keyClass));
+      // Values that no document can have, like fractions of an integer key, are left out
+      if(term != null) {
+        terms.add(term);
+      }
+    }
+    if(terms.isEmpty()) {
+      return NO_MATCH_QUERY;
+    }
+    Class termClass = terms.iterator().next().getClass();
+    for(Comparable term : terms) {
+      if(term.getClass() != termClass) {
+        return null;
+      }
+    }
+
+    if(terms.size() <= maxTerms) {
+      String separator = getSeparator(terms);
+      if(separator != null) {
+        StringBuilder buf = new StringBuilder("{!terms f=").append(field);
+        if(!",".equals(separator)) {
+          buf.append(" separator='").append(separator).append('\'');
+        }
+        buf.append('}');
+        String sep = "";
+        for(Comparable term : terms) {
+          buf.append(sep).append(term);
+          sep = separator;
+        }
+        return buf.toString();
+      }
+    }
+
+    return range(field, terms);
+  }
+
+  /**
+   * Returns the value as a term of the key, a Long for integer keys, a Double for other numeric keys, an Instant for
+   * dates and the String otherwise. Returns null if the key can't have the value.
+   */
+  private static Comparable toTerm(Object value, Class keyClass) {
+    if(value instanceof Date) {
+      return ((Date) value).toInstant();
+    }
+    if(!Number.class.isAssignableFrom(keyClass)) {
+      return value.toString();
+    }
+
+    BigDecimal number;
+    try {
+      number = value instanceof Number ? new BigDecimal(value.toString()) : new BigDecimal((String) value);
+    } catch(NumberFormatException e) {
+      // Timestamps are numeric columns of date fields, read as ISO strings
+      try {
+        return Instant.parse(value.toString());
+      } catch(DateTimeParseException e2) {
+        return null;
+      }
+    }
+    if(keyClass == Double.class || keyClass == Float.class || keyClass == BigDecimal.class) {
+      return number.doubleValue();
+    }
+    return number.stripTrailingZeros().scale() <= 0 ? number.longValueExact() : null;
+  }
+
+  private static String getSeparator(Set<Comparable> terms) {
+    for(String separator : SEPARATORS) {
+      boolean unused = true;
+      for(Comparable term : terms) {
+        if(term.toString().contains(separator)) {
+          unused = false;
+          break;
+        }
+      }
+      if(unused) {
+        return separator;
+      }
+    }
+    return null;
+  }
+
+  /** Range between the smallest and the largest term, strings compared by code point the way Solr sorts them. */
+  private static String range(String field, Set<Comparable> terms) {
+    Comparable min = null;
+    Comparable max = null;
+    for(Comparable term : terms) {
+      if(min == null || JoinKey.compare(term, min) < 0) {
+        min = term;
+      }
+      if(max == null || JoinKey.compare(term, max) > 0) {
+        max = term;
+      }
+    }
+    return field + ":[" + toRangeBound(min) + " TO " + toRangeBound(max) + "]";
+  }
+
+  private static String toRangeBound(Comparable term) {
+    if(term instanceof String) {
+      return '"' + ((String) term).replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+    return ClientUtils.escapeQueryChars(term.toString());
+  }
+
+  /**
+   * The small input of a join. It is read into memory when it is first opened, by itself or by its target, and
+   * replayed to the join.
+   */
+  static class Source extends TupleStream {
+    private final TupleStream stream;
+    private final String key;
+    private final int maxRows;
+
+    private final List<Tuple> buffer = new ArrayList<>();
+    private final Set<Object> values = new LinkedHashSet<>();
+    private boolean open;
+    private boolean overflow;
+    private Tuple eof;
+    private int position;
+
+    Source(TupleStream stream, String key, int maxRows) {
+      this.stream = stream;
+      this.key = key;
+      this.maxRows = maxRows;
+    }
+
+    public void setStreamContext(StreamContext context) {
+      stream.setStreamContext(context);
+    }
+
+    public List<TupleStream> children() {
+      return Collections.singletonList(stream);
+    }
+
+    public void open() throws IOException {
+      if(open) {
+        return;
+      }
+      open = true;
+      stream.open();
+
+      while(buffer.size() <= maxRows) {
+        Tuple tuple = stream.read();
+        if(tuple.EOF) {
+          eof = tuple;
+          return;
+        }
+        buffer.add(tuple);
+        Object value = tuple.get(key);
+        if(value != null) {
+          values.add(value);
+        }
+      }
+      overflow = true;
+    }
+
+    /** The filter on the field of the target, null if this input was too large to be read into memory. */
+    String getFilterQuery(String field, int maxTerms, Class keyClass) {
+      return overflow ? null : filterQuery(field, values, maxTerms, keyClass);
+    }
+
+    public void close() throws IOException {
+      stream.close();
+    }
+
+    public Tuple read() throws IOException {
+      if(position < buffer.size()) {
+        return buffer.get(position++);
+      }
+      return eof != null ? eof : stream.read();
+    }
+
+    public StreamComparator getStreamSort() {
+      return stream.getStreamSort();
+    }
+
+    @Override
+    public Explanation toExplanation(StreamFactory factory) throws IOException {
+      return new StreamExplanation(getStreamNodeId().toString())
+          .withChildren(new Explanation[]{stream.toExplanation(factory)})
+          .withFunctionName("SQL RUNTIME FILTER SOURCE")
+          .withExpression("--non-expressible--")
+          .withImplementingClass(this.getClass().getName())
+          .withExpressionType(Explanation.ExpressionType.STREAM_DECORATOR);
+    }
+  }
+
+  /**
+   * The large input of a join. When it is opened its source is read first, then the query is built with the
+   * filter on the key values of the source.
+   */
+  static class Target extends TupleStream {
+    private final Source source;
+    private final String key;
+    private final Class keyClass;
+    private final TupleStream unfiltered;
+    private final int maxTerms;
+    private final Function<String, TupleStream> filtered;
+
+    private StreamContext context;
+    private TupleStream stream;
+
+    /**
+     * @param keyClass Class of the key column
+     * @param unfiltered The stream to read if the source can't be filtered on
+     * @param filtered Builds the stream with an additional filter query
+     */
+    Target(Source source, String key, Class keyClass, TupleStream unfiltered, int maxTerms,
+           Function<String, TupleStream> filtered) {
+      this.source = source;
+      this.key = key;
+      this.keyClass = keyClass;
+      this.unfiltered = unfiltered;
+      this.maxTerms = maxTerms;
+      this.filtered = filtered;
+    }
+
+    public void setStreamContext(StreamContext context) {
+      this.context = context;
+      unfiltered.setStreamContext(context);
+    }
+
+    public List<TupleStream> children() {
+      return Collections.singletonList(unfiltered);
+    }
+
+    public void open() throws IOException {
+      source.open();
+      String filterQuery = source.getFilterQuery(key, maxTerms, keyClass);
+      logger.debug("Runtime filter on {}: {}", key, filterQuery);
+
+      stream = filterQuery == null ? unfiltered : filtered.apply(filterQuery);
+      if(context != null) {
+        stream.setStreamContext(context);
+      }
+      stream.open();
+    }
+
+    public void close() throws IOException {
+      if(stream != null) {
+        stream.close();
+      }
+    }
+
+    public Tuple read() throws IOException {
+      return stream.read();
+    }
+
+    public StreamComparator getStreamSort() {
+      return unfiltered.getStreamSort();
+    }
+
+    @Override
+    public Explanation toExplanation(StreamFactory factory) throws IOException {
+      return new StreamExplanation(getStreamNodeId().toString())
+          .withChildren(new Explanation[]{unfiltered.toExplanation(factory)})
+          .withFunctionName("SQL RUNTIME FILTER")
+          .withExpression("--non-expressible--")
+          .withImplementingClass(this.getClass().getName())
+          .withExpressionType(Explanation.ExpressionType.STREAM_DECORATOR);
+    }
+  }
+}
@@ -16,11 +16,15 @@
  */
 package org.apache.solr.handler.sql;
 
+import org.apache.calcite.linq4j.Ord;
 import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptCost;
+import org.apache.calcite.plan.RelOptPlanner;
 import org.apache.calcite.plan.RelTraitSet;
 import org.apache.calcite.rel.RelNode;
 import org.apache.calcite.rel.core.Aggregate;
 import org.apache.calcite.rel.core.AggregateCall;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
 import org.apache.calcite.sql.SqlAggFunction;
 import org.apache.calcite.sql.fun.SqlStdOperatorTable;
 import org.apache.calcite.util.ImmutableBitSet;
@@ -30,6 +34,11 @@ import java.util.*;
 
 /**
  * Implementation of {@link org.apache.calcite.rel.core.Aggregate} relational expression in Solr.
+ *
+ * <p>Grouping sets that are nested in one another, like those of a ROLLUP, are served by a single nested facet: the
+ * group keys are the levels of the facet in the order the grouping sets add them, and the metrics of the buckets of
+ * each level are the subtotals of the grouping set made of the levels above. Other grouping sets, like those of a
+ * CUBE, are left to Calcite.</p>
  */
 class SolrAggregate extends Aggregate implements SolrRel {
   private static final List<SqlAggFunction> SUPPORTED_AGGREGATIONS = Arrays.asList(
@@ -51,7 +60,11 @@ class SolrAggregate extends Aggregate implements SolrRel {
       List<AggregateCall> aggCalls) {
     super(cluster, traitSet, child, indicator, groupSet, groupSets, aggCalls);
     assert getConvention() == SolrRel.CONVENTION;
-    assert getConvention() == child.getConvention();
+  }
+
+  @Override
+  public RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
+    return super.computeSelfCost(planner, mq).multiplyBy(0.1);
   }
 
   @Override
@@ -62,6 +75,7 @@ class SolrAggregate extends Aggregate implements SolrRel {
   }
 
   public void implement(Implementor implementor) {
+    assert getConvention() == getInput().getConvention();
     implementor.visitChild(0, getInput());
 
     final List<String> inNames = SolrRules.solrFieldNames(getInput().getRowType());
@@ -81,10 +95,47 @@ class SolrAggregate extends Aggregate implements SolrRel {
       }
     }
 
-    for(int group : getGroupSet()) {
+    for(int group : getGroupOrder(this)) {
       String inName = inNames.get(group);
       implementor.addBucket(inName);
     }
+
+    if(getGroupSets().size() > 1) {
+      List<Integer> groupingSets = new ArrayList<>();
+      for(ImmutableBitSet groupSet : getGroupSets()) {
+        groupingSets.add(groupSet.cardinality());
+      }
+      implementor.setGroupingSets(groupingSets);
+    }
+
+    if(indicator) {
+      // The indicator of a group key follows the group keys, it is true in the rows of the grouping sets without it
+      final List<String> outNames = SolrRules.solrFieldNames(getRowType());
+      for(Ord<Integer> group : Ord.zip(getGroupSet().asList())) {
+        String inName = inNames.get(group.e);
+        implementor.addFieldMapping(outNames.get(getGroupCount() + group.i),
+            FacetPagingStream.getIndicatorName(implementor.fieldMappings.getOrDefault(inName, inName)));
+      }
+    }
+  }
+
+  /**
+   * Returns the group keys in the order of the levels of the facet, such that every grouping set is made of leading
+   * keys. Null if the grouping sets aren't nested in one another.
+   */
+  static List<Integer> getGroupOrder(Aggregate agg) {
+    List<ImmutableBitSet> groupSets = new ArrayList<>(agg.getGroupSets());
+    groupSets.sort(Comparator.comparingInt(ImmutableBitSet::cardinality));
+    List<Integer> groupOrder = new ArrayList<>();
+    ImmutableBitSet previous = ImmutableBitSet.of();
+    for(ImmutableBitSet groupSet : groupSets) {
+      if(!groupSet.contains(previous)) {
+        return null;
+      }
+      groupOrder.addAll(groupSet.except(previous).asList());
+      previous = groupSet;
+    }
+    return groupOrder;
   }
 
   private Pair<String, String> toSolrMetric(Implementor implementor, AggregateCall aggCall, List<String> inNames) {
@@ -17,25 +17,26 @@
 package org.apache.solr.handler.sql;
 
 import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.linq4j.tree.Primitive;
 import org.apache.solr.client.solrj.io.Tuple;
 import org.apache.solr.client.solrj.io.stream.TupleStream;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.lang.invoke.MethodHandles;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Date;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Map;
+import java.util.function.Function;
 
 /** Enumerator that reads from a Solr collection. */
 class SolrEnumerator implements Enumerator<Object> {
-  private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
-
   private final TupleStream tupleStream;
   private final List<Map.Entry<String, Class>> fields;
+  private final List<Function<Object, Object>> decoders = new ArrayList<>();
   private Tuple current;
-  private char sep = 31;
 
   /** Creates a SolrEnumerator.
    *
@@ -50,6 +51,10 @@ class SolrEnumerator implements Enumerator<Object> {
       throw new RuntimeException(e);
     }
     this.fields = fields;
+    for(Map.Entry<String, Class> field : fields) {
+      // Columns that can't be null, like the values of a case, have primitive classes
+      this.decoders.add(decoder(Primitive.box(field.getValue())));
+    }
     this.current = null;
   }
 
@@ -59,60 +64,55 @@ class SolrEnumerator implements Enumerator<Object> {
    */
   public Object current() {
     if (fields.size() == 1) {
-      return this.getter(current, fields.get(0));
+      return this.getter(current, 0);
     } else {
       // Build an array with all fields in this row
       Object[] row = new Object[fields.size()];
       for (int i = 0; i < fields.size(); i++) {
-        row[i] = this.getter(current, fields.get(i));
+        row[i] = this.getter(current, i);
       }
 
       return row;
     }
   }
 
-  private Object getter(Tuple tuple, Map.Entry<String, Class> field) {
-    Object val = tuple.get(field.getKey());
-
-    if(val == null) {
-      return null;
-    }
-
-    Class clazz = field.getValue();
-    if(clazz.equals(Long.class)) {
-      if(val instanceof Double) {
-        return this.getRealVal(val);
-      }
-      return val;
-    }
-
-    if(val instanceof ArrayList) {
-      ArrayList arrayList = (ArrayList) val;
-      StringBuilder buf = new StringBuilder();
-
-      for(Object o : arrayList) {
-        buf.append(sep);
-        buf.append(o.toString());
-      }
-      val = buf.toString();
-    }
-
-    return val;
+  private Object getter(Tuple tuple, int index) {
+    Object val = tuple.get(fields.get(index).getKey());
+    return val == null ? null : decoders.get(index).apply(val);
   }
 
-  private Object getRealVal(Object val) {
-    // Check if Double is really a Long
-    if(val instanceof Double) {
-      Double doubleVal = (double) val;
-      //make sure that double has no decimals and fits within Long
-      if(doubleVal % 1 == 0 && doubleVal >= Long.MIN_VALUE && doubleVal <= Long.MAX_VALUE) {
-        return doubleVal.longValue();
-      }
-      return doubleVal;
+  /**
+   * Returns the conversion of the values Solr returns for a field to the Java class of its column. The values of a
+   * multi-valued field are decoded to a list of its element class, the class of its column is an array class.
+   */
+  private static Function<Object, Object> decoder(Class clazz) {
+    if(clazz.isArray()) {
+      Function<Object, Object> elementDecoder = decoder(clazz.getComponentType());
+      return val -> {
+        List<Object> list = new ArrayList<>();
+        for(Object element : val instanceof List ? (List<?>) val : Collections.singletonList(val)) {
+          list.add(element == null ? null : elementDecoder.apply(element));
+        }
+        return list;
+      };
+    } else if(clazz.equals(Long.class)) {
+      // Timestamps are milliseconds since the epoch, exports return dates as strings
+      return val -> val instanceof Number ? (Object) ((Number) val).longValue()
+          : val instanceof Date ? ((Date) val).getTime() : Instant.parse(val.toString()).toEpochMilli();
+    } else if(clazz.equals(Integer.class)) {
+      return val -> ((Number) val).intValue();
+    } else if(clazz.equals(Double.class)) {
+      return val -> ((Number) val).doubleValue();
+    } else if(clazz.equals(Float.class)) {
+      return val -> ((Number) val).floatValue();
+    } else if(clazz.equals(BigDecimal.class)) {
+      return val -> val instanceof BigDecimal ? val : val instanceof Long || val instanceof Integer
+          ? BigDecimal.valueOf(((Number) val).longValue()) : BigDecimal.valueOf(((Number) val).doubleValue());
+    } else if(clazz.equals(Boolean.class)) {
+      // Facet buckets of boolean fields are strings
+      return val -> val instanceof Boolean ? val : Boolean.valueOf(val.toString());
     }
-
-    // Wasn't a double so just return original Object
-    return val;
+    return val -> val;
   }
 
   public boolean moveNext() {
@@ -125,8 +125,8 @@ class SolrEnumerator implements Enumerator<Object> {
         return true;
       }
     } catch (IOException e) {
-      logger.error("IOException", e);
-      return false;
+      // Ending the rows would return part of the results as if they were all of them
+      throw new RuntimeException(e);
     }
   }
 
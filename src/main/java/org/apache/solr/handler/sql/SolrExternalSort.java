@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.adapter.enumerable.EnumerableRelImplementor;
+import org.apache.calcite.adapter.enumerable.JavaRowFormat;
+import org.apache.calcite.adapter.enumerable.PhysType;
+import org.apache.calcite.adapter.enumerable.PhysTypeImpl;
+import org.apache.calcite.linq4j.tree.BlockBuilder;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptCost;
+import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelOptTable;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.rel.RelCollation;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.Sort;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rex.RexNode;
+
+/**
+ * ORDER BY that Solr can't do, like one on a computed column or on the rows of a join, over an input that reads a
+ * Solr collection. Unlike an EnumerableSort, the rows are sorted with an {@link ExternalSorter} which spills them to
+ * local files rather than exhaust the heap.
+ */
+class SolrExternalSort extends Sort implements EnumerableRel {
+  private final RelOptTable solrTable;
+
+  /**
+   * @param solrTable A Solr table read by the input, the connection properties of its schema configure the sort
+   */
+  SolrExternalSort(RelOptCluster cluster, RelTraitSet traitSet, RelNode input, RelCollation collation,
+                   RelOptTable solrTable) {
+    super(cluster, traitSet, input, collation, null, null);
+    this.solrTable = solrTable;
+  }
+
+  @Override
+  public Sort copy(RelTraitSet traitSet, RelNode input, RelCollation newCollation, RexNode offset, RexNode fetch) {
+    return new SolrExternalSort(getCluster(), traitSet, input, newCollation, solrTable);
+  }
+
+  @Override
+  public RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
+    // The same sort as an EnumerableSort that can't run out of heap, but still much dearer than a sort in Solr
+    return super.computeSelfCost(planner, mq).multiplyBy(.9);
+  }
+
+  public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+    final BlockBuilder builder = new BlockBuilder();
+    final Result result = implementor.visitChild(this, 0, (EnumerableRel) getInput(), pref);
+
+    // The rows are spilled as arrays of values, or as the value itself for a single column
+    final PhysType physType = PhysTypeImpl.of(implementor.getTypeFactory(), getRowType(), JavaRowFormat.ARRAY);
+    final Expression input = builder.append("input", result.block);
+    final Expression rows = builder.append("rows", result.physType.convertTo(input, physType));
+    final Expression comparator = builder.append("comparator", physType.generateComparator(collation));
+
+    final Expression table = builder.append("table", solrTable.getExpression(SolrTable.SolrQueryable.class));
+    builder.add(Expressions.return_(null, Expressions.call(table, SolrMethod.SOLR_QUERYABLE_SORT.method, rows,
+        comparator, Expressions.constant(physType.getFormat() == JavaRowFormat.SCALAR))));
+    return implementor.result(physType, builder.toBlock());
+  }
+}
@@ -25,11 +25,20 @@ import org.apache.calcite.rex.RexInputRef;
 import org.apache.calcite.rex.RexLiteral;
 import org.apache.calcite.rex.RexNode;
 import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.util.NlsString;
 import org.apache.calcite.util.Pair;
+import org.apache.solr.client.solrj.util.ClientUtils;
 
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Implementation of a {@link org.apache.calcite.rel.core.Filter} relational expression in Solr.
@@ -42,7 +51,6 @@ class SolrFilter extends Filter implements SolrRel {
       RexNode condition) {
     super(cluster, traitSet, child, condition);
     assert getConvention() == SolrRel.CONVENTION;
-    assert getConvention() == child.getConvention();
   }
 
   @Override public RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
@@ -54,31 +62,186 @@ class SolrFilter extends Filter implements SolrRel {
   }
 
   public void implement(Implementor implementor) {
+    assert getConvention() == getInput().getConvention();
     implementor.visitChild(0, getInput());
     if(getInput() instanceof SolrAggregate) {
       HavingTranslator translator = new HavingTranslator(SolrRules.solrFieldNames(getRowType()), implementor.reverseAggMappings);
       String havingPredicate = translator.translateMatch(condition);
       implementor.setHavingPredicate(havingPredicate);
     } else {
-      Translator translator = new Translator(SolrRules.solrFieldNames(getRowType()));
+      List<String> fieldNames = SolrRules.solrFieldNames(getRowType());
+      Translator translator = new Translator(fieldNames);
       String query = translator.translateMatch(condition);
-      implementor.addQuery(query);
-      implementor.setNegativeQuery(translator.negativeQuery);
+      implementor.andQuery(query, translator.negativeQuery);
+      if(implementor.solrTable != null) {
+        implementor.addRouteValues(getRouteValues(condition, fieldNames, implementor.solrTable.getRouteField()));
+      }
+      implementor.addTimeRanges(getTimeRanges(condition, fieldNames));
+    }
+  }
+
+  /**
+   * Returns the values of the router field that every matching document has one of, from an equality or an IN list
+   * on the field, null if the condition doesn't restrict the field to a set of values.
+   */
+  static Set<String> getRouteValues(RexNode condition, List<String> fieldNames, String routeField) {
+    if(routeField == null) {
+      return null;
+    }
+    for(RexNode conjunction : RelOptUtil.conjunctions(condition)) {
+      Set<String> values = new LinkedHashSet<>();
+      for(RexNode disjunction : RelOptUtil.disjunctions(conjunction)) {
+        String value = getRouteValue(disjunction, fieldNames, routeField);
+        if(value == null) {
+          values = null;
+          break;
+        }
+        values.add(value);
+      }
+      if(values != null) {
+        return values;
+      }
+    }
+    return null;
+  }
+
+  private static String getRouteValue(RexNode node, List<String> fieldNames, String routeField) {
+    if(node.getKind() != SqlKind.EQUALS) {
+      return null;
+    }
+    List<RexNode> operands = ((RexCall) node).getOperands();
+    for(int i = 0; i < 2; i++) {
+      RexNode field = SolrRules.unwrapCast(operands.get(i));
+      RexNode literal = operands.get(1 - i);
+      if(field instanceof RexInputRef && literal instanceof RexLiteral
+          && routeField.equals(fieldNames.get(((RexInputRef) field).getIndex()))) {
+        Comparable value = ((RexLiteral) literal).getValue();
+        if(value instanceof NlsString) {
+          // Values like (a b) are translated to a query instead of a single term
+          String string = ((NlsString) value).getValue();
+          return string.startsWith("(") || string.startsWith("[") || string.startsWith("{") ? null : string;
+        } else if(value instanceof BigDecimal && ((BigDecimal) value).stripTrailingZeros().scale() <= 0) {
+          return ((BigDecimal) value).toBigInteger().toString();
+        }
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the range of every date field that matching documents are in, from the comparisons of the fields with
+   * timestamps. Fields the condition doesn't restrict are left out.
+   */
+  static Map<String, TimeRange> getTimeRanges(RexNode condition, List<String> fieldNames) {
+    Map<String, TimeRange> ranges = new HashMap<>();
+    for(RexNode conjunction : RelOptUtil.conjunctions(condition)) {
+      Pair<String, TimeRange> range = getTimeRange(conjunction, fieldNames, false);
+      if(range != null) {
+        ranges.merge(range.getKey(), range.getValue(), TimeRange::intersect);
+      }
+    }
+    return ranges;
+  }
+
+  private static Pair<String, TimeRange> getTimeRange(RexNode node, List<String> fieldNames, boolean reversed) {
+    SqlKind kind = reversed ? node.getKind().reverse() : node.getKind();
+    if(!(node instanceof RexCall) || ((RexCall) node).getOperands().size() != 2) {
+      return null;
+    }
+    List<RexNode> operands = ((RexCall) node).getOperands();
+    RexNode field = SolrRules.unwrapCast(operands.get(reversed ? 1 : 0));
+    RexNode literal = operands.get(reversed ? 0 : 1);
+    if(!(field instanceof RexInputRef && literal instanceof RexLiteral)) {
+      return reversed ? null : getTimeRange(node, fieldNames, true);
+    }
+
+    Instant value = toInstant((RexLiteral) literal);
+    if(value == null) {
+      return null;
+    }
+    String fieldName = fieldNames.get(((RexInputRef) field).getIndex());
+    switch (kind) {
+      case EQUALS:
+        return new Pair<>(fieldName, new TimeRange(value, true, value, true));
+      case GREATER_THAN:
+        return new Pair<>(fieldName, new TimeRange(value, false, null, false));
+      case GREATER_THAN_OR_EQUAL:
+        return new Pair<>(fieldName, new TimeRange(value, true, null, false));
+      case LESS_THAN:
+        return new Pair<>(fieldName, new TimeRange(null, false, value, false));
+      case LESS_THAN_OR_EQUAL:
+        return new Pair<>(fieldName, new TimeRange(null, false, value, true));
+      default:
+        return null;
+    }
+  }
+
+  /** Returns the instant of a TIMESTAMP literal or of a string in ISO-8601 format, null for any other literal. */
+  static Instant toInstant(RexLiteral literal) {
+    Comparable value = literal.getValue();
+    if(value instanceof Calendar) {
+      return ((Calendar) value).toInstant();
+    } else if(value instanceof NlsString) {
+      try {
+        return Instant.parse(((NlsString) value).getValue());
+      } catch (DateTimeParseException e) {
+        return null;
+      }
     }
+    return null;
+  }
+
+  /**
+   * Translates a condition on the given fields to the query Solr would run for it, or returns null if the condition
+   * can't be pushed down.
+   */
+  static String toQuery(RexNode condition, List<String> fieldNames) {
+    Translator translator = new Translator(fieldNames);
+    String query;
+    try {
+      query = translator.translateMatch(condition);
+    } catch (AssertionError | RuntimeException e) {
+      return null;
+    }
+    if(query == null) {
+      return null;
+    }
+    // Purely negative queries are anchored the same way SolrTable does
+    return translator.negativeQuery ? "*:* AND " + query : query;
   }
 
   private static class Translator {
 
     private final List<String> fieldNames;
     public boolean negativeQuery = true;
+    private Boolean hasTextMatch;
 
     Translator(List<String> fieldNames) {
       this.fieldNames = fieldNames;
     }
 
     private String translateMatch(RexNode condition) {
+      if (hasTextMatch == null) {
+        hasTextMatch = TextMatchFunction.containsTextMatch(condition);
+      }
       if (condition.getKind().belongsTo(SqlKind.COMPARISON)) {
-        return translateComparison(condition);
+        return constantScore(translateComparison(condition));
+      } else if (ArrayContainsFunction.isArrayContains(condition)) {
+        // A multi-valued field matches a term if any of its values does
+        return constantScore(translateEquals(translateBinary((RexCall) condition)));
+      } else if (TextMatchFunction.isTextMatch(condition)) {
+        return translateTextMatch((RexCall) condition);
+      } else if (SpatialFunction.isFilter(condition)) {
+        RexInputRef field = (RexInputRef) SolrRules.unwrapCast(((RexCall) condition).getOperands().get(0));
+        this.negativeQuery = false;
+        return constantScore(SpatialFunction.toQuery((RexCall) condition, fieldNames.get(field.getIndex())));
+      } else if (condition.isA(SqlKind.NOT)) {
+        // Negations of comparisons are simplified away, a NOT is left on functions like TEXT_MATCH
+        boolean negative = this.negativeQuery;
+        String clause = translateMatch(((RexCall) condition).getOperands().get(0));
+        this.negativeQuery = negative;
+        return clause == null ? null : "-(" + clause + ")";
       } else if (condition.isA(SqlKind.AND)) {
         return "(" + translateAnd(condition) + ")";
       } else if (condition.isA(SqlKind.OR)) {
@@ -96,6 +259,34 @@ class SolrFilter extends Filter implements SolrRel {
       return String.join(" OR ", ors);
     }
 
+    private String translateTextMatch(RexCall call) {
+      List<RexNode> operands = call.getOperands();
+      RexNode field = SolrRules.unwrapCast(operands.get(0));
+      if (!(field instanceof RexInputRef)) {
+        throw new AssertionError("cannot translate " + call);
+      }
+      String options = operands.size() > 2 ? translateString(operands.get(2)) : null;
+      this.negativeQuery = false;
+      return TextMatchFunction.toQuery(fieldNames.get(((RexInputRef) field).getIndex()),
+          translateString(operands.get(1)), options);
+    }
+
+    private String translateString(RexNode node) {
+      RexNode literal = SolrRules.unwrapCast(node);
+      if (!(literal instanceof RexLiteral) || !(((RexLiteral) literal).getValue() instanceof NlsString)) {
+        throw new AssertionError("cannot translate " + node);
+      }
+      return ((NlsString) ((RexLiteral) literal).getValue()).getValue();
+    }
+
+    /**
+     * Gives a clause a constant score of zero in a condition with a full-text match, so the score of a document is the
+     * score of the text. Negative clauses don't score.
+     */
+    private String constantScore(String clause) {
+      return hasTextMatch && !clause.startsWith("-") ? "(" + clause + ")^=0" : clause;
+    }
+
     private String translateAnd(RexNode node0) {
       List<String> andStrings = new ArrayList();
       List<String> notStrings = new ArrayList();
@@ -132,34 +323,58 @@ class SolrFilter extends Filter implements SolrRel {
         case NOT:
           return "-" + translateComparison(((RexCall) node).getOperands().get(0));
         case EQUALS:
-          String terms = binaryTranslated.getValue().toString().trim();
-          terms = terms.replace("'","");
-          if (!terms.startsWith("(") && !terms.startsWith("[") && !terms.startsWith("{")) {
-            terms = "\"" + terms + "\"";
-          }
-
-          String clause = binaryTranslated.getKey() + ":" + terms;
-          this.negativeQuery = false;
-          return clause;
+          return translateEquals(binaryTranslated);
         case NOT_EQUALS:
+          if(binaryTranslated.getValue().getValue() instanceof Calendar) {
+            return "-(" + binaryTranslated.getKey() + ":" + toRangeBound(binaryTranslated.getValue()) + ")";
+          }
           return "-(" + binaryTranslated.getKey() + ":" + binaryTranslated.getValue() + ")";
         case LESS_THAN:
           this.negativeQuery = false;
-          return "(" + binaryTranslated.getKey() + ": [ * TO " + binaryTranslated.getValue() + " })";
+          return "(" + binaryTranslated.getKey() + ": [ * TO " + toRangeBound(binaryTranslated.getValue()) + " })";
         case LESS_THAN_OR_EQUAL:
           this.negativeQuery = false;
-          return "(" + binaryTranslated.getKey() + ": [ * TO " + binaryTranslated.getValue() + " ])";
+          return "(" + binaryTranslated.getKey() + ": [ * TO " + toRangeBound(binaryTranslated.getValue()) + " ])";
         case GREATER_THAN:
           this.negativeQuery = false;
-          return "(" + binaryTranslated.getKey() + ": { " + binaryTranslated.getValue() + " TO * ])";
+          return "(" + binaryTranslated.getKey() + ": { " + toRangeBound(binaryTranslated.getValue()) + " TO * ])";
         case GREATER_THAN_OR_EQUAL:
           this.negativeQuery = false;
-          return "(" + binaryTranslated.getKey() + ": [ " + binaryTranslated.getValue() + " TO * ])";
+          return "(" + binaryTranslated.getKey() + ": [ " + toRangeBound(binaryTranslated.getValue()) + " TO * ])";
         default:
           throw new AssertionError("cannot translate " + node);
       }
     }
 
+    private String translateEquals(Pair<String, RexLiteral> binaryTranslated) {
+      String terms = binaryTranslated.getValue().toString().trim();
+      terms = terms.replace("'","");
+      if(binaryTranslated.getValue().getValue() instanceof Calendar) {
+        terms = toInstant(binaryTranslated.getValue()).toString();
+      }
+      if (!terms.startsWith("(") && !terms.startsWith("[") && !terms.startsWith("{")) {
+        terms = "\"" + terms + "\"";
+      }
+
+      String clause = binaryTranslated.getKey() + ":" + terms;
+      this.negativeQuery = false;
+      return clause;
+    }
+
+    /**
+     * Returns a literal as a bound of a range query. Strings are escaped rather than quoted the way SQL prints them,
+     * timestamps are formatted the way Solr parses dates.
+     */
+    private String toRangeBound(RexLiteral literal) {
+      Comparable value = literal.getValue();
+      if(value instanceof NlsString) {
+        return ClientUtils.escapeQueryChars(((NlsString) value).getValue());
+      } else if(value instanceof Calendar) {
+        return ClientUtils.escapeQueryChars(toInstant(literal).toString());
+      }
+      return literal.toString();
+    }
+
     /**
      * Translates a call to a binary operator, reversing arguments if necessary.
      */
@@ -0,0 +1,418 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.adapter.enumerable.EnumerableRelImplementor;
+import org.apache.calcite.adapter.enumerable.JavaRowFormat;
+import org.apache.calcite.adapter.enumerable.PhysType;
+import org.apache.calcite.adapter.enumerable.PhysTypeImpl;
+import org.apache.calcite.linq4j.tree.BlockBuilder;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.linq4j.tree.Primitive;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptCost;
+import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.plan.volcano.RelSubset;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelWriter;
+import org.apache.calcite.rel.core.CorrelationId;
+import org.apache.calcite.rel.core.Join;
+import org.apache.calcite.rel.core.JoinInfo;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.sql.SqlExplainLevel;
+import org.apache.calcite.util.Pair;
+import org.apache.calcite.util.Util;
+import org.apache.calcite.util.mapping.IntPair;
+import org.apache.solr.client.solrj.io.comp.ComparatorOrder;
+import org.apache.solr.client.solrj.io.comp.FieldComparator;
+import org.apache.solr.client.solrj.io.comp.MultipleFieldComparator;
+import org.apache.solr.client.solrj.io.comp.StreamComparator;
+import org.apache.solr.client.solrj.io.eq.FieldEqualitor;
+import org.apache.solr.client.solrj.io.eq.MultipleFieldEqualitor;
+import org.apache.solr.client.solrj.io.eq.StreamEqualitor;
+import org.apache.solr.client.solrj.io.stream.CloudSolrStream;
+import org.apache.solr.client.solrj.io.stream.InnerJoinStream;
+import org.apache.solr.client.solrj.io.stream.LeftOuterJoinStream;
+import org.apache.solr.client.solrj.io.stream.ParallelStream;
+import org.apache.solr.client.solrj.io.stream.SelectStream;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
+import org.apache.solr.client.solrj.io.stream.expr.StreamFactory;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Equi-join of two Solr inputs, implemented as a sort-merge join.
+ *
+ * <p>Both inputs are streamed sorted on the join keys, plain selects are exported sorted by Solr, and merged with an
+ * {@link InnerJoinStream} or {@link LeftOuterJoinStream}. Only the tuples sharing a key value are held in memory, so
+ * the join doesn't need to hash either input. If {@code numWorkers} is greater than one and both inputs are plain
+ * selects, the join runs on the workers of {@code joinWorkerCollection} with both inputs partitioned on the keys.</p>
+ *
+ * <p>If one input is estimated to be small and the other one is a plain select, the keys of the small input are read
+ * first and filter the query of the other input, see {@link RuntimeFilter}. The filtered input is shown as
+ * {@code runtimeFilter} in the plan.</p>
+ */
+class SolrJoin extends Join implements EnumerableRel {
+  static final String WORKER_COLLECTION_PROPERTY = "joinWorkerCollection";
+
+  private static final String LEFT_PREFIX = "left_";
+  private static final String RIGHT_PREFIX = "right_";
+  /** Prefix of the fields holding the {@link JoinKey}s, the renamed fields only have indexes after the prefixes. */
+  private static final String KEY_FIELD = "key";
+
+  SolrJoin(RelOptCluster cluster, RelTraitSet traitSet, RelNode left, RelNode right, RexNode condition,
+           JoinRelType joinType) {
+    super(cluster, traitSet, left, right, condition, ImmutableSet.<CorrelationId>of(), joinType);
+  }
+
+  @Override
+  public Join copy(RelTraitSet traitSet, RexNode condition, RelNode left, RelNode right, JoinRelType joinType,
+                   boolean semiJoinDone) {
+    // Rules like FilterJoinRule only push conditions into the inputs of an equi-join, same as for EnumerableJoin
+    assert JoinInfo.of(left, right, condition).isEqui();
+    return new SolrJoin(getCluster(), traitSet, left, right, condition, joinType);
+  }
+
+  @Override
+  public RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
+    // Both inputs are read once in key order and nothing is hashed
+    double leftRowCount = mq.getRowCount(left);
+    double rightRowCount = mq.getRowCount(right);
+    // A filtered input only exports about the documents that match
+    int target = getRuntimeFilterTarget(mq);
+    if(target == 0) {
+      leftRowCount = Math.min(leftRowCount, mq.getRowCount(this));
+    } else if(target == 1) {
+      rightRowCount = Math.min(rightRowCount, mq.getRowCount(this));
+    }
+    double rowCount = mq.getRowCount(this) + leftRowCount + rightRowCount;
+    return planner.getCostFactory().makeCost(rowCount, 0, 0);
+  }
+
+  @Override
+  public RelWriter explainTerms(RelWriter pw) {
+    // Not part of the digest, the estimates change while planning
+    if(pw.getDetailLevel() == SqlExplainLevel.DIGEST_ATTRIBUTES) {
+      return super.explainTerms(pw);
+    }
+    int target = getRuntimeFilterTarget(RelMetadataQuery.instance());
+    return super.explainTerms(pw).itemIf("runtimeFilter", target == 0 ? "left" : "right", target >= 0);
+  }
+
+  /**
+   * Returns the input filtered at runtime by the keys of the other input, 0 for the left and 1 for the right input,
+   * -1 if the join isn't filtered. The filtered input has to be a plain select and the other input has to be
+   * estimated smaller than it and than {@code runtimeFilterMaxRows}. Only the right input of a left join can be
+   * filtered, every left tuple is part of the result.
+   */
+  private int getRuntimeFilterTarget(RelMetadataQuery mq) {
+    int target = -1;
+    double sourceRowCount = Double.MAX_VALUE;
+    for(int i = joinType == JoinRelType.INNER ? 0 : 1; i < 2; i++) {
+      SolrTable table = getSelectTable(getInput(i));
+      Double rowCount = mq.getRowCount(getInput(1 - i));
+      Double targetRowCount = mq.getRowCount(getInput(i));
+      if(table != null && rowCount != null && targetRowCount != null && rowCount < targetRowCount
+          && rowCount < sourceRowCount && rowCount <= RuntimeFilter.getMaxRows(table.getProperties())) {
+        target = i;
+        sourceRowCount = rowCount;
+      }
+    }
+    return target;
+  }
+
+  /** Returns the table of a plain select, a SolrTableScan with filters and projections only, null otherwise. */
+  private static SolrTable getSelectTable(RelNode input) {
+    if(input instanceof RelSubset) {
+      RelSubset subset = (RelSubset) input;
+      return getSelectTable(Util.first(subset.getBest(), subset.getOriginal()));
+    }
+    if(input instanceof SolrTableScan) {
+      return input.getTable().unwrap(SolrTable.class);
+    }
+    if(input instanceof SolrFilter || input instanceof SolrProject) {
+      return getSelectTable(input.getInput(0));
+    }
+    return null;
+  }
+
+  public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+    final BlockBuilder list = new BlockBuilder();
+    final JoinInfo joinInfo = analyzeCondition();
+    final PhysType physType = PhysTypeImpl.of(implementor.getTypeFactory(), getRowType(),
+        pref.prefer(JavaRowFormat.ARRAY));
+
+    final SolrRel.Implementor leftImplementor = new SolrRel.Implementor();
+    leftImplementor.visitChild(0, getLeft());
+    final SolrRel.Implementor rightImplementor = new SolrRel.Implementor();
+    rightImplementor.visitChild(0, getRight());
+
+    final List<String> leftFields = SolrToEnumerableConverter.generateFields(
+        SolrRules.solrFieldNames(getLeft().getRowType()), leftImplementor.fieldMappings);
+    final List<String> rightFields = SolrToEnumerableConverter.generateFields(
+        SolrRules.solrFieldNames(getRight().getRowType()), rightImplementor.fieldMappings);
+    final List<Class> fieldClasses = new ArrayList<>();
+    for(int i = 0; i < getRowType().getFieldCount(); i++) {
+      fieldClasses.add(SolrToEnumerableConverter.fieldClass(implementor.getTypeFactory(), physType, i));
+    }
+
+    final List<String> leftKeys = new ArrayList<>();
+    final List<String> rightKeys = new ArrayList<>();
+    final List<Class> leftKeyClasses = new ArrayList<>();
+    final List<Class> rightKeyClasses = new ArrayList<>();
+    for(IntPair key : joinInfo.pairs()) {
+      leftKeys.add(leftFields.get(key.source));
+      rightKeys.add(rightFields.get(key.target));
+      leftKeyClasses.add(fieldClasses.get(key.source));
+      rightKeyClasses.add(fieldClasses.get(leftFields.size() + key.target));
+    }
+
+    // The runtime filter needs the source before the target is queried, workers can't share it
+    final int runtimeFilterTarget = getRuntimeFilterTarget(RelMetadataQuery.instance());
+    final boolean parallelizable = runtimeFilterTarget < 0 && isParallelizable(leftImplementor, leftFields,
+        leftKeys, leftKeyClasses, rightImplementor, rightFields, rightKeys, rightKeyClasses, joinType);
+
+    final Expression leftTable = list.append("leftTable",
+        leftImplementor.table.getExpression(SolrTable.SolrQueryable.class));
+    final Expression rightTable = list.append("rightTable",
+        rightImplementor.table.getExpression(SolrTable.SolrQueryable.class));
+    // Not optimized, a self join must not reuse the stream of its left input. The source of a runtime filter is
+    // built first so the target can refer to it.
+    final Expression leftInput;
+    final Expression rightInput;
+    if(runtimeFilterTarget == 0) {
+      rightInput = list.append("rightInput", joinInput(rightTable, rightImplementor, rightFields,
+          fieldClasses.subList(leftFields.size(), fieldClasses.size()), rightKeys, true, false, true, null), false);
+      leftInput = list.append("leftInput", joinInput(leftTable, leftImplementor, leftFields,
+          fieldClasses.subList(0, leftFields.size()), leftKeys, true, false, false, rightInput), false);
+    } else {
+      leftInput = list.append("leftInput", joinInput(leftTable, leftImplementor, leftFields,
+          fieldClasses.subList(0, leftFields.size()), leftKeys, joinType == JoinRelType.INNER, parallelizable,
+          runtimeFilterTarget == 1, null), false);
+      rightInput = list.append("rightInput", joinInput(rightTable, rightImplementor, rightFields,
+          fieldClasses.subList(leftFields.size(), fieldClasses.size()), rightKeys, true, parallelizable, false,
+          runtimeFilterTarget == 1 ? leftInput : null), false);
+    }
+
+    final Expression enumerable = list.append("enumerable", Expressions.call(leftTable,
+        SolrMethod.SOLR_QUERYABLE_JOIN.method,
+        leftInput,
+        SolrToEnumerableConverter.constantArrayList(leftFields, String.class),
+        SolrToEnumerableConverter.constantArrayList(leftKeys, String.class),
+        rightInput,
+        SolrToEnumerableConverter.constantArrayList(rightFields, String.class),
+        SolrToEnumerableConverter.constantArrayList(rightKeys, String.class),
+        Expressions.constant(joinType.name()),
+        Expressions.constant(parallelizable),
+        SolrToEnumerableConverter.constantArrayList(fieldClasses, Class.class)));
+    list.add(Expressions.return_(null, enumerable));
+    return implementor.result(physType, list.toBlock());
+  }
+
+  private static Expression joinInput(Expression table, SolrRel.Implementor implementor, List<String> fields,
+                                      List<Class> fieldClasses, List<String> keys, boolean skipNullKeys,
+                                      boolean partitioned, boolean filterSource, Expression filteredBy) {
+    // Pseudo fields can't be exported, they are read as nulls
+    List<Pair<String, Class>> queryFields = new ArrayList<>();
+    for(int i = 0; i < fields.size(); i++) {
+      if(!"_query_".equals(fields.get(i)) && !"score".equals(fields.get(i))) {
+        queryFields.add(new Pair<>(fields.get(i), fieldClasses.get(i)));
+      }
+    }
+
+    return Expressions.call(table, SolrMethod.SOLR_QUERYABLE_JOIN_INPUT.method,
+        SolrToEnumerableConverter.constantArrayList(queryFields, Pair.class),
+        Expressions.constant(implementor.query, String.class),
+        SolrToEnumerableConverter.constantArrayList(implementor.orders, Pair.class),
+        SolrToEnumerableConverter.constantArrayList(implementor.buckets, String.class),
+        SolrToEnumerableConverter.constantArrayList(implementor.metricPairs, Pair.class),
+        SolrToEnumerableConverter.constantGroupingSets(implementor),
+        Expressions.constant(implementor.limitValue, String.class),
+        Expressions.constant(Boolean.toString(implementor.negativeQuery), String.class),
+        Expressions.constant(implementor.havingPredicate, String.class),
+        SolrToEnumerableConverter.constantRouteValues(implementor),
+        SolrToEnumerableConverter.constantPartitions(implementor),
+        SolrToEnumerableConverter.constantArrayList(keys, String.class),
+        Expressions.constant(skipNullKeys),
+        Expressions.constant(partitioned),
+        Expressions.constant(filterSource),
+        filteredBy == null ? Expressions.constant(null, TupleStream.class) : filteredBy);
+  }
+
+  /**
+   * Workers can only run built in streams, so both inputs have to be plain selects whose fields can be renamed by a
+   * SelectStream. Keys keep their names for the join streams, which is only correct for left joins if the key names
+   * differ, since the right key of an unmatched tuple has to be null. The join streams of the workers compare the raw
+   * values, which only sort like Solr does for keys of the same non string class. Inputs restricted to the shards of
+   * their route values or reading a list of collections, like an alias or a partitioned table, are read through a
+   * {@link RoutedStream} or a {@link PartitionScanStream}, which can't be sent to the workers.
+   */
+  private static boolean isParallelizable(SolrRel.Implementor leftImplementor, List<String> leftFields,
+                                          List<String> leftKeys, List<Class> leftKeyClasses,
+                                          SolrRel.Implementor rightImplementor, List<String> rightFields,
+                                          List<String> rightKeys, List<Class> rightKeyClasses,
+                                          JoinRelType joinType) {
+    if(!isSelect(leftImplementor) || !isSelect(rightImplementor)
+        || !isExpressible(leftImplementor) || !isExpressible(rightImplementor)
+        || new HashSet<>(leftFields).size() != leftFields.size()
+        || new HashSet<>(rightFields).size() != rightFields.size()) {
+      return false;
+    }
+    for(int i = 0; i < leftKeys.size(); i++) {
+      if(joinType != JoinRelType.INNER && leftKeys.get(i).equals(rightKeys.get(i))) {
+        return false;
+      }
+      Class keyClass = Primitive.box(leftKeyClasses.get(i));
+      if(keyClass == String.class || keyClass != Primitive.box(rightKeyClasses.get(i))) {
+        return false;
+      }
+    }
+    return !leftFields.contains("_query_") && !leftFields.contains("score")
+        && !rightFields.contains("_query_") && !rightFields.contains("score");
+  }
+
+  private static boolean isExpressible(SolrRel.Implementor implementor) {
+    return implementor.routeValues == null
+        && (implementor.solrTable == null || !implementor.solrTable.getCollection().contains(","));
+  }
+
+  private static boolean isSelect(SolrRel.Implementor implementor) {
+    return implementor.buckets.isEmpty() && implementor.metricPairs.isEmpty() && implementor.orders.isEmpty()
+        && implementor.limitValue == null;
+  }
+
+  /**
+   * Joins the inputs, which are sorted ascending on their keys.
+   *
+   * @param fields Filled with the names of the output fields in the joined tuples and their classes
+   */
+  static TupleStream createStream(String zkHost, String workerCollection, int numWorkers,
+                                  TupleStream left, List<String> leftFields, List<String> leftKeys,
+                                  TupleStream right, List<String> rightFields, List<String> rightKeys,
+                                  JoinRelType joinType, List<Class> fieldClasses,
+                                  List<Map.Entry<String, Class>> fields) throws IOException {
+    if(numWorkers > 1) {
+      return createParallelStream(zkHost, workerCollection, numWorkers, left, leftFields, leftKeys, right,
+          rightFields, rightKeys, joinType, fieldClasses, fields);
+    }
+
+    List<Pair<String, String>> leftRenames = new ArrayList<>();
+    List<Pair<String, String>> rightRenames = new ArrayList<>();
+    for(int i = 0; i < leftFields.size(); i++) {
+      leftRenames.add(new Pair<>(leftFields.get(i), LEFT_PREFIX + i));
+      fields.add(new AbstractMap.SimpleEntry<>(LEFT_PREFIX + i, fieldClasses.get(i)));
+    }
+    for(int i = 0; i < rightFields.size(); i++) {
+      rightRenames.add(new Pair<>(rightFields.get(i), RIGHT_PREFIX + i));
+      fields.add(new AbstractMap.SimpleEntry<>(RIGHT_PREFIX + i, fieldClasses.get(leftFields.size() + i)));
+    }
+
+    List<String> renamedLeftKeys = new ArrayList<>();
+    List<String> renamedRightKeys = new ArrayList<>();
+    List<Class> leftKeyClasses = new ArrayList<>();
+    List<Class> rightKeyClasses = new ArrayList<>();
+    List<String> leftKeyFields = new ArrayList<>();
+    List<String> rightKeyFields = new ArrayList<>();
+    for(int i = 0; i < leftKeys.size(); i++) {
+      int leftIndex = leftFields.indexOf(leftKeys.get(i));
+      int rightIndex = rightFields.indexOf(rightKeys.get(i));
+      renamedLeftKeys.add(LEFT_PREFIX + leftIndex);
+      renamedRightKeys.add(RIGHT_PREFIX + rightIndex);
+      leftKeyClasses.add(fieldClasses.get(leftIndex));
+      rightKeyClasses.add(fieldClasses.get(leftFields.size() + rightIndex));
+      leftKeyFields.add(LEFT_PREFIX + KEY_FIELD + i);
+      rightKeyFields.add(RIGHT_PREFIX + KEY_FIELD + i);
+    }
+
+    // Null keys never match, inputs that aren't plain selects can still have them
+    return join(new JoinInputStream(left, leftRenames, renamedLeftKeys, leftKeyClasses, leftKeyFields,
+            keyComparator(leftKeyFields), joinType == JoinRelType.INNER ? renamedLeftKeys : Collections.emptyList()),
+        new JoinInputStream(right, rightRenames, renamedRightKeys, rightKeyClasses, rightKeyFields,
+            keyComparator(rightKeyFields), renamedRightKeys),
+        leftKeyFields, rightKeyFields, joinType);
+  }
+
+  private static TupleStream createParallelStream(String zkHost, String workerCollection, int numWorkers,
+                                                  TupleStream left, List<String> leftFields, List<String> leftKeys,
+                                                  TupleStream right, List<String> rightFields, List<String> rightKeys,
+                                                  JoinRelType joinType, List<Class> fieldClasses,
+                                                  List<Map.Entry<String, Class>> fields) throws IOException {
+    // Keys keep their names since SelectStream reports the sort of its input
+    Map<String, String> leftRenames = new HashMap<>();
+    Map<String, String> rightRenames = new HashMap<>();
+    for(int i = 0; i < leftFields.size(); i++) {
+      String name = leftKeys.contains(leftFields.get(i)) ? leftFields.get(i) : LEFT_PREFIX + i;
+      leftRenames.put(leftFields.get(i), name);
+      fields.add(new AbstractMap.SimpleEntry<>(name, fieldClasses.get(i)));
+    }
+    for(int i = 0; i < rightFields.size(); i++) {
+      String name = rightKeys.contains(rightFields.get(i)) ? rightFields.get(i) : RIGHT_PREFIX + i;
+      rightRenames.put(rightFields.get(i), name);
+      fields.add(new AbstractMap.SimpleEntry<>(name, fieldClasses.get(leftFields.size() + i)));
+    }
+
+    TupleStream join = join(new SelectStream(left, leftRenames), new SelectStream(right, rightRenames),
+        leftKeys, rightKeys, joinType);
+
+    StreamFactory factory = new StreamFactory()
+        .withFunctionName("search", CloudSolrStream.class)
+        .withFunctionName("select", SelectStream.class)
+        .withFunctionName("innerJoin", InnerJoinStream.class)
+        .withFunctionName("leftOuterJoin", LeftOuterJoinStream.class)
+        .withFunctionName("parallel", ParallelStream.class);
+
+    ParallelStream parallelStream = new ParallelStream(zkHost, workerCollection, join, numWorkers,
+        keyComparator(leftKeys));
+    parallelStream.setStreamFactory(factory);
+    return parallelStream;
+  }
+
+  private static TupleStream join(TupleStream left, TupleStream right, List<String> leftKeys, List<String> rightKeys,
+                                  JoinRelType joinType) throws IOException {
+    StreamEqualitor[] equalitors = new StreamEqualitor[leftKeys.size()];
+    for(int i = 0; i < leftKeys.size(); i++) {
+      equalitors[i] = new FieldEqualitor(leftKeys.get(i), rightKeys.get(i));
+    }
+    StreamEqualitor equalitor = equalitors.length == 1 ? equalitors[0] : new MultipleFieldEqualitor(equalitors);
+
+    if(joinType == JoinRelType.LEFT) {
+      return new LeftOuterJoinStream(left, right, equalitor);
+    }
+    return new InnerJoinStream(left, right, equalitor);
+  }
+
+  private static StreamComparator keyComparator(List<String> keys) {
+    FieldComparator[] comps = new FieldComparator[keys.size()];
+    for(int i = 0; i < keys.size(); i++) {
+      comps[i] = new FieldComparator(keys.get(i), ComparatorOrder.ASCENDING);
+    }
+    return comps.length == 1 ? comps[0] : new MultipleFieldComparator(comps);
+  }
+}
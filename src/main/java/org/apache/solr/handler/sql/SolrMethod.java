@@ -16,9 +16,12 @@
  */
 package org.apache.solr.handler.sql;
 
+import org.apache.calcite.linq4j.Enumerable;
 import org.apache.calcite.linq4j.tree.Types;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
 
 import java.lang.reflect.Method;
+import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -32,9 +35,100 @@ enum SolrMethod {
                        List.class,
                        List.class,
                        List.class,
+                       List.class,
+                       String.class,
                        String.class,
                        String.class,
-                       String.class);
+                       List.class,
+                       List.class),
+  SOLR_QUERYABLE_JOIN_INPUT(SolrTable.SolrQueryable.class,
+                            "joinInput",
+                            List.class,
+                            String.class,
+                            List.class,
+                            List.class,
+                            List.class,
+                            List.class,
+                            String.class,
+                            String.class,
+                            String.class,
+                            List.class,
+                            List.class,
+                            List.class,
+                            boolean.class,
+                            boolean.class,
+                            boolean.class,
+                            TupleStream.class),
+  SOLR_QUERYABLE_UNION_INPUT(SolrTable.SolrQueryable.class,
+                             "unionInput",
+                             List.class,
+                             String.class,
+                             List.class,
+                             List.class,
+                             List.class,
+                             List.class,
+                             String.class,
+                             String.class,
+                             String.class,
+                             List.class,
+                             List.class),
+  SOLR_QUERYABLE_TOP_PER_GROUP(SolrTable.SolrQueryable.class,
+                               "topPerGroup",
+                               List.class,
+                               String.class,
+                               List.class,
+                               List.class,
+                               List.class,
+                               List.class,
+                               String.class,
+                               String.class,
+                               String.class,
+                               List.class,
+                               List.class,
+                               List.class,
+                               int.class,
+                               int.class),
+  SOLR_QUERYABLE_WINDOW(SolrTable.SolrQueryable.class,
+                        "window",
+                        List.class,
+                        String.class,
+                        List.class,
+                        List.class,
+                        List.class,
+                        List.class,
+                        String.class,
+                        String.class,
+                        String.class,
+                        List.class,
+                        List.class,
+                        List.class,
+                        int.class,
+                        boolean.class,
+                        int.class,
+                        List.class),
+  SOLR_QUERYABLE_UNION(SolrTable.SolrQueryable.class,
+                       "union",
+                       List.class,
+                       List.class,
+                       List.class,
+                       List.class,
+                       String.class),
+  SOLR_QUERYABLE_JOIN(SolrTable.SolrQueryable.class,
+                      "join",
+                      TupleStream.class,
+                      List.class,
+                      List.class,
+                      TupleStream.class,
+                      List.class,
+                      List.class,
+                      String.class,
+                      boolean.class,
+                      List.class),
+  SOLR_QUERYABLE_SORT(SolrTable.SolrQueryable.class,
+                      "sort",
+                      Enumerable.class,
+                      Comparator.class,
+                      boolean.class);
 
   public final Method method;
 
@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counters describing the work done by the Solr adapter for a single connection. */
+class SolrMetrics {
+  static final String SORT_SPILL_BYTES = "sort.spillBytes";
+  static final String SORT_SPILL_RUNS = "sort.spillRuns";
+  static final String SORT_MERGE_PASSES = "sort.mergePasses";
+  static final String TABLE_CACHE_BYTES = "tableCache.bytes";
+  static final String TABLE_CACHE_HITS = "tableCache.hits";
+  static final String TABLE_CACHE_REFRESHES = "tableCache.refreshes";
+  static final String TABLE_CACHE_REFRESH_MILLIS = "tableCache.refreshMillis";
+  static final String TABLE_CACHE_EVICTIONS = "tableCache.evictions";
+
+  private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+  void increment(String name, long delta) {
+    counters.computeIfAbsent(name, k -> new AtomicLong()).addAndGet(delta);
+  }
+
+  /** Sets a gauge, like the current memory use of a cache. */
+  void set(String name, long value) {
+    counters.computeIfAbsent(name, k -> new AtomicLong()).set(value);
+  }
+
+  long get(String name) {
+    AtomicLong counter = counters.get(name);
+    return counter == null ? 0L : counter.get();
+  }
+
+  /** Returns a sorted copy of all counters, suitable for logging. */
+  Map<String, Long> snapshot() {
+    Map<String, Long> snapshot = new TreeMap<>();
+    for(Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+      snapshot.put(entry.getKey(), entry.getValue().get());
+    }
+    return snapshot;
+  }
+
+  public String toString() {
+    return "SolrMetrics " + snapshot();
+  }
+}
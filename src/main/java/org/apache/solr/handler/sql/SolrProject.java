@@ -17,6 +17,8 @@
 package org.apache.solr.handler.sql;
 
 import org.apache.calcite.adapter.java.JavaTypeFactory;
+import org.apache.calcite.avatica.util.Spaces;
+import org.apache.calcite.avatica.util.TimeUnitRange;
 import org.apache.calcite.plan.RelOptCluster;
 import org.apache.calcite.plan.RelOptCost;
 import org.apache.calcite.plan.RelOptPlanner;
@@ -25,9 +27,14 @@ import org.apache.calcite.rel.RelNode;
 import org.apache.calcite.rel.core.Project;
 import org.apache.calcite.rel.metadata.RelMetadataQuery;
 import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexLiteral;
 import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.apache.calcite.util.NlsString;
 import org.apache.calcite.util.Pair;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -38,7 +45,6 @@ class SolrProject extends Project implements SolrRel {
               RelNode input, List<? extends RexNode> projects, RelDataType rowType) {
     super(cluster, traitSet, input, projects, rowType);
     assert getConvention() == SolrRel.CONVENTION;
-    assert getConvention() == input.getConvention();
   }
 
   @Override
@@ -52,13 +58,68 @@ class SolrProject extends Project implements SolrRel {
   }
 
   public void implement(Implementor implementor) {
+    assert getConvention() == getInput().getConvention();
     implementor.visitChild(0, getInput());
+    final List<String> inNames = SolrRules.solrFieldNames(getInput().getRowType());
     final SolrRules.RexToSolrTranslator translator = new SolrRules.RexToSolrTranslator(
-        (JavaTypeFactory) getCluster().getTypeFactory(), SolrRules.solrFieldNames(getInput().getRowType()));
+        (JavaTypeFactory) getCluster().getTypeFactory(), inNames);
     for (Pair<RexNode, String> pair : getNamedProjects()) {
       final String name = pair.right;
-      final String expr = pair.left.accept(translator);
+      final String expr;
+      if (SolrRules.isDateBucket(pair.left)) {
+        expr = toDateBucket(implementor, (RexCall) pair.left, translator);
+      } else if (SolrRules.isNumericBucket(pair.left)) {
+        expr = toNumericBucket(implementor, (RexCall) pair.left, translator);
+      } else if (SolrRules.isCaseBucket(pair.left, inNames)) {
+        expr = toCaseBucket(implementor, (RexCall) pair.left, inNames);
+      } else {
+        expr = pair.left.accept(translator);
+      }
       implementor.addFieldMapping(name, expr);
     }
   }
+
+  private static String toNumericBucket(Implementor implementor, RexCall floor,
+                                        SolrRules.RexToSolrTranslator translator) {
+    String field = ((RexCall) SolrRules.unwrapCast(floor.getOperands().get(0))).getOperands().get(0).accept(translator);
+    field = implementor.fieldMappings.getOrDefault(field, field);
+    return NumericBucket.toBucket(field, SolrRules.getBucketWidth(floor));
+  }
+
+  /** The conditions are queries on the fields, the values are the literals of the branches. */
+  private static String toCaseBucket(Implementor implementor, RexCall caseCall, List<String> inNames) {
+    final List<String> fieldNames = new ArrayList<>();
+    for (String inName : inNames) {
+      fieldNames.add(implementor.fieldMappings.getOrDefault(inName, inName));
+    }
+    final List<String> conditions = new ArrayList<>();
+    final List<Object> values = new ArrayList<>();
+    final List<RexNode> operands = caseCall.getOperands();
+    for (int i = 0; i < operands.size(); i++) {
+      if (i % 2 == 1 || i == operands.size() - 1) {
+        values.add(toValue((RexLiteral) SolrRules.unwrapCast(operands.get(i)), caseCall.getType()));
+      } else {
+        conditions.add(SolrFilter.toQuery(operands.get(i), fieldNames));
+      }
+    }
+    return CaseBucket.toBucket(conditions, values);
+  }
+
+  /** Strings are padded to the length of a CHAR case, like Calcite pads its values. */
+  private static Object toValue(RexLiteral literal, RelDataType type) {
+    final Comparable value = literal.getValue();
+    if (!(value instanceof NlsString)) {
+      return value;
+    }
+    final String string = ((NlsString) value).getValue();
+    return type.getSqlTypeName() == SqlTypeName.CHAR ? Spaces.padRight(string, type.getPrecision()) : string;
+  }
+
+  /** The range facet of the floored field is bounded by the range of the field in the filters below. */
+  private static String toDateBucket(Implementor implementor, RexCall floor, SolrRules.RexToSolrTranslator translator) {
+    String field = floor.getOperands().get(0).accept(translator);
+    field = implementor.fieldMappings.getOrDefault(field, field);
+    TimeUnitRange unit = (TimeUnitRange) ((RexLiteral) floor.getOperands().get(1)).getValue();
+    return DateBucket.toBucket(field, unit, implementor.timeRanges.get(field));
+  }
 }
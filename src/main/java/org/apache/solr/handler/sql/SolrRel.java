@@ -44,6 +44,15 @@ interface SolrRel extends RelNode {
     final List<String> buckets = new ArrayList<>();
     final List<Pair<String, String>> metricPairs = new ArrayList<>();
 
+    /** Numbers of leading buckets that make up the grouping sets of the aggregate, null for a single grouping set. */
+    List<Integer> groupingSets = null;
+
+    /** Values of the router field of the table that matching documents have one of, null if not restricted. */
+    Set<String> routeValues = null;
+
+    /** Ranges of the date fields that matching documents are in, keyed by the field. */
+    final Map<String, TimeRange> timeRanges = new HashMap<>();
+
     RelOptTable table;
     SolrTable solrTable;
 
@@ -67,6 +76,35 @@ interface SolrRel extends RelNode {
       this.negativeQuery = negativeQuery;
     }
 
+    /** Adds a query that filters the query of the inputs, like the query of a filter above a semi-join. */
+    void andQuery(String query, boolean negative) {
+      if(this.query == null) {
+        addQuery(query);
+        setNegativeQuery(negative);
+        return;
+      }
+      // Purely negative queries are anchored the same way SolrTable does
+      String left = this.negativeQuery ? "*:* AND " + this.query : this.query;
+      String right = negative ? "*:* AND " + query : query;
+      addQuery("(" + left + ") AND (" + right + ")");
+      setNegativeQuery(false);
+    }
+
+    void addRouteValues(Set<String> values) {
+      if(values == null) {
+        return;
+      }
+      if(routeValues == null) {
+        routeValues = new LinkedHashSet<>(values);
+      } else {
+        routeValues.retainAll(values);
+      }
+    }
+
+    void addTimeRanges(Map<String, TimeRange> ranges) {
+      ranges.forEach((field, range) -> timeRanges.merge(field, range, TimeRange::intersect));
+    }
+
     void addOrder(String column, String direction) {
       column = this.fieldMappings.getOrDefault(column, column);
       this.orders.add(new Pair<>(column, direction));
@@ -87,6 +125,10 @@ interface SolrRel extends RelNode {
       }
     }
 
+    void setGroupingSets(List<Integer> groupingSets) {
+      this.groupingSets = groupingSets;
+    }
+
     void setHavingPredicate(String havingPredicate) {
       this.havingPredicate = havingPredicate;
     }
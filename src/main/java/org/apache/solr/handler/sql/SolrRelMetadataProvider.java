@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.calcite.plan.volcano.RelSubset;
+import org.apache.calcite.rel.convert.ConverterImpl;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.rel.metadata.BuiltInMetadata;
+import org.apache.calcite.rel.metadata.ChainedRelMetadataProvider;
+import org.apache.calcite.rel.metadata.MetadataDef;
+import org.apache.calcite.rel.metadata.MetadataHandler;
+import org.apache.calcite.rel.metadata.RelColumnOrigin;
+import org.apache.calcite.rel.metadata.ReflectiveRelMetadataProvider;
+import org.apache.calcite.rel.metadata.RelMdUtil;
+import org.apache.calcite.rel.metadata.RelMetadataProvider;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.util.BuiltInMethod;
+import org.apache.calcite.util.ImmutableBitSet;
+import org.apache.calcite.util.NumberUtil;
+import org.apache.calcite.util.Util;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Metadata provider that estimates selectivity and distinct counts of Solr table scans from the statistics saved by
+ * ANALYZE_TABLE, or from {@link SolrStatistics} for tables that weren't analyzed.
+ *
+ * <p>Row counts of scans come from {@link SolrTable#getStatistic()}, the row counts of filters follow from the
+ * selectivity of their condition on the scan. Anything that can't be estimated falls back to Calcite's defaults.
+ * {@link SolrPrepareImpl} installs the handlers in front of the metadata provider of every cluster it plans
+ * with.</p>
+ *
+ * <p>The handlers are public because Calcite compiles the metadata dispatch code with Janino outside of this
+ * package.</p>
+ */
+public class SolrRelMetadataProvider {
+  private static final RelMetadataProvider SOURCE = ChainedRelMetadataProvider.of(ImmutableList.of(
+      ReflectiveRelMetadataProvider.reflectiveSource(BuiltInMethod.SELECTIVITY.method, new Selectivity()),
+      ReflectiveRelMetadataProvider.reflectiveSource(BuiltInMethod.DISTINCT_ROW_COUNT.method, new DistinctRowCount()),
+      ReflectiveRelMetadataProvider.reflectiveSource(BuiltInMethod.COLUMN_ORIGIN.method, new ColumnOrigins())));
+
+  private SolrRelMetadataProvider() {
+  }
+
+  /** The Solr handlers, falling back to the given provider for everything else. */
+  static RelMetadataProvider of(RelMetadataProvider provider) {
+    return ChainedRelMetadataProvider.of(ImmutableList.of(SOURCE, provider));
+  }
+
+  /** Selectivity of a predicate on a Solr scan, the fraction of the documents matching it. */
+  public static class Selectivity implements MetadataHandler<BuiltInMetadata.Selectivity> {
+    public MetadataDef<BuiltInMetadata.Selectivity> getDef() {
+      return BuiltInMetadata.Selectivity.DEF;
+    }
+
+    public Double getSelectivity(TableScan rel, RelMetadataQuery mq, RexNode predicate) {
+      SolrTable solrTable = rel.getTable().unwrap(SolrTable.class);
+      if(solrTable != null && predicate != null) {
+        Double selectivity = solrTable.estimateSelectivity(predicate, SolrRules.solrFieldNames(rel.getRowType()));
+        if(selectivity != null) {
+          return selectivity;
+        }
+      }
+      return RelMdUtil.guessSelectivity(predicate);
+    }
+
+    /** Rules running in the Volcano planner see their inputs as subsets. */
+    public Double getSelectivity(RelSubset rel, RelMetadataQuery mq, RexNode predicate) {
+      return mq.getSelectivity(Util.first(rel.getBest(), rel.getOriginal()), predicate);
+    }
+
+    public Double getSelectivity(ConverterImpl rel, RelMetadataQuery mq, RexNode predicate) {
+      return mq.getSelectivity(rel.getInput(), predicate);
+    }
+  }
+
+  /** Distinct count of columns of a Solr scan, from the per field cardinality estimates. */
+  public static class DistinctRowCount implements MetadataHandler<BuiltInMetadata.DistinctRowCount> {
+    public MetadataDef<BuiltInMetadata.DistinctRowCount> getDef() {
+      return BuiltInMetadata.DistinctRowCount.DEF;
+    }
+
+    public Double getDistinctRowCount(TableScan rel, RelMetadataQuery mq, ImmutableBitSet groupKey,
+                                      RexNode predicate) {
+      if(groupKey.isEmpty()) {
+        return 1D;
+      }
+
+      Double rowCount = NumberUtil.multiply(mq.getRowCount(rel), mq.getSelectivity(rel, predicate));
+      SolrTable solrTable = rel.getTable().unwrap(SolrTable.class);
+      if(solrTable != null && rowCount != null) {
+        List<String> fieldNames = SolrRules.solrFieldNames(rel.getRowType());
+        Double distinctCount = 1D;
+        for(int field : groupKey) {
+          Double fieldDistinctCount = solrTable.estimateDistinctCount(fieldNames.get(field));
+          if(fieldDistinctCount == null) {
+            distinctCount = null;
+            break;
+          }
+          distinctCount *= Math.max(1D, fieldDistinctCount);
+        }
+
+        if(distinctCount != null) {
+          // Scale the number of distinct values down to the rows selected by the predicate
+          return RelMdUtil.numDistinctVals(Math.min(distinctCount, mq.getRowCount(rel)), rowCount);
+        }
+      }
+
+      // Same as the catch-all rule in Calcite, only unique keys can be estimated without statistics
+      Boolean unique = mq.areColumnsUnique(rel, groupKey);
+      if(unique != null && unique) {
+        return rowCount;
+      }
+      return null;
+    }
+
+    /** Converters don't change rows, so operators above the Solr convention see the Solr estimates as well. */
+    public Double getDistinctRowCount(ConverterImpl rel, RelMetadataQuery mq, ImmutableBitSet groupKey,
+                                      RexNode predicate) {
+      return mq.getDistinctRowCount(rel.getInput(), groupKey, predicate);
+    }
+  }
+
+  /**
+   * Column origins of the inputs of rules running in the Volcano planner, which are subsets. {@link SolrJoin} needs
+   * them to check that its keys are Solr fields.
+   */
+  public static class ColumnOrigins implements MetadataHandler<BuiltInMetadata.ColumnOrigin> {
+    public MetadataDef<BuiltInMetadata.ColumnOrigin> getDef() {
+      return BuiltInMetadata.ColumnOrigin.DEF;
+    }
+
+    public Set<RelColumnOrigin> getColumnOrigins(RelSubset rel, RelMetadataQuery mq, int iOutputColumn) {
+      return mq.getColumnOrigins(Util.first(rel.getBest(), rel.getOriginal()), iOutputColumn);
+    }
+  }
+}
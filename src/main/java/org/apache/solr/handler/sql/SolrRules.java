@@ -16,27 +16,69 @@
  */
 package org.apache.solr.handler.sql;
 
+import org.apache.calcite.adapter.enumerable.EnumerableConvention;
+import org.apache.calcite.avatica.util.TimeUnitRange;
 import org.apache.calcite.adapter.java.JavaTypeFactory;
 import org.apache.calcite.plan.*;
+import org.apache.calcite.linq4j.Ord;
+import org.apache.calcite.plan.volcano.RelSubset;
 import org.apache.calcite.rel.RelCollations;
+import org.apache.calcite.rel.RelFieldCollation;
 import org.apache.calcite.rel.RelNode;
 import org.apache.calcite.rel.convert.ConverterRule;
+import org.apache.calcite.rel.core.AggregateCall;
+import org.apache.calcite.rel.core.JoinInfo;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.rel.core.Filter;
+import org.apache.calcite.rel.core.Project;
+import org.apache.calcite.rel.core.SemiJoin;
+import org.apache.calcite.rel.core.Uncollect;
+import org.apache.calcite.rel.core.Window;
 import org.apache.calcite.rel.core.Sort;
+import org.apache.calcite.rel.core.TableScan;
 import org.apache.calcite.rel.logical.LogicalAggregate;
+import org.apache.calcite.rel.logical.LogicalCorrelate;
 import org.apache.calcite.rel.logical.LogicalFilter;
+import org.apache.calcite.rel.logical.LogicalJoin;
 import org.apache.calcite.rel.logical.LogicalProject;
 import org.apache.calcite.rel.logical.LogicalSort;
+import org.apache.calcite.rel.logical.LogicalUnion;
+import org.apache.calcite.rel.logical.LogicalWindow;
+import org.apache.calcite.rel.metadata.RelColumnOrigin;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
 import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeField;
+import org.apache.calcite.rex.RexBuilder;
 import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexCorrelVariable;
+import org.apache.calcite.rex.RexFieldAccess;
 import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexLiteral;
 import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.rex.RexPermuteInputsShuttle;
+import org.apache.calcite.rex.RexUtil;
 import org.apache.calcite.rex.RexVisitorImpl;
+import org.apache.calcite.sql.SemiJoinType;
 import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.SqlOperator;
+import org.apache.calcite.sql.fun.SqlStdOperatorTable;
+import org.apache.calcite.sql.type.SqlTypeName;
 import org.apache.calcite.sql.validate.SqlValidatorUtil;
+import org.apache.calcite.util.ImmutableBitSet;
+import org.apache.calcite.util.Util;
+import org.apache.calcite.util.mapping.Mappings;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import java.math.BigDecimal;
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.function.Predicate;
 
 /**
@@ -48,8 +90,22 @@ class SolrRules {
   static final RelOptRule[] RULES = {
       SolrSortRule.SORT_RULE,
       SolrFilterRule.FILTER_RULE,
+      SolrProjectScanRule.PROJECT_SCAN_RULE,
+      SolrProjectScanRule.PROJECT_FILTER_SCAN_RULE,
       SolrProjectRule.PROJECT_RULE,
       SolrAggregateRule.AGGREGATE_RULE,
+      SolrExpressionBucketRule.EXPRESSION_BUCKET_RULE,
+      SolrProjectFunctionRule.PROJECT_FUNCTION_RULE,
+      SolrUnnestFilterRule.UNNEST_FILTER_RULE,
+      SolrUnnestAggregateRule.UNNEST_AGGREGATE_RULE,
+      SolrJoinRule.JOIN_RULE,
+      SolrSemiJoinRule.SEMI_JOIN_RULE,
+      SolrAntiJoinRule.ANTI_JOIN_RULE,
+      SolrUnionRule.UNION_RULE,
+      SolrSortUnionRule.SORT_UNION_RULE,
+      SolrTopPerGroupRule.TOP_PER_GROUP_RULE,
+      SolrWindowRule.WINDOW_RULE,
+      SolrExternalSortRule.EXTERNAL_SORT_RULE,
   };
 
   static List<String> solrFieldNames(final RelDataType rowType) {
@@ -67,6 +123,162 @@ class SolrRules {
         }, true);
   }
 
+  /**
+   * Whether the columns of the input are fields of a Solr collection, which is what Solr needs to sort or join on.
+   */
+  private static boolean isSolrFields(RelNode input, List<Integer> keys) {
+    RelMetadataQuery mq = RelMetadataQuery.instance();
+    for(int key : keys) {
+      // Not getColumnOrigin, it drops derived origins
+      Set<RelColumnOrigin> origins = mq.getColumnOrigins(input, key);
+      if(origins == null || origins.size() != 1) {
+        return false;
+      }
+      RelColumnOrigin origin = origins.iterator().next();
+      if(origin.getOriginTable().unwrap(SolrTable.class) == null) {
+        return false;
+      }
+      RelDataTypeField field = origin.getOriginTable().getRowType().getFieldList()
+          .get(origin.getOriginColumnOrdinal());
+      if("_query_".equals(field.getName()) || "score".equals(field.getName())) {
+        return false;
+      }
+      // The validator casts keys to a common type, which Solr projects as the field itself
+      RelDataType keyType = input.getRowType().getFieldList().get(key).getType();
+      if(origin.isDerived() && keyType.getSqlTypeName().getFamily() != field.getType().getSqlTypeName().getFamily()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the table of a plain select, a table scan with filters and projections only, null for any other input.
+   */
+  private static SolrTable getSelectTable(RelNode input) {
+    if(input instanceof RelSubset) {
+      RelSubset subset = (RelSubset) input;
+      return getSelectTable(Util.first(subset.getBest(), subset.getOriginal()));
+    }
+    if(input instanceof TableScan) {
+      return input.getTable().unwrap(SolrTable.class);
+    }
+    if(input instanceof Filter || input instanceof Project) {
+      return getSelectTable(input.getInput(0));
+    }
+    return null;
+  }
+
+  static RexNode unwrapCast(RexNode node) {
+    while(node.getKind() == SqlKind.CAST) {
+      node = ((RexCall) node).getOperands().get(0);
+    }
+    return node;
+  }
+
+  /**
+   * Whether the expression is {@code FLOOR(field TO unit)} of a timestamp field, which Solr can bucket with a range
+   * facet.
+   */
+  static boolean isDateBucket(RexNode node) {
+    if(node.getKind() != SqlKind.FLOOR || ((RexCall) node).getOperands().size() != 2) {
+      return false;
+    }
+    final RexNode field = unwrapCast(((RexCall) node).getOperands().get(0));
+    final RexNode unit = ((RexCall) node).getOperands().get(1);
+    return field instanceof RexInputRef && field.getType().getSqlTypeName() == SqlTypeName.TIMESTAMP
+        && unit instanceof RexLiteral && ((RexLiteral) unit).getValue() instanceof TimeUnitRange
+        && DateBucket.isSupported((TimeUnitRange) ((RexLiteral) unit).getValue());
+  }
+
+  /**
+   * Whether the expression is {@code FLOOR(field / width)} of a numeric field and a positive integer, which Solr can
+   * bucket with a range facet. Only divisions that aren't integer divisions are floored, an integer division
+   * truncates.
+   */
+  static boolean isNumericBucket(RexNode node) {
+    if(node.getKind() != SqlKind.FLOOR || ((RexCall) node).getOperands().size() != 1) {
+      return false;
+    }
+    final RexNode division = unwrapCast(((RexCall) node).getOperands().get(0));
+    if(division.getKind() != SqlKind.DIVIDE || SqlTypeName.INT_TYPES.contains(division.getType().getSqlTypeName())) {
+      return false;
+    }
+    final RexNode field = unwrapCast(((RexCall) division).getOperands().get(0));
+    return field instanceof RexInputRef && SqlTypeName.NUMERIC_TYPES.contains(field.getType().getSqlTypeName())
+        && getBucketWidth((RexCall) node) > 0;
+  }
+
+  /** Returns the width of the buckets of {@code FLOOR(field / width)}, 0 if it isn't a positive integer literal. */
+  static long getBucketWidth(RexCall floor) {
+    final RexNode width = unwrapCast(((RexCall) unwrapCast(floor.getOperands().get(0))).getOperands().get(1));
+    if(!(width instanceof RexLiteral) || !(((RexLiteral) width).getValue() instanceof BigDecimal)) {
+      return 0;
+    }
+    try {
+      return Math.max(0, ((BigDecimal) ((RexLiteral) width).getValue()).longValueExact());
+    } catch (ArithmeticException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Whether the expression is a {@code CASE} whose conditions are filters on the fields Solr can run and whose values
+   * are literals, which Solr can bucket with a query facet per value.
+   */
+  static boolean isCaseBucket(RexNode node, List<String> fieldNames) {
+    if(node.getKind() != SqlKind.CASE) {
+      return false;
+    }
+    final List<RexNode> operands = ((RexCall) node).getOperands();
+    for(int i = 0; i < operands.size(); i++) {
+      if(i % 2 == 1 || i == operands.size() - 1) {
+        if(!(unwrapCast(operands.get(i)) instanceof RexLiteral)) {
+          return false;
+        }
+      } else if(SolrFilter.toQuery(operands.get(i), fieldNames) == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether Solr computes the same value for the expression as Calcite, as a function query. Solr's arithmetic
+   * functions compute in float, which is also how Calcite computes REAL arithmetic of fields, integers and reals. A
+   * function of a missing value is missing, like the null of the expression.
+   */
+  static boolean isFunctionQuery(RexNode node) {
+    if(!(node instanceof RexCall) || node.getType().getSqlTypeName() != SqlTypeName.REAL) {
+      return false;
+    }
+    final RexCall call = (RexCall) node;
+    if(call.getKind() != SqlKind.CAST && call.getOperator() != SqlStdOperatorTable.ABS
+        && !FUNCTIONS.containsKey(call.getKind())) {
+      return false;
+    }
+    for(RexNode operand : call.getOperands()) {
+      final SqlTypeName type = operand.getType().getSqlTypeName();
+      final boolean constant = operand instanceof RexLiteral && (FUNCTION_TYPES.contains(type) || type == SqlTypeName.DECIMAL);
+      final boolean field = operand instanceof RexInputRef && FUNCTION_TYPES.contains(type);
+      if(!constant && !field && !isFunctionQuery(operand)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Solr functions of arithmetic operators. */
+  private static final Map<SqlKind, String> FUNCTIONS = ImmutableMap.of(
+      SqlKind.PLUS, "sum",
+      SqlKind.MINUS, "sub",
+      SqlKind.TIMES, "product",
+      SqlKind.DIVIDE, "div");
+
+  /** Types whose values Solr converts to float like Java does. */
+  private static final Set<SqlTypeName> FUNCTION_TYPES = ImmutableSet.of(
+      SqlTypeName.TINYINT, SqlTypeName.SMALLINT, SqlTypeName.INTEGER, SqlTypeName.BIGINT, SqlTypeName.REAL);
+
   /** Translator from {@link RexNode} to strings in Solr's expression language. */
   static class RexToSolrTranslator extends RexVisitorImpl<String> {
     private final JavaTypeFactory typeFactory;
@@ -89,10 +301,23 @@ class SolrRules {
       if (call.getKind() == SqlKind.CAST) {
         return strings.get(0);
       }
+      if (SpatialFunction.isDistance(call)) {
+        return SpatialFunction.toDistance(call, strings.get(0));
+      }
+      if (isFunctionQuery(call)) {
+        final String function = call.getOperator() == SqlStdOperatorTable.ABS ? "abs" : FUNCTIONS.get(call.getKind());
+        return function + "(" + String.join(",", strings) + ")";
+      }
 
       return super.visitCall(call);
     }
 
+    @Override
+    public String visitLiteral(RexLiteral literal) {
+      // Constants of function queries
+      return literal.getValue() instanceof BigDecimal ? ((BigDecimal) literal.getValue()).toString() : null;
+    }
+
     private List<String> visitList(List<RexNode> list) {
       final List<String> strings = new ArrayList<>();
       for (RexNode node : list) {
@@ -168,6 +393,12 @@ class SolrRules {
 
     public RelNode convert(RelNode rel) {
       final LogicalProject project = (LogicalProject) rel;
+      final List<String> fieldNames = solrFieldNames(project.getInput().getRowType());
+      for(RexNode node : project.getProjects()) {
+        if(!isSolrExpression(node, fieldNames)) {
+          return null;
+        }
+      }
       final RelNode converted = convert(project.getInput(), out);
       final RelTraitSet traitSet = project.getTraitSet().replace(out);
       return new SolrProject(
@@ -179,6 +410,107 @@ class SolrRules {
     }
   }
 
+  /**
+   * Whether Solr can return the value of the expression: a field, a bucket, a distance or a function query. Other
+   * expressions, like the nulls of an anti-join or comparisons, are projected by Calcite.
+   */
+  private static boolean isSolrExpression(RexNode node, List<String> fieldNames) {
+    return unwrapCast(node) instanceof RexInputRef || isDateBucket(node) || isNumericBucket(node)
+        || isCaseBucket(node, fieldNames) || SpatialFunction.isDistance(node) || isFunctionQuery(node);
+  }
+
+  /**
+   * Rule to narrow a {@link SolrTableScan} to the fields that a {@link LogicalProject} on it, and the
+   * {@link LogicalFilter} between them, use. The fields of the scan are the fields Solr returns, a project Solr can't
+   * evaluate would read all of the fields of the collection otherwise.
+   */
+  private static class SolrProjectScanRule extends RelOptRule {
+    private static final SolrProjectScanRule PROJECT_SCAN_RULE = new SolrProjectScanRule(
+        operand(LogicalProject.class, operand(SolrTableScan.class, none())), "SolrProjectScanRule");
+    private static final SolrProjectScanRule PROJECT_FILTER_SCAN_RULE = new SolrProjectScanRule(
+        operand(LogicalProject.class, operand(LogicalFilter.class, operand(SolrTableScan.class, none()))),
+        "SolrProjectScanRule:filter");
+
+    private SolrProjectScanRule(RelOptRuleOperand operand, String description) {
+      super(operand, description);
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+      final LogicalProject project = call.rel(0);
+      final LogicalFilter filter = call.rels.length == 3 ? call.rel(1) : null;
+      final SolrTableScan scan = call.rel(call.rels.length - 1);
+      final ImmutableBitSet fields = RelOptUtil.InputFinder.bits(project.getProjects(),
+          filter == null ? null : filter.getCondition());
+      // A project of literals still reads the whole rows, Solr returns its default fields without any
+      if(fields.isEmpty() || fields.cardinality() == scan.getRowType().getFieldCount()) {
+        return;
+      }
+
+      final List<Integer> targets = fields.asList();
+      final RexPermuteInputsShuttle shuttle = RexPermuteInputsShuttle.of(
+          Mappings.target(targets::indexOf, scan.getRowType().getFieldCount(), targets.size()));
+      RelNode input = scan.project(fields);
+      if(filter != null) {
+        input = filter.copy(filter.getTraitSet(), input, filter.getCondition().accept(shuttle));
+      }
+      call.transformTo(project.copy(project.getTraitSet(), input, shuttle.apply(project.getProjects()),
+          project.getRowType()));
+    }
+  }
+
+  /**
+   * Rule to convert a {@link LogicalProject} with arithmetic below a {@link LogicalSort} with a limit to a
+   * {@link SolrProject} that Solr computes as function queries in the fields it returns. Only Solr's select handler,
+   * which answers queries with a limit, returns functions, the export handler only returns fields. A sort on the
+   * {@code ST_DISTANCE} from a point is a {@link GeoDistance} Solr sorts on, for the nearest documents.
+   */
+  private static class SolrProjectFunctionRule extends RelOptRule {
+    private static final SolrProjectFunctionRule PROJECT_FUNCTION_RULE = new SolrProjectFunctionRule();
+
+    private SolrProjectFunctionRule() {
+      super(operand(LogicalSort.class, operand(LogicalProject.class, any())), "SolrProjectFunctionRule");
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+      final LogicalSort sort = call.rel(0);
+      final LogicalProject project = call.rel(1);
+      if(sort.fetch == null || sort.offset != null) {
+        return;
+      }
+      final Set<Integer> functions = new HashSet<>();
+      final Set<String> distances = new HashSet<>();
+      for(Ord<RexNode> node : Ord.zip(project.getProjects())) {
+        if(isFunctionQuery(node.e)) {
+          functions.add(node.i);
+        } else if(SpatialFunction.isDistance(node.e)) {
+          distances.add(node.e.toString());
+        } else if(!(unwrapCast(node.e) instanceof RexInputRef)) {
+          return;
+        }
+      }
+      // Solr computes the distance from a single point per query
+      if((functions.isEmpty() && distances.isEmpty()) || distances.size() > 1) {
+        return;
+      }
+      // Solr sorts on functions, but the sort of the stream of the shards can't, except on a distance
+      for(RelFieldCollation collation : sort.getCollation().getFieldCollations()) {
+        if(functions.contains(collation.getFieldIndex())) {
+          return;
+        }
+      }
+
+      final RelNode solrProject = new SolrProject(
+          project.getCluster(),
+          project.getTraitSet().replace(SolrRel.CONVENTION),
+          convert(project.getInput(), SolrRel.CONVENTION),
+          project.getProjects(),
+          project.getRowType());
+      call.transformTo(sort.copy(sort.getTraitSet(), ImmutableList.of(solrProject)));
+    }
+  }
+
   /**
    * Rule to convert a {@link LogicalSort} to a {@link SolrSort}.
    */
@@ -220,6 +552,10 @@ class SolrRules {
     @Override
     public RelNode convert(RelNode rel) {
       final LogicalAggregate agg = (LogicalAggregate) rel;
+      // Grouping sets that aren't nested, like those of a CUBE, can't be read from a single facet
+      if(SolrAggregate.getGroupOrder(agg) == null) {
+        return null;
+      }
       final RelTraitSet traitSet = agg.getTraitSet().replace(out);
       return new SolrAggregate(
           rel.getCluster(),
@@ -231,4 +567,638 @@ class SolrRules {
           agg.getAggCallList());
     }
   }
+
+  /**
+   * Rule to convert a GROUP BY on expressions that facets can bucket to a {@link SolrAggregate} whose
+   * {@link SolrProject} buckets them: {@code FLOOR(field TO unit)} of timestamp fields and {@code FLOOR(field / width)}
+   * of numeric fields with range facets, a {@code CASE} of filters with query facets. The expressions can only be
+   * group keys.
+   */
+  private static class SolrExpressionBucketRule extends RelOptRule {
+    private static final SolrExpressionBucketRule EXPRESSION_BUCKET_RULE = new SolrExpressionBucketRule();
+
+    private SolrExpressionBucketRule() {
+      super(operand(LogicalAggregate.class, operand(LogicalProject.class, any())), "SolrExpressionBucketRule");
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+      final LogicalAggregate agg = call.rel(0);
+      final LogicalProject project = call.rel(1);
+      if(SolrAggregate.getGroupOrder(agg) == null) {
+        return;
+      }
+
+      final List<String> fieldNames = solrFieldNames(project.getInput().getRowType());
+      boolean expressionBuckets = false;
+      for(Ord<RexNode> node : Ord.zip(project.getProjects())) {
+        if(isDateBucket(node.e) || isNumericBucket(node.e) || isCaseBucket(node.e, fieldNames)) {
+          if(!agg.getGroupSet().get(node.i)) {
+            return;
+          }
+          for(AggregateCall aggCall : agg.getAggCallList()) {
+            if(aggCall.getArgList().contains(node.i)) {
+              return;
+            }
+          }
+          expressionBuckets = true;
+        } else if(!(unwrapCast(node.e) instanceof RexInputRef)) {
+          return;
+        }
+      }
+      if(!expressionBuckets) {
+        return;
+      }
+
+      final RelNode solrProject = new SolrProject(
+          project.getCluster(),
+          project.getTraitSet().replace(SolrRel.CONVENTION),
+          convert(project.getInput(), SolrRel.CONVENTION),
+          project.getProjects(),
+          project.getRowType());
+      call.transformTo(new SolrAggregate(
+          agg.getCluster(),
+          agg.getTraitSet().replace(SolrRel.CONVENTION),
+          solrProject,
+          agg.indicator,
+          agg.getGroupSet(),
+          agg.getGroupSets(),
+          agg.getAggCallList()));
+    }
+  }
+
+  /**
+   * Returns the index of the field of the left input of a correlate that an {@link Uncollect} on its right unnests,
+   * like {@code FROM t, UNNEST(t.field)}, -1 for any other correlate.
+   */
+  private static int getUnnestedField(LogicalCorrelate correlate, Uncollect uncollect, LogicalProject project) {
+    if(correlate.getJoinType() != SemiJoinType.INNER || uncollect.getRowType().getFieldCount() != 1
+        || project.getProjects().size() != 1 || !(project.getProjects().get(0) instanceof RexFieldAccess)) {
+      return -1;
+    }
+    final RexFieldAccess fieldAccess = (RexFieldAccess) project.getProjects().get(0);
+    if(!(fieldAccess.getReferenceExpr() instanceof RexCorrelVariable)
+        || !((RexCorrelVariable) fieldAccess.getReferenceExpr()).id.equals(correlate.getCorrelationId())) {
+      return -1;
+    }
+    return fieldAccess.getField().getIndex();
+  }
+
+  /**
+   * Rule to push equality filters on the values of an UNNEST of a multi-valued field into the unnested input, as
+   * {@code ARRAY_CONTAINS} filters that Solr evaluates as term queries. Only the documents with a matching value are
+   * read, the filter on the values still drops the values that don't match.
+   */
+  private static class SolrUnnestFilterRule extends RelOptRule {
+    private static final SolrUnnestFilterRule UNNEST_FILTER_RULE = new SolrUnnestFilterRule();
+
+    private SolrUnnestFilterRule() {
+      super(operand(LogicalCorrelate.class, operand(RelNode.class, any()),
+          operand(LogicalFilter.class, operand(Uncollect.class, operand(LogicalProject.class, any())))),
+          "SolrUnnestFilterRule");
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+      final LogicalCorrelate correlate = call.rel(0);
+      final RelNode left = call.rel(1);
+      final LogicalFilter filter = call.rel(2);
+      final int field = getUnnestedField(correlate, call.rel(3), call.rel(4));
+      if(field < 0) {
+        return;
+      }
+
+      final RexBuilder rexBuilder = correlate.getCluster().getRexBuilder();
+      final SqlOperator arrayContains = ArrayContainsFunction.operator(rexBuilder.getTypeFactory());
+      final List<RexNode> conditions = new ArrayList<>();
+      for(RexNode conjunction : RelOptUtil.conjunctions(filter.getCondition())) {
+        final List<RexNode> contains = new ArrayList<>();
+        for(RexNode disjunction : RelOptUtil.disjunctions(conjunction)) {
+          final RexLiteral value = getEqualsValue(disjunction);
+          if(value == null) {
+            contains.clear();
+            break;
+          }
+          contains.add(rexBuilder.makeCall(arrayContains, rexBuilder.makeInputRef(left, field), value));
+        }
+        if(!contains.isEmpty()) {
+          conditions.add(RexUtil.composeDisjunction(rexBuilder, contains, false));
+        }
+      }
+      // The filtered input is matched again, only the conditions its predicates don't have yet are added. Predicates
+      // are pulled up one conjunction at a time.
+      final RelOptPredicateList predicates = RelMetadataQuery.instance().getPulledUpPredicates(left);
+      conditions.removeIf(condition -> predicates.pulledUpPredicates.stream()
+          .anyMatch(predicate -> RexUtil.eq(predicate, condition)));
+      final RexNode condition = RexUtil.composeConjunction(rexBuilder, conditions, true);
+      if(condition == null) {
+        return;
+      }
+      call.transformTo(correlate.copy(correlate.getTraitSet(),
+          ImmutableList.of(LogicalFilter.create(left, condition), correlate.getRight())));
+    }
+
+    /** Returns the literal the value of the UNNEST is compared to, null if the expression isn't such a comparison. */
+    private static RexLiteral getEqualsValue(RexNode node) {
+      if(node.getKind() != SqlKind.EQUALS) {
+        return null;
+      }
+      final RexNode left = unwrapCast(((RexCall) node).getOperands().get(0));
+      final RexNode right = unwrapCast(((RexCall) node).getOperands().get(1));
+      if(left instanceof RexInputRef && right instanceof RexLiteral) {
+        return (RexLiteral) right;
+      } else if(right instanceof RexInputRef && left instanceof RexLiteral) {
+        return (RexLiteral) left;
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Rule to convert a GROUP BY on the values of an UNNEST of a multi-valued field to a {@link SolrAggregate} of a
+   * {@link SolrUnnest}, a terms facet on the field. The aggregations can only be on the fields of the unnested input.
+   */
+  private static class SolrUnnestAggregateRule extends RelOptRule {
+    private static final SolrUnnestAggregateRule UNNEST_AGGREGATE_RULE = new SolrUnnestAggregateRule();
+
+    private SolrUnnestAggregateRule() {
+      super(operand(LogicalAggregate.class, operand(LogicalCorrelate.class, operand(RelNode.class, any()),
+          operand(Uncollect.class, operand(LogicalProject.class, any())))), "SolrUnnestAggregateRule");
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+      final LogicalAggregate agg = call.rel(0);
+      final LogicalCorrelate correlate = call.rel(1);
+      final RelNode left = call.rel(2);
+      final int field = getUnnestedField(correlate, call.rel(3), call.rel(4));
+      final int value = left.getRowType().getFieldCount();
+      if(field < 0 || agg.indicator || agg.getGroupSets().size() != 1 || !agg.getGroupSet().get(value)) {
+        return;
+      }
+      for(AggregateCall aggCall : agg.getAggCallList()) {
+        if(aggCall.getArgList().contains(value)) {
+          return;
+        }
+      }
+
+      final RelNode unnest = new SolrUnnest(
+          correlate.getCluster(),
+          correlate.getTraitSet().replace(SolrRel.CONVENTION),
+          convert(left, SolrRel.CONVENTION),
+          field,
+          correlate.getRowType());
+      call.transformTo(new SolrAggregate(
+          agg.getCluster(),
+          agg.getTraitSet().replace(SolrRel.CONVENTION),
+          unnest,
+          agg.indicator,
+          agg.getGroupSet(),
+          agg.getGroupSets(),
+          agg.getAggCallList()));
+    }
+  }
+
+  /**
+   * Rule to convert an equi {@link LogicalJoin} of two Solr inputs to a {@link SolrJoin}. Every key has to be a
+   * field of a Solr collection, the export handler sorts the inputs on them.
+   */
+  private static class SolrJoinRule extends ConverterRule {
+    private static final RelOptRule JOIN_RULE = new SolrJoinRule();
+
+    private SolrJoinRule() {
+      super(LogicalJoin.class, Convention.NONE, EnumerableConvention.INSTANCE, "SolrJoinRule");
+    }
+
+    @Override
+    public RelNode convert(RelNode rel) {
+      final LogicalJoin join = (LogicalJoin) rel;
+      if(join.getJoinType() != JoinRelType.INNER && join.getJoinType() != JoinRelType.LEFT) {
+        return null;
+      }
+
+      final JoinInfo joinInfo = join.analyzeCondition();
+      if(!joinInfo.isEqui() || joinInfo.pairs().isEmpty()
+          || !isSolrFields(join.getLeft(), joinInfo.leftKeys) || !isSolrFields(join.getRight(), joinInfo.rightKeys)) {
+        return null;
+      }
+
+      return new SolrJoin(
+          rel.getCluster(),
+          join.getTraitSet().replace(EnumerableConvention.INSTANCE),
+          convert(join.getLeft(), join.getLeft().getTraitSet().replace(SolrRel.CONVENTION).simplify()),
+          convert(join.getRight(), join.getRight().getTraitSet().replace(SolrRel.CONVENTION).simplify()),
+          join.getCondition(),
+          join.getJoinType());
+    }
+  }
+
+
+  /**
+   * Rule to convert a {@link SemiJoin} of two co-located Solr collections to a {@link SolrSemiJoin}, which filters the
+   * left input with a {@code {!join}} query. Calcite plans IN (subquery) and EXISTS as semi-joins.
+   */
+  private static class SolrSemiJoinRule extends SolrConverterRule {
+    private static final SolrSemiJoinRule SEMI_JOIN_RULE = new SolrSemiJoinRule();
+
+    private SolrSemiJoinRule() {
+      super(SemiJoin.class, "SolrSemiJoinRule");
+    }
+
+    public RelNode convert(RelNode rel) {
+      final SemiJoin semiJoin = (SemiJoin) rel;
+      if(!isJoinable(semiJoin.getLeft(), semiJoin.getLeftKeys(), semiJoin.getRight(), semiJoin.getRightKeys())) {
+        return null;
+      }
+      return new SolrSemiJoin(
+          rel.getCluster(),
+          semiJoin.getTraitSet().replace(out),
+          convert(semiJoin.getLeft(), out),
+          convert(semiJoin.getRight(), out),
+          semiJoin.getCondition(),
+          semiJoin.getLeftKeys(),
+          semiJoin.getRightKeys(),
+          false);
+    }
+  }
+
+  /**
+   * Rule to convert a left join of two co-located Solr collections that only keeps the unmatched left rows, like
+   * {@code a LEFT JOIN b ON a.x = b.y WHERE b.y IS NULL}, to an anti {@link SolrSemiJoin}.
+   */
+  private static class SolrAntiJoinRule extends RelOptRule {
+    private static final SolrAntiJoinRule ANTI_JOIN_RULE = new SolrAntiJoinRule();
+
+    private SolrAntiJoinRule() {
+      super(operand(LogicalFilter.class, operand(LogicalJoin.class, any())), "SolrAntiJoinRule");
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+      final LogicalFilter filter = call.rel(0);
+      final LogicalJoin join = call.rel(1);
+      if(join.getJoinType() != JoinRelType.LEFT || filter.getCondition().getKind() != SqlKind.IS_NULL) {
+        return;
+      }
+
+      final JoinInfo joinInfo = join.analyzeCondition();
+      final int leftCount = join.getLeft().getRowType().getFieldCount();
+      final RexNode operand = ((RexCall) filter.getCondition()).getOperands().get(0);
+      if(!joinInfo.isEqui() || !(operand instanceof RexInputRef)
+          || !isJoinable(join.getLeft(), joinInfo.leftKeys, join.getRight(), joinInfo.rightKeys)) {
+        return;
+      }
+      // The column is only null for unmatched rows if it can't be null in a match
+      final int index = ((RexInputRef) operand).getIndex() - leftCount;
+      if(index < 0 || !isKey(join.getRight(), joinInfo.rightKeys, index)
+          && join.getRight().getRowType().getFieldList().get(index).getType().isNullable()) {
+        return;
+      }
+
+      final RelNode antiJoin = new SolrSemiJoin(
+          join.getCluster(),
+          join.getTraitSet().replace(SolrRel.CONVENTION),
+          convert(join.getLeft(), SolrRel.CONVENTION),
+          convert(join.getRight(), SolrRel.CONVENTION),
+          join.getCondition(),
+          joinInfo.leftKeys,
+          joinInfo.rightKeys,
+          true);
+
+      // The right columns of the unmatched rows are all null
+      final RexBuilder rexBuilder = join.getCluster().getRexBuilder();
+      final List<RexNode> projects = new ArrayList<>();
+      for(RelDataTypeField field : join.getRowType().getFieldList()) {
+        projects.add(field.getIndex() < leftCount ? rexBuilder.makeInputRef(antiJoin, field.getIndex())
+            : rexBuilder.makeCast(field.getType(), rexBuilder.constantNull()));
+      }
+      call.transformTo(LogicalProject.create(antiJoin, projects, join.getRowType()));
+    }
+  }
+
+  /**
+   * Whether the column is one of the keys or the field a key is cast from, the validator casts keys to a common type.
+   */
+  private static boolean isKey(RelNode input, List<Integer> keys, int column) {
+    if(keys.contains(column)) {
+      return true;
+    }
+    RelMetadataQuery mq = RelMetadataQuery.instance();
+    RelColumnOrigin origin = mq.getColumnOrigin(input, column);
+    if(origin == null) {
+      return false;
+    }
+    for(int key : keys) {
+      Set<RelColumnOrigin> keyOrigins = mq.getColumnOrigins(input, key);
+      if(keyOrigins != null && keyOrigins.size() == 1) {
+        RelColumnOrigin keyOrigin = keyOrigins.iterator().next();
+        if(keyOrigin.getOriginTable().getQualifiedName().equals(origin.getOriginTable().getQualifiedName())
+            && keyOrigin.getOriginColumnOrdinal() == origin.getOriginColumnOrdinal()) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Rule to convert a UNION ALL of Solr inputs to a {@link SolrUnion}, which queries the inputs concurrently.
+   */
+  private static class SolrUnionRule extends ConverterRule {
+    private static final RelOptRule UNION_RULE = new SolrUnionRule();
+
+    private SolrUnionRule() {
+      super(LogicalUnion.class, Convention.NONE, EnumerableConvention.INSTANCE, "SolrUnionRule");
+    }
+
+    @Override
+    public RelNode convert(RelNode rel) {
+      final LogicalUnion union = (LogicalUnion) rel;
+      if(!union.all) {
+        return null;
+      }
+
+      final List<RelNode> inputs = new ArrayList<>();
+      for(RelNode input : union.getInputs()) {
+        inputs.add(convert(input, input.getTraitSet().replace(SolrRel.CONVENTION).simplify()));
+      }
+      return new SolrUnion(rel.getCluster(), union.getTraitSet().replace(EnumerableConvention.INSTANCE), inputs, null);
+    }
+  }
+
+  /**
+   * Rule to push an ORDER BY or LIMIT into the inputs of a UNION ALL of Solr inputs. Every input is sorted and
+   * limited by Solr, and the {@link SolrUnion} merges the sorted inputs and applies the limit again.
+   */
+  private static class SolrSortUnionRule extends RelOptRule {
+    private static final SolrSortUnionRule SORT_UNION_RULE = new SolrSortUnionRule();
+
+    private SolrSortUnionRule() {
+      super(operand(LogicalSort.class, operand(LogicalUnion.class, any())), "SolrSortUnionRule");
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+      final LogicalSort sort = call.rel(0);
+      final LogicalUnion union = call.rel(1);
+      // SolrSort doesn't skip rows, so the offset can't be pushed into the inputs
+      if(!union.all || sort.offset != null) {
+        return;
+      }
+
+      final List<RelNode> inputs = new ArrayList<>();
+      for(RelNode input : union.getInputs()) {
+        final RelNode inputSort = LogicalSort.create(input, sort.getCollation(), null, sort.fetch);
+        inputs.add(convert(inputSort, inputSort.getTraitSet().replace(SolrRel.CONVENTION)));
+      }
+      call.transformTo(new SolrUnion(union.getCluster(),
+          sort.getTraitSet().replace(EnumerableConvention.INSTANCE), inputs, sort.fetch));
+    }
+  }
+
+  /**
+   * Rule to convert a filter that keeps the top rows of each partition of a Solr input, a bound on the
+   * {@code ROW_NUMBER()} of a window like {@code rn <= 3}, to a {@link SolrTopPerGroup}. The other conditions of the
+   * filter are applied to its rows.
+   */
+  private static class SolrTopPerGroupRule extends RelOptRule {
+    private static final SolrTopPerGroupRule TOP_PER_GROUP_RULE = new SolrTopPerGroupRule();
+
+    private SolrTopPerGroupRule() {
+      super(operand(LogicalFilter.class, operand(LogicalWindow.class, any())), "SolrTopPerGroupRule");
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+      final LogicalFilter filter = call.rel(0);
+      final LogicalWindow window = call.rel(1);
+      final RelNode input = window.getInput();
+      final int rowNumber = input.getRowType().getFieldCount();
+      if(window.groups.size() != 1 || window.groups.get(0).aggCalls.size() != 1) {
+        return;
+      }
+      final Window.Group group = window.groups.get(0);
+      if(group.aggCalls.get(0).getKind() != SqlKind.ROW_NUMBER
+          || (!group.keys.isEmpty() && group.keys.nth(group.keys.cardinality() - 1) >= rowNumber)) {
+        return;
+      }
+      // Order keys can be constants of the window, which aren't fields of the input
+      for(RelFieldCollation fieldCollation : group.orderKeys.getFieldCollations()) {
+        if(fieldCollation.getFieldIndex() >= rowNumber) {
+          return;
+        }
+      }
+
+      int maxRowNumber = -1;
+      final List<RexNode> conditions = new ArrayList<>();
+      for(RexNode condition : RelOptUtil.conjunctions(filter.getCondition())) {
+        int bound = maxRowNumber < 0 ? getMaxRowNumber(condition, rowNumber) : -1;
+        if(bound < 0) {
+          conditions.add(condition);
+        } else {
+          maxRowNumber = bound;
+        }
+      }
+      if(maxRowNumber < 0) {
+        return;
+      }
+
+      final RelNode topPerGroup = new SolrTopPerGroup(
+          window.getCluster(),
+          window.getTraitSet().replace(EnumerableConvention.INSTANCE),
+          convert(input, input.getTraitSet().replace(SolrRel.CONVENTION).simplify()),
+          group.keys,
+          group.orderKeys,
+          maxRowNumber,
+          window.getRowType());
+      call.transformTo(conditions.isEmpty() ? topPerGroup : LogicalFilter.create(topPerGroup,
+          RexUtil.composeConjunction(filter.getCluster().getRexBuilder(), conditions, false)));
+    }
+
+    /**
+     * Returns the largest row number the condition keeps, -1 if the condition isn't an upper bound of the row number
+     * like {@code rn <= 3}, {@code rn < 4} or {@code rn = 1}.
+     */
+    private static int getMaxRowNumber(RexNode condition, int rowNumber) {
+      if(!(condition instanceof RexCall) || ((RexCall) condition).getOperands().size() != 2) {
+        return -1;
+      }
+      SqlKind kind = condition.getKind();
+      RexNode left = ((RexCall) condition).getOperands().get(0);
+      RexNode right = ((RexCall) condition).getOperands().get(1);
+      if(left instanceof RexLiteral) {
+        RexNode literal = left;
+        left = right;
+        right = literal;
+        kind = kind.reverse();
+      }
+      if(!(left instanceof RexInputRef) || ((RexInputRef) left).getIndex() != rowNumber
+          || !(right instanceof RexLiteral) || !SqlTypeName.INT_TYPES.contains(right.getType().getSqlTypeName())) {
+        return -1;
+      }
+
+      long value = ((BigDecimal) ((RexLiteral) right).getValue()).longValue();
+      switch (kind) {
+        case LESS_THAN_OR_EQUAL:
+          break;
+        case LESS_THAN:
+          value -= 1;
+          break;
+        case EQUALS:
+          if(value != 1) {
+            return -1;
+          }
+          break;
+        default:
+          return -1;
+      }
+      return (int) Math.max(0, Math.min(value, Integer.MAX_VALUE));
+    }
+  }
+
+  /**
+   * Rule to convert an ORDER BY that isn't pushed down to Solr, over an input that reads a Solr collection, to a
+   * {@link SolrExternalSort}. A sort with a LIMIT or OFFSET is left to Calcite, which keeps only the top rows.
+   */
+  private static class SolrExternalSortRule extends ConverterRule {
+    private static final RelOptRule EXTERNAL_SORT_RULE = new SolrExternalSortRule();
+
+    private SolrExternalSortRule() {
+      super(LogicalSort.class, Convention.NONE, EnumerableConvention.INSTANCE, "SolrExternalSortRule");
+    }
+
+    @Override
+    public RelNode convert(RelNode rel) {
+      final LogicalSort sort = (LogicalSort) rel;
+      if(sort.offset != null || sort.fetch != null || sort.getCollation().getFieldCollations().isEmpty()) {
+        return null;
+      }
+      final RelOptTable table = getSolrTable(sort.getInput());
+      if(table == null) {
+        return null;
+      }
+      final RelNode input = sort.getInput();
+      return new SolrExternalSort(rel.getCluster(), sort.getTraitSet().replace(EnumerableConvention.INSTANCE),
+          convert(input, input.getTraitSet().replace(EnumerableConvention.INSTANCE)), sort.getCollation(), table);
+    }
+
+    /** Returns a Solr table read by the input, null if it doesn't read any. */
+    private static RelOptTable getSolrTable(RelNode input) {
+      if(input instanceof RelSubset) {
+        final RelSubset subset = (RelSubset) input;
+        return getSolrTable(Util.first(subset.getBest(), subset.getOriginal()));
+      }
+      if(input instanceof TableScan && input.getTable().unwrap(SolrTable.class) != null) {
+        return input.getTable();
+      }
+      for(RelNode child : input.getInputs()) {
+        final RelOptTable table = getSolrTable(child);
+        if(table != null) {
+          return table;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Rule to convert window functions over a Solr input to a {@link SolrWindow}, when the window has a single group of
+   * partition and order keys that are fields of the input, whose frame is the rows up to the current row, a number of
+   * rows before it or the range up to its last peer, and whose functions are numberings, {@code LAG} and {@code LEAD}
+   * with constant offsets and defaults, or {@code COUNT}, {@code SUM}, {@code MIN} and {@code MAX} of a field.
+   */
+  private static class SolrWindowRule extends ConverterRule {
+    private static final RelOptRule WINDOW_RULE = new SolrWindowRule();
+
+    private SolrWindowRule() {
+      super(LogicalWindow.class, Convention.NONE, EnumerableConvention.INSTANCE, "SolrWindowRule");
+    }
+
+    @Override
+    public RelNode convert(RelNode rel) {
+      final LogicalWindow window = (LogicalWindow) rel;
+      final RelNode input = window.getInput();
+      final int fieldCount = input.getRowType().getFieldCount();
+      if(window.groups.size() != 1) {
+        return null;
+      }
+      final Window.Group group = window.groups.get(0);
+      if(!group.keys.isEmpty() && group.keys.nth(group.keys.cardinality() - 1) >= fieldCount) {
+        return null;
+      }
+      for(RelFieldCollation fieldCollation : group.orderKeys.getFieldCollations()) {
+        if(fieldCollation.getFieldIndex() >= fieldCount) {
+          return null;
+        }
+      }
+
+      boolean frameSensitive = false;
+      for(Window.RexWinAggCall aggCall : group.aggCalls) {
+        if(!isWindowFunction(window, aggCall)) {
+          return null;
+        }
+        frameSensitive |= SolrWindow.isFrameSensitive(aggCall);
+      }
+      if(frameSensitive && !group.upperBound.isCurrentRow()) {
+        return null;
+      }
+      if(frameSensitive && !(group.lowerBound.isUnbounded() && group.lowerBound.isPreceding()) && !(group.isRows
+          && (group.lowerBound.isCurrentRow() || group.lowerBound.isPreceding()
+          && SolrWindow.getOffset(window, group.lowerBound.getOffset()) >= 0))) {
+        return null;
+      }
+
+      return new SolrWindow(window.getCluster(), window.getTraitSet().replace(EnumerableConvention.INSTANCE),
+          convert(input, input.getTraitSet().replace(SolrRel.CONVENTION).simplify()), window.constants,
+          window.getRowType(), window.groups);
+    }
+
+    /** Whether the {@link WindowStream} computes the window function. */
+    private static boolean isWindowFunction(Window window, Window.RexWinAggCall aggCall) {
+      final List<RexNode> operands = aggCall.getOperands();
+      // The argument is a single valued field of the input
+      if(!operands.isEmpty() && (!(operands.get(0) instanceof RexInputRef)
+          || SolrWindow.getConstant(window, operands.get(0)) != null
+          || operands.get(0).getType().getComponentType() != null)) {
+        return false;
+      }
+      switch (aggCall.getKind()) {
+        case ROW_NUMBER:
+        case RANK:
+        case DENSE_RANK:
+          return operands.isEmpty();
+        case LAG:
+        case LEAD:
+          if(operands.size() > 2) {
+            RexLiteral defaultValue = SolrWindow.getConstant(window, operands.get(2));
+            if(defaultValue == null || (defaultValue.getValue() != null && SolrWindow.getValue(defaultValue) == null)) {
+              return false;
+            }
+          }
+          return !operands.isEmpty() && (operands.size() == 1 || SolrWindow.getOffset(window, operands.get(1)) >= 0);
+        case COUNT:
+          return operands.size() <= 1;
+        case SUM:
+        case SUM0:
+        case MIN:
+        case MAX:
+          return operands.size() == 1;
+        default:
+          return false;
+      }
+    }
+  }
+
+  /**
+   * Whether Solr can evaluate the join of the inputs inside the index: both inputs are plain selects, the join has a
+   * single pair of keys that are Solr fields and the right collection is co-located with the left one.
+   */
+  private static boolean isJoinable(RelNode left, List<Integer> leftKeys, RelNode right, List<Integer> rightKeys) {
+    if(leftKeys.size() != 1 || !isSolrFields(left, leftKeys) || !isSolrFields(right, rightKeys)) {
+      return false;
+    }
+    SolrTable leftTable = getSelectTable(left);
+    SolrTable rightTable = getSelectTable(right);
+    return leftTable != null && rightTable != null && leftTable.isJoinableFrom(rightTable);
+  }
 }
@@ -17,30 +17,70 @@
 package org.apache.solr.handler.sql;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Multimap;
 import org.apache.calcite.rel.type.*;
+import org.apache.calcite.schema.Function;
 import org.apache.calcite.schema.Table;
 import org.apache.calcite.schema.impl.AbstractSchema;
 import org.apache.calcite.sql.type.SqlTypeFactoryImpl;
+import org.apache.calcite.sql.type.SqlTypeName;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.io.SolrClientCache;
 import org.apache.solr.client.solrj.request.LukeRequest;
 import org.apache.solr.client.solrj.response.LukeResponse;
 import org.apache.solr.common.cloud.Aliases;
 import org.apache.solr.common.cloud.ClusterState;
 import org.apache.solr.common.cloud.ZkStateReader;
 import org.apache.solr.common.luke.FieldFlag;
+import org.apache.solr.common.params.ModifiableSolrParams;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 class SolrSchema extends AbstractSchema {
+  /**
+   * Clients shared by every open connection in the process, so queries don't each open a ZooKeeper session. The
+   * clients are closed along with the last open connection, and created again by the next one.
+   */
+  static final SolrClientCache CLIENT_CACHE = new SolrClientCache();
+  private static int openSchemas;
+
   final Properties properties;
+  final SolrMetrics metrics = new SolrMetrics();
+  private boolean closed;
 
   SolrSchema(Properties properties) {
     super();
     this.properties = properties;
+    synchronized (SolrSchema.class) {
+      openSchemas++;
+    }
+  }
+
+  /** Called when the connection of the schema is closed, closes the shared clients if no other connection is open. */
+  void close() {
+    synchronized (SolrSchema.class) {
+      if(closed) {
+        return;
+      }
+      closed = true;
+      if(--openSchemas == 0) {
+        CLIENT_CACHE.close();
+      }
+    }
+  }
+
+  /** Number of schemas whose connection is open. */
+  static synchronized int getOpenSchemas() {
+    return openSchemas;
   }
 
   @Override
@@ -51,33 +91,98 @@ class SolrSchema extends AbstractSchema {
       ZkStateReader zkStateReader = cloudSolrClient.getZkStateReader();
       ClusterState clusterState = zkStateReader.getClusterState();
 
-      final ImmutableMap.Builder<String, Table> builder = ImmutableMap.builder();
+      final Map<String, Table> tables = new LinkedHashMap<>();
+      Set<String> collections = clusterState.getCollectionsMap().keySet();
 
-      for (String collection : clusterState.getCollectionsMap().keySet()) {
-        builder.put(collection, new SolrTable(this, collection));
+      for (String collection : collections) {
+        tables.put(collection, new SolrTable(this, collection));
       }
 
+      // An alias of several collections is queried as one comma separated list of collections, CloudSolrStream
+      // queries the shards of all of them concurrently
       Aliases aliases = zkStateReader.getAliases();
+      Map<String, String> partitionFields = TimePartitions.getPartitionFields(properties);
       if(aliases.collectionAliasSize() > 0) {
         for (Map.Entry<String, String> alias : aliases.getCollectionAliasMap().entrySet()) {
-          builder.put(alias.getKey(), new SolrTable(this, alias.getValue()));
+          String partitionField = partitionFields.get(alias.getKey());
+          TimePartitions partitions = partitionField == null ? null : TimePartitions.of(alias.getKey(),
+              partitionField, Arrays.asList(alias.getValue().split(",")), null);
+          tables.put(alias.getKey(), partitions == null ? new SolrTable(this, alias.getValue())
+              : new SolrTable(this, String.join(",", partitions.getCollections()), partitions));
+        }
+      }
+
+      // Partitioned tables without an alias are made of the collections named after them
+      for (Map.Entry<String, String> partitionField : partitionFields.entrySet()) {
+        if(!tables.containsKey(partitionField.getKey())) {
+          TimePartitions partitions = TimePartitions.of(partitionField.getKey(), partitionField.getValue(),
+              collections, partitionField.getKey());
+          if(partitions != null) {
+            tables.put(partitionField.getKey(),
+                new SolrTable(this, String.join(",", partitions.getCollections()), partitions));
+          }
         }
       }
 
-      return builder.build();
+      return ImmutableMap.copyOf(tables);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
-  private Map<String, LukeResponse.FieldInfo> getFieldInfo(String collection) {
+  /**
+   * Returns the collection a query request on the collection, which may be a comma separated list of collections, is
+   * sent to. The request searches the other collections of a list through its collection parameter.
+   */
+  static String requestCollection(ModifiableSolrParams params, String collection) {
+    int comma = collection.indexOf(',');
+    if(comma < 0) {
+      return collection;
+    }
+    params.set("collection", collection);
+    return collection.substring(0, comma);
+  }
+
+  @Override
+  protected Multimap<String, Function> getFunctionMultimap() {
+    return ImmutableMultimap.<String, Function>builder()
+        .put(AnalyzeTableFunction.NAME, new AnalyzeTableFunction(properties))
+        .put(ArrayContainsFunction.NAME, new ArrayContainsFunction())
+        .put(TextMatchFunction.NAME, new TextMatchFunction(false))
+        .put(TextMatchFunction.NAME, new TextMatchFunction(true))
+        .put(SpatialFunction.DWITHIN, new SpatialFunction(SpatialFunction.DWITHIN))
+        .put(SpatialFunction.BBOX, new SpatialFunction(SpatialFunction.BBOX))
+        .put(SpatialFunction.DISTANCE, new SpatialFunction(SpatialFunction.DISTANCE))
+        .build();
+  }
+
+  /**
+   * Fields of the collection, or of every collection of an alias, a field of several collections is listed once.
+   *
+   * @param fieldTypeClasses Filled with the class of every field type of the schemas, keyed by the type name
+   */
+  private Map<String, LukeResponse.FieldInfo> getFieldInfo(String collection, Map<String, String> fieldTypeClasses) {
     String zk = this.properties.getProperty("zk");
     try(CloudSolrClient cloudSolrClient = new CloudSolrClient.Builder().withZkHost(zk).build()) {
       cloudSolrClient.connect();
-      LukeRequest lukeRequest = new LukeRequest();
-      lukeRequest.setNumTerms(0);
-      LukeResponse lukeResponse = lukeRequest.process(cloudSolrClient, collection);
-      return lukeResponse.getFieldInfo();
+      Map<String, LukeResponse.FieldInfo> fieldInfo = new LinkedHashMap<>();
+      for(String name : collection.split(",")) {
+        LukeRequest lukeRequest = new LukeRequest();
+        lukeRequest.setNumTerms(0);
+        LukeResponse lukeResponse = lukeRequest.process(cloudSolrClient, name);
+        lukeResponse.getFieldInfo().forEach(fieldInfo::putIfAbsent);
+
+        // The field types are only listed with the schema
+        LukeRequest schemaRequest = new LukeRequest();
+        schemaRequest.setNumTerms(0);
+        schemaRequest.setShowSchema(true);
+        LukeResponse schemaResponse = schemaRequest.process(cloudSolrClient, name);
+        if(schemaResponse.getFieldTypeInfo() != null) {
+          schemaResponse.getFieldTypeInfo().forEach((type, typeInfo) ->
+              fieldTypeClasses.putIfAbsent(type, typeInfo.getClassName()));
+        }
+      }
+      return fieldInfo;
     } catch (SolrServerException | IOException e) {
       throw new RuntimeException(e);
     }
@@ -89,34 +194,53 @@ class SolrSchema extends AbstractSchema {
     // proto-type will be copied into a real type factory.
     final RelDataTypeFactory typeFactory = new SqlTypeFactoryImpl(RelDataTypeSystem.DEFAULT);
     final RelDataTypeFactory.FieldInfoBuilder fieldInfo = typeFactory.builder();
-    Map<String, LukeResponse.FieldInfo> luceneFieldInfoMap = getFieldInfo(collection);
+    Map<String, String> fieldTypeClasses = new HashMap<>();
+    Map<String, LukeResponse.FieldInfo> luceneFieldInfoMap = getFieldInfo(collection, fieldTypeClasses);
 
     for(Map.Entry<String, LukeResponse.FieldInfo> entry : luceneFieldInfoMap.entrySet()) {
       LukeResponse.FieldInfo luceneFieldInfo = entry.getValue();
 
-      RelDataType type;
-      switch (luceneFieldInfo.getType()) {
-        case "string":
-          type = typeFactory.createJavaType(String.class);
-          break;
-        case "int":
-        case "long":
-          type = typeFactory.createJavaType(Long.class);
-          break;
-        case "float":
-        case "double":
-          type = typeFactory.createJavaType(Double.class);
-          break;
-        default:
-          type = typeFactory.createJavaType(String.class);
+      RelDataType type = getRelDataType(typeFactory, fieldTypeClasses.get(luceneFieldInfo.getType()));
+      if(type == null) {
+        // Type names of the default configsets
+        switch (luceneFieldInfo.getType()) {
+          case "int":
+          case "pint":
+          case "tint":
+            type = typeFactory.createJavaType(Integer.class);
+            break;
+          case "long":
+          case "plong":
+          case "tlong":
+            type = typeFactory.createJavaType(Long.class);
+            break;
+          case "float":
+          case "pfloat":
+          case "tfloat":
+            type = typeFactory.createJavaType(Float.class);
+            break;
+          case "double":
+          case "pdouble":
+          case "tdouble":
+            type = typeFactory.createJavaType(Double.class);
+            break;
+          case "date":
+          case "tdate":
+          case "pdate":
+            type = typeFactory.createSqlType(SqlTypeName.TIMESTAMP);
+            break;
+          case "boolean":
+            type = typeFactory.createJavaType(Boolean.class);
+            break;
+          default:
+            type = typeFactory.createJavaType(String.class);
+        }
       }
 
       EnumSet<FieldFlag> flags = luceneFieldInfo.parseFlags(luceneFieldInfo.getSchema());
-      /*
       if(flags != null && flags.contains(FieldFlag.MULTI_VALUED)) {
         type = typeFactory.createArrayType(type, -1);
       }
-      */
 
       fieldInfo.add(entry.getKey(), type).nullable(true);
     }
@@ -125,4 +249,39 @@ class SolrSchema extends AbstractSchema {
 
     return RelDataTypeImpl.proto(fieldInfo.build());
   }
+
+  /**
+   * Returns the SQL type of the values of a Solr field type, null if the class of the type is unknown. Text and any
+   * other type without a native counterpart are strings.
+   */
+  private static RelDataType getRelDataType(RelDataTypeFactory typeFactory, String fieldTypeClass) {
+    if(fieldTypeClass == null) {
+      return null;
+    }
+    switch (fieldTypeClass.substring(fieldTypeClass.lastIndexOf('.') + 1)) {
+      case "IntPointField":
+      case "TrieIntField":
+      case "IntField":
+        return typeFactory.createJavaType(Integer.class);
+      case "LongPointField":
+      case "TrieLongField":
+      case "LongField":
+        return typeFactory.createJavaType(Long.class);
+      case "FloatPointField":
+      case "TrieFloatField":
+      case "FloatField":
+        return typeFactory.createJavaType(Float.class);
+      case "DoublePointField":
+      case "TrieDoubleField":
+      case "DoubleField":
+        return typeFactory.createJavaType(Double.class);
+      case "DatePointField":
+      case "TrieDateField":
+        return typeFactory.createSqlType(SqlTypeName.TIMESTAMP);
+      case "BoolField":
+        return typeFactory.createJavaType(Boolean.class);
+      default:
+        return typeFactory.createJavaType(String.class);
+    }
+  }
 }
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptCost;
+import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelWriter;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.rel.core.SemiJoin;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.util.ImmutableIntList;
+
+import java.util.List;
+
+/**
+ * Semi-join or anti-join of two co-located Solr collections, evaluated inside the index by a {@code {!join}} query
+ * that filters the left input. Neither input is exported: the right input only contributes its query and the
+ * collection the join reads from.
+ */
+class SolrSemiJoin extends SemiJoin implements SolrRel {
+  private final boolean anti;
+
+  SolrSemiJoin(RelOptCluster cluster, RelTraitSet traitSet, RelNode left, RelNode right, RexNode condition,
+               ImmutableIntList leftKeys, ImmutableIntList rightKeys, boolean anti) {
+    super(cluster, traitSet, left, right, condition, leftKeys, rightKeys);
+    assert getConvention() == SolrRel.CONVENTION;
+    this.anti = anti;
+  }
+
+  @Override
+  public SemiJoin copy(RelTraitSet traitSet, RexNode condition, RelNode left, RelNode right, JoinRelType joinType,
+                       boolean semiJoinDone) {
+    return new SolrSemiJoin(getCluster(), traitSet, left, right, condition, getLeftKeys(), getRightKeys(), anti);
+  }
+
+  @Override
+  public RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
+    // Runs as part of the query of the left input, like a filter
+    return planner.getCostFactory().makeCost(mq.getRowCount(this), 0, 0).multiplyBy(0.1);
+  }
+
+  @Override
+  public RelWriter explainTerms(RelWriter pw) {
+    return super.explainTerms(pw).itemIf("anti", true, anti);
+  }
+
+  public void implement(Implementor implementor) {
+    implementor.visitChild(0, getLeft());
+    final SolrRel.Implementor rightImplementor = new SolrRel.Implementor();
+    rightImplementor.visitChild(0, getRight());
+
+    final List<String> leftFields = SolrToEnumerableConverter.generateFields(
+        SolrRules.solrFieldNames(getLeft().getRowType()), implementor.fieldMappings);
+    final List<String> rightFields = SolrToEnumerableConverter.generateFields(
+        SolrRules.solrFieldNames(getRight().getRowType()), rightImplementor.fieldMappings);
+
+    String fromQuery = rightImplementor.query == null ? "*:*"
+        : rightImplementor.negativeQuery ? "*:* AND " + rightImplementor.query : rightImplementor.query;
+    String joinQuery = "{!join from=" + rightFields.get(getRightKeys().get(0))
+        + " to=" + leftFields.get(getLeftKeys().get(0))
+        + " fromIndex=" + rightImplementor.solrTable.getCollection() + "}" + fromQuery;
+    String query = "_query_:\"" + joinQuery.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    implementor.andQuery(anti ? "-" + query : query, anti);
+  }
+}
@@ -41,12 +41,12 @@ class SolrSort extends Sort implements SolrRel {
     super(cluster, traitSet, child, collation, offset, fetch);
 
     assert getConvention() == SolrRel.CONVENTION;
-    assert getConvention() == child.getConvention();
   }
 
   @Override
   public RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
-    return planner.getCostFactory().makeZeroCost();
+    // Sorting in Solr isn't free, but it is much cheaper than sorting the exported rows on the client
+    return super.computeSelfCost(planner, mq).multiplyBy(0.1);
   }
 
   @Override
@@ -55,6 +55,7 @@ class SolrSort extends Sort implements SolrRel {
   }
 
   public void implement(Implementor implementor) {
+    assert getConvention() == getInput().getConvention();
     implementor.visitChild(0, getInput());
 
     List<RelFieldCollation> sortCollations = collation.getFieldCollations();
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.calcite.util.Pair;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Live statistics of Solr collections used by the planner.
+ *
+ * <p>Statistics are read with rows=0 requests and cached for as long as the {@link IndexVersion} of the collection
+ * doesn't change. Planning must not fail because statistics can't be read, so every method returns null if the
+ * request fails, if it doesn't answer within {@code liveStatisticsTimeout} milliseconds, or if
+ * {@code liveStatistics} is disabled for the connection. A request that times out still completes in the
+ * background and caches its result, until then the planner doesn't wait for the collection again.</p>
+ */
+class SolrStatistics {
+  private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  static final String LIVE_STATISTICS_PROPERTY = "liveStatistics";
+  static final String TIMEOUT_PROPERTY = "liveStatisticsTimeout";
+  private static final String DEFAULT_TIMEOUT = "1000";
+
+  private static final Cache<String, Pair<IndexVersion, Double>> statistics = CacheBuilder.newBuilder()
+      .maximumSize(10000)
+      .build();
+
+  /** Requests that didn't complete within their timeout, by collection. */
+  private static final ConcurrentMap<String, Future<Double>> pending = new ConcurrentHashMap<>();
+
+  private static final ExecutorService executor = ExecutorUtil.newMDCAwareCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "SolrStatistics");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private SolrStatistics() {
+  }
+
+  /** Number of documents in the collection. */
+  static Double numDocs(String zkHost, String collection, Properties properties) {
+    if(!isEnabled(properties)) {
+      return null;
+    }
+    return withTimeout(zkHost, collection, properties,
+        () -> (double) IndexVersion.get(zkHost, collection, properties).getNumDocs());
+  }
+
+  /** Number of documents matching the query. */
+  static Double count(String zkHost, String collection, String query, Properties properties) {
+    return get(zkHost, collection, "count/" + query, properties, () -> {
+      ModifiableSolrParams params = new ModifiableSolrParams();
+      params.set(CommonParams.Q, query);
+      params.set(CommonParams.ROWS, "0");
+      return (double) request(zkHost, collection, params).getResults().getNumFound();
+    });
+  }
+
+  /** Estimated number of distinct values of the field, computed with the hll facet function. */
+  static Double distinctCount(String zkHost, String collection, String field, Properties properties) {
+    return get(zkHost, collection, "ndv/" + field, properties, () -> {
+      ModifiableSolrParams params = new ModifiableSolrParams();
+      params.set(CommonParams.Q, "*:*");
+      params.set(CommonParams.ROWS, "0");
+      params.set("json.facet", "{\"ndv\":\"hll(" + field + ")\"}");
+      NamedList facets = (NamedList) request(zkHost, collection, params).getResponse().get("facets");
+      Number ndv = facets == null ? null : (Number) facets.get("ndv");
+      return ndv == null ? 0D : ndv.doubleValue();
+    });
+  }
+
+  private static Double get(String zkHost, String collection, String statistic, Properties properties,
+                            StatisticLoader loader) {
+    if(!isEnabled(properties)) {
+      return null;
+    }
+
+    String key = zkHost + "/" + collection + "/" + statistic;
+    return withTimeout(zkHost, collection, properties, () -> {
+      IndexVersion version = IndexVersion.get(zkHost, collection, properties);
+      Pair<IndexVersion, Double> cached = statistics.getIfPresent(key);
+      if(cached != null && cached.getKey().equals(version)) {
+        return cached.getValue();
+      }
+
+      Double value = loader.load();
+      statistics.put(key, new Pair<>(version, value));
+      return value;
+    });
+  }
+
+  /** Runs the loader, null if it fails or doesn't complete in time. */
+  private static Double withTimeout(String zkHost, String collection, Properties properties, StatisticLoader loader) {
+    String key = zkHost + "/" + collection;
+    Future<Double> running = pending.get(key);
+    if(running != null) {
+      if(!running.isDone()) {
+        return null;
+      }
+      pending.remove(key, running);
+    }
+
+    long timeout = Long.parseLong(properties.getProperty(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT));
+    Future<Double> future = executor.submit(() -> {
+      try {
+        return loader.load();
+      } catch (IOException | SolrException e) {
+        logger.debug("Unable to read statistics of {}", key, e);
+        return null;
+      }
+    });
+
+    try {
+      return future.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      pending.put(key, future);
+      logger.debug("Statistics of {} took longer than {}ms", key, timeout);
+      return null;
+    } catch (ExecutionException e) {
+      logger.debug("Unable to read statistics of {}", key, e);
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  private static QueryResponse request(String zkHost, String collection, ModifiableSolrParams params)
+      throws IOException {
+    try {
+      return new QueryRequest(params).process(SolrSchema.CLIENT_CACHE.getCloudSolrClient(zkHost),
+          SolrSchema.requestCollection(params, collection));
+    } catch (SolrServerException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static boolean isEnabled(Properties properties) {
+    return Boolean.parseBoolean(properties.getProperty(LIVE_STATISTICS_PROPERTY, "true"));
+  }
+
+  private interface StatisticLoader {
+    Double load() throws IOException;
+  }
+}
@@ -16,18 +16,27 @@
  */
 package org.apache.solr.handler.sql;
 
+import com.google.common.collect.ImmutableList;
 import org.apache.calcite.adapter.java.AbstractQueryableTable;
+import org.apache.calcite.jdbc.JavaTypeFactoryImpl;
 import org.apache.calcite.linq4j.*;
 import org.apache.calcite.plan.RelOptCluster;
 import org.apache.calcite.plan.RelOptTable;
 import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.JoinRelType;
 import org.apache.calcite.rel.type.RelDataType;
 import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.rel.type.RelDataTypeField;
 import org.apache.calcite.rel.type.RelProtoDataType;
+import org.apache.calcite.rex.RexNode;
 import org.apache.calcite.schema.SchemaPlus;
+import org.apache.calcite.schema.Statistic;
+import org.apache.calcite.schema.Statistics;
 import org.apache.calcite.schema.TranslatableTable;
 import org.apache.calcite.schema.impl.AbstractTableQueryable;
 import org.apache.calcite.util.Pair;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
 import org.apache.solr.client.solrj.io.comp.ComparatorOrder;
 import org.apache.solr.client.solrj.io.comp.FieldComparator;
 import org.apache.solr.client.solrj.io.comp.MultipleFieldComparator;
@@ -49,8 +58,17 @@ import org.apache.solr.client.solrj.io.stream.*;
 import org.apache.solr.client.solrj.io.stream.expr.StreamExpressionParser;
 import org.apache.solr.client.solrj.io.stream.expr.StreamFactory;
 import org.apache.solr.client.solrj.io.stream.metrics.*;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.request.schema.SchemaRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.cloud.ClusterState;
+import org.apache.solr.common.cloud.CompositeIdRouter;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.Replica;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
 
 import java.io.IOException;
 import java.util.*;
@@ -62,15 +80,30 @@ import java.util.stream.Collectors;
 class SolrTable extends AbstractQueryableTable implements TranslatableTable {
   private static final String DEFAULT_QUERY = "*:*";
   private static final String DEFAULT_VERSION_FIELD = "_version_";
+  private static final String DISTINCT_FACET_THRESHOLD = "distinctFacetThreshold";
+  private static final String DEFAULT_DISTINCT_FACET_THRESHOLD = "10000";
+  static final String STATS_FAST_PATH = "statsFastPath";
 
   private final String collection;
   private final SolrSchema schema;
+  private final TimePartitions partitions;
   private RelProtoDataType protoRowType;
+  private volatile String routeField;
+  private volatile boolean routeFieldResolved;
 
   SolrTable(SolrSchema schema, String collection) {
+    this(schema, collection, null);
+  }
+
+  /**
+   * @param partitions The partitions of a time partitioned table, the collection lists all of them. Null if the table
+   *                   isn't partitioned.
+   */
+  SolrTable(SolrSchema schema, String collection, TimePartitions partitions) {
     super(Object[].class);
     this.schema = schema;
     this.collection = collection;
+    this.partitions = partitions;
   }
 
   public String toString() {
@@ -83,10 +116,147 @@ class SolrTable extends AbstractQueryableTable implements TranslatableTable {
     }
     return protoRowType.apply(typeFactory);
   }
+
+  @Override
+  public Statistic getStatistic() {
+    Double numDocs = SolrStatistics.numDocs(getZkHost(), collection, schema.properties);
+    if(numDocs == null) {
+      TableStatistics statistics = getAnalyzedStatistics();
+      numDocs = statistics == null ? null : (double) statistics.getNumDocs();
+    }
+    return numDocs == null ? Statistics.UNKNOWN : Statistics.of(numDocs, ImmutableList.of());
+  }
+
+  /**
+   * Fraction of the documents matching the predicate, null if it can't be estimated. Statistics computed by
+   * ANALYZE_TABLE are used if they cover the predicate, otherwise the matching documents are counted.
+   */
+  Double estimateSelectivity(RexNode predicate, List<String> fieldNames) {
+    TableStatistics statistics = getAnalyzedStatistics();
+    if(statistics != null) {
+      Double selectivity = statistics.selectivity(predicate, fieldNames);
+      if(selectivity != null) {
+        return selectivity;
+      }
+    }
+
+    String query = SolrFilter.toQuery(predicate, fieldNames);
+    if(query == null) {
+      return null;
+    }
+    Double numDocs = SolrStatistics.numDocs(getZkHost(), collection, schema.properties);
+    if(numDocs == null) {
+      return null;
+    } else if(numDocs == 0) {
+      return 1D;
+    }
+    Double count = SolrStatistics.count(getZkHost(), collection, query, schema.properties);
+    return count == null ? null : count / numDocs;
+  }
+
+  /** Estimated number of distinct values of the field, null if it can't be estimated. */
+  Double estimateDistinctCount(String field) {
+    if("_query_".equals(field) || "score".equals(field)) {
+      return null;
+    }
+    TableStatistics statistics = getAnalyzedStatistics();
+    TableStatistics.Column column = statistics == null ? null : statistics.getColumn(field);
+    if(column != null) {
+      return column.distinctCount;
+    }
+    return SolrStatistics.distinctCount(getZkHost(), collection, field, schema.properties);
+  }
+
+  private TableStatistics getAnalyzedStatistics() {
+    return StatisticsStore.get(getZkHost(), collection, schema.properties);
+  }
+
+  Properties getProperties() {
+    return schema.properties;
+  }
+
+  String getCollection() {
+    return collection;
+  }
+
+  /** Returns the partitions of a time partitioned table, null if the table isn't partitioned. */
+  TimePartitions getPartitions() {
+    return partitions;
+  }
+
+  /**
+   * Whether a {@code {!join}} from the other table can run inside this table's index. Solr runs the join on every
+   * replica of this table against a local replica of the other table, so the other table has to be a single shard
+   * collection with a replica on every node hosting this table.
+   */
+  boolean isJoinableFrom(SolrTable from) {
+    ClusterState clusterState = SolrSchema.CLIENT_CACHE.getCloudSolrClient(getZkHost()).getZkStateReader()
+        .getClusterState();
+    DocCollection toCollection = clusterState.getCollectionOrNull(collection);
+    DocCollection fromCollection = clusterState.getCollectionOrNull(from.collection);
+    if(toCollection == null || fromCollection == null || fromCollection.getActiveSlices().size() != 1) {
+      return false;
+    }
+
+    Set<String> fromNodes = new HashSet<>();
+    for(Replica replica : fromCollection.getReplicas()) {
+      fromNodes.add(replica.getNodeName());
+    }
+    for(Replica replica : toCollection.getReplicas()) {
+      if(!fromNodes.contains(replica.getNodeName())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the field that routes the documents of the collection to its shards, null if there is none. That is the
+   * router.field of the collection, or the uniqueKey for the compositeId router. The collections of an alias need
+   * the same route field.
+   */
+  String getRouteField() {
+    if(!routeFieldResolved) {
+      routeField = fetchRouteField();
+      routeFieldResolved = true;
+    }
+    return routeField;
+  }
+
+  private String fetchRouteField() {
+    CloudSolrClient cloudSolrClient = SolrSchema.CLIENT_CACHE.getCloudSolrClient(getZkHost());
+    ClusterState clusterState = cloudSolrClient.getZkStateReader().getClusterState();
+    String routeField = null;
+    for(String name : collection.split(",")) {
+      DocCollection docCollection = clusterState.getCollectionOrNull(name);
+      if(docCollection == null) {
+        return null;
+      }
+
+      Object routerSpec = docCollection.get(DocCollection.DOC_ROUTER);
+      String field = routerSpec instanceof Map ? (String) ((Map) routerSpec).get("field") : null;
+      if(field == null && docCollection.getRouter() instanceof CompositeIdRouter) {
+        try {
+          field = new SchemaRequest.UniqueKey().process(cloudSolrClient, name).getUniqueKey();
+        } catch (SolrServerException | IOException e) {
+          return null;
+        }
+      }
+      if(field == null || (routeField != null && !routeField.equals(field))) {
+        return null;
+      }
+      routeField = field;
+    }
+    return routeField;
+  }
+
+  private String getZkHost() {
+    return schema.properties.getProperty("zk");
+  }
   
   private Enumerable<Object> query(final Properties properties) {
     return query(properties, Collections.emptyList(), null, Collections.emptyList(), Collections.emptyList(),
-        Collections.emptyList(), null, null, null);
+        Collections.emptyList(), null, null, null, null, null, null);
   }
 
   /** Executes a Solr query on the underlying table.
@@ -102,9 +272,48 @@ class SolrTable extends AbstractQueryableTable implements TranslatableTable {
                                    final List<Pair<String, String>> orders,
                                    final List<String> buckets,
                                    final List<Pair<String, String>> metricPairs,
+                                   final List<Integer> groupingSets,
                                    final String limit,
                                    final String negativeQuery,
-                                   final String havingPredicate) {
+                                   final String havingPredicate,
+                                   final List<String> routeValues,
+                                   final List<String> partitions) {
+    final TupleStream tupleStream = getTupleStream(properties, fields, query, orders, buckets, metricPairs,
+        groupingSets, limit, negativeQuery, havingPredicate, routeValues, partitions, null);
+
+    return new AbstractEnumerable<Object>() {
+      // Use original fields list to make sure only the fields specified are enumerated
+      public Enumerator<Object> enumerator() {
+        return new SolrEnumerator(tupleStream, fields);
+      }
+    };
+  }
+
+  /**
+   * Builds the stream of a query on this table. The stream is only opened once it is enumerated, so the streams of
+   * both inputs of a join can be combined first.
+   *
+   * @param groupingSets Numbers of leading buckets that make up each grouping set, null for a single grouping set of
+   *                     all the buckets
+   * @param routeValues Values of the router field that matching documents have one of, the query is only sent to
+   *                    the shards that can hold them. Null to query every shard.
+   * @param partitions The partitions of a time partitioned table to query, null to query all of them
+   * @param selectParams Additional params of an exported select, like the partitionKeys for parallel workers or
+   *                     a filter query, null for none
+   */
+  private TupleStream getTupleStream(final Properties properties,
+                                     final List<Map.Entry<String, Class>> fields,
+                                     final String query,
+                                     final List<Pair<String, String>> orders,
+                                     final List<String> buckets,
+                                     final List<Pair<String, String>> metricPairs,
+                                     final List<Integer> groupingSets,
+                                     final String limit,
+                                     final String negativeQuery,
+                                     final String havingPredicate,
+                                     final List<String> routeValues,
+                                     final List<String> partitions,
+                                     final SolrParams selectParams) {
     // SolrParams should be a ModifiableParams instead of a map
     boolean mapReduce = "map_reduce".equals(properties.getProperty("aggregationMode"));
     boolean negative = Boolean.parseBoolean(negativeQuery);
@@ -123,14 +332,23 @@ class SolrTable extends AbstractQueryableTable implements TranslatableTable {
 
     TupleStream tupleStream;
     String zk = properties.getProperty("zk");
+    String collection = partitions == null ? this.collection : String.join(",", partitions);
     try {
       if (metricPairs.isEmpty() && buckets.isEmpty()) {
-        tupleStream = handleSelect(zk, collection, q, fields, orders, limit);
+        tupleStream = cachedSelect(properties, fields, query, orders, limit, selectParams, Collections.emptyList());
+        if(tupleStream == null) {
+          tupleStream = partitionScan(zk, partitions, q, fields, orders, limit, selectParams);
+        }
+        if(tupleStream == null) {
+          tupleStream = handleSelect(zk, collection, q, fields, orders, limit, selectParams);
+        }
       } else {
         if(buckets.isEmpty()) {
-          tupleStream = handleStats(zk, collection, q, metricPairs);
+          tupleStream = handleStats(zk, collection, properties, fields, q, metricPairs);
         } else {
-          if(mapReduce) {
+          // Only range and query facets can bucket expressions, a terms facet multi-valued fields by value, and the
+          // buckets of nested facets hold the subtotals of grouping sets
+          if(mapReduce && groupingSets == null && !hasExpressionBuckets(buckets) && !hasMultiValuedBuckets(buckets)) {
             tupleStream = handleGroupByMapReduce(zk,
                                                  collection,
                                                  properties,
@@ -144,11 +362,13 @@ class SolrTable extends AbstractQueryableTable implements TranslatableTable {
           } else {
             tupleStream = handleGroupByFacet(zk,
                                              collection,
+                                             properties,
                                              fields,
                                              q,
                                              orders,
                                              buckets,
                                              metricPairs,
+                                             groupingSets,
                                              limit,
                                              havingPredicate);
           }
@@ -158,14 +378,90 @@ class SolrTable extends AbstractQueryableTable implements TranslatableTable {
       throw new RuntimeException(e);
     }
 
-    final TupleStream finalStream = tupleStream;
+    if((routeValues != null || collection.contains(",")) && !(tupleStream instanceof CachedTableStream)) {
+      Map<String, List<String>> shards = RoutedStream.getShards(zk, collection, routeValues);
+      if(shards != null) {
+        tupleStream = new RoutedStream(tupleStream, shards);
+      }
+    }
 
-    return new AbstractEnumerable<Object>() {
-      // Use original fields list to make sure only the fields specified are enumerated
-      public Enumerator<Object> enumerator() {
-        return new SolrEnumerator(finalStream, fields);
+    StreamContext streamContext = new StreamContext();
+    streamContext.setSolrClientCache(SolrSchema.CLIENT_CACHE);
+    tupleStream.setStreamContext(streamContext);
+    return tupleStream;
+  }
+
+  /**
+   * Reads the partitions of a time partitioned table one after the other for a select sorted on the partition field,
+   * see {@link PartitionScanStream}. Returns null if the select isn't sorted on it or only reads one partition.
+   *
+   * @param partitions The partitions to read, null for all of them
+   */
+  private TupleStream partitionScan(final String zk,
+                                    final List<String> partitions,
+                                    final String query,
+                                    final List<Map.Entry<String, Class>> fields,
+                                    final List<Pair<String, String>> orders,
+                                    final String limit,
+                                    final SolrParams selectParams) {
+    if(this.partitions == null || orders.isEmpty() || !orders.get(0).getKey().equals(this.partitions.getField())) {
+      return null;
+    }
+    List<String> collections = new ArrayList<>(partitions == null ? this.partitions.getCollections() : partitions);
+    if(collections.size() < 2) {
+      return null;
+    }
+    if("desc".equals(getSortDirection(orders.get(0)))) {
+      Collections.reverse(collections);
+    }
+
+    TupleStream tupleStream = new PartitionScanStream(collections, partition -> {
+      try {
+        return handleSelect(zk, partition, query, fields, orders, limit, selectParams);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
       }
-    };
+    }, getComp(orders));
+    return limit == null ? tupleStream : new LimitStream(tupleStream, Integer.parseInt(limit));
+  }
+
+  /**
+   * Serves a select without a query from the {@link TableCache} copy of the collection, null if the collection isn't
+   * cached. Filtered selects are always sent to Solr.
+   *
+   * @param requiredFields Fields that must have a value, rows without one are skipped
+   */
+  private TupleStream cachedSelect(final Properties properties,
+                                   final List<Map.Entry<String, Class>> fields,
+                                   final String query,
+                                   final List<Pair<String, String>> orders,
+                                   final String limit,
+                                   final SolrParams selectParams,
+                                   final List<String> requiredFields) {
+    if(query != null || !TableCache.isEnabled(collection, properties)
+        || (selectParams != null && selectParams.getParameterNamesIterator().hasNext())) {
+      return null;
+    }
+
+    List<String> fieldNames = new ArrayList<>();
+    for(Map.Entry<String, Class> field : fields) {
+      // Functions are computed by Solr, the cache only copies fields
+      if("score".equals(field.getKey()) || "_query_".equals(field.getKey()) || field.getKey().contains("(")) {
+        return null;
+      }
+      fieldNames.add(field.getKey());
+    }
+    Set<String> copiedFields = new LinkedHashSet<>(fieldNames);
+    orders.forEach(order -> copiedFields.add(order.getKey()));
+    copiedFields.addAll(requiredFields);
+
+    TableCache.Table table = TableCache.get(properties.getProperty("zk"), collection,
+        new ArrayList<>(copiedFields), properties, schema.metrics);
+    if(table == null) {
+      return null;
+    }
+    return new CachedTableStream(collection, table, fieldNames, orders, orders.isEmpty() ? null : getComp(orders),
+        requiredFields, limit == null ? -1 : Integer.parseInt(limit));
   }
 
   private static StreamComparator bucketSortComp(List<Bucket> buckets, Map<String,String> dirs) {
@@ -247,15 +543,295 @@ class SolrTable extends AbstractQueryableTable implements TranslatableTable {
     }
   }
 
+  /**
+   * Builds the stream of one input of a {@link SolrJoin}, sorted ascending on the join keys. Plain selects are
+   * exported sorted on the keys by Solr, or sorted in memory if the collection is in the {@link TableCache}, anything
+   * else is sorted with an {@link ExternalSortStream}.
+   *
+   * @param skipNullKeys Whether documents without a value for a key can be left out since they can't match
+   * @param filterSource Whether the keys of this input are read first to filter the other input
+   * @param filteredBy The input whose keys filter this plain select, null for no runtime filter
+   */
+  private TupleStream joinInput(final Properties properties,
+                                final List<Map.Entry<String, Class>> fields,
+                                final String query,
+                                final List<Pair<String, String>> orders,
+                                final List<String> buckets,
+                                final List<Pair<String, String>> metricPairs,
+                                final List<Integer> groupingSets,
+                                final String limit,
+                                final String negativeQuery,
+                                final String havingPredicate,
+                                final List<String> routeValues,
+                                final List<String> partitions,
+                                final List<String> keys,
+                                final boolean skipNullKeys,
+                                final boolean partitioned,
+                                final boolean filterSource,
+                                final TupleStream filteredBy) {
+    List<Pair<String, String>> keyOrders = keys.stream().map(key -> new Pair<>(key, "asc")).collect(Collectors.toList());
+    TupleStream tupleStream;
+    int numWorkers = Integer.parseInt(properties.getProperty("numWorkers", "1"));
+    TupleStream cachedStream = null;
+    if(orders.isEmpty() && buckets.isEmpty() && metricPairs.isEmpty() && limit == null
+        && filteredBy == null && !(partitioned && numWorkers > 1)) {
+      cachedStream = cachedSelect(properties, fields, query, keyOrders, null, null,
+          skipNullKeys ? keys : Collections.emptyList());
+    }
+
+    if(cachedStream != null) {
+      tupleStream = cachedStream;
+    } else if(orders.isEmpty() && buckets.isEmpty() && metricPairs.isEmpty() && limit == null) {
+      String keyQuery = query;
+      String keyNegativeQuery = negativeQuery;
+      if(skipNullKeys) {
+        String existsQuery = keys.stream().map(key -> key + ":[* TO *]").collect(Collectors.joining(" AND "));
+        keyQuery = query == null ? existsQuery : query + " AND " + existsQuery;
+        keyNegativeQuery = query == null ? "false" : negativeQuery;
+      }
+
+      ModifiableSolrParams selectParams = new ModifiableSolrParams();
+      if(partitioned && numWorkers > 1) {
+        selectParams.set("partitionKeys", String.join(",", keys));
+      }
+      tupleStream = getTupleStream(properties, fields, keyQuery, keyOrders, buckets, metricPairs, groupingSets,
+          null, keyNegativeQuery, havingPredicate, routeValues, partitions, selectParams);
+
+      if(filteredBy != null) {
+        final String finalQuery = keyQuery;
+        final String finalNegativeQuery = keyNegativeQuery;
+        tupleStream = new RuntimeFilter.Target((RuntimeFilter.Source) filteredBy, keys.get(0),
+            keyClasses(fields, keys).get(0), tupleStream, RuntimeFilter.getMaxTerms(properties), filterQuery -> {
+              ModifiableSolrParams filterParams = new ModifiableSolrParams(selectParams);
+              filterParams.add(CommonParams.FQ, filterQuery);
+              return getTupleStream(properties, fields, finalQuery, keyOrders, buckets, metricPairs, groupingSets,
+                  null, finalNegativeQuery, havingPredicate, routeValues, partitions, filterParams);
+            });
+      }
+    } else {
+      tupleStream = getTupleStream(properties, fields, query, orders, buckets, metricPairs, groupingSets,
+          limit, negativeQuery, havingPredicate, routeValues, partitions, null);
+      // Sorted in the order Solr sorts the keys of the other input
+      tupleStream = ExternalSortStream.create(tupleStream, JoinKey.comparator(keys, keyClasses(fields, keys)),
+          properties, schema.metrics);
+    }
+
+    if(filterSource) {
+      tupleStream = new RuntimeFilter.Source(tupleStream, keys.get(0), RuntimeFilter.getMaxRows(properties));
+    }
+    return tupleStream;
+  }
+
+  private static List<Class> keyClasses(List<Map.Entry<String, Class>> fields, List<String> keys) {
+    List<Class> keyClasses = new ArrayList<>();
+    for(String key : keys) {
+      keyClasses.add(fields.stream().filter(field -> field.getKey().equals(key)).findFirst()
+          .map(Map.Entry::getValue).orElse(Object.class));
+    }
+    return keyClasses;
+  }
+
+  private Enumerable<Object> join(final Properties properties,
+                                  final TupleStream left,
+                                  final List<String> leftFields,
+                                  final List<String> leftKeys,
+                                  final TupleStream right,
+                                  final List<String> rightFields,
+                                  final List<String> rightKeys,
+                                  final String joinType,
+                                  final boolean parallelizable,
+                                  final List<Class> fieldClasses) {
+    int numWorkers = Integer.parseInt(properties.getProperty("numWorkers", "1"));
+    String workerCollection = properties.getProperty(SolrJoin.WORKER_COLLECTION_PROPERTY, collection);
+
+    final List<Map.Entry<String, Class>> fields = new ArrayList<>();
+    TupleStream tupleStream;
+    try {
+      tupleStream = SolrJoin.createStream(getZkHost(), workerCollection, parallelizable ? numWorkers : 1, left,
+          leftFields, leftKeys, right, rightFields, rightKeys, JoinRelType.valueOf(joinType), fieldClasses, fields);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    StreamContext streamContext = new StreamContext();
+    streamContext.setSolrClientCache(SolrSchema.CLIENT_CACHE);
+    tupleStream.setStreamContext(streamContext);
+
+    final TupleStream finalStream = tupleStream;
+    return new AbstractEnumerable<Object>() {
+      public Enumerator<Object> enumerator() {
+        return new SolrEnumerator(finalStream, fields);
+      }
+    };
+  }
+
+  /**
+   * Executes a union of the streams of queries on this or other tables, see {@link SolrUnion}.
+   *
+   * @param inputFields The fields of every input, the fields of the first input followed by those of the second one
+   *                    and so on
+   * @param fields The fields of the union
+   * @param orders Sort of the inputs on the fields of the union, empty if they aren't sorted
+   * @param limit Maximum number of tuples, null for all of them
+   */
+  private Enumerable<Object> union(final List<TupleStream> inputs,
+                                   final List<String> inputFields,
+                                   final List<Map.Entry<String, Class>> fields,
+                                   final List<Pair<String, String>> orders,
+                                   final String limit) {
+    List<String> fieldNames = fields.stream().map(Map.Entry::getKey).collect(Collectors.toList());
+    List<List<String>> fieldsByInput = new ArrayList<>();
+    for(int i = 0; i < inputs.size(); i++) {
+      fieldsByInput.add(inputFields.subList(i * fields.size(), (i + 1) * fields.size()));
+    }
+
+    TupleStream tupleStream = new UnionStream(inputs, fieldsByInput, fieldNames,
+        orders.isEmpty() ? null : getComp(orders));
+    if(limit != null) {
+      tupleStream = new LimitStream(tupleStream, Integer.parseInt(limit));
+    }
+
+    final TupleStream finalStream = tupleStream;
+    return new AbstractEnumerable<Object>() {
+      public Enumerator<Object> enumerator() {
+        return new SolrEnumerator(finalStream, fields);
+      }
+    };
+  }
+
+  /**
+   * Returns the top rows of each partition of a query on this table, numbered in the order of the window. Plain
+   * selects are exported sorted on the partition and order keys by Solr, anything else is sorted with an
+   * {@link ExternalSortStream}.
+   *
+   * @param fields The fields of the query followed by the row number
+   * @param windowOrders The partition keys in ascending order followed by the order keys of the window
+   * @param partitionKeys Number of partition keys
+   * @param maxRowNumber Number of rows returned per partition
+   */
+  private Enumerable<Object> topPerGroup(final Properties properties,
+                                         final List<Map.Entry<String, Class>> fields,
+                                         final String query,
+                                         final List<Pair<String, String>> orders,
+                                         final List<String> buckets,
+                                         final List<Pair<String, String>> metricPairs,
+                                         final List<Integer> groupingSets,
+                                         final String limit,
+                                         final String negativeQuery,
+                                         final String havingPredicate,
+                                         final List<String> routeValues,
+                                         final List<String> partitions,
+                                         final List<Pair<String, String>> windowOrders,
+                                         final int partitionKeys,
+                                         final int maxRowNumber) {
+    TupleStream tupleStream = getWindowStream(properties, fields.subList(0, fields.size() - 1), query, orders,
+        buckets, metricPairs, groupingSets, limit, negativeQuery, havingPredicate, routeValues, partitions,
+        windowOrders);
+
+    List<String> partitionFields = windowOrders.subList(0, partitionKeys).stream()
+        .map(Pair::getKey).collect(Collectors.toList());
+    final TupleStream finalStream = new TopPerGroupStream(tupleStream, partitionFields, maxRowNumber,
+        fields.get(fields.size() - 1).getKey());
+    return new AbstractEnumerable<Object>() {
+      public Enumerator<Object> enumerator() {
+        return new SolrEnumerator(finalStream, fields);
+      }
+    };
+  }
+
+  /**
+   * Returns the rows of a query on this table with the values of window functions, computed in a single pass over
+   * the rows sorted on the partition and order keys of the window, see {@link #topPerGroup}.
+   *
+   * @param fields The fields of the query followed by the window functions
+   * @param windowOrders The partition keys in ascending order followed by the order keys of the window
+   * @param partitionKeys Number of partition keys
+   * @param rows Whether the frame of the window is a number of rows rather than a range of peers
+   * @param preceding Number of rows before the current row in the frame, -1 if the frame starts at the partition
+   * @param functions The window functions, see {@link WindowStream#toFunction}
+   */
+  private Enumerable<Object> window(final Properties properties,
+                                    final List<Map.Entry<String, Class>> fields,
+                                    final String query,
+                                    final List<Pair<String, String>> orders,
+                                    final List<String> buckets,
+                                    final List<Pair<String, String>> metricPairs,
+                                    final List<Integer> groupingSets,
+                                    final String limit,
+                                    final String negativeQuery,
+                                    final String havingPredicate,
+                                    final List<String> routeValues,
+                                    final List<String> partitions,
+                                    final List<Pair<String, String>> windowOrders,
+                                    final int partitionKeys,
+                                    final boolean rows,
+                                    final int preceding,
+                                    final List<String> functions) {
+    TupleStream tupleStream = getWindowStream(properties, fields.subList(0, fields.size() - functions.size()), query,
+        orders, buckets, metricPairs, groupingSets, limit, negativeQuery, havingPredicate, routeValues, partitions,
+        windowOrders);
+
+    List<String> windowFields = windowOrders.stream().map(Pair::getKey).collect(Collectors.toList());
+    final TupleStream finalStream = WindowStream.create(tupleStream, windowFields.subList(0, partitionKeys),
+        windowFields.subList(partitionKeys, windowFields.size()), rows, preceding, functions, properties);
+    return new AbstractEnumerable<Object>() {
+      public Enumerator<Object> enumerator() {
+        return new SolrEnumerator(finalStream, fields);
+      }
+    };
+  }
+
+  /**
+   * Returns the rows of an input sorted with an {@link ExternalSorter}, for an ORDER BY that Solr can't do.
+   *
+   * @param comparator Order of the rows
+   * @param scalar Whether the rows are the values of a single column rather than arrays of values
+   */
+  private Enumerable<Object> sort(final Properties properties, final Enumerable<Object> input,
+                                  final Comparator<Object> comparator, final boolean scalar) {
+    return new AbstractEnumerable<Object>() {
+      public Enumerator<Object> enumerator() {
+        return new SortedEnumerator(input.enumerator(), comparator, scalar, properties, schema.metrics);
+      }
+    };
+  }
+
+  /**
+   * Returns the rows of a query on this table sorted on the partition and order keys of a window. Plain selects are
+   * exported sorted by Solr, anything else is sorted with an {@link ExternalSortStream}.
+   */
+  private TupleStream getWindowStream(Properties properties, List<Map.Entry<String, Class>> fields, String query,
+                                      List<Pair<String, String>> orders, List<String> buckets,
+                                      List<Pair<String, String>> metricPairs, List<Integer> groupingSets,
+                                      String limit, String negativeQuery, String havingPredicate,
+                                      List<String> routeValues, List<String> partitions,
+                                      List<Pair<String, String>> windowOrders) {
+    if(orders.isEmpty() && buckets.isEmpty() && metricPairs.isEmpty() && limit == null) {
+      // Pseudo fields can't be exported, they are read as nulls
+      List<Map.Entry<String, Class>> exportFields = fields.stream()
+          .filter(field -> !"_query_".equals(field.getKey()) && !"score".equals(field.getKey()))
+          .collect(Collectors.toList());
+      return getTupleStream(properties, exportFields, query, windowOrders, buckets, metricPairs, groupingSets,
+          null, negativeQuery, havingPredicate, routeValues, partitions, null);
+    }
+    TupleStream tupleStream = getTupleStream(properties, fields, query, orders, buckets, metricPairs, groupingSets,
+        limit, negativeQuery, havingPredicate, routeValues, partitions, null);
+    return ExternalSortStream.create(tupleStream, getComp(windowOrders), properties, schema.metrics);
+  }
+
   private TupleStream handleSelect(String zk,
                                    String collection,
                                    String query,
                                    List<Map.Entry<String, Class>> fields,
                                    List<Pair<String, String>> orders,
-                                   String limit) throws IOException {
+                                   String limit,
+                                   SolrParams selectParams) throws IOException {
 
     ModifiableSolrParams params = new ModifiableSolrParams();
     params.add(CommonParams.Q, query);
+    if(selectParams != null) {
+      params.add(selectParams);
+    }
 
     //Validate the fields
     for(Map.Entry<String, Class> entry : fields) {
@@ -269,10 +845,30 @@ class SolrTable extends AbstractQueryableTable implements TranslatableTable {
       }
     }
 
+    // A distance is returned and sorted on as the geodist() of the sfield and pt params, and renamed in the tuples
+    GeoDistance distance = null;
+    for(Map.Entry<String, Class> entry : fields) {
+      distance = distance == null ? GeoDistance.parse(entry.getKey()) : distance;
+    }
+    for(Pair<String, String> order : orders) {
+      distance = distance == null ? GeoDistance.parse(order.getKey()) : distance;
+    }
+    if(distance != null) {
+      params.add("sfield", distance.getField());
+      params.add("pt", distance.getPoint());
+    }
+
     String fl = getFields(fields);
+    if(distance != null) {
+      fl = fl.replace(distance.getName(), GeoDistance.FUNCTION);
+      if(!fl.contains(GeoDistance.FUNCTION)) {
+        fl = fl + "," + GeoDistance.FUNCTION;
+      }
+    }
 
     if(orders.size() > 0) {
-      params.add(CommonParams.SORT, getSort(orders));
+      String sort = getSort(orders);
+      params.add(CommonParams.SORT, distance == null ? sort : sort.replace(distance.getName(), GeoDistance.FUNCTION));
     } else {
       if(limit == null) {
         params.add(CommonParams.SORT, "_version_ desc");
@@ -289,7 +885,17 @@ class SolrTable extends AbstractQueryableTable implements TranslatableTable {
 
     if (limit != null) {
       params.add(CommonParams.ROWS, limit);
-      return new LimitStream(new CloudSolrStream(zk, collection, params), Integer.parseInt(limit));
+      TupleStream tupleStream = new CloudSolrStream(zk, collection, params);
+      if(distance != null) {
+        Map<String, String> names = new HashMap<>();
+        for(Map.Entry<String, Class> field : fields) {
+          names.put(field.getKey(), field.getKey());
+        }
+        names.remove(distance.getName());
+        names.put(GeoDistance.FUNCTION, distance.getName());
+        tupleStream = new SelectStream(tupleStream, names);
+      }
+      return new LimitStream(tupleStream, Integer.parseInt(limit));
     } else {
       params.add(CommonParams.QT, "/export");
       return new CloudSolrStream(zk, collection, params);
@@ -516,12 +1122,16 @@ class SolrTable extends AbstractQueryableTable implements TranslatableTable {
 
     if(orders != null && orders.size() > 0) {
       if(!sortsEqual(buckets, sortDirection, orders)) {
-        int lim = (limit == null) ? 100 : Integer.parseInt(limit);
         StreamComparator comp = getComp(orders);
-        //Rank the Tuples
-        //If parallel stream is used ALL the Rolled up tuples from the workers will be ranked
-        //Providing a true Top or Bottom.
-        tupleStream = new RankStream(tupleStream, lim, comp);
+        if(limit == null) {
+          //No limit so every rolled up tuple has to be sorted, spilling to disk if the sort doesn't fit in memory.
+          tupleStream = ExternalSortStream.create(tupleStream, comp, properties, schema.metrics);
+        } else {
+          //Rank the Tuples
+          //If parallel stream is used ALL the Rolled up tuples from the workers will be ranked
+          //Providing a true Top or Bottom.
+          tupleStream = new RankStream(tupleStream, Integer.parseInt(limit), comp);
+        }
       } else {
         // Sort is the same as the same as the underlying stream
         // Only need to limit the result, not Rank the result
@@ -543,9 +1153,11 @@ class SolrTable extends AbstractQueryableTable implements TranslatableTable {
     Bucket[] bucketsArray = new Bucket[buckets.size()];
 
     int i=0;
+    Set<String> bucketFields = new HashSet<>();
     for(Map.Entry<String,Class> field : fields) {
       String fieldName = field.getKey();
-      if(buckets.contains(fieldName)) {
+      // A join can read the same field both as its key and as a column
+      if(buckets.contains(fieldName) && bucketFields.add(fieldName)) {
         bucketsArray[i++] = new Bucket(fieldName);
       }
     }
@@ -555,46 +1167,63 @@ class SolrTable extends AbstractQueryableTable implements TranslatableTable {
 
   private TupleStream handleGroupByFacet(String zkHost,
                                          String collection,
+                                         final Properties properties,
                                          final List<Map.Entry<String, Class>> fields,
                                          final String query,
                                          final List<Pair<String, String>> orders,
                                          final List<String> bucketFields,
                                          final List<Pair<String, String>> metricPairs,
+                                         final List<Integer> groupingSets,
                                          final String lim,
                                          final String havingPredicate) throws IOException {
 
     ModifiableSolrParams solrParams = new ModifiableSolrParams();
     solrParams.add(CommonParams.Q, query);
 
-    Bucket[] buckets = buildBuckets(bucketFields, fields);
+    // The levels of grouping sets are in the order the grouping sets add them
+    Bucket[] buckets = groupingSets == null ? buildBuckets(bucketFields, fields)
+        : bucketFields.stream().map(Bucket::new).toArray(Bucket[]::new);
     Metric[] metrics = buildMetrics(metricPairs, true).toArray(new Metric[0]);
     if(metrics.length == 0) {
       metrics = new Metric[1];
       metrics[0] = new CountMetric();
     }
 
-    int limit = lim != null ? Integer.parseInt(lim) : 1000;
-
     FieldComparator[] sorts = null;
 
-    if(orders == null || orders.size() == 0) {
+    // Range and query facets of expression buckets can't be sorted, the buckets come in ascending order, or in the
+    // order of the branches of a case, and any other order is sorted on the client. So are the subtotals of grouping
+    // sets, which follow the buckets they sum up.
+    boolean clientSort = false;
+    if(orders == null || orders.size() == 0 || hasExpressionBuckets(bucketFields) || groupingSets != null) {
       sorts = new FieldComparator[buckets.length];
       for(int i=0; i<sorts.length; i++) {
         sorts[i] = new FieldComparator("index", ComparatorOrder.ASCENDING);
       }
+      clientSort = orders != null && orders.size() > 0 && (groupingSets != null || !isBucketOrder(orders, buckets));
     } else {
       sorts = getComps(orders);
     }
 
-    int overfetch = (int)(limit * 1.25);
+    // Buckets are paged so unlimited group bys aren't truncated. Without a having clause a small limit usually
+    // fits in a single page, further pages are only requested if the limit hasn't been reached.
+    int pageSize = getFacetPageSize(properties);
+    if(lim != null && havingPredicate == null && !clientSort) {
+      pageSize = Math.max(1, Math.min(pageSize, Integer.parseInt(lim)));
+    }
 
-    TupleStream tupleStream = new FacetStream(zkHost,
-                                              collection,
-                                              solrParams,
-                                              buckets,
-                                              metrics,
-                                              sorts,
-                                              overfetch);
+    TupleStream tupleStream = new FacetPagingStream(zkHost,
+                                                    collection,
+                                                    solrParams,
+                                                    buckets,
+                                                    metrics,
+                                                    sorts,
+                                                    groupingSets,
+                                                    pageSize,
+                                                    getFacetMaxBuckets(properties),
+                                                    getFacetMaxRangeBuckets(properties),
+                                                    Boolean.parseBoolean(properties.getProperty(
+                                                        DateBucket.FILL_PROPERTY, "false")));
 
 
 
@@ -622,14 +1251,55 @@ class SolrTable extends AbstractQueryableTable implements TranslatableTable {
       tupleStream = new HavingStream(tupleStream, booleanOperation);
     }
 
-    if(lim != null)
+    if(clientSort) {
+      StreamComparator comp = getComp(orders);
+      if(lim == null) {
+        tupleStream = ExternalSortStream.create(tupleStream, comp, properties, schema.metrics);
+      } else {
+        tupleStream = new RankStream(tupleStream, Integer.parseInt(lim), comp);
+      }
+    } else if(lim != null)
     {
-      tupleStream = new LimitStream(tupleStream, limit);
+      tupleStream = new LimitStream(tupleStream, Integer.parseInt(lim));
     }
 
     return tupleStream;
   }
 
+  private static boolean hasExpressionBuckets(List<String> buckets) {
+    for(String bucket : buckets) {
+      if(DateBucket.parse(bucket) != null || NumericBucket.parse(bucket) != null || CaseBucket.parse(bucket) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean hasMultiValuedBuckets(List<String> buckets) {
+    RelDataType rowType = getRowType(new JavaTypeFactoryImpl());
+    for(String bucket : buckets) {
+      RelDataTypeField field = rowType.getField(bucket, true, false);
+      if(field != null && field.getType().getComponentType() != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Whether the orders are ascending on the leading buckets, the order facets return the buckets in. */
+  private boolean isBucketOrder(List<Pair<String, String>> orders, Bucket[] buckets) {
+    if(orders.size() > buckets.length) {
+      return false;
+    }
+    for(int i = 0; i < orders.size(); i++) {
+      if(!orders.get(i).getKey().equals(buckets[i].toString()) || !"asc".equals(getSortDirection(orders.get(i)))
+          || CaseBucket.parse(buckets[i].toString()) != null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   private TupleStream handleSelectDistinctMapReduce(final String zkHost,
                                                     final String collection,
                                                     final Properties properties,
@@ -646,15 +1316,18 @@ class SolrTable extends AbstractQueryableTable implements TranslatableTable {
     String sort = null;
     StreamEqualitor ecomp = null;
     StreamComparator comp = null;
+    FieldComparator[] bucketSorts = null;
 
     if(orders != null && orders.size() > 0) {
       StreamComparator[] adjustedSorts = adjustSorts(orders, buckets);
+      bucketSorts = new FieldComparator[adjustedSorts.length];
       // Because of the way adjustSorts works we know that each FieldComparator has a single
       // field name. For this reason we can just look at the leftFieldName
       FieldEqualitor[] fieldEqualitors = new FieldEqualitor[adjustedSorts.length];
       StringBuilder buf = new StringBuilder();
       for(int i=0; i<adjustedSorts.length; i++) {
         FieldComparator fieldComparator = (FieldComparator)adjustedSorts[i];
+        bucketSorts[i] = fieldComparator;
         fieldEqualitors[i] = new FieldEqualitor(fieldComparator.getLeftFieldName());
         if(i>0) {
           buf.append(",");
@@ -675,9 +1348,11 @@ class SolrTable extends AbstractQueryableTable implements TranslatableTable {
       StringBuilder sortBuf = new StringBuilder();
       FieldEqualitor[] equalitors = new FieldEqualitor[buckets.length];
       StreamComparator[] streamComparators = new StreamComparator[buckets.length];
+      bucketSorts = new FieldComparator[buckets.length];
       for(int i=0; i<buckets.length; i++) {
         equalitors[i] = new FieldEqualitor(buckets[i].toString());
-        streamComparators[i] = new FieldComparator(buckets[i].toString(), ComparatorOrder.ASCENDING);
+        bucketSorts[i] = new FieldComparator(buckets[i].toString(), ComparatorOrder.ASCENDING);
+        streamComparators[i] = bucketSorts[i];
         if(i>0) {
           sortBuf.append(',');
         }
@@ -695,6 +1370,14 @@ class SolrTable extends AbstractQueryableTable implements TranslatableTable {
       }
     }
 
+    // Low cardinality distincts are answered by a single facet request instead of exporting every matching document.
+    long threshold = Long.parseLong(properties.getProperty(DISTINCT_FACET_THRESHOLD, DEFAULT_DISTINCT_FACET_THRESHOLD));
+    Long analyzedCardinality = analyzedDistinctCardinality(zkHost, collection, properties, buckets);
+    if((analyzedCardinality != null && analyzedCardinality <= threshold)
+        || estimateDistinctCardinality(zkHost, collection, query, buckets) <= threshold) {
+      return handleSelectDistinctFacet(zkHost, collection, properties, query, bucketSorts, limit);
+    }
+
     ModifiableSolrParams params = new ModifiableSolrParams();
 
     params.set(CommonParams.FL, fl);
@@ -735,6 +1418,145 @@ class SolrTable extends AbstractQueryableTable implements TranslatableTable {
   }
 
 
+  private TupleStream handleSelectDistinctFacet(final String zkHost,
+                                                final String collection,
+                                                final Properties properties,
+                                                final String query,
+                                                final FieldComparator[] bucketSorts,
+                                                final String limit) throws IOException {
+    ModifiableSolrParams solrParams = new ModifiableSolrParams();
+    solrParams.add(CommonParams.Q, query);
+
+    // Facets are nested in sort order so each level can be sorted on its own bucket value
+    Bucket[] buckets = new Bucket[bucketSorts.length];
+    for(int i=0; i<bucketSorts.length; i++) {
+      buckets[i] = new Bucket(bucketSorts[i].getLeftFieldName());
+    }
+
+    int pageSize = getFacetPageSize(properties);
+    if(limit != null) {
+      pageSize = Math.max(1, Math.min(pageSize, Integer.parseInt(limit)));
+    }
+
+    TupleStream tupleStream = new FacetPagingStream(zkHost,
+                                                    collection,
+                                                    solrParams,
+                                                    buckets,
+                                                    new Metric[]{new CountMetric()},
+                                                    bucketSorts,
+                                                    null,
+                                                    pageSize,
+                                                    getFacetMaxBuckets(properties),
+                                                    getFacetMaxRangeBuckets(properties),
+                                                    false);
+
+    if(limit != null) {
+      tupleStream = new LimitStream(tupleStream, Integer.parseInt(limit));
+    }
+
+    return tupleStream;
+  }
+
+  private static int getFacetPageSize(Properties properties) {
+    return Integer.parseInt(properties.getProperty(FacetPagingStream.PAGE_SIZE_PROPERTY,
+        Integer.toString(FacetPagingStream.DEFAULT_PAGE_SIZE)));
+  }
+
+  private static int getFacetMaxBuckets(Properties properties) {
+    return Integer.parseInt(properties.getProperty(FacetPagingStream.MAX_BUCKETS_PROPERTY,
+        Integer.toString(FacetPagingStream.DEFAULT_MAX_BUCKETS)));
+  }
+
+  private static int getFacetMaxRangeBuckets(Properties properties) {
+    return Integer.parseInt(properties.getProperty(FacetPagingStream.MAX_RANGE_BUCKETS_PROPERTY,
+        Integer.toString(FacetPagingStream.DEFAULT_MAX_RANGE_BUCKETS)));
+  }
+
+  /**
+   * Bounds the number of distinct bucket combinations of any query with the statistics ANALYZE_TABLE computed for
+   * the current index version, which saves the hll request. Returns null if the statistics don't cover every bucket
+   * field or if a bucket field has missing values.
+   */
+  private static Long analyzedDistinctCardinality(final String zkHost,
+                                                  final String collection,
+                                                  final Properties properties,
+                                                  final Bucket[] buckets) {
+    TableStatistics statistics = StatisticsStore.getCurrent(zkHost, collection, properties);
+    if(statistics == null) {
+      return null;
+    }
+
+    long bound = 1;
+    for(Bucket bucket : buckets) {
+      TableStatistics.Column column = statistics.getColumn(bucket.toString());
+      if(column == null || column.nullFraction > 0) {
+        return null;
+      }
+      long distinctCount = (long) Math.ceil(column.distinctCount);
+      if(distinctCount > 0 && bound > Long.MAX_VALUE / distinctCount) {
+        return Long.MAX_VALUE;
+      }
+      bound *= distinctCount;
+    }
+    return bound;
+  }
+
+  /**
+   * Estimates the number of distinct bucket combinations matching the query with the hll facet function. The
+   * estimate is the product of the per field estimates. Since the terms facet skips documents without a value,
+   * Long.MAX_VALUE is returned if any bucket field is missing from a matching document.
+   */
+  private long estimateDistinctCardinality(final String zkHost,
+                                           final String collection,
+                                           final String query,
+                                           final Bucket[] buckets) throws IOException {
+    StringBuilder json = new StringBuilder("{");
+    for(int i=0; i<buckets.length; i++) {
+      if(i>0) {
+        json.append(',');
+      }
+      String field = buckets[i].toString();
+      json.append("\"card_").append(i).append("\":\"hll(").append(field).append(")\",");
+      json.append("\"missing_").append(i).append("\":{\"type\":\"query\",\"q\":\"-").append(field).append(":[* TO *]\"}");
+    }
+    json.append('}');
+
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set(CommonParams.Q, query);
+    params.set(CommonParams.ROWS, 0);
+    params.set("json.facet", json.toString());
+
+    try {
+      // Called while planning, the estimate reuses the connection of the streams rather than open a ZK session
+      QueryResponse response = new QueryRequest(params).process(SolrSchema.CLIENT_CACHE.getCloudSolrClient(zkHost),
+          SolrSchema.requestCollection(params, collection));
+      NamedList facets = (NamedList)response.getResponse().get("facets");
+      if(facets == null) {
+        return 0;
+      }
+
+      long estimate = 1;
+      for(int i=0; i<buckets.length; i++) {
+        NamedList missing = (NamedList)facets.get("missing_" + i);
+        if(missing != null && ((Number)missing.get("count")).longValue() > 0) {
+          return Long.MAX_VALUE;
+        }
+        Number cardinality = (Number)facets.get("card_" + i);
+        if(cardinality == null) {
+          // No documents matched the query
+          return 0;
+        }
+        if(cardinality.longValue() > 0 && estimate > Long.MAX_VALUE / cardinality.longValue()) {
+          return Long.MAX_VALUE;
+        }
+        estimate *= cardinality.longValue();
+      }
+      return estimate;
+    } catch (SolrServerException e) {
+      throw new IOException(e);
+    }
+  }
+
   private StreamComparator[] adjustSorts(List<Pair<String, String>> orders, Bucket[] buckets) throws IOException {
     List<FieldComparator> adjustedSorts = new ArrayList();
     Set<String> bucketFields = new HashSet();
@@ -772,9 +1594,14 @@ class SolrTable extends AbstractQueryableTable implements TranslatableTable {
 
   private TupleStream handleStats(String zk,
                                   String collection,
+                                  Properties properties,
+                                  List<Map.Entry<String, Class>> fields,
                                   String query,
                                   List<Pair<String, String>> metricPairs) {
-
+    boolean fastPath = Boolean.parseBoolean(properties.getProperty(STATS_FAST_PATH, "true"));
+    if(fastPath && NumFoundStream.supports(metricPairs, fields)) {
+      return new NumFoundStream(zk, collection, query, metricPairs, properties);
+    }
 
     ModifiableSolrParams solrParams = new ModifiableSolrParams();
     solrParams.add(CommonParams.Q, query);
@@ -817,8 +1644,105 @@ class SolrTable extends AbstractQueryableTable implements TranslatableTable {
      */
     @SuppressWarnings("UnusedDeclaration")
     public Enumerable<Object> query(List<Map.Entry<String, Class>> fields, String query, List<Pair<String, String>> order,
-                                    List<String> buckets, List<Pair<String, String>> metricPairs, String limit, String negativeQuery, String havingPredicate) {
-      return getTable().query(getProperties(), fields, query, order, buckets, metricPairs, limit, negativeQuery, havingPredicate);
+                                    List<String> buckets, List<Pair<String, String>> metricPairs, List<Integer> groupingSets,
+                                    String limit, String negativeQuery, String havingPredicate,
+                                    List<String> routeValues, List<String> partitions) {
+      return getTable().query(getProperties(), fields, query, order, buckets, metricPairs, groupingSets, limit,
+          negativeQuery, havingPredicate, routeValues, partitions);
+    }
+
+    /** Called via code-generation.
+     *
+     * @see SolrMethod#SOLR_QUERYABLE_JOIN_INPUT
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public TupleStream joinInput(List<Map.Entry<String, Class>> fields, String query, List<Pair<String, String>> order,
+                                 List<String> buckets, List<Pair<String, String>> metricPairs,
+                                 List<Integer> groupingSets, String limit,
+                                 String negativeQuery, String havingPredicate, List<String> routeValues,
+                                 List<String> partitions, List<String> keys, boolean skipNullKeys,
+                                 boolean partitioned, boolean filterSource, TupleStream filteredBy) {
+      return getTable().joinInput(getProperties(), fields, query, order, buckets, metricPairs, groupingSets, limit,
+          negativeQuery, havingPredicate, routeValues, partitions, keys, skipNullKeys, partitioned, filterSource, filteredBy);
+    }
+
+    /** Called via code-generation.
+     *
+     * @see SolrMethod#SOLR_QUERYABLE_UNION_INPUT
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public TupleStream unionInput(List<Map.Entry<String, Class>> fields, String query, List<Pair<String, String>> order,
+                                  List<String> buckets, List<Pair<String, String>> metricPairs,
+                                  List<Integer> groupingSets, String limit,
+                                  String negativeQuery, String havingPredicate, List<String> routeValues,
+                                  List<String> partitions) {
+      return getTable().getTupleStream(getProperties(), fields, query, order, buckets, metricPairs, groupingSets,
+          limit, negativeQuery, havingPredicate, routeValues, partitions, null);
+    }
+
+    /** Called via code-generation.
+     *
+     * @see SolrMethod#SOLR_QUERYABLE_TOP_PER_GROUP
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public Enumerable<Object> topPerGroup(List<Map.Entry<String, Class>> fields, String query,
+                                          List<Pair<String, String>> order, List<String> buckets,
+                                          List<Pair<String, String>> metricPairs, List<Integer> groupingSets,
+                                          String limit, String negativeQuery, String havingPredicate,
+                                          List<String> routeValues, List<String> partitions,
+                                          List<Pair<String, String>> windowOrders, int partitionKeys,
+                                          int maxRowNumber) {
+      return getTable().topPerGroup(getProperties(), fields, query, order, buckets, metricPairs, groupingSets, limit,
+          negativeQuery, havingPredicate, routeValues, partitions, windowOrders, partitionKeys, maxRowNumber);
+    }
+
+    /** Called via code-generation.
+     *
+     * @see SolrMethod#SOLR_QUERYABLE_WINDOW
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public Enumerable<Object> window(List<Map.Entry<String, Class>> fields, String query,
+                                     List<Pair<String, String>> order, List<String> buckets,
+                                     List<Pair<String, String>> metricPairs, List<Integer> groupingSets,
+                                     String limit, String negativeQuery, String havingPredicate,
+                                     List<String> routeValues, List<String> partitions,
+                                     List<Pair<String, String>> windowOrders, int partitionKeys, boolean rows,
+                                     int preceding, List<String> functions) {
+      return getTable().window(getProperties(), fields, query, order, buckets, metricPairs, groupingSets, limit,
+          negativeQuery, havingPredicate, routeValues, partitions, windowOrders, partitionKeys, rows, preceding,
+          functions);
+    }
+
+    /** Called via code-generation.
+     *
+     * @see SolrMethod#SOLR_QUERYABLE_UNION
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public Enumerable<Object> union(List<TupleStream> inputs, List<String> inputFields,
+                                    List<Map.Entry<String, Class>> fields, List<Pair<String, String>> orders,
+                                    String limit) {
+      return getTable().union(inputs, inputFields, fields, orders, limit);
+    }
+
+    /** Called via code-generation.
+     *
+     * @see SolrMethod#SOLR_QUERYABLE_JOIN
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public Enumerable<Object> join(TupleStream left, List<String> leftFields, List<String> leftKeys,
+                                   TupleStream right, List<String> rightFields, List<String> rightKeys,
+                                   String joinType, boolean parallelizable, List<Class> fieldClasses) {
+      return getTable().join(getProperties(), left, leftFields, leftKeys, right, rightFields, rightKeys, joinType,
+          parallelizable, fieldClasses);
+    }
+
+    /** Called via code-generation.
+     *
+     * @see SolrMethod#SOLR_QUERYABLE_SORT
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public Enumerable<Object> sort(Enumerable<Object> input, Comparator<Object> comparator, boolean scalar) {
+      return getTable().sort(getProperties(), input, comparator, scalar);
     }
   }
 
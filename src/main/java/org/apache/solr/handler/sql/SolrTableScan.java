@@ -18,9 +18,12 @@ package org.apache.solr.handler.sql;
 
 import org.apache.calcite.plan.*;
 import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelWriter;
 import org.apache.calcite.rel.core.TableScan;
 import org.apache.calcite.rel.metadata.RelMetadataQuery;
 import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.util.ImmutableBitSet;
 
 import java.util.List;
 
@@ -51,7 +54,9 @@ class SolrTableScan extends TableScan implements SolrRel {
   }
 
   @Override public RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
-    final float f = projectRowType == null ? 1f : (float) projectRowType.getFieldCount() / 100f;
+    // Scale by the fraction of the collection's fields that has to be read, the row count is the number of documents
+    final double f = projectRowType == null ? 1d :
+        (double) projectRowType.getFieldCount() / table.getRowType().getFieldCount();
     return super.computeSelfCost(planner, mq).multiplyBy(.1 * f);
   }
 
@@ -61,6 +66,20 @@ class SolrTableScan extends TableScan implements SolrRel {
     return this;
   }
 
+  /** Returns the scan of the fields at the positions in the fields of this scan. */
+  SolrTableScan project(ImmutableBitSet fields) {
+    final RelDataTypeFactory.FieldInfoBuilder builder = getCluster().getTypeFactory().builder();
+    for(int field : fields) {
+      builder.add(getRowType().getFieldList().get(field));
+    }
+    return new SolrTableScan(getCluster(), getTraitSet(), table, solrTable, builder.build());
+  }
+
+  @Override
+  public RelWriter explainTerms(RelWriter pw) {
+    return super.explainTerms(pw).itemIf("fields", getRowType().getFieldNames(), projectRowType != null);
+  }
+
   @Override
   public RelDataType deriveRowType() {
     return projectRowType != null ? projectRowType : super.deriveRowType();
@@ -18,6 +18,8 @@ package org.apache.solr.handler.sql;
 
 import com.google.common.collect.Lists;
 import org.apache.calcite.adapter.enumerable.*;
+import org.apache.calcite.adapter.java.JavaTypeFactory;
+import org.apache.calcite.linq4j.tree.Primitive;
 import org.apache.calcite.linq4j.tree.BlockBuilder;
 import org.apache.calcite.linq4j.tree.Expression;
 import org.apache.calcite.linq4j.tree.Expressions;
@@ -31,6 +33,7 @@ import org.apache.calcite.runtime.Hook;
 import org.apache.calcite.util.BuiltInMethod;
 import org.apache.calcite.util.Pair;
 
+import java.lang.reflect.Array;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
@@ -51,7 +54,10 @@ class SolrToEnumerableConverter extends ConverterImpl implements EnumerableRel {
 
   @Override
   public RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
-    return super.computeSelfCost(planner, mq).multiplyBy(.1);
+    // Every field of every row is transferred from Solr to the client
+    final double rows = mq.getRowCount(this);
+    final double io = rows * getRowType().getFieldCount();
+    return planner.getCostFactory().makeCost(rows, rows, io).multiplyBy(.1);
   }
 
   public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
@@ -69,7 +75,7 @@ class SolrToEnumerableConverter extends ConverterImpl implements EnumerableRel {
                     new AbstractList<Class>() {
                       @Override
                       public Class get(int index) {
-                        return physType.fieldClass(index);
+                        return fieldClass(implementor.getTypeFactory(), physType, index);
                       }
 
                       @Override
@@ -82,17 +88,32 @@ class SolrToEnumerableConverter extends ConverterImpl implements EnumerableRel {
     final Expression orders = list.append("orders", constantArrayList(solrImplementor.orders, Pair.class));
     final Expression buckets = list.append("buckets", constantArrayList(solrImplementor.buckets, String.class));
     final Expression metricPairs = list.append("metricPairs", constantArrayList(solrImplementor.metricPairs, Pair.class));
+    final Expression groupingSets = list.append("groupingSets", constantGroupingSets(solrImplementor));
     final Expression limit = list.append("limit", Expressions.constant(solrImplementor.limitValue));
     final Expression negativeQuery = list.append("negativeQuery", Expressions.constant(Boolean.toString(solrImplementor.negativeQuery), String.class));
     final Expression havingPredicate = list.append("havingTest", Expressions.constant(solrImplementor.havingPredicate, String.class));
+    final Expression routeValues = list.append("routeValues", constantRouteValues(solrImplementor));
+    final Expression partitions = list.append("partitions", constantPartitions(solrImplementor));
     Expression enumerable = list.append("enumerable", Expressions.call(table, SolrMethod.SOLR_QUERYABLE_QUERY.method,
-        fields, query, orders, buckets, metricPairs, limit, negativeQuery, havingPredicate));
+        fields, query, orders, buckets, metricPairs, groupingSets, limit, negativeQuery, havingPredicate, routeValues, partitions));
     Hook.QUERY_PLAN.run(query);
     list.add(Expressions.return_(null, enumerable));
     return implementor.result(physType, list.toBlock());
   }
 
-  private List<String> generateFields(List<String> queryFields, Map<String, String> fieldMappings) {
+  /**
+   * Returns the class the enumerator decodes a column to. ARRAY columns are lists, they are described by the array
+   * class of their elements so that the elements are decoded to their own class.
+   */
+  static Class fieldClass(JavaTypeFactory typeFactory, PhysType physType, int index) {
+    RelDataType componentType = physType.getRowType().getFieldList().get(index).getType().getComponentType();
+    if(componentType != null) {
+      return Array.newInstance(Primitive.box((Class) typeFactory.getJavaClass(componentType)), 0).getClass();
+    }
+    return physType.fieldClass(index);
+  }
+
+  static List<String> generateFields(List<String> queryFields, Map<String, String> fieldMappings) {
     if(fieldMappings.isEmpty()) {
       return queryFields;
     } else {
@@ -104,7 +125,7 @@ class SolrToEnumerableConverter extends ConverterImpl implements EnumerableRel {
     }
   }
 
-  private String getField(Map<String, String> fieldMappings, String field) {
+  private static String getField(Map<String, String> fieldMappings, String field) {
     String retField = field;
     while(fieldMappings.containsKey(field)) {
       field = fieldMappings.getOrDefault(field, retField);
@@ -117,11 +138,38 @@ class SolrToEnumerableConverter extends ConverterImpl implements EnumerableRel {
     return retField;
   }
 
+  /** Returns the grouping sets of the aggregate as a constant list, a null list if it has a single grouping set. */
+  static Expression constantGroupingSets(SolrRel.Implementor implementor) {
+    return implementor.groupingSets == null ? Expressions.constant(null, List.class)
+        : constantArrayList(implementor.groupingSets, Integer.class);
+  }
+
+  /** Returns the route values of the query as a constant list, a null list if the query isn't routed. */
+  static Expression constantRouteValues(SolrRel.Implementor implementor) {
+    return implementor.routeValues == null ? Expressions.constant(null, List.class)
+        : constantArrayList(new ArrayList<>(implementor.routeValues), String.class);
+  }
+
+  /**
+   * Returns the partitions of a time partitioned table the query needs as a constant list, a null list if the table
+   * isn't partitioned or the query needs all of its partitions.
+   */
+  static Expression constantPartitions(SolrRel.Implementor implementor) {
+    TimePartitions partitions = implementor.solrTable == null ? null : implementor.solrTable.getPartitions();
+    TimeRange range = partitions == null ? null : implementor.timeRanges.get(partitions.getField());
+    if(range == null) {
+      return Expressions.constant(null, List.class);
+    }
+    List<String> pruned = partitions.prune(range);
+    return pruned.size() == partitions.getCollections().size() ? Expressions.constant(null, List.class)
+        : constantArrayList(pruned, String.class);
+  }
+
   /**
    * E.g. {@code constantArrayList("x", "y")} returns
    * "Arrays.asList('x', 'y')".
    */
-  private static <T> MethodCallExpression constantArrayList(List<T> values, Class clazz) {
+  static <T> MethodCallExpression constantArrayList(List<T> values, Class clazz) {
     return Expressions.call(BuiltInMethod.ARRAYS_AS_LIST.method,
         Expressions.newArrayInit(clazz, constantList(values)));
   }
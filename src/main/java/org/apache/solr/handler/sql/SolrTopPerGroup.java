@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.adapter.enumerable.EnumerableRelImplementor;
+import org.apache.calcite.adapter.enumerable.JavaRowFormat;
+import org.apache.calcite.adapter.enumerable.PhysType;
+import org.apache.calcite.adapter.enumerable.PhysTypeImpl;
+import org.apache.calcite.linq4j.tree.BlockBuilder;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptCost;
+import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.rel.RelCollation;
+import org.apache.calcite.rel.RelFieldCollation;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelWriter;
+import org.apache.calcite.rel.SingleRel;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.util.ImmutableBitSet;
+import org.apache.calcite.util.Pair;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The top rows of each partition of a Solr input, the rows whose {@code ROW_NUMBER() OVER (PARTITION BY ... ORDER BY
+ * ...)} is at most a maximum row number. The input is sorted on the partition keys and the order keys, by the export
+ * handler for a plain select, and a {@link TopPerGroupStream} numbers the rows of each partition as they are read.
+ * Like a pushed down ORDER BY, missing values sort first when ascending, the way the export handler sorts them.
+ */
+class SolrTopPerGroup extends SingleRel implements EnumerableRel {
+  private final ImmutableBitSet partitionKeys;
+  private final RelCollation orderKeys;
+  private final int maxRowNumber;
+
+  /**
+   * @param partitionKeys Fields of the input the rows are partitioned on
+   * @param orderKeys Order of the rows within a partition
+   * @param maxRowNumber Number of rows returned per partition
+   * @param rowType The fields of the input followed by the row number
+   */
+  SolrTopPerGroup(RelOptCluster cluster, RelTraitSet traitSet, RelNode input, ImmutableBitSet partitionKeys,
+                  RelCollation orderKeys, int maxRowNumber, RelDataType rowType) {
+    super(cluster, traitSet, input);
+    this.partitionKeys = partitionKeys;
+    this.orderKeys = orderKeys;
+    this.maxRowNumber = maxRowNumber;
+    this.rowType = rowType;
+  }
+
+  @Override
+  public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+    return new SolrTopPerGroup(getCluster(), traitSet, sole(inputs), partitionKeys, orderKeys, maxRowNumber, rowType);
+  }
+
+  @Override
+  protected RelDataType deriveRowType() {
+    return rowType;
+  }
+
+  @Override
+  public RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
+    // Rows are numbered as they are handed over from the input, like a SolrToEnumerableConverter does
+    final double rows = mq.getRowCount(getInput());
+    return planner.getCostFactory().makeCost(rows, rows, rows * getRowType().getFieldCount()).multiplyBy(.1);
+  }
+
+  @Override
+  public RelWriter explainTerms(RelWriter pw) {
+    return super.explainTerms(pw)
+        .item("partition", partitionKeys)
+        .item("order", orderKeys)
+        .item("rows", maxRowNumber);
+  }
+
+  public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+    final BlockBuilder list = new BlockBuilder();
+    final PhysType physType = PhysTypeImpl.of(implementor.getTypeFactory(), getRowType(),
+        pref.prefer(JavaRowFormat.ARRAY));
+    final SolrRel.Implementor solrImplementor = new SolrRel.Implementor();
+    solrImplementor.visitChild(0, getInput());
+
+    // The row number follows the fields of the input
+    final List<String> inputNames = SolrRules.solrFieldNames(getInput().getRowType());
+    final List<String> fieldNames = new ArrayList<>(
+        SolrToEnumerableConverter.generateFields(inputNames, solrImplementor.fieldMappings));
+    fieldNames.add(SolrRules.solrFieldNames(getRowType()).get(inputNames.size()));
+    final List<Class> fieldClasses = new ArrayList<>();
+    for(int i = 0; i < fieldNames.size(); i++) {
+      fieldClasses.add(SolrToEnumerableConverter.fieldClass(implementor.getTypeFactory(), physType, i));
+    }
+
+    final List<Pair<String, String>> windowOrders = new ArrayList<>();
+    for(int key : partitionKeys) {
+      windowOrders.add(new Pair<>(fieldNames.get(key), "asc"));
+    }
+    for(RelFieldCollation fieldCollation : orderKeys.getFieldCollations()) {
+      windowOrders.add(new Pair<>(fieldNames.get(fieldCollation.getFieldIndex()),
+          fieldCollation.getDirection() == RelFieldCollation.Direction.DESCENDING ? "desc" : "asc"));
+    }
+
+    final Expression table = list.append("table", solrImplementor.table.getExpression(SolrTable.SolrQueryable.class));
+    final Expression enumerable = list.append("enumerable", Expressions.call(table,
+        SolrMethod.SOLR_QUERYABLE_TOP_PER_GROUP.method,
+        SolrToEnumerableConverter.constantArrayList(Pair.zip(fieldNames, fieldClasses), Pair.class),
+        Expressions.constant(solrImplementor.query, String.class),
+        SolrToEnumerableConverter.constantArrayList(solrImplementor.orders, Pair.class),
+        SolrToEnumerableConverter.constantArrayList(solrImplementor.buckets, String.class),
+        SolrToEnumerableConverter.constantArrayList(solrImplementor.metricPairs, Pair.class),
+        SolrToEnumerableConverter.constantGroupingSets(solrImplementor),
+        Expressions.constant(solrImplementor.limitValue, String.class),
+        Expressions.constant(Boolean.toString(solrImplementor.negativeQuery), String.class),
+        Expressions.constant(solrImplementor.havingPredicate, String.class),
+        SolrToEnumerableConverter.constantRouteValues(solrImplementor),
+        SolrToEnumerableConverter.constantPartitions(solrImplementor),
+        SolrToEnumerableConverter.constantArrayList(windowOrders, Pair.class),
+        Expressions.constant(partitionKeys.cardinality()),
+        Expressions.constant(maxRowNumber)));
+    list.add(Expressions.return_(null, enumerable));
+    return implementor.result(physType, list.toBlock());
+  }
+}
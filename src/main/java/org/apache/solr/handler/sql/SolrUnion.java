@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.adapter.enumerable.EnumerableRelImplementor;
+import org.apache.calcite.adapter.enumerable.JavaRowFormat;
+import org.apache.calcite.adapter.enumerable.PhysType;
+import org.apache.calcite.adapter.enumerable.PhysTypeImpl;
+import org.apache.calcite.linq4j.tree.BlockBuilder;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptCost;
+import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.rel.RelCollation;
+import org.apache.calcite.rel.RelCollationTraitDef;
+import org.apache.calcite.rel.RelFieldCollation;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelWriter;
+import org.apache.calcite.rel.core.SetOp;
+import org.apache.calcite.rel.core.Union;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.util.BuiltInMethod;
+import org.apache.calcite.util.Pair;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * UNION ALL of Solr inputs, typically the same query on several collections. The inputs are queried concurrently by
+ * a {@link UnionStream}.
+ *
+ * <p>A union below an ORDER BY or LIMIT is sorted: every input is sorted and limited by Solr, and the sorted inputs
+ * are merged.</p>
+ */
+class SolrUnion extends Union implements EnumerableRel {
+  private final RexNode fetch;
+
+  /**
+   * @param fetch Maximum number of rows, also pushed into every input, null for all of them
+   */
+  SolrUnion(RelOptCluster cluster, RelTraitSet traitSet, List<RelNode> inputs, RexNode fetch) {
+    super(cluster, traitSet, inputs, true);
+    this.fetch = fetch;
+  }
+
+  @Override
+  public SetOp copy(RelTraitSet traitSet, List<RelNode> inputs, boolean all) {
+    assert all;
+    return new SolrUnion(getCluster(), traitSet, inputs, fetch);
+  }
+
+  @Override
+  public double estimateRowCount(RelMetadataQuery mq) {
+    double rowCount = super.estimateRowCount(mq);
+    return fetch == null ? rowCount : Math.min(rowCount, RexLiteral.intValue(fetch));
+  }
+
+  @Override
+  public RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
+    // Rows are only handed over from the inputs, like a SolrToEnumerableConverter does for a single input
+    final double rows = mq.getRowCount(this);
+    return planner.getCostFactory().makeCost(rows, rows, rows * getRowType().getFieldCount()).multiplyBy(.1);
+  }
+
+  @Override
+  public RelWriter explainTerms(RelWriter pw) {
+    return super.explainTerms(pw).itemIf("fetch", fetch, fetch != null);
+  }
+
+  private RelCollation getCollation() {
+    return getTraitSet().getTrait(RelCollationTraitDef.INSTANCE);
+  }
+
+  public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+    final BlockBuilder list = new BlockBuilder();
+    final PhysType physType = PhysTypeImpl.of(implementor.getTypeFactory(), getRowType(),
+        pref.prefer(JavaRowFormat.ARRAY));
+
+    final List<String> fieldNames = SolrRules.solrFieldNames(getRowType());
+    final List<Class> fieldClasses = new ArrayList<>();
+    for(int i = 0; i < fieldNames.size(); i++) {
+      fieldClasses.add(SolrToEnumerableConverter.fieldClass(implementor.getTypeFactory(), physType, i));
+    }
+
+    final List<Expression> inputs = new ArrayList<>();
+    final List<String> inputFields = new ArrayList<>();
+    Expression firstTable = null;
+    for(int i = 0; i < getInputs().size(); i++) {
+      final RelNode input = getInput(i);
+      final SolrRel.Implementor inputImplementor = new SolrRel.Implementor();
+      inputImplementor.visitChild(0, input);
+      final List<String> queryFields = SolrToEnumerableConverter.generateFields(
+          SolrRules.solrFieldNames(input.getRowType()), inputImplementor.fieldMappings);
+      inputFields.addAll(queryFields);
+
+      final Expression table = list.append("table" + i,
+          inputImplementor.table.getExpression(SolrTable.SolrQueryable.class), false);
+      if(firstTable == null) {
+        firstTable = table;
+      }
+      // Not optimized, inputs on the same table must each get their own stream
+      inputs.add(list.append("input" + i, Expressions.call(table, SolrMethod.SOLR_QUERYABLE_UNION_INPUT.method,
+          SolrToEnumerableConverter.constantArrayList(Pair.zip(queryFields, fieldClasses), Pair.class),
+          Expressions.constant(inputImplementor.query, String.class),
+          SolrToEnumerableConverter.constantArrayList(inputImplementor.orders, Pair.class),
+          SolrToEnumerableConverter.constantArrayList(inputImplementor.buckets, String.class),
+          SolrToEnumerableConverter.constantArrayList(inputImplementor.metricPairs, Pair.class),
+          SolrToEnumerableConverter.constantGroupingSets(inputImplementor),
+          Expressions.constant(inputImplementor.limitValue, String.class),
+          Expressions.constant(Boolean.toString(inputImplementor.negativeQuery), String.class),
+          Expressions.constant(inputImplementor.havingPredicate, String.class),
+          SolrToEnumerableConverter.constantRouteValues(inputImplementor),
+          SolrToEnumerableConverter.constantPartitions(inputImplementor)), false));
+    }
+
+    final List<Pair<String, String>> orders = new ArrayList<>();
+    for(RelFieldCollation fieldCollation : getCollation().getFieldCollations()) {
+      orders.add(new Pair<>(fieldNames.get(fieldCollation.getFieldIndex()),
+          fieldCollation.getDirection() == RelFieldCollation.Direction.DESCENDING ? "desc" : "asc"));
+    }
+
+    final Expression enumerable = list.append("enumerable", Expressions.call(firstTable,
+        SolrMethod.SOLR_QUERYABLE_UNION.method,
+        Expressions.call(BuiltInMethod.ARRAYS_AS_LIST.method,
+            Expressions.newArrayInit(TupleStream.class, inputs)),
+        SolrToEnumerableConverter.constantArrayList(inputFields, String.class),
+        SolrToEnumerableConverter.constantArrayList(Pair.zip(fieldNames, fieldClasses), Pair.class),
+        SolrToEnumerableConverter.constantArrayList(orders, Pair.class),
+        Expressions.constant(fetch == null ? null : Integer.toString(RexLiteral.intValue(fetch)), String.class)));
+    list.add(Expressions.return_(null, enumerable));
+    return implementor.result(physType, list.toBlock());
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptCost;
+import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelWriter;
+import org.apache.calcite.rel.SingleRel;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rel.type.RelDataType;
+
+import java.util.List;
+
+/**
+ * The rows of a Solr input joined with each value of one of its multi-valued fields, the UNNEST of the field. Only a
+ * {@link SolrAggregate} that groups by the values can read it: a terms facet on the field buckets the documents by
+ * each of its values. A document is counted once per distinct value, duplicate values aren't repeated.
+ */
+class SolrUnnest extends SingleRel implements SolrRel {
+  private final int field;
+
+  /**
+   * @param field Index of the multi-valued field in the input
+   * @param rowType The fields of the input followed by the values of the multi-valued field
+   */
+  SolrUnnest(RelOptCluster cluster, RelTraitSet traitSet, RelNode input, int field, RelDataType rowType) {
+    super(cluster, traitSet, input);
+    this.field = field;
+    this.rowType = rowType;
+    assert getConvention() == SolrRel.CONVENTION;
+  }
+
+  @Override
+  public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+    return new SolrUnnest(getCluster(), traitSet, sole(inputs), field, rowType);
+  }
+
+  @Override
+  protected RelDataType deriveRowType() {
+    return rowType;
+  }
+
+  @Override
+  public RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
+    return super.computeSelfCost(planner, mq).multiplyBy(0.1);
+  }
+
+  @Override
+  public RelWriter explainTerms(RelWriter pw) {
+    return super.explainTerms(pw).item("field", field);
+  }
+
+  public void implement(Implementor implementor) {
+    implementor.visitChild(0, getInput());
+    final String inName = SolrRules.solrFieldNames(getInput().getRowType()).get(field);
+    final String valueName = SolrRules.solrFieldNames(getRowType()).get(getInput().getRowType().getFieldCount());
+    implementor.addFieldMapping(valueName, implementor.fieldMappings.getOrDefault(inName, inName));
+  }
+}
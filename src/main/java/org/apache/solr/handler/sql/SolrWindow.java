@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.adapter.enumerable.EnumerableRelImplementor;
+import org.apache.calcite.adapter.enumerable.JavaRowFormat;
+import org.apache.calcite.adapter.enumerable.PhysType;
+import org.apache.calcite.adapter.enumerable.PhysTypeImpl;
+import org.apache.calcite.linq4j.tree.BlockBuilder;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptCost;
+import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.rel.RelFieldCollation;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.Window;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.apache.calcite.util.NlsString;
+import org.apache.calcite.util.Pair;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Window functions over a Solr input, computed by a {@link WindowStream} in a single pass over the input sorted on the
+ * partition keys and the order keys of the window, by the export handler for a plain select. The window has a single
+ * group whose frame ends at the current row.
+ */
+class SolrWindow extends Window implements EnumerableRel {
+
+  SolrWindow(RelOptCluster cluster, RelTraitSet traitSet, RelNode input, List<RexLiteral> constants,
+             RelDataType rowType, List<Group> groups) {
+    super(cluster, traitSet, input, constants, rowType, groups);
+  }
+
+  @Override
+  public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+    return new SolrWindow(getCluster(), traitSet, sole(inputs), constants, rowType, groups);
+  }
+
+  @Override
+  public RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
+    // The rows are handed over from the input as they are read, unlike the partitions buffered by EnumerableWindow
+    return super.computeSelfCost(planner, mq).multiplyBy(.1);
+  }
+
+  /** Whether the value of the window function depends on the frame, the rows it aggregates. */
+  static boolean isFrameSensitive(RexNode aggCall) {
+    switch (aggCall.getKind()) {
+      case ROW_NUMBER:
+      case RANK:
+      case DENSE_RANK:
+      case LAG:
+      case LEAD:
+        return false;
+      default:
+        return true;
+    }
+  }
+
+  /** Returns the literal the operand is, or the constant of the window it refers to, null for a field. */
+  static RexLiteral getConstant(Window window, RexNode operand) {
+    if(operand instanceof RexLiteral) {
+      return (RexLiteral) operand;
+    }
+    final int constant = ((RexInputRef) operand).getIndex() - window.getInput().getRowType().getFieldCount();
+    return constant < 0 ? null : window.constants.get(constant);
+  }
+
+  /** Returns the value of an integer constant, -1 if the operand isn't one. */
+  static long getOffset(Window window, RexNode operand) {
+    final RexLiteral literal = getConstant(window, operand);
+    if(literal == null || !SqlTypeName.INT_TYPES.contains(literal.getType().getSqlTypeName())) {
+      return -1;
+    }
+    return ((BigDecimal) literal.getValue()).longValue();
+  }
+
+  /**
+   * Returns the value of a constant of the window as the value of a field of a tuple, null if it has no such value.
+   * Solr returns integers as longs and other numbers as doubles.
+   */
+  static Object getValue(RexLiteral literal) {
+    final Comparable value = literal.getValue();
+    if(value instanceof NlsString) {
+      return ((NlsString) value).getValue();
+    } else if(value instanceof BigDecimal) {
+      return SqlTypeName.INT_TYPES.contains(literal.getType().getSqlTypeName())
+          ? (Object) ((BigDecimal) value).longValue() : (Object) ((BigDecimal) value).doubleValue();
+    } else if(value instanceof Boolean) {
+      return value;
+    }
+    return null;
+  }
+
+  public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+    final BlockBuilder list = new BlockBuilder();
+    final PhysType physType = PhysTypeImpl.of(implementor.getTypeFactory(), getRowType(),
+        pref.prefer(JavaRowFormat.ARRAY));
+    final SolrRel.Implementor solrImplementor = new SolrRel.Implementor();
+    solrImplementor.visitChild(0, getInput());
+    final Group group = groups.get(0);
+
+    // The window functions follow the fields of the input
+    final List<String> inputNames = SolrRules.solrFieldNames(getInput().getRowType());
+    final List<String> outNames = SolrRules.solrFieldNames(getRowType());
+    final List<String> fieldNames = new ArrayList<>(
+        SolrToEnumerableConverter.generateFields(inputNames, solrImplementor.fieldMappings));
+    fieldNames.addAll(outNames.subList(inputNames.size(), outNames.size()));
+    final List<Class> fieldClasses = new ArrayList<>();
+    for(int i = 0; i < fieldNames.size(); i++) {
+      fieldClasses.add(SolrToEnumerableConverter.fieldClass(implementor.getTypeFactory(), physType, i));
+    }
+
+    final List<Pair<String, String>> windowOrders = new ArrayList<>();
+    for(int key : group.keys) {
+      windowOrders.add(new Pair<>(fieldNames.get(key), "asc"));
+    }
+    for(RelFieldCollation fieldCollation : group.orderKeys.getFieldCollations()) {
+      windowOrders.add(new Pair<>(fieldNames.get(fieldCollation.getFieldIndex()),
+          fieldCollation.getDirection() == RelFieldCollation.Direction.DESCENDING ? "desc" : "asc"));
+    }
+
+    boolean frameSensitive = false;
+    final List<String> functions = new ArrayList<>();
+    for(RexWinAggCall aggCall : group.aggCalls) {
+      frameSensitive |= isFrameSensitive(aggCall);
+      final List<RexNode> operands = aggCall.getOperands();
+      final String argument = operands.isEmpty() ? null
+          : fieldNames.get(((RexInputRef) operands.get(0)).getIndex());
+      final long offset = operands.size() > 1 ? getOffset(this, operands.get(1)) : 1;
+      final Object defaultValue = operands.size() > 2 ? getValue(getConstant(this, operands.get(2))) : null;
+      functions.add(WindowStream.toFunction(fieldNames.get(inputNames.size() + aggCall.ordinal),
+          aggCall.getKind().name(), argument, offset, defaultValue));
+    }
+
+    // Functions that don't aggregate a frame only look at the current row and the rows at their offsets
+    final boolean rows = group.isRows || !frameSensitive;
+    final int preceding = !frameSensitive || group.lowerBound.isCurrentRow() ? 0
+        : group.lowerBound.isUnbounded() ? -1 : (int) getOffset(this, group.lowerBound.getOffset());
+
+    final Expression table = list.append("table", solrImplementor.table.getExpression(SolrTable.SolrQueryable.class));
+    final Expression enumerable = list.append("enumerable", Expressions.call(table,
+        SolrMethod.SOLR_QUERYABLE_WINDOW.method,
+        SolrToEnumerableConverter.constantArrayList(Pair.zip(fieldNames, fieldClasses), Pair.class),
+        Expressions.constant(solrImplementor.query, String.class),
+        SolrToEnumerableConverter.constantArrayList(solrImplementor.orders, Pair.class),
+        SolrToEnumerableConverter.constantArrayList(solrImplementor.buckets, String.class),
+        SolrToEnumerableConverter.constantArrayList(solrImplementor.metricPairs, Pair.class),
+        SolrToEnumerableConverter.constantGroupingSets(solrImplementor),
+        Expressions.constant(solrImplementor.limitValue, String.class),
+        Expressions.constant(Boolean.toString(solrImplementor.negativeQuery), String.class),
+        Expressions.constant(solrImplementor.havingPredicate, String.class),
+        SolrToEnumerableConverter.constantRouteValues(solrImplementor),
+        SolrToEnumerableConverter.constantPartitions(solrImplementor),
+        SolrToEnumerableConverter.constantArrayList(windowOrders, Pair.class),
+        Expressions.constant(group.keys.cardinality()),
+        Expressions.constant(rows),
+        Expressions.constant(preceding),
+        SolrToEnumerableConverter.constantArrayList(functions, String.class)));
+    list.add(Expressions.return_(null, enumerable));
+    return implementor.result(physType, list.toBlock());
+  }
+}
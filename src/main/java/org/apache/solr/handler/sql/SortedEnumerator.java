@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.calcite.linq4j.Enumerator;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Properties;
+
+/** Enumerator over the rows of another enumerator sorted by an {@link ExternalSorter}. */
+class SortedEnumerator implements Enumerator<Object> {
+  private final Enumerator<Object> input;
+  private final RowSorter sorter;
+  private Object current;
+
+  /** Creates a SortedEnumerator, reading and sorting all the rows of the input.
+   *
+   * @param input Rows to sort
+   * @param comparator Order of the rows
+   * @param scalar Whether the rows are the values of a single column rather than arrays of values
+   * @param properties Connection properties read by {@link ExternalSorter}
+   * @param metrics Counters to update with the spill statistics
+   */
+  SortedEnumerator(Enumerator<Object> input, Comparator<Object> comparator, boolean scalar, Properties properties,
+                   SolrMetrics metrics) {
+    this.input = input;
+    this.sorter = new RowSorter(comparator, scalar, properties, metrics);
+    try {
+      while(input.moveNext()) {
+        sorter.add(input.current());
+      }
+      sorter.sort();
+    } catch (IOException e) {
+      close();
+      throw new RuntimeException(e);
+    }
+  }
+
+  public Object current() {
+    return current;
+  }
+
+  public boolean moveNext() {
+    if(!sorter.hasNext()) {
+      return false;
+    }
+    try {
+      current = sorter.next();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return true;
+  }
+
+  public void reset() {
+    throw new UnsupportedOperationException();
+  }
+
+  public void close() {
+    try {
+      sorter.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      input.close();
+    }
+  }
+
+  /** Spills the rows as their values. */
+  private static class RowSorter extends ExternalSorter<Object> {
+    private final boolean scalar;
+
+    RowSorter(Comparator<Object> comparator, boolean scalar, Properties properties, SolrMetrics metrics) {
+      super(comparator, properties, metrics);
+      this.scalar = scalar;
+    }
+
+    protected Object[] toValues(Object row) {
+      return scalar ? new Object[] {row} : (Object[]) row;
+    }
+
+    protected Object toRow(Object[] values) {
+      return scalar ? values[0] : values;
+    }
+
+    protected long estimateSize(Object row) {
+      if(scalar) {
+        return 16 + estimateValueSize(row);
+      }
+      long size = 16;
+      for(Object value : (Object[]) row) {
+        size += 8 + estimateValueSize(value);
+      }
+      return size;
+    }
+  }
+}
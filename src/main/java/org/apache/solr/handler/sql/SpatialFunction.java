@@ -0,0 +1,250 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.calcite.adapter.enumerable.CallImplementor;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.linq4j.tree.Types;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.schema.FunctionParameter;
+import org.apache.calcite.schema.ImplementableFunction;
+import org.apache.calcite.schema.ScalarFunction;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.type.SqlTypeName;
+
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The spatial functions of a LatLonType or LatLonPointSpatialField field, whose values are latitude and longitude
+ * separated by a comma:
+ * <ul>
+ *   <li>ST_DWITHIN(field, lat, lon, distance), whether the value is within the distance in kilometers of the point.
+ *   A filter on it is a {@code {!geofilt}} query.</li>
+ *   <li>ST_BBOX(field, lat, lon, distance), whether the value is within the bounding box of the circle of the distance
+ *   around the point. A filter on it is a {@code {!bbox}} query, which is cheaper than the circle.</li>
+ *   <li>ST_DISTANCE(field, lat, lon), the distance in kilometers of the value from the point. It is computed by Solr
+ *   as a {@link GeoDistance} when a query with a limit returns or sorts on it, so the nearest documents are found by
+ *   Solr.</li>
+ * </ul>
+ * The point and the distance are numeric literals. Calcite only evaluates the functions if they aren't pushed down to
+ * Solr, with the same formulas.
+ *
+ * <p>The class is public because the generated code calls {@link #distance}, {@link #dwithin} and {@link #bbox} from
+ * outside of this package.</p>
+ */
+public class SpatialFunction implements ScalarFunction, ImplementableFunction {
+  static final String DWITHIN = "ST_DWITHIN";
+  static final String BBOX = "ST_BBOX";
+  static final String DISTANCE = "ST_DISTANCE";
+
+  /** Mean radius of the earth in kilometers, the radius Solr computes distances with. */
+  private static final double EARTH_RADIUS_KM = 6371.0087714;
+
+  private static final Method DISTANCE_METHOD =
+      Types.lookupMethod(SpatialFunction.class, "distance", Object.class, Object.class, Object.class);
+  private static final Method DWITHIN_METHOD =
+      Types.lookupMethod(SpatialFunction.class, "dwithin", Object.class, Object.class, Object.class, Object.class);
+  private static final Method BBOX_METHOD =
+      Types.lookupMethod(SpatialFunction.class, "bbox", Object.class, Object.class, Object.class, Object.class);
+
+  private final String name;
+
+  /**
+   * @param name Name of the function, one of {@link #DWITHIN}, {@link #BBOX} and {@link #DISTANCE}
+   */
+  SpatialFunction(String name) {
+    this.name = name;
+  }
+
+  /** Whether the expression is an ST_DWITHIN or ST_BBOX filter Solr can run. */
+  static boolean isFilter(RexNode node) {
+    return (isCall(node, DWITHIN) || isCall(node, BBOX)) && isPushable((RexCall) node);
+  }
+
+  /** Whether the expression is an ST_DISTANCE Solr can compute. */
+  static boolean isDistance(RexNode node) {
+    return isCall(node, DISTANCE) && isPushable((RexCall) node);
+  }
+
+  private static boolean isCall(RexNode node, String name) {
+    return node instanceof RexCall && ((RexCall) node).getOperator().getName().equalsIgnoreCase(name);
+  }
+
+  /** The first operand is a field, the others are numbers. */
+  private static boolean isPushable(RexCall call) {
+    final List<RexNode> operands = call.getOperands();
+    if(!(SolrRules.unwrapCast(operands.get(0)) instanceof RexInputRef)) {
+      return false;
+    }
+    for(RexNode operand : operands.subList(1, operands.size())) {
+      if(toNumber(operand) == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns a numeric literal as Solr parses it, null if the expression isn't one. */
+  static String toNumber(RexNode node) {
+    node = SolrRules.unwrapCast(node);
+    if(node.isA(SqlKind.MINUS_PREFIX)) {
+      final String number = toNumber(((RexCall) node).getOperands().get(0));
+      return number == null ? null : number.startsWith("-") ? number.substring(1) : "-" + number;
+    }
+    if(!(node instanceof RexLiteral) || !(((RexLiteral) node).getValue() instanceof BigDecimal)) {
+      return null;
+    }
+    return ((BigDecimal) ((RexLiteral) node).getValue()).toPlainString();
+  }
+
+  /**
+   * Returns the query of an ST_DWITHIN or ST_BBOX filter.
+   *
+   * @param call The filter, see {@link #isFilter}
+   * @param field Name of the field of the filter
+   */
+  static String toQuery(RexCall call, String field) {
+    final List<RexNode> operands = call.getOperands();
+    final String parser = isCall(call, BBOX) ? "bbox" : "geofilt";
+    return "_query_:\"{!" + parser + " sfield=" + field + " pt=" + toNumber(operands.get(1)) + ","
+        + toNumber(operands.get(2)) + " d=" + toNumber(operands.get(3)) + "}\"";
+  }
+
+  /**
+   * Returns the name of the {@link GeoDistance} of an ST_DISTANCE.
+   *
+   * @param call The distance, see {@link #isDistance}
+   * @param field Name of the field of the distance
+   */
+  static String toDistance(RexCall call, String field) {
+    return GeoDistance.toDistance(field, toNumber(call.getOperands().get(1)), toNumber(call.getOperands().get(2)));
+  }
+
+  public List<FunctionParameter> getParameters() {
+    final List<FunctionParameter> parameters = new ArrayList<>();
+    parameters.add(parameter(0, "field"));
+    parameters.add(parameter(1, "lat"));
+    parameters.add(parameter(2, "lon"));
+    if(!DISTANCE.equals(name)) {
+      parameters.add(parameter(3, "distance"));
+    }
+    return parameters;
+  }
+
+  private static FunctionParameter parameter(int ordinal, String name) {
+    return new FunctionParameter() {
+      public int getOrdinal() {
+        return ordinal;
+      }
+
+      public String getName() {
+        return name;
+      }
+
+      public RelDataType getType(RelDataTypeFactory typeFactory) {
+        // The validator doesn't match literals to typed parameters of user-defined functions
+        return typeFactory.createSqlType(SqlTypeName.ANY);
+      }
+
+      public boolean isOptional() {
+        return false;
+      }
+    };
+  }
+
+  public RelDataType getReturnType(RelDataTypeFactory typeFactory) {
+    return typeFactory.createJavaType(DISTANCE.equals(name) ? Double.class : Boolean.class);
+  }
+
+  public CallImplementor getImplementor() {
+    return (translator, call, nullAs) -> {
+      final List<Expression> operands = new ArrayList<>();
+      for(Expression operand : translator.translateList(call.getOperands())) {
+        operands.add(Expressions.box(operand));
+      }
+      final Method method = DISTANCE.equals(name) ? DISTANCE_METHOD : DWITHIN.equals(name) ? DWITHIN_METHOD
+          : BBOX_METHOD;
+      return Expressions.call(method, operands);
+    };
+  }
+
+  /** Called via code-generation. */
+  @SuppressWarnings("WeakerAccess")
+  public static Double distance(Object value, Object lat, Object lon) {
+    final double[] point = toPoint(value);
+    if(point == null || lat == null || lon == null) {
+      return null;
+    }
+    // Haversine formula, like Solr's geodist
+    final double lat1 = Math.toRadians(point[0]);
+    final double lat2 = Math.toRadians(((Number) lat).doubleValue());
+    final double dLat = lat2 - lat1;
+    final double dLon = Math.toRadians(((Number) lon).doubleValue() - point[1]);
+    final double h = Math.pow(Math.sin(dLat / 2), 2) + Math.cos(lat1) * Math.cos(lat2) * Math.pow(Math.sin(dLon / 2), 2);
+    return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(h)));
+  }
+
+  /** Called via code-generation. */
+  @SuppressWarnings("WeakerAccess")
+  public static Boolean dwithin(Object value, Object lat, Object lon, Object distance) {
+    final Double valueDistance = distance(value, lat, lon);
+    if(valueDistance == null || distance == null) {
+      return null;
+    }
+    return valueDistance <= ((Number) distance).doubleValue();
+  }
+
+  /** Called via code-generation. */
+  @SuppressWarnings("WeakerAccess")
+  public static Boolean bbox(Object value, Object lat, Object lon, Object distance) {
+    final double[] point = toPoint(value);
+    if(point == null || lat == null || lon == null || distance == null) {
+      return null;
+    }
+    final double centerLat = ((Number) lat).doubleValue();
+    final double angle = ((Number) distance).doubleValue() / EARTH_RADIUS_KM;
+    final double latDistance = Math.toDegrees(angle);
+    if(Math.abs(point[0] - centerLat) > latDistance) {
+      return false;
+    }
+    // A box that reaches a pole holds every longitude
+    if(centerLat + latDistance >= 90 || centerLat - latDistance <= -90) {
+      return true;
+    }
+    final double lonDistance = Math.toDegrees(Math.asin(Math.sin(angle) / Math.cos(Math.toRadians(centerLat))));
+    final double lonDifference = Math.abs(((point[1] - ((Number) lon).doubleValue()) % 360 + 540) % 360 - 180);
+    return lonDifference <= lonDistance;
+  }
+
+  /** Returns the latitude and longitude of a value of the field, null for a missing value. */
+  private static double[] toPoint(Object value) {
+    if(value == null) {
+      return null;
+    }
+    final String[] coordinates = value.toString().split(",");
+    return new double[]{Double.parseDouble(coordinates[0].trim()), Double.parseDouble(coordinates[1].trim())};
+  }
+}
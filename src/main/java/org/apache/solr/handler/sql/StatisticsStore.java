@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.calcite.util.Pair;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Local store of the statistics computed by ANALYZE_TABLE.
+ *
+ * <p>Each collection has a JSON file in {@code statisticsDirectory} holding the statistics of the last
+ * {@link #MAX_ANALYSES} analyses, keyed by the {@link IndexVersion} they were computed against. The planner uses the
+ * analysis of the current index version if there is one and the most recent one otherwise, since statistics of an
+ * older version are still a much better guess than none.</p>
+ */
+class StatisticsStore {
+  private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  static final String DIRECTORY_PROPERTY = "statisticsDirectory";
+  private static final int MAX_ANALYSES = 5;
+
+  /** Parsed statistics files with their modification time, so files are only parsed again when they change. */
+  private static final ConcurrentMap<Path, Pair<Long, List<TableStatistics>>> loaded = new ConcurrentHashMap<>();
+
+  private StatisticsStore() {
+  }
+
+  static String getDirectory(Properties properties) {
+    return properties.getProperty(DIRECTORY_PROPERTY,
+        Paths.get(System.getProperty("java.io.tmpdir"), "solr-sql-statistics").toString());
+  }
+
+  /** Returns the statistics to plan with, null if the collection was never analyzed. */
+  static TableStatistics get(String zkHost, String collection, Properties properties) {
+    return get(zkHost, collection, properties, false);
+  }
+
+  /**
+   * Returns the statistics of the current index version, null if it wasn't analyzed. Only these can be relied on
+   * for decisions that affect the results of a query, for example that a column has no missing values.
+   */
+  static TableStatistics getCurrent(String zkHost, String collection, Properties properties) {
+    return get(zkHost, collection, properties, true);
+  }
+
+  private static TableStatistics get(String zkHost, String collection, Properties properties, boolean current) {
+    List<TableStatistics> analyses;
+    try {
+      analyses = load(getFile(getDirectory(properties), zkHost, collection));
+    } catch (IOException | RuntimeException e) {
+      logger.debug("Unable to read the statistics of {}", collection, e);
+      return null;
+    }
+    if(analyses.isEmpty()) {
+      return null;
+    }
+
+    if(current || Boolean.parseBoolean(properties.getProperty(SolrStatistics.LIVE_STATISTICS_PROPERTY, "true"))) {
+      try {
+        Map<String, Long> version = IndexVersion.get(zkHost, collection, properties).getShardVersions();
+        for(TableStatistics analysis : analyses) {
+          if(analysis.getIndexVersion().equals(version)) {
+            return analysis;
+          }
+        }
+      } catch (IOException | SolrException e) {
+        logger.debug("Unable to read the index version of {}", collection, e);
+      }
+    }
+    return current ? null : analyses.get(0);
+  }
+
+  /** Adds the statistics as the most recent analysis of the collection. */
+  static synchronized void save(String directory, String zkHost, String collection, TableStatistics statistics)
+      throws IOException {
+    Path file = getFile(directory, zkHost, collection);
+    List<TableStatistics> analyses = new ArrayList<>();
+    analyses.add(statistics);
+    for(TableStatistics analysis : load(file)) {
+      if(analyses.size() < MAX_ANALYSES && !analysis.getIndexVersion().equals(statistics.getIndexVersion())) {
+        analyses.add(analysis);
+      }
+    }
+
+    List<Map<String, Object>> maps = new ArrayList<>();
+    for(TableStatistics analysis : analyses) {
+      maps.add(analysis.toMap());
+    }
+    Map<String, Object> json = new LinkedHashMap<>();
+    json.put("zkHost", zkHost);
+    json.put("collection", collection);
+    json.put("analyses", maps);
+
+    // Write to a temporary file first so readers never see a partial file
+    Files.createDirectories(file.getParent());
+    Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      Files.write(tmp, Utils.toJSON(json));
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    // Modification times are coarse, don't rely on them to see this write
+    loaded.put(file, new Pair<>(Files.getLastModifiedTime(file).toMillis(), Collections.unmodifiableList(analyses)));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<TableStatistics> load(Path file) throws IOException {
+    if(!Files.exists(file)) {
+      return Collections.emptyList();
+    }
+
+    long lastModified = Files.getLastModifiedTime(file).toMillis();
+    Pair<Long, List<TableStatistics>> cached = loaded.get(file);
+    if(cached != null && cached.getKey() == lastModified) {
+      return cached.getValue();
+    }
+
+    Map<String, Object> json;
+    try(InputStream in = Files.newInputStream(file)) {
+      json = (Map<String, Object>) Utils.fromJSON(in);
+    }
+    List<TableStatistics> analyses = new ArrayList<>();
+    for(Map<String, Object> analysis : (List<Map<String, Object>>) json.get("analyses")) {
+      analyses.add(TableStatistics.fromMap(analysis));
+    }
+    analyses = Collections.unmodifiableList(analyses);
+    loaded.put(file, new Pair<>(lastModified, analyses));
+    return analyses;
+  }
+
+  private static Path getFile(String directory, String zkHost, String collection) throws IOException {
+    String name = URLEncoder.encode(zkHost + "/" + collection, StandardCharsets.UTF_8.name());
+    return Paths.get(directory, name + ".json");
+  }
+}
@@ -0,0 +1,400 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.stream.CloudSolrStream;
+import org.apache.solr.client.solrj.io.stream.StreamContext;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory copies of small collections, enabled per collection with the {@code cachedTables} property.
+ *
+ * <p>A cached collection is exported once into a columnar layout: numeric fields are kept in primitive arrays and
+ * string fields are dictionary encoded. The copy is shared by all connections to the same ZooKeeper and is exported
+ * again when the {@link IndexVersion} of the collection changes, or when a query reads a field that wasn't copied yet.
+ * Collections with more than {@code tableCacheMaxRows} documents, or with fields that can't be exported, are not
+ * cached.</p>
+ *
+ * <p>The copies of all collections together use at most {@code tableCacheMaxBytes}, the least recently used copies
+ * are dropped to make room for a new one. A copy larger than that by itself isn't kept.</p>
+ */
+class TableCache {
+  private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  static final String CACHED_TABLES_PROPERTY = "cachedTables";
+  static final String MAX_ROWS_PROPERTY = "tableCacheMaxRows";
+  static final String MAX_BYTES_PROPERTY = "tableCacheMaxBytes";
+  private static final String DEFAULT_MAX_ROWS = "500000";
+  private static final String DEFAULT_MAX_BYTES = String.valueOf(256L * 1024 * 1024);
+
+  private static final ConcurrentMap<String, Table> tables = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>();
+  /** Orders the uses of the copies, the copy with the smallest use is the least recently used one. */
+  private static final AtomicLong clock = new AtomicLong();
+
+  private TableCache() {
+  }
+
+  static boolean isEnabled(String collection, Properties properties) {
+    String cachedTables = properties.getProperty(CACHED_TABLES_PROPERTY);
+    if(cachedTables == null) {
+      return false;
+    }
+    for(String cachedTable : cachedTables.split(",")) {
+      if(cachedTable.trim().equals(collection)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the copy of the current index version of the collection, exporting it first if needed. Returns null if
+   * the collection isn't cached or can't be.
+   *
+   * @param fields The fields to read, the copy is exported again with the fields of earlier copies if it is missing
+   *               any of them
+   */
+  static Table get(String zkHost, String collection, List<String> fields, Properties properties,
+                   SolrMetrics metrics) {
+    if(!isEnabled(collection, properties)) {
+      return null;
+    }
+
+    String key = zkHost + "/" + collection;
+    try {
+      IndexVersion version = IndexVersion.get(zkHost, collection, properties);
+      Table table = tables.get(key);
+      if(!isCurrent(table, version, fields)) {
+        synchronized (locks.computeIfAbsent(key, k -> new Object())) {
+          table = tables.get(key);
+          if(!isCurrent(table, version, fields)) {
+            Set<String> copiedFields = new LinkedHashSet<>(fields);
+            if(table != null && table.version.equals(version)) {
+              copiedFields.addAll(table.fields);
+            }
+            // The copy of an older version is dropped before the new one is exported
+            tables.remove(key);
+            table = load(zkHost, collection, copiedFields, version, properties, metrics);
+            table.lastUsed = clock.incrementAndGet();
+            tables.put(key, table);
+            evict(key, getMaxBytes(properties), metrics);
+          }
+        }
+      }
+
+      metrics.set(SolrMetrics.TABLE_CACHE_BYTES, getBytes());
+      if(table.columns == null) {
+        return null;
+      }
+      table.lastUsed = clock.incrementAndGet();
+      metrics.increment(SolrMetrics.TABLE_CACHE_HITS, 1);
+      return table;
+    } catch (IOException | SolrException e) {
+      logger.debug("Unable to check the cached copy of {}", collection, e);
+      return null;
+    }
+  }
+
+  private static boolean isCurrent(Table table, IndexVersion version, List<String> fields) {
+    // A collection that couldn't be copied isn't tried again until it changes
+    return table != null && table.version.equals(version)
+        && (table.columns == null || table.fields.containsAll(fields));
+  }
+
+  static long getMaxBytes(Properties properties) {
+    return Long.parseLong(properties.getProperty(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+  }
+
+  /**
+   * Drops the least recently used copies until all copies fit in the maximum, the copy just loaded last. A copy that
+   * doesn't fit by itself still serves the query that loaded it but isn't kept.
+   */
+  private static synchronized void evict(String loadedKey, long maxBytes, SolrMetrics metrics) {
+    while(getBytes() > maxBytes) {
+      String lruKey = null;
+      Table lruTable = null;
+      for(Map.Entry<String, Table> entry : tables.entrySet()) {
+        Table table = entry.getValue();
+        if(table.columns != null && !entry.getKey().equals(loadedKey)
+            && (lruTable == null || table.lastUsed < lruTable.lastUsed)) {
+          lruKey = entry.getKey();
+          lruTable = table;
+        }
+      }
+      if(lruTable == null) {
+        Table loaded = tables.get(loadedKey);
+        logger.info("Not caching {}, {} bytes is more than {}", loadedKey, loaded.getBytes(), maxBytes);
+        tables.remove(loadedKey, loaded);
+        metrics.increment(SolrMetrics.TABLE_CACHE_EVICTIONS, 1);
+        return;
+      }
+      logger.debug("Dropping the cached copy of {}, {} bytes", lruKey, lruTable.getBytes());
+      tables.remove(lruKey, lruTable);
+      metrics.increment(SolrMetrics.TABLE_CACHE_EVICTIONS, 1);
+    }
+  }
+
+  /** Returns the copy of the collection without checking or exporting it, null if none is kept. */
+  static Table peek(String zkHost, String collection) {
+    Table table = tables.get(zkHost + "/" + collection);
+    return table == null || table.columns == null ? null : table;
+  }
+
+  /** Memory used by all cached collections. */
+  static long getBytes() {
+    long bytes = 0;
+    for(Table table : tables.values()) {
+      bytes += table.getBytes();
+    }
+    return bytes;
+  }
+
+  private static Table load(String zkHost, String collection, Set<String> fields, IndexVersion version,
+                            Properties properties, SolrMetrics metrics) throws IOException {
+    long maxRows = Long.parseLong(properties.getProperty(MAX_ROWS_PROPERTY, DEFAULT_MAX_ROWS));
+    if(version.getNumDocs() > maxRows) {
+      logger.debug("Not caching {}, {} documents is more than {}", collection, version.getNumDocs(), maxRows);
+      return new Table(version, fields, 0, null);
+    }
+
+    long start = System.nanoTime();
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set(CommonParams.Q, "*:*");
+    params.set(CommonParams.FL, String.join(",", fields) + ",_version_");
+    params.set(CommonParams.SORT, "_version_ desc");
+    params.set(CommonParams.QT, "/export");
+
+    Map<String, List<Object>> values = new LinkedHashMap<>();
+    for(String field : fields) {
+      values.put(field, new ArrayList<>());
+    }
+    int numRows = 0;
+    TupleStream stream = new CloudSolrStream(zkHost, collection, params);
+    StreamContext streamContext = new StreamContext();
+    streamContext.setSolrClientCache(SolrSchema.CLIENT_CACHE);
+    stream.setStreamContext(streamContext);
+    try {
+      stream.open();
+      for(Tuple tuple = stream.read(); !tuple.EOF; tuple = stream.read()) {
+        if(++numRows > maxRows) {
+          return new Table(version, fields, 0, null);
+        }
+        for(Map.Entry<String, List<Object>> field : values.entrySet()) {
+          field.getValue().add(tuple.get(field.getKey()));
+        }
+      }
+    } catch (IOException e) {
+      // Typically a field without docValues, don't try again until the index changes
+      logger.warn("Not caching {}: {}", collection, e.getMessage());
+      return new Table(version, fields, 0, null);
+    } finally {
+      stream.close();
+    }
+
+    Map<String, Column> columns = new HashMap<>();
+    for(Map.Entry<String, List<Object>> field : values.entrySet()) {
+      columns.put(field.getKey(), Column.of(field.getValue()));
+    }
+    Table table = new Table(version, fields, numRows, columns);
+
+    long millis = (System.nanoTime() - start) / 1000000L;
+    metrics.increment(SolrMetrics.TABLE_CACHE_REFRESHES, 1);
+    metrics.increment(SolrMetrics.TABLE_CACHE_REFRESH_MILLIS, millis);
+    logger.info("Cached {}: {} rows, {} bytes in {} ms", collection, numRows, table.getBytes(), millis);
+    return table;
+  }
+
+  /** Copy of a collection at one index version. Collections that can't be cached have no columns. */
+  static class Table {
+    private final IndexVersion version;
+    private final Set<String> fields;
+    private final int numRows;
+    private final Map<String, Column> columns;
+    private volatile long lastUsed;
+
+    private Table(IndexVersion version, Set<String> fields, int numRows, Map<String, Column> columns) {
+      this.version = version;
+      this.fields = fields;
+      this.numRows = numRows;
+      this.columns = columns;
+    }
+
+    int getNumRows() {
+      return numRows;
+    }
+
+    /** Returns the column of the field, null if the field wasn't copied. */
+    Column getColumn(String field) {
+      return columns.get(field);
+    }
+
+    long getBytes() {
+      long bytes = 0;
+      if(columns != null) {
+        for(Column column : columns.values()) {
+          bytes += column.getBytes();
+        }
+      }
+      return bytes;
+    }
+  }
+
+  /** Values of a single field, null for documents without a value. */
+  abstract static class Column {
+    abstract Object get(int row);
+
+    /** Approximate memory used by the column. */
+    abstract long getBytes();
+
+    static Column of(List<Object> values) {
+      boolean longs = true;
+      boolean doubles = true;
+      boolean strings = true;
+      for(Object value : values) {
+        if(value != null) {
+          longs &= value instanceof Long;
+          doubles &= value instanceof Double;
+          strings &= value instanceof String;
+        }
+      }
+      if(longs) {
+        return new LongColumn(values);
+      } else if(doubles) {
+        return new DoubleColumn(values);
+      } else if(strings) {
+        return new StringColumn(values);
+      }
+      return new ObjectColumn(values);
+    }
+  }
+
+  private static class LongColumn extends Column {
+    private final long[] values;
+    private final BitSet nulls = new BitSet();
+
+    LongColumn(List<Object> values) {
+      this.values = new long[values.size()];
+      for(int i = 0; i < values.size(); i++) {
+        if(values.get(i) == null) {
+          nulls.set(i);
+        } else {
+          this.values[i] = (Long) values.get(i);
+        }
+      }
+    }
+
+    Object get(int row) {
+      return nulls.get(row) ? null : values[row];
+    }
+
+    long getBytes() {
+      return 8L * values.length + nulls.size() / 8;
+    }
+  }
+
+  private static class DoubleColumn extends Column {
+    private final double[] values;
+    private final BitSet nulls = new BitSet();
+
+    DoubleColumn(List<Object> values) {
+      this.values = new double[values.size()];
+      for(int i = 0; i < values.size(); i++) {
+        if(values.get(i) == null) {
+          nulls.set(i);
+        } else {
+          this.values[i] = (Double) values.get(i);
+        }
+      }
+    }
+
+    Object get(int row) {
+      return nulls.get(row) ? null : values[row];
+    }
+
+    long getBytes() {
+      return 8L * values.length + nulls.size() / 8;
+    }
+  }
+
+  /** Strings are dictionary encoded, lookup collections repeat a few values a lot. */
+  private static class StringColumn extends Column {
+    private final int[] codes;
+    private final String[] dictionary;
+
+    StringColumn(List<Object> values) {
+      Map<String, Integer> codesByValue = new LinkedHashMap<>();
+      this.codes = new int[values.size()];
+      for(int i = 0; i < values.size(); i++) {
+        Object value = values.get(i);
+        codes[i] = value == null ? -1 : codesByValue.computeIfAbsent((String) value, v -> codesByValue.size());
+      }
+      this.dictionary = codesByValue.keySet().toArray(new String[0]);
+    }
+
+    Object get(int row) {
+      return codes[row] < 0 ? null : dictionary[codes[row]];
+    }
+
+    long getBytes() {
+      long bytes = 4L * codes.length;
+      for(String value : dictionary) {
+        bytes += 40 + 2L * value.length();
+      }
+      return bytes;
+    }
+  }
+
+  /** Any other values, like booleans, dates or multivalued fields, are kept as they were read. */
+  private static class ObjectColumn extends Column {
+    private final Object[] values;
+
+    ObjectColumn(List<Object> values) {
+      this.values = values.toArray();
+    }
+
+    Object get(int row) {
+      return values[row];
+    }
+
+    long getBytes() {
+      // References plus a rough guess for the boxed values
+      return 24L * values.length;
+    }
+  }
+}
@@ -0,0 +1,374 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.util.NlsString;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column statistics of a collection computed by ANALYZE_TABLE, tagged with the {@link IndexVersion} they were
+ * computed against.
+ *
+ * <p>Every column has its number of distinct values, the fraction of documents without a value, its smallest and
+ * largest value and its most common values. Numeric columns also have an equi-depth histogram, the bounds of
+ * {@link #HISTOGRAM_BUCKETS} buckets that each hold the same number of values.</p>
+ */
+class TableStatistics {
+  static final int HISTOGRAM_BUCKETS = 10;
+  static final int MOST_COMMON_VALUES = 10;
+
+  private final Map<String, Long> indexVersion;
+  private final long numDocs;
+  private final long analyzedAt;
+  private final Map<String, Column> columns;
+
+  TableStatistics(Map<String, Long> indexVersion, long numDocs, long analyzedAt, Map<String, Column> columns) {
+    this.indexVersion = indexVersion;
+    this.numDocs = numDocs;
+    this.analyzedAt = analyzedAt;
+    this.columns = columns;
+  }
+
+  Map<String, Long> getIndexVersion() {
+    return indexVersion;
+  }
+
+  long getNumDocs() {
+    return numDocs;
+  }
+
+  long getAnalyzedAt() {
+    return analyzedAt;
+  }
+
+  /** Statistics of the column, null if it wasn't analyzed. */
+  Column getColumn(String name) {
+    return columns.get(name);
+  }
+
+  int getColumnCount() {
+    return columns.size();
+  }
+
+  /**
+   * Estimates the fraction of the documents matching the predicate. Returns null if the predicate uses a column or
+   * an operator the statistics can't estimate.
+   */
+  Double selectivity(RexNode predicate, List<String> fieldNames) {
+    if(numDocs == 0) {
+      return null;
+    }
+
+    switch (predicate.getKind()) {
+      case AND: {
+        double selectivity = 1D;
+        for(RexNode operand : ((RexCall) predicate).getOperands()) {
+          Double operandSelectivity = selectivity(operand, fieldNames);
+          if(operandSelectivity == null) {
+            return null;
+          }
+          selectivity *= operandSelectivity;
+        }
+        return selectivity;
+      }
+      case OR: {
+        // Assume the operands are independent, same as for AND
+        double nonSelectivity = 1D;
+        for(RexNode operand : ((RexCall) predicate).getOperands()) {
+          Double operandSelectivity = selectivity(operand, fieldNames);
+          if(operandSelectivity == null) {
+            return null;
+          }
+          nonSelectivity *= 1 - operandSelectivity;
+        }
+        return 1 - nonSelectivity;
+      }
+      case NOT: {
+        Double selectivity = selectivity(((RexCall) predicate).getOperands().get(0), fieldNames);
+        return selectivity == null ? null : 1 - selectivity;
+      }
+      case IS_NULL:
+      case IS_NOT_NULL: {
+        Column column = getColumn(((RexCall) predicate).getOperands().get(0), fieldNames);
+        if(column == null) {
+          return null;
+        }
+        return predicate.getKind() == SqlKind.IS_NULL ? column.nullFraction : 1 - column.nullFraction;
+      }
+      case EQUALS:
+      case NOT_EQUALS:
+      case LESS_THAN:
+      case LESS_THAN_OR_EQUAL:
+      case GREATER_THAN:
+      case GREATER_THAN_OR_EQUAL:
+        return comparisonSelectivity((RexCall) predicate, fieldNames);
+      default:
+        return null;
+    }
+  }
+
+  private Double comparisonSelectivity(RexCall call, List<String> fieldNames) {
+    RexNode left = call.getOperands().get(0);
+    RexNode right = call.getOperands().get(1);
+    SqlKind kind = call.getKind();
+
+    if(unwrapCast(left) instanceof RexLiteral) {
+      // 5 < fieldA is the same as fieldA > 5
+      RexNode swap = left;
+      left = right;
+      right = swap;
+      kind = reverse(kind);
+    }
+
+    Column column = getColumn(left, fieldNames);
+    RexNode literal = unwrapCast(right);
+    if(column == null || !(literal instanceof RexLiteral)) {
+      return null;
+    }
+
+    Object value = ((RexLiteral) literal).getValue();
+    if(value instanceof NlsString) {
+      value = ((NlsString) value).getValue();
+    }
+    if(value == null) {
+      return null;
+    }
+
+    double nonNull = 1 - column.nullFraction;
+    double equal = column.equalFraction(value, numDocs);
+    switch (kind) {
+      case EQUALS:
+        return equal;
+      case NOT_EQUALS:
+        return Math.max(0D, nonNull - equal);
+      default:
+        Double below = column.fractionBelow(value);
+        if(below == null) {
+          return null;
+        }
+        switch (kind) {
+          case LESS_THAN:
+            return nonNull * below;
+          case LESS_THAN_OR_EQUAL:
+            return Math.min(nonNull, nonNull * below + equal);
+          case GREATER_THAN:
+            return Math.max(0D, nonNull * (1 - below) - equal);
+          default:
+            return nonNull * (1 - below);
+        }
+    }
+  }
+
+  private Column getColumn(RexNode node, List<String> fieldNames) {
+    node = unwrapCast(node);
+    if(!(node instanceof RexInputRef)) {
+      return null;
+    }
+    return columns.get(fieldNames.get(((RexInputRef) node).getIndex()));
+  }
+
+  private static RexNode unwrapCast(RexNode node) {
+    while(node.getKind() == SqlKind.CAST) {
+      node = ((RexCall) node).getOperands().get(0);
+    }
+    return node;
+  }
+
+  private static SqlKind reverse(SqlKind kind) {
+    switch (kind) {
+      case LESS_THAN:
+        return SqlKind.GREATER_THAN;
+      case LESS_THAN_OR_EQUAL:
+        return SqlKind.GREATER_THAN_OR_EQUAL;
+      case GREATER_THAN:
+        return SqlKind.LESS_THAN;
+      case GREATER_THAN_OR_EQUAL:
+        return SqlKind.LESS_THAN_OR_EQUAL;
+      default:
+        return kind;
+    }
+  }
+
+  Map<String, Object> toMap() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("indexVersion", indexVersion);
+    map.put("numDocs", numDocs);
+    map.put("analyzedAt", analyzedAt);
+    Map<String, Object> columnMaps = new LinkedHashMap<>();
+    for(Map.Entry<String, Column> column : columns.entrySet()) {
+      columnMaps.put(column.getKey(), column.getValue().toMap());
+    }
+    map.put("columns", columnMaps);
+    return map;
+  }
+
+  @SuppressWarnings("unchecked")
+  static TableStatistics fromMap(Map<String, Object> map) {
+    Map<String, Long> indexVersion = new LinkedHashMap<>();
+    for(Map.Entry<String, Object> shard : ((Map<String, Object>) map.get("indexVersion")).entrySet()) {
+      indexVersion.put(shard.getKey(), ((Number) shard.getValue()).longValue());
+    }
+    Map<String, Column> columns = new LinkedHashMap<>();
+    for(Map.Entry<String, Object> column : ((Map<String, Object>) map.get("columns")).entrySet()) {
+      columns.put(column.getKey(), Column.fromMap((Map<String, Object>) column.getValue()));
+    }
+    return new TableStatistics(indexVersion, ((Number) map.get("numDocs")).longValue(),
+        ((Number) map.get("analyzedAt")).longValue(), columns);
+  }
+
+  /**
+   * Statistics of a single column. Values of numeric columns are doubles, milliseconds since the epoch for dates, and
+   * values of other columns strings.
+   */
+  static class Column {
+    final boolean numeric;
+    final double distinctCount;
+    final double nullFraction;
+    final Object min;
+    final Object max;
+    final List<Double> histogram;
+    final Map<Object, Long> mostCommon;
+
+    Column(boolean numeric, double distinctCount, double nullFraction, Object min, Object max,
+           List<Double> histogram, Map<Object, Long> mostCommon) {
+      this.numeric = numeric;
+      this.distinctCount = distinctCount;
+      this.nullFraction = nullFraction;
+      this.min = min;
+      this.max = max;
+      this.histogram = histogram;
+      this.mostCommon = mostCommon;
+    }
+
+    /** Fraction of the documents with the value, from the most common values or a uniform distribution. */
+    double equalFraction(Object value, long numDocs) {
+      Object key = normalize(value);
+      if(key == null) {
+        return 0D;
+      }
+      Long count = mostCommon.get(key);
+      if(count != null) {
+        return (double) count / numDocs;
+      }
+      if(numeric && min != null && max != null
+          && ((Double) key < (Double) min || (Double) key > (Double) max)) {
+        return 0D;
+      }
+
+      long commonCount = 0;
+      for(Long common : mostCommon.values()) {
+        commonCount += common;
+      }
+      double remaining = Math.max(0D, 1 - nullFraction - (double) commonCount / numDocs);
+      return remaining / Math.max(1D, distinctCount - mostCommon.size());
+    }
+
+    /** Fraction of the non null values smaller than the value, null if the column has no histogram. */
+    Double fractionBelow(Object value) {
+      Object key = normalize(value);
+      if(!numeric || key == null || histogram.size() < 2) {
+        return null;
+      }
+
+      double x = (Double) key;
+      int buckets = histogram.size() - 1;
+      if(x <= histogram.get(0)) {
+        return 0D;
+      }
+      for(int i = 0; i < buckets; i++) {
+        double lower = histogram.get(i);
+        double upper = histogram.get(i + 1);
+        if(x < upper) {
+          // Values are assumed to be spread evenly within a bucket
+          return (i + (x - lower) / (upper - lower)) / buckets;
+        }
+      }
+      return 1D;
+    }
+
+    private Object normalize(Object value) {
+      if(!numeric) {
+        return value.toString();
+      }
+      if(value instanceof Number) {
+        return ((Number) value).doubleValue();
+      } else if(value instanceof Calendar) {
+        return (double) ((Calendar) value).getTimeInMillis();
+      } else if(value instanceof Date) {
+        return (double) ((Date) value).getTime();
+      }
+      try {
+        return Double.parseDouble(value.toString());
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    Map<String, Object> toMap() {
+      Map<String, Object> map = new LinkedHashMap<>();
+      map.put("numeric", numeric);
+      map.put("distinctCount", distinctCount);
+      map.put("nullFraction", nullFraction);
+      map.put("min", min);
+      map.put("max", max);
+      map.put("histogram", histogram);
+      // JSON keys are strings, keep the values and counts in pairs so numeric values survive the round trip
+      List<List<Object>> common = new ArrayList<>();
+      for(Map.Entry<Object, Long> entry : mostCommon.entrySet()) {
+        common.add(Arrays.asList(entry.getKey(), entry.getValue()));
+      }
+      map.put("mostCommon", common);
+      return map;
+    }
+
+    @SuppressWarnings("unchecked")
+    static Column fromMap(Map<String, Object> map) {
+      boolean numeric = (Boolean) map.get("numeric");
+      List<Double> histogram = new ArrayList<>();
+      for(Object bound : (List<Object>) map.get("histogram")) {
+        histogram.add(((Number) bound).doubleValue());
+      }
+      Map<Object, Long> mostCommon = new LinkedHashMap<>();
+      for(List<Object> entry : (List<List<Object>>) map.get("mostCommon")) {
+        mostCommon.put(value(entry.get(0), numeric), ((Number) entry.get(1)).longValue());
+      }
+      return new Column(numeric, ((Number) map.get("distinctCount")).doubleValue(),
+          ((Number) map.get("nullFraction")).doubleValue(), value(map.get("min"), numeric),
+          value(map.get("max"), numeric), Collections.unmodifiableList(histogram), mostCommon);
+    }
+
+    private static Object value(Object value, boolean numeric) {
+      if(value == null) {
+        return null;
+      }
+      return numeric ? ((Number) value).doubleValue() : value.toString();
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.calcite.adapter.enumerable.CallImplementor;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.linq4j.tree.Types;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.schema.FunctionParameter;
+import org.apache.calcite.schema.ImplementableFunction;
+import org.apache.calcite.schema.ScalarFunction;
+import org.apache.calcite.sql.type.SqlTypeName;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * The TEXT_MATCH(field, text [, options]) function, whether a field matches a full-text query. MATCH is a reserved
+ * word of the SQL parser. A filter on the function is a nested query of the edismax parser with the field as its query
+ * field, the options are local params added to it, like {@code 'mm=2'} or {@code 'type=field'} for another parser. The
+ * {@code score} of the matching documents is the score of the text, see {@link SolrFilter}.
+ *
+ * <p>Calcite only evaluates the function if the filter isn't pushed down to Solr. The value then matches if it has a
+ * word of the text, the way edismax matches by default, without the analysis of the field.</p>
+ *
+ * <p>The class is public because the generated code calls {@link #matches} from outside of this package.</p>
+ */
+public class TextMatchFunction implements ScalarFunction, ImplementableFunction {
+  static final String NAME = "TEXT_MATCH";
+
+  private static final Method MATCHES_METHOD =
+      Types.lookupMethod(TextMatchFunction.class, "matches", Object.class, Object.class);
+  private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+  private static final Pattern TYPE_OPTION = Pattern.compile("(^|\\s)type=");
+
+  private final boolean options;
+
+  /**
+   * @param options Whether the function has the options parameter
+   */
+  TextMatchFunction(boolean options) {
+    this.options = options;
+  }
+
+  /** Whether the expression is a call to the function. */
+  static boolean isTextMatch(RexNode node) {
+    return node instanceof RexCall && ((RexCall) node).getOperator().getName().equalsIgnoreCase(NAME);
+  }
+
+  /** Whether the expression or any of its operands is a call to the function. */
+  static boolean containsTextMatch(RexNode node) {
+    if(isTextMatch(node)) {
+      return true;
+    }
+    if(node instanceof RexCall) {
+      for(RexNode operand : ((RexCall) node).getOperands()) {
+        if(containsTextMatch(operand)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the nested query of the function.
+   *
+   * @param field Field the text is matched against
+   * @param text Full-text query
+   * @param options Local params of the query, null for none
+   */
+  static String toQuery(String field, String text, String options) {
+    StringBuilder localParams = new StringBuilder("{!");
+    if(options == null || !TYPE_OPTION.matcher(options).find()) {
+      localParams.append("edismax ");
+    }
+    // The field is the query field of edismax and the field of the field and term parsers
+    localParams.append("qf=").append(field).append(" f=").append(field);
+    if(options != null && !options.trim().isEmpty()) {
+      localParams.append(' ').append(options.trim());
+    }
+    localParams.append(" v='").append(text.replace("\\", "\\\\").replace("'", "\\'")).append("'}");
+    return "_query_:\"" + localParams.toString().replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  public List<FunctionParameter> getParameters() {
+    List<FunctionParameter> parameters = new ArrayList<>();
+    parameters.add(parameter(0, "field"));
+    parameters.add(parameter(1, "text"));
+    if(options) {
+      parameters.add(parameter(2, "options"));
+    }
+    return ImmutableList.copyOf(parameters);
+  }
+
+  private static FunctionParameter parameter(int ordinal, String name) {
+    return new FunctionParameter() {
+      public int getOrdinal() {
+        return ordinal;
+      }
+
+      public String getName() {
+        return name;
+      }
+
+      public RelDataType getType(RelDataTypeFactory typeFactory) {
+        // The validator doesn't match character literals to VARCHAR parameters of user-defined functions
+        return typeFactory.createSqlType(SqlTypeName.ANY);
+      }
+
+      public boolean isOptional() {
+        return false;
+      }
+    };
+  }
+
+  public RelDataType getReturnType(RelDataTypeFactory typeFactory) {
+    return typeFactory.createJavaType(Boolean.class);
+  }
+
+  public CallImplementor getImplementor() {
+    return (translator, call, nullAs) -> {
+      List<Expression> operands = translator.translateList(call.getOperands());
+      return Expressions.call(MATCHES_METHOD, Expressions.box(operands.get(0)), Expressions.box(operands.get(1)));
+    };
+  }
+
+  /** Called via code-generation. */
+  @SuppressWarnings("WeakerAccess")
+  public static Boolean matches(Object value, Object text) {
+    if(value == null || text == null) {
+      return null;
+    }
+    Set<String> words = new HashSet<>(Arrays.asList(WORD_SEPARATOR.split(value.toString().toLowerCase(Locale.ROOT))));
+    for(String word : WORD_SEPARATOR.split(text.toString().toLowerCase(Locale.ROOT))) {
+      if(!word.isEmpty() && words.contains(word)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Collections that each hold the documents of one period of a timestamp field, like the daily collections of an
+ * alias. Tables are partitioned with the {@code timePartitionedTables} property, a comma separated list of
+ * {@code table:field} pairs.
+ *
+ * <p>The partitions of a table are the collections of the alias of the same name, or every collection named
+ * {@code <table>_<start>} if there is no such alias. The start of a partition is the suffix of its name, formatted
+ * like the collections of a Solr time routed alias: {@code yyyy-MM-dd}, optionally followed by {@code _HH},
+ * {@code _mm} and {@code _ss}, in UTC. A partition holds the documents from its start up to the start of the next
+ * one, the first partition also holds anything older. Every document must have a value for the field.</p>
+ */
+class TimePartitions {
+  private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  static final String PROPERTY = "timePartitionedTables";
+
+  private static final Pattern START = Pattern.compile("(\\d{4}-\\d{2}-\\d{2})(?:_(\\d{2})(?:_(\\d{2})(?:_(\\d{2}))?)?)?$");
+
+  private final String field;
+  private final List<String> collections;
+  private final List<Instant> starts;
+
+  private TimePartitions(String field, List<String> collections, List<Instant> starts) {
+    this.field = field;
+    this.collections = collections;
+    this.starts = starts;
+  }
+
+  /** Returns the partition field of every partitioned table, keyed by the table. */
+  static Map<String, String> getPartitionFields(Properties properties) {
+    Map<String, String> fields = new LinkedHashMap<>();
+    String tables = properties.getProperty(PROPERTY);
+    if(tables != null) {
+      for(String table : tables.split(",")) {
+        String[] tableField = table.trim().split(":");
+        if(tableField.length != 2) {
+          throw new IllegalArgumentException("Expected table:field in " + PROPERTY + ", got " + table);
+        }
+        fields.put(tableField[0].trim(), tableField[1].trim());
+      }
+    }
+    return fields;
+  }
+
+  /**
+   * Returns the partitions of a table, null if the name of one of the collections doesn't end with its start.
+   *
+   * @param prefix Prefix the names of the collections must start with, followed by an underscore and the start, null
+   *               to only require the start at the end of the names
+   */
+  static TimePartitions of(String table, String field, Collection<String> collections, String prefix) {
+    TreeMap<Instant, String> partitions = new TreeMap<>();
+    for(String collection : collections) {
+      Instant start = parseStart(collection, prefix);
+      if(start == null) {
+        if(prefix == null) {
+          logger.warn("Not partitioning {}, no start in the name of {}", table, collection);
+          return null;
+        }
+        continue;
+      }
+      partitions.put(start, collection);
+    }
+    if(partitions.isEmpty()) {
+      return null;
+    }
+    return new TimePartitions(field, new ArrayList<>(partitions.values()), new ArrayList<>(partitions.keySet()));
+  }
+
+  private static Instant parseStart(String collection, String prefix) {
+    Matcher matcher = START.matcher(collection);
+    if(!matcher.find() || (prefix != null && !collection.equals(prefix + "_" + matcher.group()))) {
+      return null;
+    }
+    try {
+      Instant start = LocalDate.parse(matcher.group(1)).atStartOfDay(ZoneOffset.UTC).toInstant();
+      for(int group = 2; group <= 4 && matcher.group(group) != null; group++) {
+        start = start.plusSeconds(Long.parseLong(matcher.group(group)) * (group == 2 ? 3600 : group == 3 ? 60 : 1));
+      }
+      return start;
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+
+  String getField() {
+    return field;
+  }
+
+  /** All partitions, oldest first. */
+  List<String> getCollections() {
+    return collections;
+  }
+
+  /**
+   * Returns the partitions, oldest first, that can hold documents in the range. At least one partition is returned,
+   * a query whose range is in none of them finds nothing in any partition.
+   */
+  List<String> prune(TimeRange range) {
+    List<String> pruned = new ArrayList<>();
+    for(int i = 0; i < collections.size(); i++) {
+      Instant start = i == 0 ? null : starts.get(i);
+      Instant end = i == collections.size() - 1 ? null : starts.get(i + 1);
+      boolean beforeUpper = range.getUpper() == null || start == null || start.isBefore(range.getUpper())
+          || (range.isUpperInclusive() && start.equals(range.getUpper()));
+      boolean afterLower = range.getLower() == null || end == null || end.isAfter(range.getLower());
+      if(beforeUpper && afterLower) {
+        pruned.add(collections.get(i));
+      }
+    }
+    return pruned.isEmpty() ? collections.subList(0, 1) : pruned;
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import java.time.Instant;
+
+/**
+ * Range of the values of a date field that the documents matching a query are in, either bound may be missing.
+ */
+class TimeRange {
+  private final Instant lower;
+  private final boolean lowerInclusive;
+  private final Instant upper;
+  private final boolean upperInclusive;
+
+  TimeRange(Instant lower, boolean lowerInclusive, Instant upper, boolean upperInclusive) {
+    this.lower = lower;
+    this.lowerInclusive = lowerInclusive;
+    this.upper = upper;
+    this.upperInclusive = upperInclusive;
+  }
+
+  /** Lower bound, null if there is none. */
+  Instant getLower() {
+    return lower;
+  }
+
+  boolean isLowerInclusive() {
+    return lowerInclusive;
+  }
+
+  /** Upper bound, null if there is none. */
+  Instant getUpper() {
+    return upper;
+  }
+
+  boolean isUpperInclusive() {
+    return upperInclusive;
+  }
+
+  /** Returns the values in both ranges. */
+  TimeRange intersect(TimeRange other) {
+    Instant intersectLower = lower;
+    boolean intersectLowerInclusive = lowerInclusive;
+    if(other.lower != null && (lower == null || other.lower.isAfter(lower))) {
+      intersectLower = other.lower;
+      intersectLowerInclusive = other.lowerInclusive;
+    } else if(other.lower != null && other.lower.equals(lower)) {
+      intersectLowerInclusive &= other.lowerInclusive;
+    }
+
+    Instant intersectUpper = upper;
+    boolean intersectUpperInclusive = upperInclusive;
+    if(other.upper != null && (upper == null || other.upper.isBefore(upper))) {
+      intersectUpper = other.upper;
+      intersectUpperInclusive = other.upperInclusive;
+    } else if(other.upper != null && other.upper.equals(upper)) {
+      intersectUpperInclusive &= other.upperInclusive;
+    }
+    return new TimeRange(intersectLower, intersectLowerInclusive, intersectUpper, intersectUpperInclusive);
+  }
+
+  @Override
+  public String toString() {
+    return (lowerInclusive ? "[" : "{") + (lower == null ? "*" : lower) + " TO "
+        + (upper == null ? "*" : upper) + (upperInclusive ? "]" : "}");
+  }
+}
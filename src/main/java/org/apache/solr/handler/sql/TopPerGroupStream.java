@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.comp.StreamComparator;
+import org.apache.solr.client.solrj.io.stream.StreamContext;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
+import org.apache.solr.client.solrj.io.stream.expr.Explanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamExplanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Numbers the tuples of each partition of a stream sorted on the partition fields, and only emits the tuples up to a
+ * maximum row number, the top tuples of each partition in the order of the stream. The rest of a partition is read
+ * but not emitted.
+ */
+class TopPerGroupStream extends TupleStream {
+
+  private final TupleStream stream;
+  private final List<String> partitionFields;
+  private final long maxRowNumber;
+  private final String rowNumberField;
+
+  private List<Object> partition;
+  private long rowNumber;
+
+  /**
+   * @param stream Stream sorted on the partition fields
+   * @param partitionFields Fields whose values make up the partition of a tuple, none for a single partition
+   * @param maxRowNumber Number of tuples emitted per partition
+   * @param rowNumberField Field the row number of a tuple within its partition is put in, starting at 1
+   */
+  TopPerGroupStream(TupleStream stream, List<String> partitionFields, long maxRowNumber, String rowNumberField) {
+    this.stream = stream;
+    this.partitionFields = partitionFields;
+    this.maxRowNumber = maxRowNumber;
+    this.rowNumberField = rowNumberField;
+  }
+
+  public void open() throws IOException {
+    partition = null;
+    rowNumber = 0;
+    stream.open();
+  }
+
+  public void close() throws IOException {
+    stream.close();
+  }
+
+  public List<TupleStream> children() {
+    List<TupleStream> children = new ArrayList<>();
+    children.add(stream);
+    return children;
+  }
+
+  public StreamComparator getStreamSort() {
+    return stream.getStreamSort();
+  }
+
+  public void setStreamContext(StreamContext context) {
+    stream.setStreamContext(context);
+  }
+
+  @Override
+  public Explanation toExplanation(StreamFactory factory) throws IOException {
+    return new StreamExplanation(getStreamNodeId().toString())
+        .withChildren(new Explanation[]{
+            stream.toExplanation(factory)
+        })
+        .withFunctionName("SQL TOP PER GROUP")
+        .withExpression("--non-expressible--")
+        .withImplementingClass(this.getClass().getName())
+        .withExpressionType(Explanation.ExpressionType.STREAM_DECORATOR);
+  }
+
+  public Tuple read() throws IOException {
+    while(true) {
+      Tuple tuple = stream.read();
+      if(tuple.EOF) {
+        return tuple;
+      }
+
+      List<Object> tuplePartition = new ArrayList<>(partitionFields.size());
+      for(String field : partitionFields) {
+        tuplePartition.add(tuple.get(field));
+      }
+      if(tuplePartition.equals(partition)) {
+        ++rowNumber;
+      } else {
+        partition = tuplePartition;
+        rowNumber = 1;
+      }
+
+      if(rowNumber <= maxRowNumber) {
+        tuple.put(rowNumberField, rowNumber);
+        return tuple;
+      }
+    }
+  }
+}
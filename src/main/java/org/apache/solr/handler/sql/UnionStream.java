@@ -0,0 +1,239 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.comp.StreamComparator;
+import org.apache.solr.client.solrj.io.stream.MergeStream;
+import org.apache.solr.client.solrj.io.stream.StreamContext;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
+import org.apache.solr.client.solrj.io.stream.expr.Explanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamExplanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamFactory;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.SolrjNamedThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Union of the streams of the inputs of a {@link SolrUnion}. Every input is opened and read by its own thread, so
+ * the inputs are queried concurrently. Tuples are returned as they arrive, or merged with a {@link MergeStream} if
+ * the inputs are sorted.
+ *
+ * <p>The inputs name their fields differently, tuples are renamed to the fields of the union.</p>
+ */
+class UnionStream extends TupleStream {
+  /** Tuples read ahead per input, enough to keep the inputs busy without holding much in memory. */
+  private static final int QUEUE_SIZE = 1000;
+
+  private final List<TupleStream> inputs;
+  private final List<List<String>> inputFields;
+  private final List<String> fields;
+  private final StreamComparator sort;
+
+  private ExecutorService executor;
+  private TupleStream stream;
+
+  /**
+   * @param inputFields The fields of each input, in the order of the fields of the union
+   * @param sort Sort of the inputs expressed with the fields of the union, null if they aren't sorted
+   */
+  UnionStream(List<TupleStream> inputs, List<List<String>> inputFields, List<String> fields, StreamComparator sort) {
+    this.inputs = inputs;
+    this.inputFields = inputFields;
+    this.fields = fields;
+    this.sort = sort;
+  }
+
+  public void setStreamContext(StreamContext context) {
+    for(TupleStream input : inputs) {
+      input.setStreamContext(context);
+    }
+  }
+
+  public List<TupleStream> children() {
+    return inputs;
+  }
+
+  public void open() throws IOException {
+    executor = ExecutorUtil.newMDCAwareCachedThreadPool(new SolrjNamedThreadFactory("SQLUnionStream"));
+    if(sort == null) {
+      BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_SIZE * inputs.size());
+      for(int i = 0; i < inputs.size(); i++) {
+        executor.execute(new Reader(inputs.get(i), inputFields.get(i), queue));
+      }
+      stream = new QueueStream(queue, inputs.size());
+    } else {
+      TupleStream[] queueStreams = new TupleStream[inputs.size()];
+      for(int i = 0; i < inputs.size(); i++) {
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        executor.execute(new Reader(inputs.get(i), inputFields.get(i), queue));
+        queueStreams[i] = new QueueStream(queue, 1);
+      }
+      stream = new MergeStream(sort, queueStreams);
+    }
+    stream.open();
+  }
+
+  public void close() throws IOException {
+    if(executor != null) {
+      // Interrupts the readers waiting for room in their queue, they close their inputs
+      executor.shutdownNow();
+      ExecutorUtil.shutdownAndAwaitTermination(executor);
+    }
+  }
+
+  public Tuple read() throws IOException {
+    return stream.read();
+  }
+
+  public StreamComparator getStreamSort() {
+    return sort;
+  }
+
+  @Override
+  public Explanation toExplanation(StreamFactory factory) throws IOException {
+    Explanation[] children = new Explanation[inputs.size()];
+    for(int i = 0; i < inputs.size(); i++) {
+      children[i] = inputs.get(i).toExplanation(factory);
+    }
+    return new StreamExplanation(getStreamNodeId().toString())
+        .withChildren(children)
+        .withFunctionName("SQL UNION")
+        .withExpression("--non-expressible--")
+        .withImplementingClass(this.getClass().getName())
+        .withExpressionType(Explanation.ExpressionType.STREAM_DECORATOR);
+  }
+
+  /**
+   * Opens an input and queues its renamed tuples, then its EOF tuple or the exception that ended it. The input is
+   * closed by the reader, it may still be reading when the union is closed.
+   */
+  private class Reader implements Runnable {
+    private final TupleStream input;
+    private final List<String> inputFields;
+    private final BlockingQueue<Object> queue;
+
+    Reader(TupleStream input, List<String> inputFields, BlockingQueue<Object> queue) {
+      this.input = input;
+      this.inputFields = inputFields;
+      this.queue = queue;
+    }
+
+    public void run() {
+      try {
+        Object result;
+        try {
+          input.open();
+          for(Tuple tuple = input.read(); !tuple.EOF; tuple = input.read()) {
+            Map<String, Object> values = new HashMap<>();
+            for(int i = 0; i < fields.size(); i++) {
+              values.put(fields.get(i), tuple.get(inputFields.get(i)));
+            }
+            queue.put(new Tuple(values));
+          }
+          result = eof();
+        } catch (IOException | RuntimeException e) {
+          result = e;
+        } finally {
+          input.close();
+        }
+        queue.put(result);
+      } catch (IOException | RuntimeException e) {
+        // An input interrupted while opening can fail to close, after a LIMIT nobody reads the queue anymore
+        queue.offer(e);
+      } catch (InterruptedException e) {
+        // The union was closed before the input was read
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Reads the tuples queued by one or more readers, until all of them reached their EOF. */
+  private class QueueStream extends TupleStream {
+    private final BlockingQueue<Object> queue;
+    private int numOpen;
+
+    QueueStream(BlockingQueue<Object> queue, int numReaders) {
+      this.queue = queue;
+      this.numOpen = numReaders;
+    }
+
+    public void setStreamContext(StreamContext context) {
+    }
+
+    public List<TupleStream> children() {
+      return new ArrayList<>();
+    }
+
+    public void open() {
+    }
+
+    public void close() {
+    }
+
+    public Tuple read() throws IOException {
+      while(numOpen > 0) {
+        Object next;
+        try {
+          next = queue.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException(e);
+        }
+        if(next instanceof IOException) {
+          throw (IOException) next;
+        } else if(next instanceof RuntimeException) {
+          throw (RuntimeException) next;
+        }
+
+        Tuple tuple = (Tuple) next;
+        if(!tuple.EOF) {
+          return tuple;
+        }
+        numOpen--;
+      }
+      return eof();
+    }
+
+    public StreamComparator getStreamSort() {
+      return sort;
+    }
+
+    @Override
+    public Explanation toExplanation(StreamFactory factory) throws IOException {
+      return new StreamExplanation(getStreamNodeId().toString())
+          .withFunctionName("SQL UNION INPUT")
+          .withExpression("--non-expressible--")
+          .withImplementingClass(this.getClass().getName())
+          .withExpressionType(Explanation.ExpressionType.STREAM_SOURCE);
+    }
+  }
+
+  private static Tuple eof() {
+    Map<String, Object> fields = new HashMap<>();
+    fields.put("EOF", "true");
+    return new Tuple(fields);
+  }
+}
@@ -0,0 +1,430 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.sql;
+
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.comp.StreamComparator;
+import org.apache.solr.client.solrj.io.stream.StreamContext;
+import org.apache.solr.client.solrj.io.stream.TupleStream;
+import org.apache.solr.client.solrj.io.stream.expr.Explanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamExplanation;
+import org.apache.solr.client.solrj.io.stream.expr.StreamFactory;
+import org.noggit.JSONUtil;
+import org.noggit.ObjectBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Computes window functions over a stream sorted on the partition fields and the order fields of the window, in a
+ * single pass. Only the rows of the current partition the functions still need are kept: the rows looked back on by
+ * {@code LAG} and a frame of a number of preceding rows, the rows looked ahead on by {@code LEAD}, and the peers of the
+ * current row, the rows with the same order values, for a frame that is a range. A frame that starts at the start of
+ * the partition is aggregated incrementally.
+ *
+ * <p>More than {@code windowFrameMaxRows} rows kept for a partition fail the query rather than exhaust the heap.</p>
+ */
+class WindowStream extends TupleStream {
+
+  static final String MAX_ROWS_PROPERTY = "windowFrameMaxRows";
+  private static final String DEFAULT_MAX_ROWS = "100000";
+
+  private final TupleStream stream;
+  private final List<String> partitionFields;
+  private final List<String> orderFields;
+  private final boolean rows;
+  private final long preceding;
+  private final List<Function> functions = new ArrayList<>();
+  private final int maxRows;
+  private final long behind;
+  private final long ahead;
+  private final boolean peers;
+
+  // Rows of the current partition from row number base on
+  private final List<Tuple> buffer = new ArrayList<>();
+  private long base;
+  private long read;
+  private long next;
+  private List<Object> partition;
+  private boolean partitionEnd;
+  private Tuple pending;
+
+  private long peerEnd;
+  private long peerScan;
+  private List<Object> previousOrder;
+  private long rank;
+  private long denseRank;
+  private long accumulated;
+  private Accumulator[] accumulators;
+
+  /**
+   * @param stream Stream sorted on the partition fields followed by the order fields
+   * @param partitionFields Fields whose values make up the partition of a tuple, none for a single partition
+   * @param orderFields Fields whose values make up the peer group of a tuple
+   * @param rows Whether the frame is a number of rows rather than the range up to the last peer of the current row
+   * @param preceding Number of rows before the current row in a frame of rows, -1 if the frame starts at the partition
+   * @param functions The window functions, see {@link #toFunction}
+   * @param maxRows Number of rows of a partition that can be kept
+   */
+  WindowStream(TupleStream stream, List<String> partitionFields, List<String> orderFields, boolean rows,
+               long preceding, List<String> functions, int maxRows) {
+    this.stream = stream;
+    this.partitionFields = partitionFields;
+    this.orderFields = orderFields;
+    this.rows = rows;
+    this.preceding = preceding;
+    this.maxRows = maxRows;
+
+    long behind = rows ? Math.max(preceding, 0) : 0;
+    long ahead = 0;
+    boolean peers = false;
+    for(String function : functions) {
+      Function parsed = Function.parse(function);
+      this.functions.add(parsed);
+      switch (parsed.kind) {
+        case "LAG":
+          behind = Math.max(behind, parsed.offset);
+          break;
+        case "LEAD":
+          ahead = Math.max(ahead, parsed.offset);
+          break;
+        case "COUNT":
+        case "SUM":
+        case "SUM0":
+        case "MIN":
+        case "MAX":
+          peers |= !rows;
+          break;
+      }
+    }
+    this.behind = behind;
+    this.ahead = ahead;
+    this.peers = peers;
+  }
+
+  /** Creates a WindowStream configured from the connection properties. */
+  static WindowStream create(TupleStream stream, List<String> partitionFields, List<String> orderFields,
+                             boolean rows, long preceding, List<String> functions, Properties properties) {
+    int maxRows = Integer.parseInt(properties.getProperty(MAX_ROWS_PROPERTY, DEFAULT_MAX_ROWS));
+    return new WindowStream(stream, partitionFields, orderFields, rows, preceding, functions, maxRows);
+  }
+
+  /**
+   * Returns a window function.
+   *
+   * @param name Field the value of the function is put in
+   * @param kind Kind of the function: ROW_NUMBER, RANK, DENSE_RANK, LAG, LEAD or the aggregate COUNT, SUM, SUM0, MIN
+   *             or MAX
+   * @param argument Field the function is applied to, null for the functions without one and {@code COUNT(*)}
+   * @param offset Number of rows looked back on by LAG or ahead on by LEAD
+   * @param defaultValue Value of LAG and LEAD when the offset is outside the partition
+   */
+  static String toFunction(String name, String kind, String argument, long offset, Object defaultValue) {
+    return JSONUtil.toJSON(Arrays.asList(name, kind, argument, offset, defaultValue), -1);
+  }
+
+  public void open() throws IOException {
+    buffer.clear();
+    read = 0;
+    next = 0;
+    partitionEnd = true;
+    stream.open();
+    pending = stream.read();
+  }
+
+  public void close() throws IOException {
+    buffer.clear();
+    stream.close();
+  }
+
+  public List<TupleStream> children() {
+    List<TupleStream> children = new ArrayList<>();
+    children.add(stream);
+    return children;
+  }
+
+  public StreamComparator getStreamSort() {
+    return stream.getStreamSort();
+  }
+
+  public void setStreamContext(StreamContext context) {
+    stream.setStreamContext(context);
+  }
+
+  @Override
+  public Explanation toExplanation(StreamFactory factory) throws IOException {
+    return new StreamExplanation(getStreamNodeId().toString())
+        .withChildren(new Explanation[]{
+            stream.toExplanation(factory)
+        })
+        .withFunctionName("SQL WINDOW")
+        .withExpression("--non-expressible--")
+        .withImplementingClass(this.getClass().getName())
+        .withExpressionType(Explanation.ExpressionType.STREAM_DECORATOR);
+  }
+
+  public Tuple read() throws IOException {
+    while(true) {
+      if(next < read && isComplete()) {
+        return emit();
+      }
+
+      if(partitionEnd) {
+        // Every row of the partition is emitted
+        if(pending.EOF) {
+          return pending;
+        }
+        startPartition(pending);
+      } else {
+        Tuple tuple = stream.read();
+        if(tuple.EOF || !values(tuple, partitionFields).equals(partition)) {
+          pending = tuple;
+          partitionEnd = true;
+        } else {
+          add(tuple);
+        }
+      }
+    }
+  }
+
+  private void startPartition(Tuple tuple) throws IOException {
+    buffer.clear();
+    base = 0;
+    read = 0;
+    next = 0;
+    partition = values(tuple, partitionFields);
+    partitionEnd = false;
+    peerEnd = -1;
+    peerScan = 0;
+    previousOrder = null;
+    rank = 0;
+    denseRank = 0;
+    accumulated = 0;
+    accumulators = new Accumulator[functions.size()];
+    for(int i = 0; i < functions.size(); i++) {
+      accumulators[i] = new Accumulator(functions.get(i));
+    }
+    add(tuple);
+  }
+
+  private void add(Tuple tuple) throws IOException {
+    if(read - Math.max(next - behind, 0) >= maxRows) {
+      throw new IOException("A window frame of more than " + maxRows
+          + " rows can't be computed, the limit is set by " + MAX_ROWS_PROPERTY);
+    }
+    buffer.add(tuple);
+    ++read;
+  }
+
+  private Tuple get(long row) {
+    return buffer.get((int) (row - base));
+  }
+
+  /** Whether the rows the functions of the next row look at have been read. */
+  private boolean isComplete() {
+    if(partitionEnd) {
+      return true;
+    }
+    if(next + ahead >= read) {
+      return false;
+    }
+    return !peers || findPeerEnd();
+  }
+
+  /** Finds the last peer of the next row, returns false if the rows read so far are all peers. */
+  private boolean findPeerEnd() {
+    if(peerEnd >= next) {
+      return true;
+    }
+    List<Object> order = values(get(next), orderFields);
+    for(peerScan = Math.max(peerScan, next + 1); peerScan < read; ++peerScan) {
+      if(!values(get(peerScan), orderFields).equals(order)) {
+        peerEnd = peerScan - 1;
+        return true;
+      }
+    }
+    if(partitionEnd) {
+      peerEnd = read - 1;
+      return true;
+    }
+    return false;
+  }
+
+  private Tuple emit() {
+    Tuple tuple = get(next);
+    List<Object> order = values(tuple, orderFields);
+    if(!order.equals(previousOrder)) {
+      rank = next + 1;
+      ++denseRank;
+      previousOrder = order;
+    }
+
+    long frameEnd = next;
+    if(peers) {
+      findPeerEnd();
+      frameEnd = peerEnd;
+    }
+    boolean cumulative = preceding < 0 || !rows;
+
+    for(int i = 0; i < functions.size(); i++) {
+      Function function = functions.get(i);
+      Object value;
+      switch (function.kind) {
+        case "ROW_NUMBER":
+          value = next + 1;
+          break;
+        case "RANK":
+          value = rank;
+          break;
+        case "DENSE_RANK":
+          value = denseRank;
+          break;
+        case "LAG":
+          value = next - function.offset >= 0
+              ? get(next - function.offset).get(function.argument) : function.defaultValue;
+          break;
+        case "LEAD":
+          value = next + function.offset < read
+              ? get(next + function.offset).get(function.argument) : function.defaultValue;
+          break;
+        default:
+          if(cumulative) {
+            // The frame only grows, the rows up to its end are added to the aggregate of the partition
+            for(long row = accumulated; row <= frameEnd; row++) {
+              accumulators[i].add(get(row));
+            }
+            value = accumulators[i].value();
+          } else {
+            Accumulator accumulator = new Accumulator(function);
+            for(long row = Math.max(next - preceding, 0); row <= frameEnd; row++) {
+              accumulator.add(get(row));
+            }
+            value = accumulator.value();
+          }
+      }
+      tuple.put(function.name, value);
+    }
+    accumulated = Math.max(accumulated, frameEnd + 1);
+
+    ++next;
+    // Rows no function looks back on are dropped once they are half of the buffer
+    long dropped = next - behind - base;
+    if(dropped > 0 && dropped * 2 >= buffer.size()) {
+      buffer.subList(0, (int) dropped).clear();
+      base += dropped;
+    }
+    return tuple;
+  }
+
+  private static List<Object> values(Tuple tuple, List<String> fields) {
+    List<Object> values = new ArrayList<>(fields.size());
+    for(String field : fields) {
+      values.add(tuple.get(field));
+    }
+    return values;
+  }
+
+  /** A window function of the stream. */
+  private static class Function {
+    private final String name;
+    private final String kind;
+    private final String argument;
+    private final long offset;
+    private final Object defaultValue;
+
+    private Function(String name, String kind, String argument, long offset, Object defaultValue) {
+      this.name = name;
+      this.kind = kind;
+      this.argument = argument;
+      this.offset = offset;
+      this.defaultValue = defaultValue;
+    }
+
+    private static Function parse(String function) {
+      List values;
+      try {
+        values = (List) ObjectBuilder.fromJSON(function);
+      } catch (IOException e) {
+        throw new IllegalArgumentException(function, e);
+      }
+      return new Function((String) values.get(0), (String) values.get(1), (String) values.get(2),
+          ((Number) values.get(3)).longValue(), values.get(4));
+    }
+  }
+
+  /** The aggregate of a window function over the rows added so far. */
+  private static class Accumulator {
+    private final Function function;
+    private long count;
+    private long longSum;
+    private double doubleSum;
+    private boolean isDouble;
+    private Comparable extreme;
+
+    private Accumulator(Function function) {
+      this.function = function;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void add(Tuple tuple) {
+      Object value = function.argument == null ? Boolean.TRUE : tuple.get(function.argument);
+      if(value == null) {
+        return;
+      }
+      ++count;
+      switch (function.kind) {
+        case "SUM":
+        case "SUM0":
+          if(value instanceof Double || value instanceof Float) {
+            isDouble = true;
+          }
+          longSum += ((Number) value).longValue();
+          doubleSum += ((Number) value).doubleValue();
+          break;
+        case "MIN":
+          if(extreme == null || ((Comparable) value).compareTo(extreme) < 0) {
+            extreme = (Comparable) value;
+          }
+          break;
+        case "MAX":
+          if(extreme == null || ((Comparable) value).compareTo(extreme) > 0) {
+            extreme = (Comparable) value;
+          }
+          break;
+      }
+    }
+
+    private Object value() {
+      switch (function.kind) {
+        case "COUNT":
+          return count;
+        case "SUM":
+          if(count == 0) {
+            return null;
+          }
+          return isDouble ? (Object) doubleSum : (Object) longSum;
+        case "SUM0":
+          return isDouble ? (Object) doubleSum : (Object) longSum;
+        default:
+          return extreme;
+      }
+    }
+  }
+}
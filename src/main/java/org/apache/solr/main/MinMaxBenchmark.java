@@ -0,0 +1,75 @@
+package org.apache.solr.main;
+
+import org.apache.calcite.config.Lex;
+import org.apache.solr.handler.sql.CalciteSolrDriver;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Compares the latency of MIN/MAX queries answered by sorted lookups with the StatsStream they used to run as.
+ *
+ * <p>Usage: MinMaxBenchmark zkHost collection field [where clause] [iterations]</p>
+ */
+class MinMaxBenchmark {
+  public static void main(String[] args) throws Exception {
+    String zk = args[0];
+    String collection = args[1];
+    String field = args[2];
+    String where = args.length > 3 && !args[3].isEmpty() ? " where " + args[3] : "";
+    int iterations = args.length > 4 ? Integer.parseInt(args[4]) : 100;
+
+    String sql = "select min(" + field + "), max(" + field + ") from " + collection + where;
+
+    String driverClass = CalciteSolrDriver.class.getName();
+    try {
+      Class.forName(driverClass);
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    }
+
+    System.out.println(sql);
+    run("stats", zk, sql, false, iterations);
+    run("sorted lookup", zk, sql, true, iterations);
+
+    System.exit(0);
+  }
+
+  private static void run(String name, String zk, String sql, boolean fastPath, int iterations) throws SQLException {
+    Properties info = new Properties();
+    info.setProperty("lex", Lex.MYSQL.toString());
+    info.setProperty("zk", zk);
+    info.setProperty("statsFastPath", Boolean.toString(fastPath));
+    // Don't let the result cache hide the lookups
+    info.setProperty("statsCache", "false");
+
+    try (Connection conn = DriverManager.getConnection(CalciteSolrDriver.CONNECT_STRING_PREFIX, info);
+         Statement stmt = conn.createStatement()) {
+      // Warm up the connection, the plan and the Solr caches
+      String result = execute(stmt, sql);
+      for (int i = 0; i < 10; i++) {
+        execute(stmt, sql);
+      }
+
+      long[] timings = new long[iterations];
+      for (int i = 0; i < iterations; i++) {
+        long start = System.nanoTime();
+        execute(stmt, sql);
+        timings[i] = System.nanoTime() - start;
+      }
+      Arrays.sort(timings);
+
+      System.out.println(String.format("%-14s result=%s p50=%.2fms p90=%.2fms max=%.2fms", name, result,
+          timings[iterations / 2] / 1e6, timings[(int) (iterations * 0.9)] / 1e6, timings[iterations - 1] / 1e6));
+    }
+  }
+
+  private static String execute(Statement stmt, String sql) throws SQLException {
+    try (ResultSet rs = stmt.executeQuery(sql)) {
+      rs.next();
+      return rs.getString(1) + "," + rs.getString(2);
+    }
+  }
+}
@@ -10,22 +10,35 @@ import org.apache.solr.update.VersionInfo;
 import org.junit.*;
 
 import java.io.IOException;
+import java.math.BigDecimal;
 import java.net.URL;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.*;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 abstract class TestBase {
   private static final String CONFIG_NAME = "test";
   private static final String COLLECTION_NAME = "test";
+  private static final String OTHER_COLLECTION_NAME = "test2";
 
   private static Connection conn;
   private static MiniSolrCloudCluster miniSolrCloudCluster;
@@ -44,6 +57,14 @@ abstract class TestBase {
     return conn;
   }
 
+  private Connection getConnection(String... properties) throws SQLException {
+    Properties connectionProperties = getProperties();
+    for(int i = 0; i < properties.length; i += 2) {
+      connectionProperties.setProperty(properties[i], properties[i + 1]);
+    }
+    return DriverManager.getConnection(getURL(), connectionProperties);
+  }
+
   abstract String getDriverClass();
   abstract String getURL();
   abstract Properties getProperties();
@@ -65,6 +86,7 @@ abstract class TestBase {
 
     setupSolr();
     indexDocs(miniSolrCloudCluster.getSolrClient(), COLLECTION_NAME);
+    indexOtherDocs(miniSolrCloudCluster.getSolrClient(), OTHER_COLLECTION_NAME);
   }
 
   private static void setupSolr() throws Exception {
@@ -79,10 +101,23 @@ abstract class TestBase {
 
     CollectionAdminRequest.createCollection(COLLECTION_NAME, CONFIG_NAME, 1, 1)
         .process(miniSolrCloudCluster.getSolrClient());
+    CollectionAdminRequest.createCollection(OTHER_COLLECTION_NAME, CONFIG_NAME, 1, 1)
+        .process(miniSolrCloudCluster.getSolrClient());
 
     zkAddress = miniSolrCloudCluster.getZkServer().getZkAddress();
   }
 
+  /** Creates a collection with the test config spread over the shards, the caller deletes it. */
+  private static void createShardedCollection(String name, int numShards, List<SolrInputDocument> docs)
+      throws Exception {
+    CloudSolrClient solrClient = miniSolrCloudCluster.getSolrClient();
+    CollectionAdminRequest.createCollection(name, CONFIG_NAME, numShards, 1)
+        .setMaxShardsPerNode(numShards)
+        .process(solrClient);
+    solrClient.add(name, docs);
+    solrClient.commit(name);
+  }
+
   private static SolrInputDocument makeInputDoc(Integer id, String fielda, String fieldb, Integer fieldc, String fieldd,
                                                 Integer fielde) {
     SolrInputDocument doc = new SolrInputDocument();
@@ -115,6 +150,55 @@ abstract class TestBase {
     solrClient.commit(collectionName);
   }
 
+  private static SolrInputDocument makeOtherInputDoc(String id, String fielda, String fieldd, String ts, Double price,
+                                                     Integer count, List<String> tags, String loc) {
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("id", id);
+    doc.addField("fielda", fielda);
+    doc.addField("fieldd_s", fieldd);
+    doc.addField("ts_dt", ts);
+    doc.addField("price_d", price);
+    doc.addField("count_i", count);
+    if(tags != null) {
+      doc.addField("tags_ss", tags);
+    }
+    doc.addField("loc_p", loc);
+    return doc;
+  }
+
+  /**
+   * A second collection, joined with the first one on fielda and fieldd_s. Its keys include values without a match,
+   * nulls, and characters that Java and Solr order differently.
+   */
+  private static void indexOtherDocs(CloudSolrClient solrClient, String collectionName)
+      throws IOException, SolrServerException {
+    /*
+    * id,fielda,fieldd_s,ts_dt,price_d,count_i,tags_ss,loc_p,rank_pi
+    * x1,a1,d1,2017-10-01T00:00:00Z,1.5,10,[t1,t2],48.8566,2.3522,1
+    * x2,a2,d2,2017-10-01T06:30:00Z,2.5,20,[t2],51.5074,-0.1278,2
+    * x3,a3,,2017-10-02T00:00:00Z,3.5,,[t3],52.52,13.405,3
+    * x4,,d1,2017-10-03T12:00:00Z,,40,,40.7128,-74.006,4
+    * x5,U+FF21,d2,,5.5,50,[t1],,5
+    * x6,U+1F600,,2017-10-01T00:00:00Z,6.5,60,,,6
+    */
+    List<SolrInputDocument> docs = new ArrayList<>();
+    docs.add(makeOtherInputDoc("x1", "a1", "d1", "2017-10-01T00:00:00Z", 1.5, 10, Arrays.asList("t1", "t2"),
+        "48.8566,2.3522"));
+    docs.add(makeOtherInputDoc("x2", "a2", "d2", "2017-10-01T06:30:00Z", 2.5, 20, Collections.singletonList("t2"),
+        "51.5074,-0.1278"));
+    docs.add(makeOtherInputDoc("x3", "a3", null, "2017-10-02T00:00:00Z", 3.5, null, Collections.singletonList("t3"),
+        "52.52,13.405"));
+    docs.add(makeOtherInputDoc("x4", null, "d1", "2017-10-03T12:00:00Z", null, 40, null, "40.7128,-74.006"));
+    docs.add(makeOtherInputDoc("x5", "\uFF21", "d2", null, 5.5, 50, Collections.singletonList("t1"), null));
+    docs.add(makeOtherInputDoc("x6", "\uD83D\uDE00", null, "2017-10-01T00:00:00Z", 6.5, 60, null, null));
+    for(int i = 0; i < docs.size(); i++) {
+      docs.get(i).addField("rank_pi", i + 1);
+    }
+
+    solrClient.add(collectionName, docs);
+    solrClient.commit(collectionName);
+  }
+
   static void teardown() throws Exception {
     try {
       if(conn != null) {
@@ -143,6 +227,13 @@ abstract class TestBase {
     setupConnection();
   }
 
+  @After
+  public void after() throws Exception {
+    if(conn != null) {
+      conn.close();
+    }
+  }
+
   @Test
   public void testSelectStar() throws Exception {
     String sql = "select * from test";
@@ -151,11 +242,11 @@ abstract class TestBase {
         "  SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a2", null, 2L, "5", null, "b2", "d2"});
-    result.add(new Object[] {"a1", null, null, "4", 4L, "b4", "d2"});
-    result.add(new Object[] {"a1", null, 1L, "3", 3L, "b3", null});
-    result.add(new Object[] {"a2", null, 1L, "2", 2L, "b2", "d1"});
-    result.add(new Object[] {"a1", null, 1L, "1", 1L, "b1", "d1"});
+    result.add(new Object[] {"a2", null, 2, "5", null, "b2", "d2"});
+    result.add(new Object[] {"a1", null, null, "4", 4, "b4", "d2"});
+    result.add(new Object[] {"a1", null, 1, "3", 3, "b3", null});
+    result.add(new Object[] {"a2", null, 1, "2", 2, "b2", "d1"});
+    result.add(new Object[] {"a1", null, 1, "1", 1, "b1", "d1"});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -169,8 +260,8 @@ abstract class TestBase {
         "    SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a2", null, 2L, "5", null, "b2", "d2"});
-    result.add(new Object[] {"a1", null, null, "4", 4L, "b4", "d2"});
+    result.add(new Object[] {"a2", null, 2, "5", null, "b2", "d2"});
+    result.add(new Object[] {"a1", null, null, "4", 4, "b4", "d2"});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -184,9 +275,9 @@ abstract class TestBase {
         "    SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a1", null, null, "4", 4L, "b4", "d2"});
-    result.add(new Object[] {"a1", null, 1L, "3", 3L, "b3", null});
-    result.add(new Object[] {"a1", null, 1L, "1", 1L, "b1", "d1"});
+    result.add(new Object[] {"a1", null, null, "4", 4, "b4", "d2"});
+    result.add(new Object[] {"a1", null, 1, "3", 3, "b3", null});
+    result.add(new Object[] {"a1", null, 1, "1", 1, "b1", "d1"});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -200,8 +291,8 @@ abstract class TestBase {
         "    SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a2", null, 2L, "5", null, "b2", "d2"});
-    result.add(new Object[] {"a2", null, 1L, "2", 2L, "b2", "d1"});
+    result.add(new Object[] {"a2", null, 2, "5", null, "b2", "d2"});
+    result.add(new Object[] {"a2", null, 1, "2", 2, "b2", "d1"});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -228,9 +319,9 @@ abstract class TestBase {
         "    SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a1", null, null, "4", 4L, "b4", "d2"});
-    result.add(new Object[] {"a1", null, 1L, "3", 3L, "b3", null});
-    result.add(new Object[] {"a1", null, 1L, "1", 1L, "b1", "d1"});
+    result.add(new Object[] {"a1", null, null, "4", 4, "b4", "d2"});
+    result.add(new Object[] {"a1", null, 1, "3", 3, "b3", null});
+    result.add(new Object[] {"a1", null, 1, "1", 1, "b1", "d1"});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -244,8 +335,8 @@ abstract class TestBase {
         "    SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a2", null, 2L, "5", null, "b2", "d2"});
-    result.add(new Object[] {"a2", null, 1L, "2", 2L, "b2", "d1"});
+    result.add(new Object[] {"a2", null, 2, "5", null, "b2", "d2"});
+    result.add(new Object[] {"a2", null, 1, "2", 2, "b2", "d1"});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -259,11 +350,11 @@ abstract class TestBase {
         "    SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a2", null, 2L, "5", null, "b2", "d2"});
-    result.add(new Object[] {"a1", null, null, "4", 4L, "b4", "d2"});
-    result.add(new Object[] {"a1", null, 1L, "3", 3L, "b3", null});
-    result.add(new Object[] {"a2", null, 1L, "2", 2L, "b2", "d1"});
-    result.add(new Object[] {"a1", null, 1L, "1", 1L, "b1", "d1"});
+    result.add(new Object[] {"a2", null, 2, "5", null, "b2", "d2"});
+    result.add(new Object[] {"a1", null, null, "4", 4, "b4", "d2"});
+    result.add(new Object[] {"a1", null, 1, "3", 3, "b3", null});
+    result.add(new Object[] {"a2", null, 1, "2", 2, "b2", "d1"});
+    result.add(new Object[] {"a1", null, 1, "1", 1, "b1", "d1"});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -277,11 +368,11 @@ abstract class TestBase {
         "    SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a2", null, 2L, "5", null, "b2", "d2"});
-    result.add(new Object[] {"a1", null, null, "4", 4L, "b4", "d2"});
-    result.add(new Object[] {"a1", null, 1L, "3", 3L, "b3", null});
-    result.add(new Object[] {"a2", null, 1L, "2", 2L, "b2", "d1"});
-    result.add(new Object[] {"a1", null, 1L, "1", 1L, "b1", "d1"});
+    result.add(new Object[] {"a2", null, 2, "5", null, "b2", "d2"});
+    result.add(new Object[] {"a1", null, null, "4", 4, "b4", "d2"});
+    result.add(new Object[] {"a1", null, 1, "3", 3, "b3", null});
+    result.add(new Object[] {"a2", null, 1, "2", 2, "b2", "d1"});
+    result.add(new Object[] {"a1", null, 1, "1", 1, "b1", "d1"});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -295,11 +386,11 @@ abstract class TestBase {
         "    SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a2", null, 2L, "5", null, "b2", "d2"});
-    result.add(new Object[] {"a1", null, null, "4", 4L, "b4", "d2"});
-    result.add(new Object[] {"a1", null, 1L, "3", 3L, "b3", null});
-    result.add(new Object[] {"a2", null, 1L, "2", 2L, "b2", "d1"});
-    result.add(new Object[] {"a1", null, 1L, "1", 1L, "b1", "d1"});
+    result.add(new Object[] {"a2", null, 2, "5", null, "b2", "d2"});
+    result.add(new Object[] {"a1", null, null, "4", 4, "b4", "d2"});
+    result.add(new Object[] {"a1", null, 1, "3", 3, "b3", null});
+    result.add(new Object[] {"a2", null, 1, "2", 2, "b2", "d1"});
+    result.add(new Object[] {"a1", null, 1, "1", 1, "b1", "d1"});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -322,6 +413,48 @@ abstract class TestBase {
     checkQuery(sql, explainPlan, result);
   }
 
+  @Test
+  public void testSelectExpressionWhereEqual() throws Exception {
+    String sql = "select id, fieldc * 2 as c from test where fielda = 'a1' order by id";
+
+    String explainPlan = "EnumerableCalc(expr#0..2=[{inputs}], expr#3=[2], expr#4=[*($t2, $t3)], id=[$t1], c=[$t4])\n" +
+        "  SolrToEnumerableConverter\n" +
+        "    SolrSort(sort0=[$1], dir0=[ASC])\n" +
+        "      SolrFilter(condition=[=(CAST($0):VARCHAR(2) CHARACTER SET \"ISO-8859-1\" COLLATE \"ISO-8859-1$en_US$primary\", 'a1')])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[fielda, id, fieldc]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[] {"1", 2});
+    result.add(new Object[] {"3", 6});
+    result.add(new Object[] {"4", 8});
+
+    checkQuery(sql, explainPlan, result);
+
+    // Solr only returns the fields the expression and the filter use
+    try (Statement stmt = getConnection().createStatement()) {
+      assertTrue(getExplainPlan(stmt, sql).contains("fields=[[fielda, id, fieldc]]"));
+    }
+  }
+
+  @Test
+  public void testSelectExpressionOrderByLimit() throws Exception {
+    String sql = "select id, cast(fielde_i as real) * 2 as c from test order by id limit 10";
+
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrSort(sort0=[$0], dir0=[ASC], fetch=[10])\n" +
+        "    SolrProject(id=[$1], c=[*(CAST($0):REAL, 2)])\n" +
+        "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[fielde_i, id]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[] {"1", 2.0f});
+    result.add(new Object[] {"2", 2.0f});
+    result.add(new Object[] {"3", 2.0f});
+    result.add(new Object[] {"4", null});
+    result.add(new Object[] {"5", 4.0f});
+
+    checkQuery(sql, explainPlan, result);
+  }
+
   @Test
   public void testSelectSingleFieldLimit() throws Exception {
     String sql = "select fielda from test limit 2";
@@ -584,11 +717,11 @@ abstract class TestBase {
         "    SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a2", "b2", null, "d2", 2L});
-    result.add(new Object[] {"a1", "b4", 4L, "d2", null});
-    result.add(new Object[] {"a1", "b3", 3L, null, 1L});
-    result.add(new Object[] {"a2", "b2", 2L, "d1", 1L});
-    result.add(new Object[] {"a1", "b1", 1L, "d1", 1L});
+    result.add(new Object[] {"a2", "b2", null, "d2", 2});
+    result.add(new Object[] {"a1", "b4", 4, "d2", null});
+    result.add(new Object[] {"a1", "b3", 3, null, 1});
+    result.add(new Object[] {"a2", "b2", 2, "d1", 1});
+    result.add(new Object[] {"a1", "b1", 1, "d1", 1});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -603,8 +736,8 @@ abstract class TestBase {
         "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a2", "b2", null, "d2", 2L});
-    result.add(new Object[] {"a1", "b4", 4L, "d2", null});
+    result.add(new Object[] {"a2", "b2", null, "d2", 2});
+    result.add(new Object[] {"a1", "b4", 4, "d2", null});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -619,8 +752,8 @@ abstract class TestBase {
         "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a1", "b4", 4L, "d2", null});
-    result.add(new Object[] {"a1", "b3", 3L, null, 1L});
+    result.add(new Object[] {"a1", "b4", 4, "d2", null});
+    result.add(new Object[] {"a1", "b3", 3, null, 1});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -635,9 +768,9 @@ abstract class TestBase {
         "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a1", "b4", 4L, "d2", null});
-    result.add(new Object[] {"a1", "b3", 3L, null, 1L});
-    result.add(new Object[] {"a1", "b1", 1L, "d1", 1L});
+    result.add(new Object[] {"a1", "b4", 4, "d2", null});
+    result.add(new Object[] {"a1", "b3", 3, null, 1});
+    result.add(new Object[] {"a1", "b1", 1, "d1", 1});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -652,8 +785,8 @@ abstract class TestBase {
         "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a2", "b2", null, "d2", 2L});
-    result.add(new Object[] {"a2", "b2", 2L, "d1", 1L});
+    result.add(new Object[] {"a2", "b2", null, "d2", 2});
+    result.add(new Object[] {"a2", "b2", 2, "d1", 1});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -682,9 +815,9 @@ abstract class TestBase {
         "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a1", "b4", 4L, "d2", null});
-    result.add(new Object[] {"a1", "b3", 3L, null, 1L});
-    result.add(new Object[] {"a1", "b1", 1L, "d1", 1L});
+    result.add(new Object[] {"a1", "b4", 4, "d2", null});
+    result.add(new Object[] {"a1", "b3", 3, null, 1});
+    result.add(new Object[] {"a1", "b1", 1, "d1", 1});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -699,8 +832,8 @@ abstract class TestBase {
         "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a2", "b2", null, "d2", 2L});
-    result.add(new Object[] {"a2", "b2", 2L, "d1", 1L});
+    result.add(new Object[] {"a2", "b2", null, "d2", 2});
+    result.add(new Object[] {"a2", "b2", 2, "d1", 1});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -715,11 +848,11 @@ abstract class TestBase {
         "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a2", "b2", null, "d2", 2L});
-    result.add(new Object[] {"a1", "b4", 4L, "d2", null});
-    result.add(new Object[] {"a1", "b3", 3L, null, 1L});
-    result.add(new Object[] {"a2", "b2", 2L, "d1", 1L});
-    result.add(new Object[] {"a1", "b1", 1L, "d1", 1L});
+    result.add(new Object[] {"a2", "b2", null, "d2", 2});
+    result.add(new Object[] {"a1", "b4", 4, "d2", null});
+    result.add(new Object[] {"a1", "b3", 3, null, 1});
+    result.add(new Object[] {"a2", "b2", 2, "d1", 1});
+    result.add(new Object[] {"a1", "b1", 1, "d1", 1});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -734,11 +867,11 @@ abstract class TestBase {
         "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a2", "b2", null, "d2", 2L});
-    result.add(new Object[] {"a1", "b4", 4L, "d2", null});
-    result.add(new Object[] {"a1", "b3", 3L, null, 1L});
-    result.add(new Object[] {"a2", "b2", 2L, "d1", 1L});
-    result.add(new Object[] {"a1", "b1", 1L, "d1", 1L});
+    result.add(new Object[] {"a2", "b2", null, "d2", 2});
+    result.add(new Object[] {"a1", "b4", 4, "d2", null});
+    result.add(new Object[] {"a1", "b3", 3, null, 1});
+    result.add(new Object[] {"a2", "b2", 2, "d1", 1});
+    result.add(new Object[] {"a1", "b1", 1, "d1", 1});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -752,11 +885,11 @@ abstract class TestBase {
         "    SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a2", "b2", null, "d2", 2L});
-    result.add(new Object[] {"a1", "b4", 4L, "d2", null});
-    result.add(new Object[] {"a1", "b3", 3L, null, 1L});
-    result.add(new Object[] {"a2", "b2", 2L, "d1", 1L});
-    result.add(new Object[] {"a1", "b1", 1L, "d1", 1L});
+    result.add(new Object[] {"a2", "b2", null, "d2", 2});
+    result.add(new Object[] {"a1", "b4", 4, "d2", null});
+    result.add(new Object[] {"a1", "b3", 3, null, 1});
+    result.add(new Object[] {"a2", "b2", 2, "d1", 1});
+    result.add(new Object[] {"a1", "b1", 1, "d1", 1});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -770,11 +903,11 @@ abstract class TestBase {
         "    SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a2", "b2", null, "d2", 2L});
-    result.add(new Object[] {"a1", "b4", 4L, "d2", null});
-    result.add(new Object[] {"a1", "b3", 3L, null, 1L});
-    result.add(new Object[] {"a2", "b2", 2L, "d1", 1L});
-    result.add(new Object[] {"a1", "b1", 1L, "d1", 1L});
+    result.add(new Object[] {"a2", "b2", null, "d2", 2});
+    result.add(new Object[] {"a1", "b4", 4, "d2", null});
+    result.add(new Object[] {"a1", "b3", 3, null, 1});
+    result.add(new Object[] {"a2", "b2", 2, "d1", 1});
+    result.add(new Object[] {"a1", "b1", 1, "d1", 1});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -789,8 +922,8 @@ abstract class TestBase {
         "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a2", "b2", null, "d2", 2L});
-    result.add(new Object[] {"a1", "b4", 4L, "d2", null});
+    result.add(new Object[] {"a2", "b2", null, "d2", 2});
+    result.add(new Object[] {"a1", "b4", 4, "d2", null});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -805,8 +938,8 @@ abstract class TestBase {
         "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a1", "b4", 4L, "d2", null});
-    result.add(new Object[] {"a1", "b3", 3L, null, 1L});
+    result.add(new Object[] {"a1", "b4", 4, "d2", null});
+    result.add(new Object[] {"a1", "b3", 3, null, 1});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -823,7 +956,7 @@ abstract class TestBase {
         "        SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[] {"a1", "b1", 1L, "d1", 1L});
+    result.add(new Object[] {"a1", "b1", 1, "d1", 1});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -870,6 +1003,57 @@ abstract class TestBase {
     checkQuery(sql, explainPlan, result);
   }
 
+  @Test
+  public void testSelectCountStarAfterLastConnectionClosed() throws Exception {
+    String sql = "select count(*) from " + OTHER_COLLECTION_NAME;
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrAggregate(group=[{}], EXPR$0=[COUNT()])\n" +
+        "    SolrProject(DUMMY=[0])\n" +
+        "      SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[] {6L});
+
+    checkQuery(sql, explainPlan, result);
+
+    // Closing the last open connection closes the shared clients, the next connection has to create them again
+    getConnection().close();
+    assertEquals(0, SolrSchema.getOpenSchemas());
+
+    checkQuery(sql, explainPlan, result);
+    assertEquals(0, SolrSchema.getOpenSchemas());
+  }
+
+  @Test
+  public void testSelectCountStarAfterIndexVersionChange() throws Exception {
+    String sql = "select count(*) from " + OTHER_COLLECTION_NAME;
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrAggregate(group=[{}], EXPR$0=[COUNT()])\n" +
+        "    SolrProject(DUMMY=[0])\n" +
+        "      SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[] {6L});
+
+    checkQuery(sql, explainPlan, result, IndexVersion.CHECK_INTERVAL_PROPERTY, "0");
+
+    CloudSolrClient solrClient = miniSolrCloudCluster.getSolrClient();
+    try {
+      solrClient.add(OTHER_COLLECTION_NAME, makeOtherInputDoc("x7", "a7", null, null, null, null, null, null));
+      solrClient.commit(OTHER_COLLECTION_NAME);
+
+      // The cached count was computed against the previous index version
+      result.set(0, new Object[] {7L});
+      checkQuery(sql, explainPlan, result, IndexVersion.CHECK_INTERVAL_PROPERTY, "0");
+    } finally {
+      solrClient.deleteById(OTHER_COLLECTION_NAME, "x7");
+      solrClient.commit(OTHER_COLLECTION_NAME);
+    }
+
+    result.set(0, new Object[] {6L});
+    checkQuery(sql, explainPlan, result, IndexVersion.CHECK_INTERVAL_PROPERTY, "0");
+  }
+
   @Test
   public void testSelectSingleFieldCountStarGroupBySingleField() throws Exception {
     String sql = "select fielda, count(*) from test group by fielda";
@@ -884,6 +1068,187 @@ abstract class TestBase {
     checkQuery(sql, explainPlan, result);
   }
 
+  @Test
+  public void testSelectCaseCountStarGroupByCase() throws Exception {
+    String sql = "select case when fieldc > 2 then 'big' when fieldc > 1 then 'mid' else 'small' end as size, count(*) " +
+        "from test group by case when fieldc > 2 then 'big' when fieldc > 1 then 'mid' else 'small' end order by size";
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrSort(sort0=[$0], dir0=[ASC])\n" +
+        "    SolrAggregate(group=[{0}], EXPR$1=[COUNT()])\n" +
+        "      SolrProject(size=[CASE(>($0, 2), 'big  ', >($0, 1), 'mid  ', 'small')])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[fieldc]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"big  ", 2L});
+    result.add(new Object[]{"mid  ", 1L});
+    result.add(new Object[]{"small", 2L});
+
+    checkQuery(sql, explainPlan, result);
+  }
+
+  @Test
+  public void testSelectFloorCountStarGroupByFloor() throws Exception {
+    String sql = "select floor(fieldc / 2.0) as b, count(*) from test group by floor(fieldc / 2.0) order by b";
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrSort(sort0=[$0], dir0=[ASC])\n" +
+        "    SolrAggregate(group=[{0}], EXPR$1=[COUNT()])\n" +
+        "      SolrProject(b=[FLOOR(/($0, 2.0))])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[fieldc]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{BigDecimal.valueOf(0), 1L});
+    result.add(new Object[]{BigDecimal.valueOf(1), 2L});
+    result.add(new Object[]{BigDecimal.valueOf(2), 1L});
+
+    checkQuery(sql, explainPlan, result);
+  }
+
+  @Test
+  public void testSelectMultipleFieldsWhereRowNumberLessThanEqual() throws Exception {
+    String sql = "select fielda, id, rn from (select fielda, id, " +
+        "row_number() over (partition by fielda order by id desc) as rn from test) t where rn <= 2";
+    String explainPlan = "SolrTopPerGroup(partition=[{0}], order=[[1 DESC]], rows=[2])\n" +
+        "  SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[fielda, id]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"a1", "4", 1});
+    result.add(new Object[]{"a1", "3", 2});
+    result.add(new Object[]{"a2", "5", 1});
+    result.add(new Object[]{"a2", "2", 2});
+
+    checkQuery(sql, explainPlan, result);
+  }
+
+  @Test
+  public void testSelectSingleFieldWhereTextMatchOrderByScoreDescLimit() throws Exception {
+    String sql = "select id from test where TEXT_MATCH(fieldb, 'b2 b3') and fielde_i = 1 order by score desc limit 2";
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrSort(sort0=[$1], dir0=[DESC], fetch=[2])\n" +
+        "    SolrProject(id=[$1], score=[$3])\n" +
+        "      SolrFilter(condition=[AND(TEXT_MATCH($2, 'b2 b3'), =(CAST($0):INTEGER, 1))])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], " +
+        "fields=[[fielde_i, id, fieldb, score]])\n";
+
+    // b3 is in fewer documents than b2, the score of the term query on fielde_i doesn't add to the score of the text
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"3"});
+    result.add(new Object[]{"2"});
+
+    checkQuery(sql, explainPlan, result);
+  }
+
+  @Test
+  public void testSelectMultipleFieldsRunningSumAndLag() throws Exception {
+    String sql = "select fielda, id, sum(fieldc) over (partition by fielda order by id) as s, " +
+        "lag(fieldc) over (partition by fielda order by id) as l from test";
+    String explainPlan = "EnumerableCalc(expr#0..5=[{inputs}], expr#6=[0], expr#7=[>($t3, $t6)], " +
+        "expr#8=[CAST($t4):JavaType(class java.lang.Integer)], expr#9=[null], expr#10=[CASE($t7, $t8, $t9)], " +
+        "proj#0..1=[{exprs}], s=[$t10], l=[$t5])\n" +
+        "  SolrWindow(window#0=[window(partition {0} order by [1] range between UNBOUNDED PRECEDING and CURRENT ROW " +
+        "aggs [COUNT($2), $SUM0($2), LAG($2)])])\n" +
+        "    SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], " +
+        "fields=[[fielda, id, fieldc]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"a1", "1", 1, null});
+    result.add(new Object[]{"a1", "3", 4, 1});
+    result.add(new Object[]{"a1", "4", 8, 3});
+    result.add(new Object[]{"a2", "2", 2, null});
+    result.add(new Object[]{"a2", "5", 2, 2});
+
+    checkQuery(sql, explainPlan, result);
+  }
+
+  @Test
+  public void testSelectMultipleFieldsMovingSumOverMaxRows() throws Exception {
+    String sql = "select fielda, id, sum(fieldc) over (partition by fielda order by id rows 2 preceding) as s from test";
+
+    // The frame of the a1 partition keeps more rows than the limit, the query fails rather than return the a2 rows
+    checkQueryFails(sql, WindowStream.MAX_ROWS_PROPERTY, WindowStream.MAX_ROWS_PROPERTY, "1");
+  }
+
+  @Test
+  public void testSelectComputedColumnOrderBySpilled() throws Exception {
+    String sql = "select id, fieldc * 2 as c from test order by c desc";
+    String explainPlan = "SolrExternalSort(sort0=[$1], dir0=[DESC])\n" +
+        "  EnumerableCalc(expr#0..1=[{inputs}], expr#2=[2], expr#3=[*($t1, $t2)], id=[$t0], c=[$t3])\n" +
+        "    SolrToEnumerableConverter\n" +
+        "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[id, fieldc]])\n";
+
+    // Every row is spilled as a run of its own
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"5", null});
+    result.add(new Object[]{"4", 8});
+    result.add(new Object[]{"3", 6});
+    result.add(new Object[]{"2", 4});
+    result.add(new Object[]{"1", 2});
+
+    checkQuery(sql, explainPlan, result, ExternalSorter.MEMORY_PROPERTY, "1");
+  }
+
+  @Test
+  public void testSelectComputedColumnsOrderBySpilledTypes() throws Exception {
+    String sql = "select id, price_d * 2 as p, cast(ts_dt as varchar(20)) as ts from test2 order by p desc, id";
+    String explainPlan = "SolrExternalSort(sort0=[$1], sort1=[$0], dir0=[DESC], dir1=[ASC])\n" +
+        "  EnumerableCalc(expr#0..2=[{inputs}], expr#3=[2], expr#4=[*($t0, $t3)], " +
+        "expr#5=[CAST($t1):VARCHAR(20) CHARACTER SET \"ISO-8859-1\" COLLATE \"ISO-8859-1$en_US$primary\"], " +
+        "id=[$t2], p=[$t4], ts=[$t5])\n" +
+        "    SolrToEnumerableConverter\n" +
+        "      SolrTableScan(table=[[" + getZkAddress() + ", test2]], fields=[[price_d, ts_dt, id]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"x4", null, "2017-10-03 12:00:00"});
+    result.add(new Object[]{"x6", 13.0, "2017-10-01 00:00:00"});
+    result.add(new Object[]{"x5", 11.0, null});
+    result.add(new Object[]{"x3", 7.0, "2017-10-02 00:00:00"});
+    result.add(new Object[]{"x2", 5.0, "2017-10-01 06:30:00"});
+    result.add(new Object[]{"x1", 3.0, "2017-10-01 00:00:00"});
+
+    checkQuery(sql, explainPlan, result, ExternalSorter.MEMORY_PROPERTY, "1");
+  }
+
+  @Test
+  public void testSelectSingleFieldCountStarGroupByOrderByCountSpilled() throws Exception {
+    String sql = "select fieldb, count(*) as c from test group by fieldb order by count(*) desc, fieldb";
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrSort(sort0=[$1], sort1=[$0], dir0=[DESC], dir1=[ASC])\n" +
+        "    SolrAggregate(group=[{0}], c=[COUNT()])\n" +
+        "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[fieldb]])\n";
+
+    // The buckets rolled up from the exported rows are sorted by an ExternalSortStream
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"b2", 2L});
+    result.add(new Object[]{"b1", 1L});
+    result.add(new Object[]{"b3", 1L});
+    result.add(new Object[]{"b4", 1L});
+
+    checkQuery(sql, explainPlan, result, "aggregationMode", "map_reduce", ExternalSorter.MEMORY_PROPERTY, "1");
+  }
+
+  @Test
+  public void testSelectMultipleFieldsCountStarGroupByRollup() throws Exception {
+    String sql = "select fieldc, fielde_i, grouping(fielde_i) as g, count(*) from test group by rollup(fieldc, fielde_i)";
+    String explainPlan = "EnumerableCalc(expr#0..4=[{inputs}], expr#5=[null], expr#6=[CASE($t2, $t5, $t0)], " +
+        "expr#7=[CASE($t3, $t5, $t1)], expr#8=[1], expr#9=[0], expr#10=[CASE($t3, $t8, $t9)], fieldc=[$t6], " +
+        "fielde_i=[$t7], g=[$t10], EXPR$3=[$t4])\n" +
+        "  SolrToEnumerableConverter\n" +
+        "    SolrAggregate(group=[{0, 1}], groups=[[{0, 1}, {0}, {}]], indicator=[true], EXPR$3=[COUNT()])\n" +
+        "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], " +
+        "fields=[[fieldc, fielde_i]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{1, 1, 0, 1L});
+    result.add(new Object[]{1, null, 1, 1L});
+    result.add(new Object[]{2, 1, 0, 1L});
+    result.add(new Object[]{2, null, 1, 1L});
+    result.add(new Object[]{3, 1, 0, 1L});
+    result.add(new Object[]{3, null, 1, 1L});
+    result.add(new Object[]{4, null, 1, 1L});
+    result.add(new Object[]{null, null, 1, 5L});
+
+    checkQuery(sql, explainPlan, result);
+  }
+
   @Test
   public void testSelectSingleFieldCountStarGroupBySingleFieldHavingCountStar() throws Exception {
     String sql = "select fielda, count(*) from test group by fielda having count(*) > 2";
@@ -1028,6 +1393,100 @@ abstract class TestBase {
     checkQuery(sql, explainPlan, result);
   }
 
+  @Test
+  public void testSelectSingleFieldCountStarGroupBySingleFieldPaged() throws Exception {
+    String sql = "select fieldb, count(*) from test group by fieldb order by fieldb desc";
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrSort(sort0=[$0], dir0=[DESC])\n" +
+        "    SolrAggregate(group=[{0}], EXPR$1=[COUNT()])\n" +
+        "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[fieldb]])\n";
+
+    // A page per bucket, each page is the facet of the documents after the last bucket of the previous page
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"b4", 1L});
+    result.add(new Object[]{"b3", 1L});
+    result.add(new Object[]{"b2", 2L});
+    result.add(new Object[]{"b1", 1L});
+
+    checkQuery(sql, explainPlan, result, FacetPagingStream.PAGE_SIZE_PROPERTY, "1");
+  }
+
+  @Test
+  public void testSelectSingleFieldCountStarGroupBySingleFieldOrderByCountStarPaged() throws Exception {
+    String sql = "select fielda, count(*) from test group by fielda order by count(*) desc";
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrSort(sort0=[$1], dir0=[DESC])\n" +
+        "    SolrAggregate(group=[{0}], EXPR$1=[COUNT()])\n" +
+        "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[fielda]])\n";
+
+    // Buckets sorted on a metric are paged with an offset
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"a1", 3L});
+    result.add(new Object[]{"a2", 2L});
+
+    checkQuery(sql, explainPlan, result, FacetPagingStream.PAGE_SIZE_PROPERTY, "1");
+  }
+
+  @Test
+  public void testSelectSingleFieldCountStarGroupByRollupPaged() throws Exception {
+    String sql = "select fieldc, count(*) from test group by rollup(fieldc)";
+    String explainPlan = "EnumerableCalc(expr#0..2=[{inputs}], expr#3=[null], expr#4=[CASE($t1, $t3, $t0)], " +
+        "fieldc=[$t4], EXPR$1=[$t2])\n" +
+        "  SolrToEnumerableConverter\n" +
+        "    SolrAggregate(group=[{0}], groups=[[{0}, {}]], indicator=[true], EXPR$1=[COUNT()])\n" +
+        "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[fieldc]])\n";
+
+    // The filter of a page only applies to its buckets, the total is still that of every document
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{1, 1L});
+    result.add(new Object[]{2, 1L});
+    result.add(new Object[]{3, 1L});
+    result.add(new Object[]{4, 1L});
+    result.add(new Object[]{null, 5L});
+
+    checkQuery(sql, explainPlan, result, FacetPagingStream.PAGE_SIZE_PROPERTY, "1");
+  }
+
+  @Test
+  public void testSelectSingleFieldCountStarGroupByTypedFieldsPaged() throws Exception {
+    String explainPlan = null;
+
+    // Keys are escaped, ordered by code point and formatted like Solr does
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"a1", 1L});
+    result.add(new Object[]{"a2", 1L});
+    result.add(new Object[]{"a3", 1L});
+    result.add(new Object[]{"\uFF21", 1L});
+    result.add(new Object[]{"\uD83D\uDE00", 1L});
+    checkQuery("select fielda, count(*) from test2 group by fielda", explainPlan, result,
+        FacetPagingStream.PAGE_SIZE_PROPERTY, "1");
+
+    result = new ArrayList<>();
+    result.add(new Object[]{6.5, 1L});
+    result.add(new Object[]{5.5, 1L});
+    result.add(new Object[]{3.5, 1L});
+    result.add(new Object[]{2.5, 1L});
+    result.add(new Object[]{1.5, 1L});
+    checkQuery("select price_d, count(*) from test2 group by price_d order by price_d desc", explainPlan, result,
+        FacetPagingStream.PAGE_SIZE_PROPERTY, "1");
+
+    result = new ArrayList<>();
+    result.add(new Object[]{Timestamp.valueOf("2017-10-01 00:00:00"), 2L});
+    result.add(new Object[]{Timestamp.valueOf("2017-10-01 06:30:00"), 1L});
+    result.add(new Object[]{Timestamp.valueOf("2017-10-02 00:00:00"), 1L});
+    result.add(new Object[]{Timestamp.valueOf("2017-10-03 12:00:00"), 1L});
+    checkQuery("select ts_dt, count(*) from test2 group by ts_dt", explainPlan, result,
+        FacetPagingStream.PAGE_SIZE_PROPERTY, "1");
+  }
+
+  @Test
+  public void testSelectMultipleFieldsCountStarGroupByMultipleFieldsOverMaxBuckets() throws Exception {
+    String sql = "select fielda, fieldb, count(*) from test group by fielda, fieldb";
+
+    // a1 has 3 values of fieldb, the inner level isn't truncated
+    checkQueryFails(sql, FacetPagingStream.MAX_BUCKETS_PROPERTY, FacetPagingStream.MAX_BUCKETS_PROPERTY, "2");
+  }
+
   @Test
   public void testSelectSingleFieldCountStarGroupByMultipleFields() throws Exception {
     String sql = "select fielda, fieldb, count(*) from test group by fielda, fieldb";
@@ -1070,11 +1529,58 @@ abstract class TestBase {
         "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[]{1L});
+    result.add(new Object[]{1});
 
     checkQuery(sql, explainPlan, result);
   }
 
+  @Test
+  public void testSelectMinMaxNoMatches() throws Exception {
+    String sql = "select min(price_d), max(count_i), count(*) from " + OTHER_COLLECTION_NAME + " where fielda = 'none'";
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrAggregate(group=[{}], EXPR$0=[MIN($0)], EXPR$1=[MAX($1)], EXPR$2=[COUNT()])\n" +
+        "    SolrProject(price_d=[$4], count_i=[$5])\n" +
+        "      SolrFilter(condition=[=($1, 'none')])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{null, null, 0L});
+
+    checkQuery(sql, explainPlan, result);
+    checkQuery(sql, explainPlan, result, SolrTable.STATS_FAST_PATH, "false");
+  }
+
+  @Test
+  public void testSelectMinMaxAllNull() throws Exception {
+    String sql = "select min(price_d), max(price_d), count(*) from " + OTHER_COLLECTION_NAME + " where id = 'x4'";
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrAggregate(group=[{}], EXPR$0=[MIN($0)], EXPR$1=[MAX($0)], EXPR$2=[COUNT()])\n" +
+        "    SolrProject(price_d=[$4])\n" +
+        "      SolrFilter(condition=[=($0, 'x4')])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{null, null, 1L});
+
+    checkQuery(sql, explainPlan, result);
+    checkQuery(sql, explainPlan, result, SolrTable.STATS_FAST_PATH, "false");
+  }
+
+  @Test
+  public void testSelectMinMaxDate() throws Exception {
+    String sql = "select min(ts_dt), max(ts_dt) from " + OTHER_COLLECTION_NAME;
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrAggregate(group=[{}], EXPR$0=[MIN($0)], EXPR$1=[MAX($0)])\n" +
+        "    SolrProject(ts_dt=[$3])\n" +
+        "      SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{Timestamp.valueOf("2017-10-01 00:00:00"), Timestamp.valueOf("2017-10-03 12:00:00")});
+
+    checkQuery(sql, explainPlan, result);
+    checkQuery(sql, explainPlan, result, SolrTable.STATS_FAST_PATH, "false");
+  }
+
   @Test
   public void testSelectDistinctSingleField() throws Exception {
     String sql = "select distinct fielda from test";
@@ -1135,6 +1641,41 @@ abstract class TestBase {
     checkQuery(sql, explainPlan, result);
   }
 
+  @Test
+  public void testSelectDistinctMultipleFieldsMapReduce() throws Exception {
+    String sql = "select distinct fielda, fieldb from test";
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrAggregate(group=[{0, 1}])\n" +
+        "    SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[fielda, fieldb]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"a1", "b1"});
+    result.add(new Object[]{"a1", "b3"});
+    result.add(new Object[]{"a1", "b4"});
+    result.add(new Object[]{"a2", "b2"});
+
+    // The estimated cardinality is below the default threshold, the distinct values are read from a facet
+    checkQuery(sql, explainPlan, result, "aggregationMode", "map_reduce");
+    // and above a threshold of 0, they are exported
+    checkQuery(sql, explainPlan, result, "aggregationMode", "map_reduce", "distinctFacetThreshold", "0");
+  }
+
+  @Test
+  public void testSelectDistinctSingleFieldWithNullsMapReduce() throws Exception {
+    String sql = "select distinct fieldd_s from test";
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrAggregate(group=[{0}])\n" +
+        "    SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[fieldd_s]])\n";
+
+    // The terms facet would skip the document without a value, which makes the estimate unbounded
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{null});
+    result.add(new Object[]{"d1"});
+    result.add(new Object[]{"d2"});
+
+    checkQuery(sql, explainPlan, result, "aggregationMode", "map_reduce");
+  }
+
   @Test
   public void testSelectCountDistinctSingleField() throws Exception {
     String sql = "select count(distinct fielda) from test";
@@ -1158,7 +1699,7 @@ abstract class TestBase {
         "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[]{10L});
+    result.add(new Object[]{10});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -1174,10 +1715,10 @@ abstract class TestBase {
         "        SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[]{"a2", "b2", 2L, 2L, 2.0, 2L});
-    result.add(new Object[]{"a1", "b1", 1L, 1L, 1.0, 1L});
-    result.add(new Object[]{"a1", "b4", 4L, 4L, 4.0, 4L});
-    result.add(new Object[]{"a1", "b3", 3L, 3L, 3.0, 3L});
+    result.add(new Object[]{"a2", "b2", 2, 2, 2.0, 2});
+    result.add(new Object[]{"a1", "b1", 1, 1, 1.0, 1});
+    result.add(new Object[]{"a1", "b4", 4, 4, 4.0, 4});
+    result.add(new Object[]{"a1", "b3", 3, 3, 3.0, 3});
 
     checkQuery(sql, explainPlan, result);
   }
@@ -1193,12 +1734,753 @@ abstract class TestBase {
         "        SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]])\n";
 
     List<Object[]> result = new ArrayList<>();
-    result.add(new Object[]{"a2", "b2", 2L, 2L, 2.0, 2L});
-    result.add(new Object[]{"a1", "b1", 1L, 1L, 1.0, 1L});
-    result.add(new Object[]{"a1", "b4", 4L, 4L, 4.0, 4L});
-    result.add(new Object[]{"a1", "b3", 3L, 3L, 3.0, 3L});
+    result.add(new Object[]{"a2", "b2", 2, 2, 2.0, 2});
+    result.add(new Object[]{"a1", "b1", 1, 1, 1.0, 1});
+    result.add(new Object[]{"a1", "b4", 4, 4, 4.0, 4});
+    result.add(new Object[]{"a1", "b3", 3, 3, 3.0, 3});
+
+    checkQuery(sql, explainPlan, result);
+  }
+
+  @Test
+  public void testJoinRuntimeFilterFollowsEstimates() throws Exception {
+    String sql = "select t.id, o.id from test t join " + OTHER_COLLECTION_NAME + " o on t.fielda = o.fielda " +
+        "where o.price_d > 0 order by t.id";
+    String explainPlan = "EnumerableSort(sort0=[$0], dir0=[ASC])\n" +
+        "  EnumerableCalc(expr#0..4=[{inputs}], id=[$t0], id0=[$t3])\n" +
+        "    SolrJoin(condition=[=($1, $4)], joinType=[inner])\n" +
+        "      SolrProject(id=[$1], fielda0=[$0])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[fielda, id]])\n" +
+        "      SolrProject(price_d=[$1], id=[$2], fielda0=[$0])\n" +
+        "        SolrFilter(condition=[>($1, 0)])\n" +
+        "          SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]], " +
+        "fields=[[fielda, price_d, id]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"1", "x1"});
+    result.add(new Object[]{"2", "x2"});
+    result.add(new Object[]{"3", "x1"});
+    result.add(new Object[]{"4", "x1"});
+    result.add(new Object[]{"5", "x2"});
+
+    checkQuery(sql, explainPlan, result);
+    checkQuery(sql, explainPlan, result, SolrStatistics.LIVE_STATISTICS_PROPERTY, "false");
+
+    // The filter matches most of the other collection, so it isn't smaller than the first one. Without statistics
+    // both tables are guessed to be the same size and the filter halves the other one.
+    try (Statement stmt = getConnection().createStatement()) {
+      assertFalse(getExplainPlan(stmt, sql).contains("runtimeFilter"));
+    }
+    try (Connection connection = getConnection(SolrStatistics.LIVE_STATISTICS_PROPERTY, "false");
+         Statement stmt = connection.createStatement()) {
+      assertTrue(getExplainPlan(stmt, sql).contains("runtimeFilter=[left]"));
+    }
+  }
+
+  @Test
+  public void testJoinNullKeys() throws Exception {
+    String sql = "select t.id, o.id from test t join " + OTHER_COLLECTION_NAME + " o on t.fieldd_s = o.fieldd_s " +
+        "order by t.id, o.id";
+    String explainPlan = "EnumerableSort(sort0=[$0], sort1=[$1], dir0=[ASC], dir1=[ASC])\n" +
+        "  EnumerableCalc(expr#0..3=[{inputs}], id=[$t0], id0=[$t2])\n" +
+        "    SolrJoin(condition=[=($1, $3)], joinType=[inner])\n" +
+        "      SolrProject(id=[$0], fieldd_s0=[$1])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[id, fieldd_s]])\n" +
+        "      SolrProject(id=[$0], fieldd_s0=[$1])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]], " +
+        "fields=[[id, fieldd_s]])\n";
+
+    // Null keys don't match each other
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"1", "x1"});
+    result.add(new Object[]{"1", "x4"});
+    result.add(new Object[]{"2", "x1"});
+    result.add(new Object[]{"2", "x4"});
+    result.add(new Object[]{"4", "x2"});
+    result.add(new Object[]{"4", "x5"});
+    result.add(new Object[]{"5", "x2"});
+    result.add(new Object[]{"5", "x5"});
+
+    checkQuery(sql, explainPlan, result);
+    checkQuery(sql, explainPlan, result, RuntimeFilter.MAX_ROWS_PROPERTY, "0");
+
+    sql = "select t.id, o.id from test t left join " + OTHER_COLLECTION_NAME + " o on t.fieldd_s = o.fieldd_s " +
+        "order by t.id, o.id";
+    explainPlan = "EnumerableSort(sort0=[$0], sort1=[$1], dir0=[ASC], dir1=[ASC])\n" +
+        "  EnumerableCalc(expr#0..3=[{inputs}], id=[$t0], id0=[$t2])\n" +
+        "    SolrJoin(condition=[=($1, $3)], joinType=[left])\n" +
+        "      SolrProject(id=[$0], fieldd_s0=[$1])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[id, fieldd_s]])\n" +
+        "      SolrProject(id=[$0], fieldd_s0=[$1])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]], " +
+        "fields=[[id, fieldd_s]])\n";
+
+    result.add(4, new Object[]{"3", null});
+
+    checkQuery(sql, explainPlan, result);
+    checkQuery(sql, explainPlan, result, RuntimeFilter.MAX_ROWS_PROPERTY, "0");
+  }
+
+  @Test
+  public void testJoinMultipleKeys() throws Exception {
+    String sql = "select t.id, o.id from test t join " + OTHER_COLLECTION_NAME + " o " +
+        "on t.fielda = o.fielda and t.fieldd_s = o.fieldd_s order by t.id";
+    String explainPlan = "EnumerableSort(sort0=[$0], dir0=[ASC])\n" +
+        "  EnumerableCalc(expr#0..5=[{inputs}], id=[$t0], id0=[$t3])\n" +
+        "    SolrJoin(condition=[AND(=($1, $4), =($2, $5))], joinType=[inner])\n" +
+        "      SolrProject(id=[$1], fielda0=[$0], fieldd_s0=[$2])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], " +
+        "fields=[[fielda, id, fieldd_s]])\n" +
+        "      SolrProject(id=[$1], fielda0=[$0], fieldd_s0=[$2])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]], " +
+        "fields=[[fielda, id, fieldd_s]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"1", "x1"});
+    result.add(new Object[]{"5", "x2"});
+
+    checkQuery(sql, explainPlan, result);
+    checkQuery(sql, explainPlan, result, RuntimeFilter.MAX_ROWS_PROPERTY, "0");
+  }
+
+  @Test
+  public void testJoinKeysInSolrOrder() throws Exception {
+    // The aggregated input is sorted in memory, it has to put the keys in the order Solr exports the other input.
+    // Java orders U+1F600 before U+FF21, Solr after.
+    String sql = "select o.id, g.fielda, g.c from " + OTHER_COLLECTION_NAME + " o join " +
+        "(select fielda, count(*) c from " + OTHER_COLLECTION_NAME + " group by fielda) g on o.fielda = g.fielda " +
+        "order by o.id";
+    String explainPlan = "EnumerableSort(sort0=[$0], dir0=[ASC])\n" +
+        "  EnumerableCalc(expr#0..4=[{inputs}], id=[$t3], fielda1=[$t0], c=[$t1])\n" +
+        "    SolrJoin(condition=[=($4, $2)], joinType=[inner])\n" +
+        "      SolrProject(fielda=[$0], c=[$1], fielda0=[$0])\n" +
+        "        SolrAggregate(group=[{0}], c=[COUNT()])\n" +
+        "          SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]], fields=[[fielda]])\n" +
+        "      SolrProject(id=[$1], fielda0=[$0])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]], " +
+        "fields=[[fielda, id]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"x1", "a1", 1L});
+    result.add(new Object[]{"x2", "a2", 1L});
+    result.add(new Object[]{"x3", "a3", 1L});
+    result.add(new Object[]{"x5", "\uFF21", 1L});
+    result.add(new Object[]{"x6", "\uD83D\uDE00", 1L});
+
+    checkQuery(sql, explainPlan, result);
+    checkQuery(sql, explainPlan, result, RuntimeFilter.MAX_ROWS_PROPERTY, "0");
+  }
+
+  @Test
+  public void testJoinNumericKeys() throws Exception {
+    // The buckets of the aggregation are compared by value with the exported integers
+    String sql = "select t.id, g.rank_pi, g.c from test t join " +
+        "(select rank_pi, count(*) c from " + OTHER_COLLECTION_NAME + " group by rank_pi) g " +
+        "on t.fielde_i = g.rank_pi order by t.id";
+    String explainPlan = "EnumerableSort(sort0=[$0], dir0=[ASC])\n" +
+        "  EnumerableCalc(expr#0..3=[{inputs}], id=[$t1], rank_pi=[$t2], c=[$t3])\n" +
+        "    SolrJoin(condition=[=($0, $2)], joinType=[inner])\n" +
+        "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], " +
+        "fields=[[fielde_i, id]])\n" +
+        "      SolrAggregate(group=[{0}], c=[COUNT()])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]], " +
+        "fields=[[rank_pi]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"1", 1, 1L});
+    result.add(new Object[]{"2", 1, 1L});
+    result.add(new Object[]{"3", 1, 1L});
+    result.add(new Object[]{"5", 2, 1L});
+
+    checkQuery(sql, explainPlan, result);
+    checkQuery(sql, explainPlan, result, RuntimeFilter.MAX_ROWS_PROPERTY, "0");
+  }
+
+  @Test
+  public void testJoinRuntimeFilterValues() throws Exception {
+    // Integers keep no fraction, values an integer field can't have are left out
+    Set<Object> values = new LinkedHashSet<>(Arrays.asList(2.0, 2.5, 3L, "4"));
+    assertEquals("{!terms f=fieldc}2,3,4", RuntimeFilter.filterQuery("fieldc", values, 10, Long.class));
+    assertEquals("fieldc:[2 TO 4]", RuntimeFilter.filterQuery("fieldc", values, 1, Long.class));
+    assertEquals("{!terms f=price_d}2.0,2.5,3.0,4.0", RuntimeFilter.filterQuery("price_d", values, 10, Double.class));
+    assertEquals("-*:*", RuntimeFilter.filterQuery("fieldc", Collections.singleton(0.5), 10, int.class));
+    // Dates the way Solr parses them, whether they are read as dates or ISO strings
+    values = new LinkedHashSet<>(Arrays.asList(java.util.Date.from(Instant.parse("2017-10-02T00:00:00Z")),
+        "2017-10-01T06:30:00Z", "2017-10-01T00:00:00.500Z"));
+    assertEquals("{!terms f=ts_dt}2017-10-02T00:00:00Z,2017-10-01T06:30:00Z,2017-10-01T00:00:00.500Z",
+        RuntimeFilter.filterQuery("ts_dt", values, 10, Long.class));
+    assertEquals("ts_dt:[2017\\-10\\-01T00\\:00\\:00.500Z TO 2017\\-10\\-02T00\\:00\\:00Z]",
+        RuntimeFilter.filterQuery("ts_dt", values, 1, Long.class));
+    // Strings in code point order like Solr
+    values = new LinkedHashSet<>(Arrays.asList("a1", "\uD83D\uDE00", "\uFF21"));
+    assertEquals("fielda:[\"a1\" TO \"\uD83D\uDE00\"]", RuntimeFilter.filterQuery("fielda", values, 1, String.class));
+
+    // The sums are doubles for an integer key
+    String sql = "select t.id, g.fieldd_s, g.s from test t join " +
+        "(select fieldd_s, sum(fielde_i) s from test group by fieldd_s) g on t.fieldc = g.s order by t.id, g.fieldd_s";
+    String explainPlan = "EnumerableSort(sort0=[$0], sort1=[$1], dir0=[ASC], dir1=[ASC])\n" +
+        "  EnumerableCalc(expr#0..3=[{inputs}], id=[$t0], fieldd_s=[$t2], s=[$t3])\n" +
+        "    SolrJoin(condition=[=($1, $3)], joinType=[inner], runtimeFilter=[left])\n" +
+        "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[id, fieldc]])\n" +
+        "      SolrAggregate(group=[{1}], s=[SUM($0)])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], " +
+        "fields=[[fielde_i, fieldd_s]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"2", "d1", 2});
+    result.add(new Object[]{"2", "d2", 2});
+
+    checkQuery(sql, explainPlan, result);
+    checkQuery(sql, explainPlan, result, RuntimeFilter.MAX_TERMS_PROPERTY, "1");
+
+    sql = "select o.id, g.ts_dt from " + OTHER_COLLECTION_NAME + " o join " +
+        "(select ts_dt, count(*) c from " + OTHER_COLLECTION_NAME + " group by ts_dt) g on o.ts_dt = g.ts_dt " +
+        "order by o.id";
+    explainPlan = "EnumerableSort(sort0=[$0], dir0=[ASC])\n" +
+        "  EnumerableCalc(expr#0..2=[{inputs}], id=[$t2], ts_dt=[$t0])\n" +
+        "    SolrJoin(condition=[=($1, $0)], joinType=[inner], runtimeFilter=[right])\n" +
+        "      SolrAggregate(group=[{0}])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]], fields=[[ts_dt]])\n" +
+        "      SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]], " +
+        "fields=[[ts_dt, id]])\n";
+
+    result = new ArrayList<>();
+    result.add(new Object[]{"x1", Timestamp.valueOf("2017-10-01 00:00:00")});
+    result.add(new Object[]{"x2", Timestamp.valueOf("2017-10-01 06:30:00")});
+    result.add(new Object[]{"x3", Timestamp.valueOf("2017-10-02 00:00:00")});
+    result.add(new Object[]{"x4", Timestamp.valueOf("2017-10-03 12:00:00")});
+    result.add(new Object[]{"x6", Timestamp.valueOf("2017-10-01 00:00:00")});
+
+    checkQuery(sql, explainPlan, result);
+    checkQuery(sql, explainPlan, result, RuntimeFilter.MAX_TERMS_PROPERTY, "1");
+
+    sql = "select o.id, g.p from " + OTHER_COLLECTION_NAME + " o join " +
+        "(select count_i, avg(price_d) p from " + OTHER_COLLECTION_NAME + " where count_i < 30 group by count_i) g " +
+        "on o.price_d = g.p order by o.id";
+    explainPlan = "EnumerableSort(sort0=[$0], dir0=[ASC])\n" +
+        "  EnumerableCalc(expr#0..3=[{inputs}], id=[$t1], p=[$t3])\n" +
+        "    SolrJoin(condition=[=($0, $3)], joinType=[inner], runtimeFilter=[left])\n" +
+        "      SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]], fields=[[price_d, id]])\n" +
+        "      SolrAggregate(group=[{1}], p=[AVG($0)])\n" +
+        "        SolrFilter(condition=[<($1, 30)])\n" +
+        "          SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]], " +
+        "fields=[[price_d, count_i]])\n";
+
+    result = new ArrayList<>();
+    result.add(new Object[]{"x1", 1.5});
+    result.add(new Object[]{"x2", 2.5});
+
+    checkQuery(sql, explainPlan, result);
+    checkQuery(sql, explainPlan, result, RuntimeFilter.MAX_TERMS_PROPERTY, "1");
+  }
+
+  @Test
+  public void testSemiJoin() throws Exception {
+    String sql = "select id from test where fielda in " +
+        "(select fielda from " + OTHER_COLLECTION_NAME + " where price_d > 2) order by id";
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrSort(sort0=[$0], dir0=[ASC])\n" +
+        "    SolrProject(id=[$1])\n" +
+        "      SolrSemiJoin(condition=[=($0, $2)], joinType=[inner])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[fielda, id]])\n" +
+        "        SolrFilter(condition=[>($1, 2)])\n" +
+        "          SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]], " +
+        "fields=[[fielda, price_d]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"2"});
+    result.add(new Object[]{"5"});
+
+    checkQuery(sql, explainPlan, result);
+    try (Statement stmt = getConnection().createStatement()) {
+      assertTrue(getExplainPlan(stmt, sql).contains("SolrSemiJoin"));
+    }
+
+    // Literals are projected by Calcite over the semi-join
+    sql = "select id, 'x' from test where fielda in " +
+        "(select fielda from " + OTHER_COLLECTION_NAME + " where price_d > 2) order by id";
+    explainPlan = "EnumerableCalc(expr#0=[{inputs}], expr#1=['x'], proj#0..1=[{exprs}])\n" +
+        "  SolrToEnumerableConverter\n" +
+        "    SolrSort(sort0=[$0], dir0=[ASC])\n" +
+        "      SolrProject(id=[$1])\n" +
+        "        SolrSemiJoin(condition=[=($0, $2)], joinType=[inner])\n" +
+        "          SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[fielda, id]])\n" +
+        "          SolrFilter(condition=[>($1, 2)])\n" +
+        "            SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]], " +
+        "fields=[[fielda, price_d]])\n";
+
+    result = new ArrayList<>();
+    result.add(new Object[]{"2", "x"});
+    result.add(new Object[]{"5", "x"});
+
+    checkQuery(sql, explainPlan, result);
+  }
+
+  @Test
+  public void testAntiJoin() throws Exception {
+    // The key is cast to the type of the other key, the null check is on the field itself
+    String sql = "select t.id from test t left join " + OTHER_COLLECTION_NAME + " o on t.fieldd_s = o.fieldd_s " +
+        "where o.fieldd_s is null";
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrProject(id=[$0])\n" +
+        "    SolrSemiJoin(condition=[=($1, $3)], joinType=[inner], anti=[true])\n" +
+        "      SolrProject(id=[$0], fieldd_s0=[$1])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[id, fieldd_s]])\n" +
+        "      SolrProject(fieldd_s=[$0], fieldd_s0=[$0])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]], " +
+        "fields=[[fieldd_s]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"3"});
+
+    checkQuery(sql, explainPlan, result);
+    try (Statement stmt = getConnection().createStatement()) {
+      assertTrue(getExplainPlan(stmt, sql).contains("anti=[true]"));
+    }
+
+    // The right columns of the unmatched rows are nulls projected by Calcite
+    sql = "select t.id, o.fielda from test t left join " +
+        "(select fielda from " + OTHER_COLLECTION_NAME + " where price_d > 2) o on t.fielda = o.fielda " +
+        "where o.fielda is null order by t.id";
+    explainPlan = "EnumerableCalc(expr#0..1=[{inputs}], expr#2=[null], id=[$t0], fielda1=[$t2])\n" +
+        "  SolrToEnumerableConverter\n" +
+        "    SolrSort(sort0=[$0], dir0=[ASC])\n" +
+        "      SolrSemiJoin(condition=[=($1, $3)], joinType=[inner], anti=[true])\n" +
+        "        SolrProject(id=[$1], fielda0=[$0])\n" +
+        "          SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[fielda, id]])\n" +
+        "        SolrProject(fielda=[$0], fielda0=[$0])\n" +
+        "          SolrFilter(condition=[>($1, 2)])\n" +
+        "            SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]], " +
+        "fields=[[fielda, price_d]])\n";
+
+    result = new ArrayList<>();
+    result.add(new Object[]{"1", null});
+    result.add(new Object[]{"3", null});
+    result.add(new Object[]{"4", null});
+
+    checkQuery(sql, explainPlan, result);
+    try (Statement stmt = getConnection().createStatement()) {
+      assertTrue(getExplainPlan(stmt, sql).contains("anti=[true]"));
+    }
+  }
+
+  @Test
+  public void testTableCacheSortsLikeExport() throws Exception {
+    // Missing values first when ascending, also for a string type with sortMissingLast
+    String sql = "select id, fieldd_s from test order by fieldd_s, id";
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrSort(sort0=[$1], sort1=[$0], dir0=[ASC], dir1=[ASC])\n" +
+        "    SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[id, fieldd_s]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"3", null});
+    result.add(new Object[]{"1", "d1"});
+    result.add(new Object[]{"2", "d1"});
+    result.add(new Object[]{"4", "d2"});
+    result.add(new Object[]{"5", "d2"});
 
     checkQuery(sql, explainPlan, result);
+    checkQuery(sql, explainPlan, result, TableCache.CACHED_TABLES_PROPERTY, getCollectionName());
+    assertNotNull(TableCache.peek(getZkAddress(), getCollectionName()));
+
+    sql = "select id, fieldc from test order by fieldc desc";
+    explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrSort(sort0=[$1], dir0=[DESC])\n" +
+        "    SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[id, fieldc]])\n";
+
+    result = new ArrayList<>();
+    result.add(new Object[]{"4", 4});
+    result.add(new Object[]{"3", 3});
+    result.add(new Object[]{"2", 2});
+    result.add(new Object[]{"1", 1});
+    result.add(new Object[]{"5", null});
+
+    checkQuery(sql, explainPlan, result);
+    checkQuery(sql, explainPlan, result, TableCache.CACHED_TABLES_PROPERTY, getCollectionName());
+  }
+
+  @Test
+  public void testTableCacheMaxBytes() throws Exception {
+    String cachedTables = getCollectionName() + "," + OTHER_COLLECTION_NAME;
+    String sql = "select id from test order by id";
+    String otherSql = "select id from " + OTHER_COLLECTION_NAME + " order by id";
+    List<Object[]> result = new ArrayList<>();
+    for(int i = 1; i <= 5; i++) {
+      result.add(new Object[]{String.valueOf(i)});
+    }
+    List<Object[]> otherResult = new ArrayList<>();
+    for(int i = 1; i <= 6; i++) {
+      otherResult.add(new Object[]{"x" + i});
+    }
+
+    checkQuery(sql, null, result, TableCache.CACHED_TABLES_PROPERTY, cachedTables);
+    checkQuery(otherSql, null, otherResult, TableCache.CACHED_TABLES_PROPERTY, cachedTables);
+    TableCache.Table table = TableCache.peek(getZkAddress(), getCollectionName());
+    TableCache.Table otherTable = TableCache.peek(getZkAddress(), OTHER_COLLECTION_NAME);
+    assertNotNull(table);
+    assertNotNull(otherTable);
+
+    // Room for either copy but not both, the new copy of the other collection drops the copy of the first one
+    String maxBytes = String.valueOf(Math.max(table.getBytes(), otherTable.getBytes()) + 64);
+    CloudSolrClient solrClient = miniSolrCloudCluster.getSolrClient();
+    try {
+      solrClient.add(OTHER_COLLECTION_NAME, makeOtherInputDoc("x7", "a7", null, null, null, 70, null, null));
+      solrClient.commit(OTHER_COLLECTION_NAME);
+
+      otherResult.add(new Object[]{"x7"});
+      checkQuery(otherSql, null, otherResult, TableCache.CACHED_TABLES_PROPERTY, cachedTables,
+          TableCache.MAX_BYTES_PROPERTY, maxBytes, IndexVersion.CHECK_INTERVAL_PROPERTY, "0");
+      assertNotNull(TableCache.peek(getZkAddress(), OTHER_COLLECTION_NAME));
+      assertTrue(TableCache.peek(getZkAddress(), OTHER_COLLECTION_NAME) != otherTable);
+      assertNull(TableCache.peek(getZkAddress(), getCollectionName()));
+    } finally {
+      solrClient.deleteById(OTHER_COLLECTION_NAME, "x7");
+      solrClient.commit(OTHER_COLLECTION_NAME);
+    }
+
+    // A copy larger than the maximum by itself isn't kept, the query still runs on it
+    checkQuery(sql, null, result, TableCache.CACHED_TABLES_PROPERTY, cachedTables,
+        TableCache.MAX_BYTES_PROPERTY, "1");
+    assertNull(TableCache.peek(getZkAddress(), getCollectionName()));
+  }
+
+  @Test
+  public void testUnionAll() throws Exception {
+    String sql = "select id from test union all select id from " + OTHER_COLLECTION_NAME + " order by id";
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrUnion(all=[true])\n" +
+        "    SolrSort(sort0=[$0], dir0=[ASC])\n" +
+        "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[id]])\n" +
+        "    SolrSort(sort0=[$0], dir0=[ASC])\n" +
+        "      SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]], fields=[[id]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    for(int i = 1; i <= 5; i++) {
+      result.add(new Object[]{String.valueOf(i)});
+    }
+    for(int i = 1; i <= 6; i++) {
+      result.add(new Object[]{"x" + i});
+    }
+    checkQuery(sql, explainPlan, result);
+
+    // Unsorted, the rows of both inputs arrive in any order
+    sql = "select id from test union all select id from " + OTHER_COLLECTION_NAME;
+    try (Statement stmt = getConnection().createStatement()) {
+      List<Object[]> rows = getResult(stmt, sql);
+      rows.sort(Comparator.comparing(row -> (String) row[0]));
+      assertResultEquals(result, rows);
+    }
+  }
+
+  @Test
+  public void testUnionAllLimit() throws Exception {
+    // The limit is pushed into both inputs and applied again to the merged rows
+    String sql = "select id from test union all select id from " + OTHER_COLLECTION_NAME + " order by id desc limit 4";
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrUnion(all=[true], fetch=[4])\n" +
+        "    SolrSort(sort0=[$0], dir0=[DESC], fetch=[4])\n" +
+        "      SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[id]])\n" +
+        "    SolrSort(sort0=[$0], dir0=[DESC], fetch=[4])\n" +
+        "      SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]], fields=[[id]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"x6"});
+    result.add(new Object[]{"x5"});
+    result.add(new Object[]{"x4"});
+    result.add(new Object[]{"x3"});
+    checkQuery(sql, explainPlan, result);
+
+    // Unsorted, the union is closed before the inputs are read
+    sql = "select id from test union all select id from " + OTHER_COLLECTION_NAME + " limit 2";
+    for(int i = 0; i < 5; i++) {
+      try (Statement stmt = getConnection().createStatement()) {
+        assertEquals(2, getResult(stmt, sql).size());
+      }
+    }
+  }
+
+  @Test
+  public void testUnionAllFailingInput() throws Exception {
+    // The syntax error of the first input fails the query instead of returning the rows of the other one
+    String sql = "select id from test where fielda = '(a1' union all select id from " + OTHER_COLLECTION_NAME;
+    checkQueryFails(sql, "Cannot parse");
+
+    sql = "select id from " + OTHER_COLLECTION_NAME + " union all select id from test where fielda = '(a1' "
+        + "order by id limit 3";
+    checkQueryFails(sql, "Cannot parse");
+  }
+
+  @Test
+  public void testParallelJoinRouted() throws Exception {
+    String routed = "routed";
+    List<SolrInputDocument> docs = new ArrayList<>();
+    for(int i = 1; i <= 4; i++) {
+      docs.add(makeOtherInputDoc("r" + i, "a" + i, null, null, null, i, null, null));
+    }
+    createShardedCollection(routed, 2, docs);
+    try {
+      // The equality on the router field only queries the shard of r2, the join can't run on the workers
+      String sql = "select r.id, t.id from " + routed + " r join test t on r.count_i = t.fieldc where r.id = 'r2'";
+      String explainPlan = "EnumerableCalc(expr#0..3=[{inputs}], id=[$t1], id0=[$t2])\n" +
+          "  SolrJoin(condition=[=($0, $3)], joinType=[inner])\n" +
+          "    SolrFilter(condition=[=(CAST($1):VARCHAR(2), 'r2')])\n" +
+          "      SolrTableScan(table=[[" + getZkAddress() + ", " + routed + "]], fields=[[count_i, id]])\n" +
+          "    SolrTableScan(table=[[" + getZkAddress() + ", " + getCollectionName() + "]], fields=[[id, fieldc]])\n";
+
+      List<Object[]> result = new ArrayList<>();
+      result.add(new Object[]{"r2", "2"});
+      checkQuery(sql, explainPlan, result);
+      checkQuery(sql, explainPlan, result, "numWorkers", "2", RuntimeFilter.MAX_ROWS_PROPERTY, "0");
+    } finally {
+      CollectionAdminRequest.deleteCollection(routed).process(miniSolrCloudCluster.getSolrClient());
+    }
+  }
+
+  @Test
+  public void testTimePartitions() throws Exception {
+    // e9 is in the wrong partition on purpose, it is only found when the first partition is queried
+    createShardedCollection("events_2017-10-01", 1, Arrays.asList(
+        makeOtherInputDoc("e1", null, null, "2017-10-01T00:00:00Z", null, 1, null, null),
+        makeOtherInputDoc("e2", null, null, "2017-10-01T12:00:00Z", null, 2, null, null),
+        makeOtherInputDoc("e9", null, null, "2017-10-03T06:00:00Z", null, 9, null, null)));
+    createShardedCollection("events_2017-10-02", 1, Collections.singletonList(
+        makeOtherInputDoc("e3", null, null, "2017-10-02T00:00:00Z", null, 3, null, null)));
+    createShardedCollection("events_2017-10-03", 1, Collections.singletonList(
+        makeOtherInputDoc("e4", null, null, "2017-10-03T12:00:00Z", null, 4, null, null)));
+    try {
+      String sql = "select id from events where ts_dt >= timestamp '2017-10-02 00:00:00' order by ts_dt";
+      String explainPlan = "SolrToEnumerableConverter\n" +
+          "  SolrProject(id=[$0])\n" +
+          "    SolrSort(sort0=[$1], dir0=[ASC])\n" +
+          "      SolrFilter(condition=[>=($1, 2017-10-02 00:00:00)])\n" +
+          "        SolrTableScan(table=[[" + getZkAddress() + ", events]], fields=[[id, ts_dt]])\n";
+
+      List<Object[]> result = new ArrayList<>();
+      result.add(new Object[]{"e3"});
+      result.add(new Object[]{"e4"});
+      checkQuery(sql, explainPlan, result, TimePartitions.PROPERTY, "events:ts_dt");
+
+      sql = "select id from events where ts_dt >= timestamp '2017-10-02 00:00:00' order by ts_dt desc limit 1";
+      result = new ArrayList<>();
+      result.add(new Object[]{"e4"});
+      checkQuery(sql, null, result, TimePartitions.PROPERTY, "events:ts_dt");
+
+      sql = "select count(*) from events where ts_dt < timestamp '2017-10-02 00:00:00'";
+      result = new ArrayList<>();
+      result.add(new Object[]{2L});
+      checkQuery(sql, null, result, TimePartitions.PROPERTY, "events:ts_dt");
+
+      // The partitions are read one after the other, the limit is reached before e9 of the first one
+      sql = "select id from events order by ts_dt desc limit 2";
+      result = new ArrayList<>();
+      result.add(new Object[]{"e4"});
+      result.add(new Object[]{"e3"});
+      checkQuery(sql, null, result, TimePartitions.PROPERTY, "events:ts_dt");
+
+      sql = "select count(*) from events";
+      result = new ArrayList<>();
+      result.add(new Object[]{5L});
+      checkQuery(sql, null, result, TimePartitions.PROPERTY, "events:ts_dt");
+
+      // Joins merge inputs sorted on the partition field, which only holds if every document is in its partition
+      CloudSolrClient solrClient = miniSolrCloudCluster.getSolrClient();
+      solrClient.deleteById("events_2017-10-01", "e9");
+      solrClient.commit("events_2017-10-01");
+
+      // The partitions are read one at a time for a join on the partition field, the workers can't do that
+      sql = "select e.id, o.id from events e join " + OTHER_COLLECTION_NAME + " o on e.ts_dt = o.ts_dt "
+          + "order by e.id, o.id";
+      result = new ArrayList<>();
+      result.add(new Object[]{"e1", "x1"});
+      result.add(new Object[]{"e1", "x6"});
+      result.add(new Object[]{"e3", "x3"});
+      result.add(new Object[]{"e4", "x4"});
+      checkQuery(sql, null, result, TimePartitions.PROPERTY, "events:ts_dt");
+      checkQuery(sql, null, result, TimePartitions.PROPERTY, "events:ts_dt", "numWorkers", "2",
+          RuntimeFilter.MAX_ROWS_PROPERTY, "0");
+
+      sql = "select e.id, t.id from events e join test t on e.count_i = t.fieldc order by e.id";
+      result = new ArrayList<>();
+      for(int i = 1; i <= 4; i++) {
+        result.add(new Object[]{"e" + i, String.valueOf(i)});
+      }
+      checkQuery(sql, null, result, TimePartitions.PROPERTY, "events:ts_dt", "numWorkers", "2",
+          RuntimeFilter.MAX_ROWS_PROPERTY, "0");
+    } finally {
+      for(String collection : Arrays.asList("events_2017-10-01", "events_2017-10-02", "events_2017-10-03")) {
+        CollectionAdminRequest.deleteCollection(collection).process(miniSolrCloudCluster.getSolrClient());
+      }
+    }
+  }
+
+  @Test
+  public void testParallelJoinAlias() throws Exception {
+    createShardedCollection("aliased1", 1, Collections.singletonList(
+        makeOtherInputDoc("y1", null, null, null, null, 1, null, null)));
+    createShardedCollection("aliased2", 1, Collections.singletonList(
+        makeOtherInputDoc("y2", null, null, null, null, 2, null, null)));
+    CloudSolrClient solrClient = miniSolrCloudCluster.getSolrClient();
+    CollectionAdminRequest.createAlias("aliased", "aliased1,aliased2").process(solrClient);
+    try {
+      // The alias is queried as a list of collections, the workers can't query that
+      String sql = "select a.id, t.id from aliased a join test t on a.count_i = t.fieldc order by a.id";
+      List<Object[]> result = new ArrayList<>();
+      result.add(new Object[]{"y1", "1"});
+      result.add(new Object[]{"y2", "2"});
+      checkQuery(sql, null, result);
+      checkQuery(sql, null, result, "numWorkers", "2", RuntimeFilter.MAX_ROWS_PROPERTY, "0");
+    } finally {
+      CollectionAdminRequest.deleteAlias("aliased").process(solrClient);
+      CollectionAdminRequest.deleteCollection("aliased1").process(solrClient);
+      CollectionAdminRequest.deleteCollection("aliased2").process(solrClient);
+    }
+  }
+
+  @Test
+  public void testGroupByFloorTimestamp() throws Exception {
+    // The bounds of the range facet are looked up
+    String sql = "select floor(ts_dt to day) d, count(*) c from " + OTHER_COLLECTION_NAME
+        + " group by floor(ts_dt to day) order by d";
+    String explainPlan = "SolrToEnumerableConverter\n" +
+        "  SolrSort(sort0=[$0], dir0=[ASC])\n" +
+        "    SolrAggregate(group=[{0}], c=[COUNT()])\n" +
+        "      SolrProject(d=[FLOOR($0, FLAG(DAY))])\n" +
+        "        SolrTableScan(table=[[" + getZkAddress() + ", " + OTHER_COLLECTION_NAME + "]], fields=[[ts_dt]])\n";
+
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{Timestamp.valueOf("2017-10-01 00:00:00"), 3L});
+    result.add(new Object[]{Timestamp.valueOf("2017-10-02 00:00:00"), 1L});
+    result.add(new Object[]{Timestamp.valueOf("2017-10-03 00:00:00"), 1L});
+    checkQuery(sql, explainPlan, result);
+    // More buckets than allowed, the exported documents are grouped instead
+    checkQuery(sql, explainPlan, result, FacetPagingStream.MAX_RANGE_BUCKETS_PROPERTY, "2");
+
+    // The bounds come from the WHERE clause, 48 hours
+    sql = "select floor(ts_dt to hour) h, count(*) c, sum(price_d) s from " + OTHER_COLLECTION_NAME
+        + " where ts_dt >= timestamp '2017-10-01 00:00:00' and ts_dt < timestamp '2017-10-03 00:00:00'"
+        + " group by floor(ts_dt to hour) order by h";
+    result = new ArrayList<>();
+    result.add(new Object[]{Timestamp.valueOf("2017-10-01 00:00:00"), 2L, 8.0});
+    result.add(new Object[]{Timestamp.valueOf("2017-10-01 06:00:00"), 1L, 2.5});
+    result.add(new Object[]{Timestamp.valueOf("2017-10-02 00:00:00"), 1L, 3.5});
+    checkQuery(sql, null, result);
+    checkQuery(sql, null, result, FacetPagingStream.MAX_RANGE_BUCKETS_PROPERTY, "47");
+
+    // Nested in a terms level, documents without a value for it aren't in any group
+    sql = "select fieldd_s, floor(ts_dt to day) d, count(*) c, max(count_i) m from " + OTHER_COLLECTION_NAME
+        + " group by fieldd_s, floor(ts_dt to day) order by fieldd_s, d";
+    result = new ArrayList<>();
+    result.add(new Object[]{"d1", Timestamp.valueOf("2017-10-01 00:00:00"), 1L, 10});
+    result.add(new Object[]{"d1", Timestamp.valueOf("2017-10-03 00:00:00"), 1L, 40});
+    result.add(new Object[]{"d2", Timestamp.valueOf("2017-10-01 00:00:00"), 1L, 20});
+    checkQuery(sql, null, result);
+    checkQuery(sql, null, result, FacetPagingStream.MAX_RANGE_BUCKETS_PROPERTY, "1");
+
+    sql = "select floor(ts_dt to day) d, count(*) c from " + OTHER_COLLECTION_NAME
+        + " group by floor(ts_dt to day) order by c desc, d limit 2";
+    result = new ArrayList<>();
+    result.add(new Object[]{Timestamp.valueOf("2017-10-01 00:00:00"), 3L});
+    result.add(new Object[]{Timestamp.valueOf("2017-10-02 00:00:00"), 1L});
+    checkQuery(sql, null, result);
+    checkQuery(sql, null, result, FacetPagingStream.MAX_RANGE_BUCKETS_PROPERTY, "1");
+  }
+
+  @Test
+  public void testGroupByFloorAndCaseExportGrouped() throws Exception {
+    // Three buckets of width 2 from 0 to 6, more than allowed
+    String sql = "select floor(fieldc / 2.0) as b, count(*) from test group by floor(fieldc / 2.0) order by b";
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{BigDecimal.valueOf(0), 1L});
+    result.add(new Object[]{BigDecimal.valueOf(1), 2L});
+    result.add(new Object[]{BigDecimal.valueOf(2), 1L});
+    checkQuery(sql, null, result, FacetPagingStream.MAX_RANGE_BUCKETS_PROPERTY, "2");
+
+    // The documents are exported once per branch, fieldc of 5 is null and goes to the ELSE branch
+    sql = "select case when fieldc > 2 then 'big' when fieldc > 1 then 'mid' else 'small' end as size, count(*) " +
+        "from test group by case when fieldc > 2 then 'big' when fieldc > 1 then 'mid' else 'small' end order by size";
+    result = new ArrayList<>();
+    result.add(new Object[]{"big  ", 2L});
+    result.add(new Object[]{"mid  ", 1L});
+    result.add(new Object[]{"small", 2L});
+    checkQuery(sql, null, result);
+    checkQuery(sql, null, result, FacetPagingStream.MAX_RANGE_BUCKETS_PROPERTY, "2");
+
+    sql = "select case when fieldc > 2 then 'big' else 'small' end as size, floor(fieldc / 2.0) b, count(*), " +
+        "max(fieldc) from test group by case when fieldc > 2 then 'big' else 'small' end, floor(fieldc / 2.0) " +
+        "order by size, b";
+    result = new ArrayList<>();
+    result.add(new Object[]{"big  ", BigDecimal.valueOf(1), 1L, 3});
+    result.add(new Object[]{"big  ", BigDecimal.valueOf(2), 1L, 4});
+    result.add(new Object[]{"small", BigDecimal.valueOf(0), 1L, 1});
+    result.add(new Object[]{"small", BigDecimal.valueOf(1), 1L, 2});
+    checkQuery(sql, null, result);
+    checkQuery(sql, null, result, FacetPagingStream.MAX_RANGE_BUCKETS_PROPERTY, "5");
+  }
+
+  @Test
+  public void testAnalyzeTable() throws Exception {
+    String sql = "select ANALYZE_TABLE('" + OTHER_COLLECTION_NAME + "')";
+    String explainPlan = "EnumerableCalc(expr#0=[{inputs}], expr#1=['" + OTHER_COLLECTION_NAME + "'], " +
+        "expr#2=[ANALYZE_TABLE($t1)], EXPR$0=[$t2])\n" +
+        "  EnumerableValues(tuples=[[{ 0 }]])\n";
+
+    // Every column but the location, Solr can't facet on it
+    List<Object[]> result = new ArrayList<>();
+    result.add(new Object[]{"Analyzed " + OTHER_COLLECTION_NAME + ": 6 documents, 11 of 12 columns"});
+
+    Path directory = Files.createTempDirectory("statistics");
+    Path copy = Files.createTempDirectory("statistics");
+    try {
+      checkQuery(sql, explainPlan, result, StatisticsStore.DIRECTORY_PROPERTY, directory.toString());
+
+      // Read the statistics back from a copy of the file, they're only cached for the directory they were saved to
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+        for(Path file : files) {
+          Files.copy(file, copy.resolve(file.getFileName()));
+        }
+      }
+      Properties properties = new Properties();
+      properties.setProperty(StatisticsStore.DIRECTORY_PROPERTY, copy.toString());
+      TableStatistics statistics = StatisticsStore.getCurrent(getZkAddress(), OTHER_COLLECTION_NAME, properties);
+      assertNotNull(statistics);
+      assertEquals(6, statistics.getNumDocs());
+
+      // Point, trie and date fields get a histogram, dates in milliseconds
+      TableStatistics.Column rank = statistics.getColumn("rank_pi");
+      assertTrue(rank.numeric);
+      assertEquals(1D, rank.min);
+      assertEquals(6D, rank.max);
+      assertEquals(TableStatistics.HISTOGRAM_BUCKETS + 1, rank.histogram.size());
+
+      TableStatistics.Column price = statistics.getColumn("price_d");
+      assertTrue(price.numeric);
+      assertEquals(1D / 6, price.nullFraction, 0.0001);
+      assertEquals(TableStatistics.HISTOGRAM_BUCKETS + 1, price.histogram.size());
+
+      TableStatistics.Column ts = statistics.getColumn("ts_dt");
+      assertTrue(ts.numeric);
+      assertEquals((double) Instant.parse("2017-10-01T00:00:00Z").toEpochMilli(), ts.min);
+      assertEquals((double) Instant.parse("2017-10-03T12:00:00Z").toEpochMilli(), ts.max);
+      assertEquals(TableStatistics.HISTOGRAM_BUCKETS + 1, ts.histogram.size());
+
+      TableStatistics.Column fielda = statistics.getColumn("fielda");
+      assertFalse(fielda.numeric);
+      assertEquals("a1", fielda.min);
+      assertEquals("\uD83D\uDE00", fielda.max);
+      assertEquals(Long.valueOf(1), fielda.mostCommon.get("a1"));
+      assertTrue(fielda.histogram.isEmpty());
+
+      assertEquals(null, statistics.getColumn("loc_p"));
+    } finally {
+      for(Path dir : Arrays.asList(directory, copy)) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+          for(Path file : files) {
+            Files.delete(file);
+          }
+        }
+        Files.delete(dir);
+      }
+    }
   }
 
 //  @Test
@@ -1260,5 +2542,34 @@ abstract class TestBase {
       assertResultEquals(result, getResult(stmt, sql));
     }
   }
+
+  /** Checks a query on a connection with the properties, given as pairs of names and values, added. */
+  private void checkQuery(String sql, String explainPlan, List<Object[]> result, String... properties)
+      throws Exception {
+    try (Connection connection = getConnection(properties); Statement stmt = connection.createStatement()) {
+//      System.out.println(getExplainPlan(stmt, sql));
+//      assertEquals(explainPlan, getExplainPlan(stmt, sql));
+      assertResultEquals(result, getResult(stmt, sql));
+    }
+  }
+
+  /** Checks that a query fails rather than return part of its rows, with a message that has the text. */
+  private void checkQueryFails(String sql, String message, String... properties) throws Exception {
+    try (Connection connection = getConnection(properties); Statement stmt = connection.createStatement()) {
+      getResult(stmt, sql);
+      fail("Expected the query to fail: " + sql);
+    } catch (SQLException | RuntimeException e) {
+      // The rows are read lazily, a failure while reading them isn't an SQLException
+      assertTrue(getMessages(e), getMessages(e).contains(message));
+    }
+  }
+
+  private static String getMessages(Throwable e) {
+    StringBuilder messages = new StringBuilder();
+    for(Throwable cause = e; cause != null; cause = cause.getCause()) {
+      messages.append(cause.getMessage()).append('\n');
+    }
+    return messages.toString();
+  }
   
 }